@@ -43,6 +43,8 @@ public class TestAIMLForgetfullness extends TestAIML2 {
 		try {
 			forgetfulness.setMaxRelationships(50);
 			forgetfulness.setMaxSize(1000);
+			forgetfulness.setPause(0);
+			forgetfulness.setBudget(0);
 			forgetfulness.forget(network, true, 100);
 		} catch (Exception exception) {
 			bot.log(bot, exception);
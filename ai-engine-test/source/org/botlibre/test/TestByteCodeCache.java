@@ -0,0 +1,183 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.util.List;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicMemory;
+import org.botlibre.knowledge.BasicNetwork;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.ByteCodeCache;
+import org.botlibre.knowledge.DecompiledByteCode;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.sense.text.TextEntry;
+import org.botlibre.thought.language.Language;
+import org.botlibre.thought.language.Language.LearningMode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Test the bootstrap state machines are evaluated the same by each message when their decompiled byte-code is cached.
+ */
+
+public class TestByteCodeCache extends TextTest {
+
+	@BeforeClass
+	public static void setup() {
+		bootstrap();
+	}
+
+	/**
+	 * Run the same state machines over several messages, and in a new instance sharing the cached byte-code.
+	 */
+	@org.junit.Test
+	public void testStateMachineAcrossMessages() {
+		Bot bot = Bot.createInstance();
+		Language language = bot.mind().getThought(Language.class);
+		language.setLearningMode(LearningMode.Disabled);
+		TextEntry text = bot.awareness().getSense(TextEntry.class);
+		List<String> output = registerForOutput(text);
+		((BasicMemory)bot.memory()).getByteCodeCache().clear();
+		
+		for (int index = 0; index < 3; index++) {
+			text.input("1 + 1");
+			checkResponse(waitForOutput(output), "1 + 1 = 2", "1 + 1 = two");
+			text.input("What is your name?");
+			checkResponse(waitForOutput(output), "My name is Test.");
+			text.input("2 + 3");
+			checkResponse(waitForOutput(output), "2 + 3 = 5", "2 + 3 = five");
+		}
+		bot.shutdown();
+		
+		bot = Bot.createInstance();
+		language = bot.mind().getThought(Language.class);
+		language.setLearningMode(LearningMode.Disabled);
+		text = bot.awareness().getSense(TextEntry.class);
+		output = registerForOutput(text);
+		text.input("What is your name?");
+		checkResponse(waitForOutput(output), "My name is Test.");
+		text.input("1 + 1");
+		checkResponse(waitForOutput(output), "1 + 1 = 2", "1 + 1 = two");
+		bot.shutdown();
+	}
+
+	public static Vertex createVertex(Network network, Object data, long id) {
+		Vertex vertex = new BasicVertex(data);
+		vertex.setId(id);
+		network.addVertex(vertex);
+		return vertex;
+	}
+
+	/**
+	 * Record a tree of temporary vertices and build it in another network.
+	 */
+	@org.junit.Test
+	public void testDecompiledTree() {
+		Network network = new BasicNetwork();
+		Vertex instantiation = createVertex(network, Primitive.INSTANTIATION, 1);
+		Vertex state = createVertex(network, Primitive.STATE, 2);
+		Vertex doType = createVertex(network, Primitive.DO, 3);
+		Vertex previous = createVertex(network, Primitive.PREVIOUS, 4);
+		Vertex word = createVertex(network, "hello", 5);
+		Vertex root = network.createTemporyVertex();
+		root.setName("root");
+		root.addRelationship(instantiation, state);
+		Vertex first = network.createTemporyVertex();
+		Vertex second = network.createTemporyVertex();
+		root.addRelationship(doType, first, Integer.MAX_VALUE);
+		root.addRelationship(doType, second, Integer.MAX_VALUE);
+		Relationship weak = first.addWeakRelationship(doType, word, 0.3f);
+		Vertex meta = network.createTemporyVertex();
+		meta.addRelationship(previous, word);
+		weak.setMeta(meta);
+		second.addRelationship(doType, root);
+		
+		DecompiledByteCode tree = DecompiledByteCode.record(root, 7, 100);
+		if (tree == null) {
+			fail("tree not recorded");
+		}
+		Network copy = new BasicNetwork();
+		for (Vertex vertex : network.findAll()) {
+			createVertex(copy, vertex.getData(), vertex.getId());
+		}
+		Vertex created = tree.create(copy);
+		if (created == root || !created.isTemporary() || !"root".equals(created.getName())) {
+			fail("wrong root: " + created);
+		}
+		if (!created.hasRelationship(copy.findById(1L), copy.findById(2L))) {
+			fail("missing instantiation: " + created);
+		}
+		List<Relationship> cases = created.orderedRelationships(copy.findById(3L));
+		if ((cases == null) || (cases.size() != 2) || (cases.get(0).getIndex() != 0) || (cases.get(1).getIndex() != 1)) {
+			fail("wrong cases: " + cases);
+		}
+		Vertex createdFirst = cases.get(0).getTarget();
+		Relationship createdWeak = createdFirst.getRelationships(copy.findById(3L)).iterator().next();
+		if ((createdWeak.getTarget() != copy.findById(5L)) || (createdWeak.getCorrectness() != weak.getCorrectness())) {
+			fail("wrong weak relationship: " + createdWeak);
+		}
+		if ((createdWeak.getMeta() == null) || (createdWeak.getMeta() == meta) || !createdWeak.getMeta().hasRelationship(copy.findById(4L), copy.findById(5L))) {
+			fail("wrong meta: " + createdWeak.getMeta());
+		}
+		if (cases.get(1).getTarget().getRelationships(copy.findById(3L)).iterator().next().getTarget() != created) {
+			fail("cycle not kept");
+		}
+		if (tree.create(copy) == created) {
+			fail("tree shared between builds");
+		}
+		// A vertex that is not stored cannot be found by id, so the tree is not recorded.
+		root.addRelationship(doType, new BasicVertex("new"));
+		if (DecompiledByteCode.record(root, 7, 100) != null) {
+			fail("tree with an unstored vertex recorded");
+		}
+	}
+
+	/**
+	 * A rewritten vertex's new byte-code version must not find the old tree.
+	 */
+	@org.junit.Test
+	public void testVersion() {
+		Network network = new BasicNetwork();
+		Vertex root = network.createTemporyVertex();
+		ByteCodeCache cache = new ByteCodeCache();
+		cache.put(10, DecompiledByteCode.record(root, 1, 50));
+		if (cache.get(10, 1) == null) {
+			fail("tree not found");
+		}
+		if (cache.get(10, 2) != null) {
+			fail("old version found");
+		}
+		cache.put(10, DecompiledByteCode.record(root, 2, 70));
+		if ((cache.size() != 1) || (cache.getBytes() != 70) || (cache.get(10, 2) == null)) {
+			fail("version not replaced: " + cache);
+		}
+		cache.invalidate(10);
+		if ((cache.size() != 0) || (cache.getBytes() != 0)) {
+			fail("not invalidated: " + cache);
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		shutdown();
+	}
+}
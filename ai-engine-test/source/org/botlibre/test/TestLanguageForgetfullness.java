@@ -57,6 +57,8 @@ public class TestLanguageForgetfullness extends TestLanguage {
 		try {
 			forgetfulness.setMaxRelationships(50);
 			forgetfulness.setMaxSize(1000);
+			forgetfulness.setPause(0);
+			forgetfulness.setBudget(0);
 			forgetfulness.forget(network, true, 100);
 			forgetfulness.forget(network, true, 100);
 		} catch (Exception exception) {
@@ -0,0 +1,163 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.botlibre.knowledge.columnar.LongIntMap;
+
+/**
+ * Test the columnar network's open addressing map of ids to positions.
+ */
+
+public class TestLongIntMap extends TextTest {
+	
+	/**
+	 * Map that uses the key divided by 100 as its slot, so keys can be made to collide and wrap.
+	 */
+	public static class CollidingMap extends LongIntMap {
+		public CollidingMap(int capacity) {
+			super(capacity);
+		}
+		
+		protected int slot(long key) {
+			return (int)(key / 100) & this.mask;
+		}
+		
+		public int slots() {
+			return this.keys.length;
+		}
+	}
+	
+	public static void checkContains(LongIntMap map, Map<Long, Integer> expected) {
+		if (map.size() != expected.size()) {
+			fail("wrong size: " + map.size() + " expected: " + expected.size());
+		}
+		for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+			int value = map.get(entry.getKey());
+			if (value != entry.getValue()) {
+				fail("wrong value: " + value + " expected: " + entry.getValue() + " for: " + entry.getKey());
+			}
+		}
+	}
+	
+	@org.junit.Test
+	public void testPutGet() {
+		LongIntMap map = new LongIntMap(4);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		for (int index = 0; index < 5000; index++) {
+			long key = index * 7919L;
+			map.put(key, index);
+			expected.put(key, index);
+		}
+		checkContains(map, expected);
+		map.put(7919L, 0);
+		expected.put(7919L, 0);
+		checkContains(map, expected);
+		if (map.get(-1) != -1 || map.get(13) != -1) {
+			fail("missing key found");
+		}
+	}
+	
+	@org.junit.Test
+	public void testRemoveCollisions() {
+		CollidingMap map = new CollidingMap(16);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		// Keys 100-104 all have slot 1, 200 has slot 2 but is pushed past the 100 chain.
+		for (long key = 100; key < 105; key++) {
+			map.put(key, (int)key);
+			expected.put(key, (int)key);
+		}
+		map.put(200, 200);
+		expected.put(200L, 200);
+		checkContains(map, expected);
+		// Remove from the middle, start and end of the chain, the following keys must be shifted back.
+		long[] removes = new long[] { 102, 100, 104, 200, 101, 103 };
+		for (long key : removes) {
+			map.remove(key);
+			expected.remove(key);
+			checkContains(map, expected);
+			if (map.get(key) != -1) {
+				fail("removed key found: " + key);
+			}
+		}
+		// Removing a missing key does nothing.
+		map.remove(100);
+		map.remove(300);
+		checkContains(map, expected);
+		map.put(100, 1);
+		expected.put(100L, 1);
+		checkContains(map, expected);
+	}
+	
+	@org.junit.Test
+	public void testRemoveWrap() {
+		CollidingMap map = new CollidingMap(16);
+		int last = map.slots() - 1;
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		// Keys with the last slot wrap around to the start of the table, and push the slot 0 key along.
+		long base = last * 100L;
+		for (long key = base; key < base + 4; key++) {
+			map.put(key, (int)(key - base));
+			expected.put(key, (int)(key - base));
+		}
+		map.put(0, 10);
+		expected.put(0L, 10);
+		map.put(1, 11);
+		expected.put(1L, 11);
+		checkContains(map, expected);
+		map.remove(base);
+		expected.remove(base);
+		checkContains(map, expected);
+		map.remove(base + 2);
+		expected.remove(base + 2);
+		checkContains(map, expected);
+		map.remove(0);
+		expected.remove(0L);
+		checkContains(map, expected);
+	}
+	
+	@org.junit.Test
+	public void testRandom() {
+		Random random = new Random(42);
+		CollidingMap map = new CollidingMap(8);
+		Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		for (int index = 0; index < 20000; index++) {
+			// Keys from 0 to 3000 give runs of up to 100 colliding keys.
+			long key = random.nextInt(3000);
+			if (random.nextInt(3) == 0) {
+				map.remove(key);
+				expected.remove(key);
+			} else {
+				map.put(key, index);
+				expected.put(key, index);
+			}
+			if (index % 1000 == 0) {
+				checkContains(map, expected);
+			}
+		}
+		checkContains(map, expected);
+		for (long key = 0; key < 3000; key++) {
+			if (!expected.containsKey(key) && (map.get(key) != -1)) {
+				fail("removed key found: " + key);
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicNetwork;
+import org.botlibre.knowledge.BinaryData;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.snapshot.NetworkSnapshot;
+
+/**
+ * Test writing a network to a snapshot file and loading it back.
+ */
+
+public class TestNetworkSnapshot extends TextTest {
+	
+	public static byte[] BYTES = new byte[] { 0, 1, 2, 3, -1, -128, 127, 42 };
+	
+	/**
+	 * Create a small network with data, name, pinned, index, meta and blob vertices.
+	 * The vertices are given ids before their relationships are added, as a relationship's hash code uses the ids.
+	 */
+	public static Network createNetwork() {
+		Network network = new BasicNetwork();
+		Vertex word = network.createVertex("hello");
+		word.setPinned(true);
+		Vertex sentence = network.createVertex("hello world");
+		sentence.setName("greeting");
+		Vertex world = network.createVertex("world");
+		Vertex thing = network.createVertex(Primitive.THING);
+		Vertex meta = network.createVertex("meta");
+		BinaryData data = new BinaryData();
+		data.setBytes(BYTES);
+		Vertex blob = network.createVertex(data);
+		network.createVertex(Primitive.WORD);
+		network.createVertex(Primitive.INSTANTIATION);
+		network.createVertex(Primitive.EQUATION);
+		long id = 1;
+		for (Vertex vertex : network.findAll()) {
+			vertex.setId(id++);
+		}
+		sentence.addRelationship(Primitive.WORD, word, 0);
+		sentence.addRelationship(Primitive.WORD, world, 1);
+		Relationship relationship = word.addRelationship(Primitive.INSTANTIATION, thing);
+		relationship.setMeta(meta);
+		relationship.setCorrectness(0.5f);
+		blob.addRelationship(Primitive.INSTANTIATION, Primitive.EQUATION);
+		sentence.addRelationship(Primitive.EQUATION, blob);
+		return network;
+	}
+	
+	public static File write(Network network) throws Exception {
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		NetworkSnapshot.instance().write(network, file);
+		return file;
+	}
+	
+	public static Vertex findBlob(Network network) {
+		Vertex sentence = network.findByData("hello world");
+		Vertex blob = sentence.getRelationship(Primitive.EQUATION);
+		if (blob == null) {
+			fail("missing blob relationship");
+		}
+		return blob;
+	}
+	
+	@org.junit.Test
+	public void testRoundTrip() throws Exception {
+		Network original = createNetwork();
+		File file = write(original);
+		Network network = NetworkSnapshot.instance().load(file);
+		if (network.size() != original.size()) {
+			fail("wrong size: " + network.size() + " expected: " + original.size());
+		}
+		for (Vertex vertex : original.findAll()) {
+			Vertex loaded = network.findById(vertex.getId());
+			if (loaded == null) {
+				fail("missing vertex: " + vertex);
+			}
+			if (!(vertex.getData() instanceof BinaryData) && !vertex.getData().equals(loaded.getData())) {
+				fail("wrong data: " + loaded.getData() + " expected: " + vertex.getData());
+			}
+			if (vertex.isPinned() != loaded.isPinned()) {
+				fail("wrong pin: " + loaded);
+			}
+			if (vertex.totalRelationships() != loaded.totalRelationships()) {
+				fail("wrong relationships: " + loaded.totalRelationships() + " expected: " + vertex.totalRelationships() + " for: " + loaded);
+			}
+		}
+		Vertex sentence = network.findByData("hello world");
+		if (!"greeting".equals(sentence.getName())) {
+			fail("wrong name: " + sentence.getName());
+		}
+		Relationship first = sentence.getRelationship(Primitive.WORD, network.findByData("hello"));
+		Relationship second = sentence.getRelationship(Primitive.WORD, network.findByData("world"));
+		if ((first == null) || (second == null) || (first.getIndex() != 0) || (second.getIndex() != 1)) {
+			fail("wrong word relationships: " + first + " " + second);
+		}
+		Vertex word = network.findByData("hello");
+		Relationship relationship = word.getRelationship(Primitive.INSTANTIATION, Primitive.THING);
+		if (relationship == null) {
+			fail("missing relationship");
+		}
+		if ((relationship.getMeta() == null) || !"meta".equals(relationship.getMeta().getData())) {
+			fail("wrong meta: " + relationship.getMeta());
+		}
+		if (relationship.getCorrectness() != 0.5f) {
+			fail("wrong correctness: " + relationship.getCorrectness());
+		}
+	}
+	
+	@org.junit.Test
+	public void testBlobs() throws Exception {
+		Network original = createNetwork();
+		File file = write(original);
+		Network network = NetworkSnapshot.instance().load(file);
+		Vertex blob = findBlob(network);
+		if (!(blob.getData() instanceof BinaryData)) {
+			fail("wrong blob data: " + blob.getData());
+		}
+		if (!Arrays.equals(BYTES, ((BinaryData)blob.getData()).getBytes())) {
+			fail("wrong blob bytes: " + Arrays.toString(((BinaryData)blob.getData()).getBytes()));
+		}
+		if (blob.getRelationship(Primitive.INSTANTIATION, Primitive.EQUATION) == null) {
+			fail("missing blob relationship");
+		}
+		// Write the loaded network again to check the blob survives a second round trip.
+		Network copy = NetworkSnapshot.instance().load(write(network));
+		if (!Arrays.equals(BYTES, ((BinaryData)findBlob(copy).getData()).getBytes())) {
+			fail("wrong blob bytes after second round trip");
+		}
+		// An empty blob should load as empty bytes.
+		Network empty = new BasicNetwork();
+		Vertex vertex = empty.createVertex(new BinaryData());
+		vertex.addRelationship(Primitive.INSTANTIATION, Primitive.EQUATION);
+		Network loaded = NetworkSnapshot.instance().load(write(empty));
+		boolean found = false;
+		for (Vertex each : loaded.findAll()) {
+			if (each.getData() instanceof BinaryData) {
+				found = true;
+				if (((BinaryData)each.getData()).getBytes().length != 0) {
+					fail("wrong empty blob");
+				}
+			}
+		}
+		if (!found) {
+			fail("missing empty blob");
+		}
+	}
+	
+	@org.junit.Test
+	public void testMerge() throws Exception {
+		File file = write(createNetwork());
+		Network network = new BasicNetwork();
+		Vertex existing = network.createVertex("hello");
+		existing.addRelationship(Primitive.INSTANTIATION, Primitive.WORD);
+		NetworkSnapshot.instance().load(file, network, 0);
+		if (network.findByData("hello") != existing) {
+			fail("existing vertex not merged");
+		}
+		if (!existing.isPinned()) {
+			fail("pin not merged");
+		}
+		// The merged vertices do not have ids, so check the targets' data.
+		boolean word = false;
+		boolean thing = false;
+		for (Relationship relationship : existing.getRelationships(Primitive.INSTANTIATION)) {
+			word = word || relationship.getTarget().is(Primitive.WORD);
+			thing = thing || relationship.getTarget().is(Primitive.THING);
+		}
+		if (!word || !thing) {
+			fail("relationships not merged: " + existing.totalRelationships());
+		}
+		Vertex blob = findBlob(network);
+		if (!Arrays.equals(BYTES, ((BinaryData)blob.getData()).getBytes())) {
+			fail("wrong merged blob bytes");
+		}
+	}
+}
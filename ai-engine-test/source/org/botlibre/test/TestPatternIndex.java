@@ -0,0 +1,143 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.util.HashMap;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.database.PatternIndex;
+import org.botlibre.thought.language.Language;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Test the pattern index finds the same best pattern as searching the patterns through their words.
+ */
+
+public class TestPatternIndex extends TextTest {
+
+	@BeforeClass
+	public static void setup() {
+		bootstrap();
+		Network network = getBot().memory().newMemory();
+		addPattern("*", "star", network);
+		addPattern("hello *", "hello star", network);
+		addPattern("[hi hey] there", "array there", network);
+		addPattern("hey *", "hey star", network);
+		addPattern("_ friend", "underscore friend", network);
+		addPattern("* friend", "star friend", network);
+		network.save();
+	}
+	
+	public static void addPattern(String pattern, String response, Network network) {
+		network.createPattern(pattern).addRelationship(Primitive.RESPONSE, network.createSentence(response));
+	}
+
+	/**
+	 * Return the response of the best pattern, with or without the index.
+	 */
+	public String matchPattern(String text, boolean useIndex, Language language, Network network) {
+		language.setUsePatternIndex(useIndex);
+		if (useIndex) {
+			for (int count = 0; PatternIndex.getIndex(network) == null; count++) {
+				if (count > 100) {
+					fail("Pattern index not built");
+				}
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException exception) {}
+			}
+		}
+		Vertex sentence = network.createSentence(text);
+		Vertex input = network.createInstance(Primitive.INPUT);
+		Relationship response = language.matchPattern(sentence, null, input, new HashMap<Vertex, Vertex>(), network, 0);
+		if (response == null) {
+			return null;
+		}
+		return response.getTarget().printString();
+	}
+
+	public void checkMatch(String text, String expected, Language language, Network network) {
+		String baseline = matchPattern(text, false, language, network);
+		String indexed = matchPattern(text, true, language, network);
+		if (baseline == null ? indexed != null : !baseline.equals(indexed)) {
+			fail("Index match: " + indexed + " does not match: " + baseline + " for: " + text);
+		}
+		if (expected == null ? baseline != null : (baseline == null || !baseline.contains(expected))) {
+			fail("Expected: " + expected + " but was: " + baseline + " for: " + text);
+		}
+	}
+
+	/**
+	 * Patterns with only wildcards are not found through their words, so are not matched by either search.
+	 */
+	@org.junit.Test
+	public void testWildcards() throws Exception {
+		Bot bot = Bot.createInstance();
+		try {
+			Language language = bot.mind().getThought(Language.class);
+			Network network = bot.memory().newMemory();
+			checkMatch("what is up", null, language, network);
+			checkMatch("hello there", "hello star", language, network);
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	/**
+	 * The words of an array are valued the same as any other word of the pattern.
+	 */
+	@org.junit.Test
+	public void testArrays() throws Exception {
+		Bot bot = Bot.createInstance();
+		try {
+			Language language = bot.mind().getThought(Language.class);
+			Network network = bot.memory().newMemory();
+			checkMatch("hey there", "array there", language, network);
+			checkMatch("hi there", "array there", language, network);
+			checkMatch("hey you", "hey star", language, network);
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	/**
+	 * The underscore wildcard takes precedence over a pattern with the same value.
+	 */
+	@org.junit.Test
+	public void testUnderscore() throws Exception {
+		Bot bot = Bot.createInstance();
+		try {
+			Language language = bot.mind().getThought(Language.class);
+			Network network = bot.memory().newMemory();
+			checkMatch("my friend", "underscore friend", language, network);
+			checkMatch("my Friend", "underscore friend", language, network);
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		shutdown();
+	}
+}
@@ -0,0 +1,120 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.util.List;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.sense.text.TextEntry;
+import org.botlibre.thought.forgetfulness.Forgetfulness;
+import org.botlibre.util.Utils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Test the vertex reference counts maintained by the commits match the relationships.
+ */
+
+public class TestReferenceCount extends TextTest {
+	
+	/** Non primitive vertices whose reference count differs from their relationships. */
+	public static String WRONG_COUNTS = "select count(*) from vertex v where ((v.datatype is null) or (v.datatype <> 'Primitive'))"
+			+ " and v.referencecount <> (select count(*) from relationship r where r.target_id = v.id or r.type_id = v.id or r.meta_id = v.id)";
+
+	@BeforeClass
+	public static void setup() {
+		bootstrap();
+	}
+	
+	public static int countWrongReferenceCounts(Bot bot) {
+		bot.memory().save();
+		return ((Number)((DatabaseMemory)bot.memory()).getEntityManager().createNativeQuery(WRONG_COUNTS).getSingleResult()).intValue();
+	}
+
+	/**
+	 * Check the counts after the bootstrap, and after new words and relationships are learned.
+	 */
+	@org.junit.Test
+	public void testConversation() {
+		Bot bot = Bot.createInstance();
+		try {
+			int wrong = countWrongReferenceCounts(bot);
+			if (wrong != 0) {
+				fail("wrong reference counts after bootstrap: " + wrong);
+			}
+			TextEntry text = bot.awareness().getSense(TextEntry.class);
+			List<String> output = registerForOutput(text);
+			text.input("hello");
+			waitForOutput(output);
+			text.input("the sky is blue");
+			waitForOutput(output);
+			text.input("is the sky blue?");
+			waitForOutput(output);
+			text.input("my dog loves green grass");
+			waitForOutput(output);
+			Utils.sleep(2000);
+			wrong = countWrongReferenceCounts(bot);
+			if (wrong != 0) {
+				fail("wrong reference counts after conversation: " + wrong);
+			}
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	/**
+	 * Check the counts after relationships and vertices are forgotten.
+	 */
+	@org.junit.Test
+	public void testForget() {
+		Bot bot = Bot.createInstance();
+		try {
+			TextEntry text = bot.awareness().getSense(TextEntry.class);
+			List<String> output = registerForOutput(text);
+			text.input("sky blue red dog cat green grass tall like very loves");
+			waitForOutput(output);
+			Utils.sleep(2000);
+			
+			Network network = bot.memory().newMemory();
+			Forgetfulness forgetfulness = bot.mind().getThought(Forgetfulness.class);
+			forgetfulness.setMaxRelationships(50);
+			forgetfulness.setMaxSize(1000);
+			forgetfulness.setPause(0);
+			forgetfulness.setBudget(0);
+			forgetfulness.forget(network, true, 100);
+			network.save();
+			
+			int wrong = countWrongReferenceCounts(bot);
+			if (wrong != 0) {
+				fail("wrong reference counts after forget: " + wrong);
+			}
+		} catch (Exception exception) {
+			bot.log(this, exception);
+			fail(exception.toString());
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		shutdown();
+	}
+}
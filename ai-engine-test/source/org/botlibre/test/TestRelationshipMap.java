@@ -0,0 +1,264 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicRelationship;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.RelationshipMap;
+
+/**
+ * Test the compact open addressing map of a vertex's relationships of one type.
+ */
+
+public class TestRelationshipMap extends TextTest {
+	
+	public static Vertex createVertex(long id) {
+		Vertex vertex = new BasicVertex("word" + id);
+		vertex.setId(id);
+		return vertex;
+	}
+	
+	/**
+	 * Return relationships from the same source and type to new targets.
+	 */
+	public static List<Relationship> createRelationships(int count) {
+		Vertex source = createVertex(1);
+		Vertex type = createVertex(2);
+		List<Relationship> relationships = new ArrayList<Relationship>(count);
+		for (int index = 0; index < count; index++) {
+			relationships.add(new BasicRelationship(source, type, createVertex(100 + index)));
+		}
+		return relationships;
+	}
+	
+	public static void checkContainsAll(RelationshipMap map, List<Relationship> relationships) {
+		for (Relationship relationship : relationships) {
+			if (map.get(relationship) != relationship) {
+				fail("missing relationship: " + relationship.getTarget());
+			}
+		}
+	}
+
+	@org.junit.Test
+	public void testPutRemove() {
+		RelationshipMap map = new RelationshipMap();
+		List<Relationship> relationships = createRelationships(3);
+		for (Relationship relationship : relationships) {
+			if (map.put(relationship, relationship) != null) {
+				fail("new relationship replaced another");
+			}
+		}
+		if (map.size() != 3) {
+			fail("wrong size: " + map.size());
+		}
+		checkContainsAll(map, relationships);
+		Relationship first = relationships.get(0);
+		if (map.put(first, first) != first || map.size() != 3) {
+			fail("put of an existing relationship changed the size: " + map.size());
+		}
+		Relationship equal = new BasicRelationship(first.getSource(), first.getType(), first.getTarget());
+		if (!map.containsKey(equal)) {
+			fail("equal relationship not found");
+		}
+		if (map.remove(first) != first || map.size() != 2 || map.containsKey(first)) {
+			fail("remove failed: " + map.size());
+		}
+		if (map.remove(first) != null) {
+			fail("removed relationship removed twice");
+		}
+		checkContainsAll(map, relationships.subList(1, 3));
+		// Removed slots must not break the probing of the relationships after them.
+		map.put(first, first);
+		checkContainsAll(map, relationships);
+		map.clear();
+		if (!map.isEmpty() || map.containsKey(first) || map.values().iterator().hasNext()) {
+			fail("clear failed");
+		}
+	}
+
+	@org.junit.Test
+	public void testIteratorRemove() {
+		RelationshipMap map = new RelationshipMap();
+		List<Relationship> relationships = createRelationships(20);
+		for (Relationship relationship : relationships) {
+			map.put(relationship, relationship);
+		}
+		List<Relationship> removed = new ArrayList<Relationship>();
+		List<Relationship> kept = new ArrayList<Relationship>();
+		int count = 0;
+		for (Iterator<Relationship> iterator = map.values().iterator(); iterator.hasNext(); ) {
+			Relationship relationship = iterator.next();
+			if ((count++ % 2) == 0) {
+				iterator.remove();
+				removed.add(relationship);
+			} else {
+				kept.add(relationship);
+			}
+		}
+		if (count != 20) {
+			fail("iterated the wrong number of relationships: " + count);
+		}
+		if (map.size() != 10) {
+			fail("wrong size after iterator remove: " + map.size());
+		}
+		checkContainsAll(map, kept);
+		for (Relationship relationship : removed) {
+			if (map.containsKey(relationship)) {
+				fail("iterator remove did not remove: " + relationship.getTarget());
+			}
+		}
+		count = 0;
+		for (Relationship relationship : map.keySet()) {
+			if (relationship == null) {
+				fail("iterated a removed slot");
+			}
+			count++;
+		}
+		if (count != 10) {
+			fail("wrong iteration count after remove: " + count);
+		}
+		try {
+			Iterator<Relationship> iterator = map.values().iterator();
+			iterator.next();
+			map.remove(kept.get(0));
+			iterator.next();
+			fail("concurrent modification not detected");
+		} catch (ConcurrentModificationException expected) {
+			// Expected.
+		}
+		try {
+			Iterator<Relationship> iterator = map.values().iterator();
+			iterator.next();
+			iterator.remove();
+			iterator.remove();
+			fail("second iterator remove allowed");
+		} catch (IllegalStateException expected) {
+			// Expected.
+		}
+	}
+
+	@org.junit.Test
+	public void testResize() {
+		RelationshipMap map = new RelationshipMap();
+		List<Relationship> relationships = createRelationships(1000);
+		for (Relationship relationship : relationships) {
+			map.put(relationship, relationship);
+		}
+		if (map.size() != 1000) {
+			fail("wrong size after resize: " + map.size());
+		}
+		if (map.capacity() * 3 < map.size() * 4) {
+			fail("table over full: " + map.capacity());
+		}
+		checkContainsAll(map, relationships);
+		for (Relationship relationship : relationships.subList(10, 1000)) {
+			map.remove(relationship);
+		}
+		checkContainsAll(map, relationships.subList(0, 10));
+		// Adding and removing must reuse or drop the removed slots, not grow the table.
+		List<Relationship> others = relationships.subList(10, 20);
+		for (int index = 0; index < 1000; index++) {
+			Relationship relationship = others.get(index % others.size());
+			map.put(relationship, relationship);
+			map.remove(relationship);
+		}
+		if (map.size() != 10) {
+			fail("wrong size after churn: " + map.size());
+		}
+		map.put(relationships.get(10), relationships.get(10));
+		if (map.capacity() > 2048) {
+			fail("table grew with removed slots: " + map.capacity());
+		}
+		checkContainsAll(map, relationships.subList(0, 11));
+	}
+
+	@org.junit.Test
+	public void testSortedValues() {
+		RelationshipMap map = new RelationshipMap();
+		List<Relationship> relationships = createRelationships(5);
+		for (int index = 0; index < relationships.size(); index++) {
+			((BasicRelationship)relationships.get(index)).setIndex(relationships.size() - index);
+			map.put(relationships.get(index), relationships.get(index));
+		}
+		List<Relationship> sorted = map.sortedValues();
+		for (int index = 1; index < sorted.size(); index++) {
+			if (sorted.get(index - 1).getIndex() > sorted.get(index).getIndex()) {
+				fail("not sorted by index");
+			}
+		}
+		// Changing an index directly must be seen by the cached sort.
+		((BasicRelationship)sorted.get(0)).setIndex(10);
+		sorted = map.sortedValues();
+		if (sorted.get(sorted.size() - 1).getIndex() != 10) {
+			fail("changed index not resorted");
+		}
+	}
+
+	@org.junit.Test
+	public void testSerialization() throws Exception {
+		RelationshipMap map = new RelationshipMap();
+		List<Relationship> relationships = createRelationships(50);
+		for (Relationship relationship : relationships) {
+			map.put(relationship, relationship);
+		}
+		for (Relationship relationship : relationships.subList(0, 20)) {
+			map.remove(relationship);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream output = new ObjectOutputStream(bytes);
+		output.writeObject(map);
+		output.close();
+		ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		RelationshipMap copy = (RelationshipMap)input.readObject();
+		input.close();
+		if (copy.size() != 30) {
+			fail("wrong size after serialization: " + copy.size());
+		}
+		int count = 0;
+		for (Relationship relationship : copy.values()) {
+			if (!map.containsKey(relationship)) {
+				fail("unknown relationship after serialization: " + relationship.getTarget());
+			}
+			count++;
+		}
+		if (count != 30) {
+			fail("wrong iteration count after serialization: " + count);
+		}
+		for (Relationship relationship : relationships.subList(20, 50)) {
+			if (!copy.containsKey(relationship)) {
+				fail("missing relationship after serialization: " + relationship.getTarget());
+			}
+		}
+		for (Relationship relationship : relationships.subList(0, 20)) {
+			if (copy.containsKey(relationship)) {
+				fail("removed relationship serialized: " + relationship.getTarget());
+			}
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.self.SelfCallSite;
+import org.botlibre.self.SelfInterpreter;
+import org.botlibre.sense.context.Context;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Test the Self API functions are resolved and called through their call sites.
+ */
+
+public class TestSelfCallSite extends TextTest {
+	
+	public static class Functions {
+		public int count;
+		
+		public void increment(Vertex source) {
+			this.count++;
+		}
+		
+		public String name(Vertex source) {
+			return "name";
+		}
+		
+		public Vertex echo(Vertex source, Vertex value) {
+			return value;
+		}
+		
+		public Vertex last(Vertex source, Vertex[] values) {
+			return values[values.length - 1];
+		}
+	}
+
+	@BeforeClass
+	public static void setup() {
+		bootstrap();
+	}
+
+	/**
+	 * Call the void Context functions, they return null, which is #null in Self.
+	 */
+	@org.junit.Test
+	public void testVoidSenseFunction() throws Exception {
+		Bot bot = Bot.createInstance();
+		try {
+			Context context = bot.awareness().getSense(Context.class);
+			Network network = bot.memory().newMemory();
+			Vertex source = network.createVertex(Primitive.CONTEXT);
+			Vertex vertex = network.createVertex("call site");
+			network.save();
+			
+			SelfCallSite push = SelfInterpreter.getInterpreter().getCallSite(Context.class, "push", 1);
+			if (push.isMissing()) {
+				fail("Missing function");
+			}
+			if (push.invoke(context, source, new Vertex[] { vertex }) != null) {
+				fail("Expected null result");
+			}
+			SelfCallSite top = SelfInterpreter.getInterpreter().getCallSite(Context.class, "top", 0);
+			if (!vertex.equals(top.invoke(context, source, new Vertex[0]))) {
+				fail("Expected: " + vertex);
+			}
+			
+			SelfCallSite clear = SelfInterpreter.getInterpreter().getCallSite(Context.class, "clear", 0);
+			if (clear.isMissing()) {
+				fail("Missing function");
+			}
+			if (clear.invoke(context, source, new Vertex[0]) != null) {
+				fail("Expected null result");
+			}
+			if (top.invoke(context, source, new Vertex[0]) != null) {
+				fail("Expected null result");
+			}
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	/**
+	 * Call functions that return void, a value that is not a vertex, a vertex, and take a Vertex[].
+	 */
+	@org.junit.Test
+	public void testReturnTypes() throws Exception {
+		Bot bot = Bot.createInstance();
+		try {
+			Network network = bot.memory().newMemory();
+			Vertex source = network.createVertex(Primitive.SELF);
+			Vertex first = network.createVertex(1);
+			Vertex second = network.createVertex(2);
+			Functions functions = new Functions();
+			
+			SelfCallSite increment = SelfCallSite.resolve(Functions.class, "increment", 0);
+			if (increment.isMissing()) {
+				fail("Missing function");
+			}
+			if (increment.invoke(functions, source, new Vertex[0]) != null) {
+				fail("Expected null result");
+			}
+			if (functions.count != 1) {
+				fail("Expected: 1");
+			}
+			
+			SelfCallSite name = SelfCallSite.resolve(Functions.class, "name", 0);
+			if (name.isMissing()) {
+				fail("Missing function");
+			}
+			if (name.invoke(functions, source, new Vertex[0]) != null) {
+				fail("Expected null result");
+			}
+			
+			SelfCallSite echo = SelfCallSite.resolve(Functions.class, "echo", 1);
+			if (echo.invoke(functions, source, new Vertex[] { first }) != first) {
+				fail("Expected: " + first);
+			}
+			
+			SelfCallSite last = SelfCallSite.resolve(Functions.class, "last", 2);
+			if (last.invoke(functions, source, new Vertex[] { first, second }) != second) {
+				fail("Expected: " + second);
+			}
+			
+			if (!SelfCallSite.resolve(Functions.class, "missing", 0).isMissing()) {
+				fail("Function should be missing");
+			}
+			if (increment.getCalls() + name.getCalls() + echo.getCalls() + last.getCalls() != 4) {
+				fail("Expected: 4");
+			}
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		shutdown();
+	}
+}
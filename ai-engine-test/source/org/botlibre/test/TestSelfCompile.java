@@ -0,0 +1,95 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.botlibre.Bot;
+import org.botlibre.self.SelfInterpreter;
+import org.botlibre.sense.text.TextEntry;
+import org.botlibre.thought.language.Language;
+import org.botlibre.thought.language.Language.LearningMode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Test the state machines compiled to closures give the same responses as the interpreter.
+ */
+
+public class TestSelfCompile extends TextTest {
+	public static String[] INPUTS = {
+		"1 + 1", "3 - 4?", "what is 1 + 1 + 2 + 4 + 7?", "13 - 454 * 2 / 3 - 2 + 2?",
+		"what is 2 * 2^3 + 2 / 2^2^2 * 2 - 2 + 6.6?", "(0 / 4) + 2?", "one plus two", "two to the power of five",
+		"divide one by two", "What is your name?", "what day is it?", "what is the date?"
+	};
+
+	@BeforeClass
+	public static void setup() {
+		bootstrap();
+	}
+
+	@org.junit.Test
+	public void testClosuresMatchInterpreter() {
+		boolean compile = SelfInterpreter.COMPILE;
+		try {
+			SelfInterpreter.COMPILE = false;
+			List<String> interpreted = chat();
+			SelfInterpreter.COMPILE = true;
+			List<String> compiled = chat();
+			for (int index = 0; index < INPUTS.length; index++) {
+				// The case variant chosen for a word depends on the state left by the previous bot, not the closures.
+				if (!interpreted.get(index).equalsIgnoreCase(compiled.get(index))) {
+					fail("Compiled response: " + compiled.get(index) + " does not match interpreted response: "
+							+ interpreted.get(index) + " for: " + INPUTS[index]);
+				}
+			}
+		} finally {
+			SelfInterpreter.COMPILE = compile;
+		}
+	}
+
+	/**
+	 * Input each message twice, the second message evaluates the closures cached by the first.
+	 */
+	public List<String> chat() {
+		Bot bot = Bot.createInstance();
+		Language language = bot.mind().getThought(Language.class);
+		language.setLearningMode(LearningMode.Disabled);
+		TextEntry text = bot.awareness().getSense(TextEntry.class);
+		List<String> output = registerForOutput(text);
+		List<String> responses = new ArrayList<String>();
+		for (String input : INPUTS) {
+			text.input(input);
+			String response = waitForOutput(output);
+			text.input(input);
+			String repeat = waitForOutput(output);
+			if (!response.equalsIgnoreCase(repeat)) {
+				fail("Repeated response: " + repeat + " does not match: " + response + " for: " + input);
+			}
+			responses.add(response);
+		}
+		bot.shutdown();
+		return responses;
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		shutdown();
+	}
+}
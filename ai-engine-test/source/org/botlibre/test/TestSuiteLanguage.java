@@ -26,7 +26,16 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
    TestLanguage.class,
    TestLanguageDecompile.class,
+   TestByteCodeCache.class,
+   TestSelfCompile.class,
+   TestSelfCallSite.class,
+   TestPatternIndex.class,
+   TestTemplateNetwork.class,
+   TestRelationshipMap.class,
+   TestNetworkSnapshot.class,
+   TestLongIntMap.class,
    TestLanguageForgetfullness.class,
+   TestReferenceCount.class,
    TestUnderstanding.class,
    TestResponseListImport.class,
    TestMath.class
@@ -0,0 +1,102 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicNetwork;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.knowledge.database.DatabaseNetwork;
+import org.botlibre.knowledge.snapshot.NetworkSnapshot;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+/**
+ * Test the data in a template snapshot is found by the database networks layered over it.
+ */
+
+public class TestTemplateNetwork extends TextTest {
+
+	@BeforeClass
+	public static void setup() {
+		bootstrap();
+	}
+
+	@org.junit.Test
+	public void testTemplateLookup() throws Exception {
+		Bot bot = Bot.createInstance();
+		try {
+			Network snapshot = new BasicNetwork();
+			snapshot.setBot(bot);
+			Vertex word = snapshot.createVertex("Templateword");
+			Vertex meaning = snapshot.createVertex(new Primitive("templatemeaning"));
+			word.addRelationship(Primitive.MEANING, meaning);
+			long id = 0;
+			for (Vertex vertex : snapshot.findAll()) {
+				vertex.setId(++id);
+			}
+			File file = File.createTempFile("template", ".snapshot");
+			file.deleteOnExit();
+			NetworkSnapshot.instance().write(snapshot, file);
+			
+			DatabaseMemory memory = (DatabaseMemory)bot.memory();
+			memory.setTemplate(file);
+			Network network = memory.newMemory();
+			// The template vertex is referenced, not copied.
+			Vertex found = network.findByData("Templateword");
+			if (found == null || found.getNetwork() != memory.getTemplate()) {
+				fail("Template data not found: " + found);
+			}
+			Map<Object, Vertex> all = network.findAllByData(Arrays.asList("Templateword", "templateword"));
+			if (all.get("Templateword") != found || all.containsKey("templateword")) {
+				fail("Template data not found by findAllByData: " + all);
+			}
+			if (!((DatabaseNetwork)network).findAllByNormalizedData("templateword").contains(found)) {
+				fail("Template data not found by findAllByNormalizedData");
+			}
+			if (memory.newMemory().findByData("Templateword").getNetwork() != memory.getTemplate()) {
+				fail("Template data copied into the database");
+			}
+			
+			// A created vertex is copied into the database with its relationships, so it can be modified.
+			Vertex created = network.createVertex("Templateword");
+			if (created.getNetwork() != network || !created.hasRelationship(Primitive.MEANING)) {
+				fail("Template vertex not copied: " + created);
+			}
+			created.addRelationship(Primitive.INSTANTIATION, Primitive.WORD);
+			network.save();
+			Vertex saved = memory.newMemory().findByData("Templateword");
+			if (saved.getNetwork() == memory.getTemplate() || !saved.hasRelationship(Primitive.INSTANTIATION, Primitive.WORD)) {
+				fail("Template vertex not saved: " + saved);
+			}
+		} finally {
+			bot.shutdown();
+		}
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		shutdown();
+	}
+}
@@ -0,0 +1,81 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.io.File;
+import java.net.URL;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.test.TestAIML;
+import org.botlibre.thought.language.Language;
+
+/**
+ * Benchmark loading the ALICE AIML set, parsing the whole document, and streaming it.
+ * Reports the load time and the peak heap used for each.
+ */
+
+public class TestAIMLLoadPerformance {
+
+	public static void main(String[] args) {
+		try {
+			URL url = TestAIML.class.getResource("alice_merged.aiml");
+			File file = new File(url.toURI());
+			for (boolean stream : new boolean[] {false, true}) {
+				DatabaseMemory.TEST = true;
+				DatabaseMemory.RECREATE_DATABASE = true;
+				Bot bot = Bot.createInstance();
+				DatabaseMemory.RECREATE_DATABASE = false;
+				new Bootstrap().bootstrapSystem(bot, false);
+				bot.setDebugLevel(Level.OFF);
+				Language.STREAM_AIML = stream;
+				final Runtime runtime = Runtime.getRuntime();
+				final long[] peak = new long[1];
+				System.gc();
+				final long base = runtime.totalMemory() - runtime.freeMemory();
+				Thread monitor = new Thread() {
+					public void run() {
+						while (!isInterrupted()) {
+							peak[0] = Math.max(peak[0], runtime.totalMemory() - runtime.freeMemory() - base);
+							try {
+								Thread.sleep(10);
+							} catch (InterruptedException exception) {
+								return;
+							}
+						}
+					}
+				};
+				monitor.setDaemon(true);
+				monitor.start();
+				long start = System.currentTimeMillis();
+				bot.mind().getThought(Language.class).loadAIMLFile(file, true, false, "");
+				long time = System.currentTimeMillis() - start;
+				monitor.interrupt();
+				System.out.println((stream ? "Stream" : "Document") + " load time: " + time + "ms peak heap: " + (peak[0] / 1024 / 1024) + "MB"
+						+ " memory size: " + bot.memory().getLongTermMemory().size());
+				bot.shutdown();
+			}
+			Language.STREAM_AIML = false;
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.logging.Level;
+
+import org.botlibre.BootImage;
+import org.botlibre.Bot;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.database.DatabaseMemory;
+
+/**
+ * Benchmark creating a bot instance cold, parsing the config file and querying its properties,
+ * and warm, from its boot image.
+ */
+
+public class TestBootImagePerformance {
+	public static int RUNS = 20;
+
+	public static void main(String[] args) {
+		try {
+			DatabaseMemory.TEST = true;
+			DatabaseMemory.RECREATE_DATABASE = true;
+			Bot bot = Bot.createInstance();
+			DatabaseMemory.RECREATE_DATABASE = false;
+			new Bootstrap().bootstrapMemory(bot.memory(), true, false);
+			bot.shutdown();
+			
+			long cold = 0;
+			long warm = 0;
+			for (int index = 0; index < RUNS; index++) {
+				BootImage.clear();
+				long start = System.currentTimeMillis();
+				bot = Bot.createInstance();
+				cold = cold + (System.currentTimeMillis() - start);
+				bot.setDebugLevel(Level.OFF);
+				bot.shutdown();
+				
+				start = System.currentTimeMillis();
+				bot = Bot.createInstance();
+				warm = warm + (System.currentTimeMillis() - start);
+				bot.setDebugLevel(Level.OFF);
+				bot.shutdown();
+			}
+			System.out.println("Cold create: " + (cold / RUNS) + "ms warm create: " + (warm / RUNS) + "ms");
+			System.out.println("Cold starts: " + BootImage.getColdStarts() + " time: " + BootImage.getColdTime()
+					+ "ms warm starts: " + BootImage.getWarmStarts() + " time: " + BootImage.getWarmTime() + "ms");
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+}
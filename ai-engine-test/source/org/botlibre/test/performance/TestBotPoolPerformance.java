@@ -0,0 +1,66 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.Random;
+
+import org.botlibre.Bot;
+import org.botlibre.BotPool;
+
+/**
+ * Benchmark the bot pool with skewed traffic to more bots than the pool size.
+ * A few bots receive most of the requests, and reports the pool hit rate, evictions, and request times.
+ */
+
+public class TestBotPoolPerformance {
+	public static int BOTS = 50;
+	public static int REQUESTS = 1000;
+	/** Skew of the traffic, higher values send more requests to the first bots. */
+	public static double SKEW = 3.0;
+
+	public static void main(String[] args) {
+		try {
+			Bot bot = Bot.createInstance();
+			for (int index = 0; index < BOTS; index++) {
+				try {
+					bot.memory().createMemory("pool" + index);
+				} catch (Exception exists) {
+					// Already created by a previous run.
+				}
+			}
+			bot.shutdown();
+			
+			Bot.POOL_SIZE = 10;
+			BotPool.resetStats();
+			Random random = new Random(1);
+			long start = System.currentTimeMillis();
+			for (int index = 0; index < REQUESTS; index++) {
+				int next = (int)(BOTS * Math.pow(random.nextDouble(), SKEW));
+				Bot instance = Bot.createInstanceFromPool("pool" + next, false);
+				instance.pool();
+			}
+			long time = System.currentTimeMillis() - start;
+			System.out.println("Requests: " + REQUESTS + " time: " + time + "ms hit rate: " + BotPool.getHitRate());
+			System.out.println(BotPool.printStats());
+			Bot.clearPool();
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+}
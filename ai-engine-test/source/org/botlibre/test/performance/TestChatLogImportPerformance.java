@@ -0,0 +1,83 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.sense.text.ChatLogImporter;
+import org.botlibre.sense.text.TextEntry;
+
+/**
+ * Benchmark the streaming response list import with an increasing number of threads.
+ * Generates a response list file, imports it, and reports the throughput.
+ */
+
+public class TestChatLogImportPerformance {
+	public static int RESPONSES = 10000;
+	public static int[] THREADS = new int[] {1, 2, 4, 8};
+
+	public static void main(String[] args) {
+		try {
+			File file = File.createTempFile("responses", ".log");
+			file.deleteOnExit();
+			writeResponseList(file);
+			for (int threads : THREADS) {
+				DatabaseMemory.TEST = true;
+				DatabaseMemory.RECREATE_DATABASE = true;
+				Bot bot = Bot.createInstance();
+				DatabaseMemory.RECREATE_DATABASE = false;
+				new Bootstrap().bootstrapMemory(bot.memory(), true, false);
+				bot.setDebugLevel(Level.OFF);
+				TextEntry text = bot.awareness().getSense(TextEntry.class);
+				ChatLogImporter importer = new ChatLogImporter(text, "Response List", false, false);
+				importer.setThreads(threads);
+				long start = System.currentTimeMillis();
+				importer.importLog(new FileInputStream(file), "UTF-8");
+				long time = Math.max(1, System.currentTimeMillis() - start);
+				System.out.println("Threads: " + threads + " entries: " + importer.getEntries() + " committed: " + importer.getCommitted()
+						+ " failures: " + importer.getFailures() + " time: " + time + "ms throughput: " + importer.getThroughput() + " entries/s"
+						+ " merge conflicts: " + ((DatabaseMemory)bot.memory()).getMergeConflicts());
+				bot.shutdown();
+			}
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write a response list of question and response pairs, sharing a vocabulary so the words are merged between threads.
+	 */
+	public static void writeResponseList(File file) throws Exception {
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		for (int index = 0; index < RESPONSES; index++) {
+			writer.println("what is thing " + index + " of group " + (index % 100));
+			writer.println("thing " + index + " is in group " + (index % 100));
+			writer.println("keywords: thing");
+			writer.println();
+		}
+		writer.close();
+	}
+
+}
@@ -0,0 +1,84 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.knowledge.BasicNetwork;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.columnar.ColumnarNetwork;
+import org.botlibre.knowledge.database.DatabaseMemory;
+
+/**
+ * Benchmark the heap used, the load time, and the time to find the relationships to a vertex,
+ * of the basic network, and of the columnar network with its columns on and off the heap.
+ * Uses the bootstrap network with the generated Wiktionary sized network.
+ */
+
+public class TestColumnarNetworkPerformance {
+	public static int LOOKUPS = 100;
+
+	public static void main(String[] args) {
+		try {
+			DatabaseMemory.TEST = true;
+			Bot bot = Bot.createInstance();
+			bot.setDebugLevel(Level.OFF);
+			for (int type = 0; type < 3; type++) {
+				long start = usedMemory();
+				long time = System.currentTimeMillis();
+				Network network = null;
+				String name = null;
+				if (type == 0) {
+					network = new BasicNetwork();
+					name = "Basic";
+				} else {
+					network = new ColumnarNetwork(type == 2);
+					name = (type == 2) ? "Columnar direct" : "Columnar";
+				}
+				network.setBot(bot);
+				new Bootstrap().bootstrapNetwork(network);
+				TestRelationshipFootprint.loadWiktionary(network);
+				if (network instanceof ColumnarNetwork) {
+					// Write the vertices to the columns, and release them.
+					network.resume();
+				}
+				time = System.currentTimeMillis() - time;
+				long heap = usedMemory() - start;
+				long lookup = System.currentTimeMillis();
+				int relationships = 0;
+				for (int index = 0; index < LOOKUPS; index++) {
+					relationships = relationships + network.findAllRelationshipsTo(network.createWord("word" + index)).size();
+				}
+				lookup = System.currentTimeMillis() - lookup;
+				System.out.println(name + " heap: " + (heap / 1024) + "KB load: " + time + "ms vertices: " + network.size()
+						+ " relationships to: " + lookup + "ms found: " + relationships);
+				network = null;
+			}
+			bot.shutdown();
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	public static long usedMemory() {
+		return TestRelationshipFootprint.usedMemory();
+	}
+
+}
@@ -0,0 +1,126 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.sense.text.TextEntry;
+
+/**
+ * Load test of concurrent conversations.
+ * Each thread chats its own conversations through TextEntry.chat(), which processes each in an isolated network,
+ * and the throughput is reported for an increasing number of threads.
+ */
+
+public class TestConcurrentChatPerformance {
+	public static int[] THREADS = new int[] {1, 2, 4, 8, 16};
+	public static int CONVERSATIONS = 10;
+	public static String[] INPUTS = new String[] {
+		"hello",
+		"my name is Bob",
+		"what is my name",
+		"one plus two",
+		"is the sky blue",
+		"what is the sky",
+		"goodbye"
+	};
+
+	public static void main(String[] args) {
+		try {
+			DatabaseMemory.TEST = true;
+			DatabaseMemory.RECREATE_DATABASE = true;
+			Bot bot = Bot.createInstance();
+			DatabaseMemory.RECREATE_DATABASE = false;
+			new Bootstrap().bootstrapMemory(bot.memory(), true, false);
+			bot.setDebugLevel(Level.OFF);
+			bot.getTracer().setEnabled(true);
+			TextEntry text = bot.awareness().getSense(TextEntry.class);
+
+			// Warmup
+			runConversations(text, 1, 1);
+			for (int threads : THREADS) {
+				long start = System.currentTimeMillis();
+				AtomicInteger responses = runConversations(text, threads, CONVERSATIONS);
+				long time = Math.max(1, System.currentTimeMillis() - start);
+				int messages = threads * CONVERSATIONS * (INPUTS.length + 1);
+				System.out.println("Threads: " + threads + " messages: " + messages + " responses: " + responses.get()
+						+ " time: " + time + "ms throughput: " + (messages * 1000 / time) + " messages/s"
+						+ " merge conflicts: " + ((DatabaseMemory)bot.memory()).getMergeConflicts());
+			}
+			// Time per stage, and the slowest messages.
+			System.out.println(bot.getTracer().dump());
+			bot.shutdown();
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Run the number of conversations on each thread, and return the number of responses.
+	 */
+	public static AtomicInteger runConversations(final TextEntry text, int threads, final int conversations) throws InterruptedException {
+		final AtomicInteger responses = new AtomicInteger();
+		Thread[] workers = new Thread[threads];
+		for (int index = 0; index < threads; index++) {
+			workers[index] = new Thread(new Runnable() {
+				public void run() {
+					for (int conversation = 0; conversation < conversations; conversation++) {
+						try {
+							// Greeting starts the conversation.
+							Vertex output = text.chat(null, null);
+							Long conversationId = null;
+							if (output != null) {
+								responses.incrementAndGet();
+								Vertex conversationVertex = output.getRelationship(Primitive.CONVERSATION);
+								if (conversationVertex != null) {
+									conversationId = conversationVertex.getId();
+								}
+							}
+							for (String input : INPUTS) {
+								output = text.chat(conversationId, input);
+								if (output != null) {
+									responses.incrementAndGet();
+									if (conversationId == null) {
+										Vertex conversationVertex = output.getRelationship(Primitive.CONVERSATION);
+										if (conversationVertex != null) {
+											conversationId = conversationVertex.getId();
+										}
+									}
+								}
+							}
+						} catch (Exception failed) {
+							failed.printStackTrace();
+						}
+					}
+				}
+			});
+			workers[index].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return responses;
+	}
+
+}
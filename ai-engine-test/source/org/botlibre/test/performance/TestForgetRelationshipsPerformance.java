@@ -0,0 +1,95 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.thought.forgetfulness.Forgetfulness;
+
+/**
+ * Benchmark pruning the relationships of over-full vertices with an increasing number of workers.
+ * Generates a bot with 1M relationships, 5000 vertices each with 200 relationships of one type,
+ * and reports the pruning time.
+ */
+
+public class TestForgetRelationshipsPerformance {
+	public static int VERTICES = 5000;
+	public static int RELATIONSHIPS = 200;
+	public static int TARGETS = 1000;
+	public static int[] WORKERS = new int[] {1, 2, 4};
+
+	public static void main(String[] args) {
+		try {
+			for (int workers : WORKERS) {
+				DatabaseMemory.TEST = true;
+				DatabaseMemory.RECREATE_DATABASE = true;
+				Bot bot = Bot.createInstance();
+				DatabaseMemory.RECREATE_DATABASE = false;
+				new Bootstrap().bootstrapMemory(bot.memory(), true, false);
+				bot.setDebugLevel(Level.OFF);
+				long time = System.currentTimeMillis();
+				generateRelationships(bot);
+				time = System.currentTimeMillis() - time;
+				Forgetfulness forgetfulness = bot.mind().getThought(Forgetfulness.class);
+				forgetfulness.setWorkers(workers);
+				forgetfulness.setBudget(0);
+				Network memory = bot.memory().newMemory();
+				long start = System.currentTimeMillis();
+				forgetfulness.forgetRelationships(memory);
+				long prune = System.currentTimeMillis() - start;
+				Number remaining = (Number)memory.findAllQuery("Select count(r) from Relationship r").get(0);
+				System.out.println("Workers: " + workers + " generate: " + time + "ms prune: " + prune + "ms relationships: " + remaining);
+				bot.shutdown();
+			}
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Add RELATIONSHIPS relationships of one type from each of VERTICES vertices, to a shared pool of targets.
+	 */
+	public static void generateRelationships(Bot bot) {
+		Network network = bot.memory().newMemory();
+		Vertex type = network.createVertex("related");
+		for (int index = 0; index < TARGETS; index++) {
+			network.createVertex("target" + index);
+		}
+		network.save();
+		for (int index = 0; index < VERTICES; index++) {
+			Vertex source = network.createVertex("source" + index);
+			for (int count = 0; count < RELATIONSHIPS; count++) {
+				Relationship relationship = source.addRelationship(type, network.createVertex("target" + ((index + count) % TARGETS)));
+				relationship.setCorrectness((count % 10) / 10.0f);
+			}
+			if (index % 50 == 0) {
+				network.save();
+				network.clear();
+				type = network.createVertex("related");
+			}
+		}
+		network.save();
+	}
+
+}
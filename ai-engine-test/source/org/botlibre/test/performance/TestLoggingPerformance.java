@@ -0,0 +1,83 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.LogBuffer;
+
+/**
+ * Benchmark the time and allocation per log message, when the level is not logged, and when recorded to a log buffer.
+ * The varargs case passes the arguments array, as every call did before the fixed argument log methods.
+ */
+
+public class TestLoggingPerformance {
+	public static int MESSAGES = 1000000;
+	public static int RUNS = 3;
+	
+	static Object source = new Object() {
+		public String toString() {
+			return "Source";
+		}
+	};
+
+	public static void main(String[] args) {
+		try {
+			Bot bot = new Bot();
+			bot.setDebugLevel(Level.INFO);
+			for (int run = 0; run < RUNS; run++) {
+				System.out.println("Run: " + run);
+				bot.setLogBuffer(null);
+				measure("Disabled varargs", bot, 0);
+				measure("Disabled fixed arguments", bot, 1);
+				measure("Disabled guarded", bot, 2);
+				bot.setLogBuffer(new LogBuffer(LogBuffer.DEFAULT_SIZE, Level.FINE));
+				measure("Log buffer varargs", bot, 0);
+				measure("Log buffer fixed arguments", bot, 1);
+			}
+			System.out.println("Recorded: " + bot.getLogBuffer().getCount() + " dropped: " + bot.getLogBuffer().getDropped());
+			System.out.println(bot.getLogBuffer().getMessages().get(0));
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	public static void measure(String name, Bot bot, int mode) {
+		long thread = Thread.currentThread().getId();
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		String argument = "argument";
+		long bytes = bean.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int index = 0; index < MESSAGES; index++) {
+			Integer count = index & 0x7F;
+			if (mode == 0) {
+				bot.log(source, "Processing", Level.FINE, new Object[] { argument, count });
+			} else if (mode == 1) {
+				bot.log(source, "Processing", Level.FINE, argument, count);
+			} else if (bot.isLoggable(Level.FINE)) {
+				bot.log(source, "Processing", Level.FINE, argument, count);
+			}
+		}
+		long time = System.nanoTime() - start;
+		bytes = bean.getThreadAllocatedBytes(thread) - bytes;
+		System.out.println(name + ": " + (time / MESSAGES) + "ns " + (bytes / MESSAGES) + " bytes per message");
+	}
+
+}
@@ -0,0 +1,121 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicNetwork;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.database.DatabaseMemory;
+
+/**
+ * Benchmark the heap used by vertex relationships, with the compact relationship maps and with HashMaps.
+ * Loads the bootstrap network, and a Wiktionary sized network of words, sentences,
+ * and common words with tens of thousands of question and sentence relationships.
+ * Also times the ordered relationships of the common words.
+ */
+
+public class TestRelationshipFootprint {
+	public static int WORDS = 100000;
+	public static int SENTENCES = 50000;
+	public static int WORDS_PER_SENTENCE = 8;
+	public static int COMMON_WORDS = 20;
+	public static int ORDERED_CALLS = 100;
+
+	public static void main(String[] args) {
+		try {
+			DatabaseMemory.TEST = true;
+			Bot bot = Bot.createInstance();
+			bot.setDebugLevel(Level.OFF);
+			for (boolean compact : new boolean[] {false, true}) {
+				BasicVertex.COMPACT_RELATIONSHIPS = compact;
+				long start = usedMemory();
+				Network network = new BasicNetwork();
+				network.setBot(bot);
+				new Bootstrap().bootstrapNetwork(network);
+				long bootstrap = usedMemory() - start;
+				loadWiktionary(network);
+				long wiktionary = usedMemory() - start - bootstrap;
+				long time = timeOrderedRelationships(network);
+				System.out.println((compact ? "Compact" : "HashMap") + " bootstrap: " + (bootstrap / 1024) + "KB"
+						+ " wiktionary: " + (wiktionary / 1024) + "KB vertices: " + network.size()
+						+ " ordered relationships: " + time + "ms");
+				network = null;
+			}
+			BasicVertex.COMPACT_RELATIONSHIPS = true;
+			bot.shutdown();
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Create a network the size of the Wiktionary words, with a sentence graph over a small number of common words.
+	 */
+	public static void loadWiktionary(Network network) {
+		Vertex[] words = new Vertex[WORDS];
+		for (int index = 0; index < WORDS; index++) {
+			Vertex word = network.createWord("word" + index);
+			Vertex meaning = network.createVertex();
+			meaning.addRelationship(Primitive.INSTANTIATION, Primitive.THING);
+			meaning.addRelationship(Primitive.WORD, word);
+			word.addRelationship(Primitive.MEANING, meaning);
+			words[index] = word;
+		}
+		for (int index = 0; index < SENTENCES; index++) {
+			Vertex sentence = network.createVertex();
+			sentence.addRelationship(Primitive.INSTANTIATION, Primitive.SENTENCE);
+			for (int position = 0; position < WORDS_PER_SENTENCE; position++) {
+				Vertex word = null;
+				if (position % 2 == 0) {
+					word = words[(index + position) % COMMON_WORDS];
+					word.addRelationship(Primitive.QUESTION, sentence);
+				} else {
+					word = words[(index * WORDS_PER_SENTENCE + position) % WORDS];
+				}
+				sentence.addRelationship(Primitive.WORD, word, position);
+				word.addRelationship(Primitive.SENTENCE, sentence);
+			}
+		}
+	}
+
+	public static long timeOrderedRelationships(Network network) {
+		Vertex sentence = network.createVertex(Primitive.SENTENCE);
+		long start = System.currentTimeMillis();
+		for (int call = 0; call < ORDERED_CALLS; call++) {
+			for (int index = 0; index < COMMON_WORDS; index++) {
+				network.createWord("word" + index).orderedRelationships(sentence);
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	public static long usedMemory() {
+		for (int index = 0; index < 3; index++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,124 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.knowledge.database.QuestionIndex;
+import org.botlibre.sense.text.TextEntry;
+import org.botlibre.thought.language.Language;
+
+/**
+ * Benchmark the response match latency against the number of learned questions,
+ * with and without the question index.
+ * Prints the p50 and p99 latency for each corpus size.
+ */
+
+public class TestResponseMatchPerformance {
+	public static int[] CORPUS_SIZES = new int[] { 1000, 10000, 50000, 200000 };
+	public static int QUERIES = 500;
+	public static int VOCABULARY = 5000;
+	public static int WORDS = 8;
+
+	public static void main(String[] args) {
+		try {
+			for (int size : CORPUS_SIZES) {
+				testResponseMatch(size);
+			}
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Load the number of question/response pairs and time the response match for random questions.
+	 */
+	public static void testResponseMatch(int size) throws Exception {
+		DatabaseMemory.TEST = true;
+		DatabaseMemory.RECREATE_DATABASE = true;
+		Bot bot = Bot.createInstance();
+		DatabaseMemory.RECREATE_DATABASE = false;
+		bot.setDebugLevel(Level.OFF);
+		Random random = new Random(size);
+		TextEntry text = bot.awareness().getSense(TextEntry.class);
+		int batch = 1000;
+		for (int loaded = 0; loaded < size; loaded = loaded + batch) {
+			StringBuilder log = new StringBuilder();
+			for (int index = 0; index < batch; index++) {
+				log.append(randomSentence(random));
+				log.append("\n");
+				log.append("answer ");
+				log.append(loaded + index);
+				log.append("\n\n");
+			}
+			text.processResponseLog(log.toString(), false);
+		}
+		Language language = bot.mind().getThought(Language.class);
+		// Build the index before timing.
+		Network network = bot.memory().newMemory();
+		while (QuestionIndex.getIndex(network) == null) {
+			Thread.sleep(100);
+		}
+		language.setUseQuestionIndex(false);
+		long[] graph = timeQueries(bot, language, random);
+		language.setUseQuestionIndex(true);
+		long[] indexed = timeQueries(bot, language, random);
+		System.out.println("Questions: " + size
+				+ " graph p50: " + percentile(graph, 0.50) + "ms p99: " + percentile(graph, 0.99) + "ms"
+				+ " index p50: " + percentile(indexed, 0.50) + "ms p99: " + percentile(indexed, 0.99) + "ms");
+		bot.shutdown();
+	}
+
+	public static long[] timeQueries(Bot bot, Language language, Random random) {
+		long[] times = new long[QUERIES];
+		for (int index = 0; index < QUERIES; index++) {
+			Network network = bot.memory().newMemory();
+			Vertex sentence = network.createSentence(randomSentence(random));
+			Vertex input = network.createInstance(Primitive.INPUT);
+			long start = System.nanoTime();
+			language.findResponseMatch(sentence, null, input, network, language.getConversationMatchPercentage());
+			times[index] = (System.nanoTime() - start) / 1000000;
+		}
+		Arrays.sort(times);
+		return times;
+	}
+
+	public static long percentile(long[] sorted, double percentile) {
+		return sorted[Math.min(sorted.length - 1, (int)(sorted.length * percentile))];
+	}
+
+	public static String randomSentence(Random random) {
+		StringBuilder sentence = new StringBuilder();
+		for (int index = 0; index < WORDS; index++) {
+			if (index > 0) {
+				sentence.append(" ");
+			}
+			sentence.append("w");
+			sentence.append(random.nextInt(VOCABULARY));
+		}
+		return sentence.toString();
+	}
+
+}
@@ -0,0 +1,104 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.knowledge.BasicMemory;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.self.SelfInterpreter;
+import org.botlibre.sense.text.TextEntry;
+import org.botlibre.test.TextTest;
+
+/**
+ * Benchmark the Self interpreter against the compiled closures,
+ * using the math and language inputs from TestMath and TestLanguage that are processed by the bootstrap Self scripts.
+ * Prints the p50 and p99 response latency for each.
+ */
+
+public class TestSelfCompilePerformance {
+	public static int WARMUP = 3;
+	public static int ROUNDS = 20;
+	public static String[] INPUTS = new String[] {
+		"one plus two",
+		"what is seven divided by eight",
+		"two to the power of five",
+		"add one to two",
+		"multiply one with two",
+		"what is 2 + 2 * 3",
+		"hello",
+		"my name is Bob",
+		"what is my name",
+		"is the sky blue",
+		"what is the sky"
+	};
+
+	public static void main(String[] args) {
+		try {
+			DatabaseMemory.TEST = true;
+			DatabaseMemory.RECREATE_DATABASE = true;
+			Bot bot = Bot.createInstance();
+			DatabaseMemory.RECREATE_DATABASE = false;
+			new Bootstrap().bootstrapMemory(bot.memory(), true, false);
+			bot.setDebugLevel(Level.OFF);
+			TextEntry text = bot.awareness().getSense(TextEntry.class);
+			List<String> output = TextTest.registerForOutput(text);
+
+			SelfInterpreter.COMPILE = false;
+			long[] interpreted = timeInputs(text, output);
+			SelfInterpreter.COMPILE = true;
+			long[] compiled = timeInputs(text, output);
+			System.out.println("Interpreted p50: " + percentile(interpreted, 0.50) + "ms p99: " + percentile(interpreted, 0.99) + "ms"
+					+ " compiled p50: " + percentile(compiled, 0.50) + "ms p99: " + percentile(compiled, 0.99) + "ms"
+					+ " " + ((BasicMemory)bot.memory()).getByteCodeCache());
+			bot.shutdown();
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	public static long[] timeInputs(TextEntry text, List<String> output) {
+		for (int round = 0; round < WARMUP; round++) {
+			for (String input : INPUTS) {
+				text.input(input);
+				TextTest.waitForOutput(output);
+			}
+		}
+		long[] times = new long[ROUNDS * INPUTS.length];
+		int index = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			for (String input : INPUTS) {
+				long start = System.nanoTime();
+				text.input(input);
+				TextTest.waitForOutput(output);
+				times[index++] = (System.nanoTime() - start) / 1000000;
+			}
+		}
+		Arrays.sort(times);
+		return times;
+	}
+
+	public static long percentile(long[] sorted, double percentile) {
+		return sorted[Math.min(sorted.length - 1, (int)(sorted.length * percentile))];
+	}
+
+}
@@ -0,0 +1,171 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.test.performance;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicNetwork;
+import org.botlibre.knowledge.Bootstrap;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.knowledge.snapshot.MappedNetwork;
+import org.botlibre.knowledge.snapshot.NetworkSnapshot;
+import org.botlibre.knowledge.xml.NetworkXMLParser;
+
+/**
+ * Benchmark the file size, write time and load time of a network as a binary snapshot, as XML, and serialized.
+ * Uses the bootstrap network with a generated network of words and sentences.
+ * Also times lookups in the memory mapped snapshot, and importing the snapshot into a fresh database.
+ */
+
+public class TestSnapshotPerformance {
+	public static int WORDS = 20000;
+	public static int SENTENCES = 10000;
+	public static int WORDS_PER_SENTENCE = 8;
+
+	public static void main(String[] args) {
+		try {
+			DatabaseMemory.TEST = true;
+			DatabaseMemory.RECREATE_DATABASE = true;
+			Bot bot = Bot.createInstance();
+			DatabaseMemory.RECREATE_DATABASE = false;
+			bot.setDebugLevel(Level.OFF);
+			Network network = new BasicNetwork();
+			network.setBot(bot);
+			new Bootstrap().bootstrapNetwork(network);
+			loadSentences(network);
+			// The XML format requires ids.
+			long id = 0;
+			for (Vertex vertex : network.findAll()) {
+				if (vertex.getId() != null) {
+					id = Math.max(id, vertex.getId());
+				}
+			}
+			for (Vertex vertex : network.findAll()) {
+				if (vertex.getId() == null) {
+					vertex.setId(++id);
+				}
+			}
+			System.out.println("Vertices: " + network.size());
+
+			File snapshot = File.createTempFile("network", ".snapshot");
+			snapshot.deleteOnExit();
+			long start = System.currentTimeMillis();
+			NetworkSnapshot.instance().write(network, snapshot);
+			long write = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			Network loaded = NetworkSnapshot.instance().load(snapshot);
+			long load = System.currentTimeMillis() - start;
+			System.out.println("Snapshot size: " + (snapshot.length() / 1024) + "KB write: " + write + "ms load: " + load + "ms vertices: " + loaded.size());
+			loaded = null;
+
+			start = System.currentTimeMillis();
+			MappedNetwork mapped = MappedNetwork.open(snapshot);
+			long open = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			int found = 0;
+			for (int index = 0; index < WORDS; index++) {
+				Vertex word = mapped.findByData("word" + index);
+				if (word != null && word.getRelationships(Primitive.MEANING) != null) {
+					found++;
+				}
+			}
+			load = System.currentTimeMillis() - start;
+			System.out.println("Mapped open: " + open + "ms lookup: " + load + "ms words: " + found);
+			mapped = null;
+
+			File xml = File.createTempFile("network", ".xml");
+			xml.deleteOnExit();
+			start = System.currentTimeMillis();
+			NetworkXMLParser.instance().toXML(network, xml);
+			write = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			loaded = NetworkXMLParser.instance().parse(xml);
+			load = System.currentTimeMillis() - start;
+			System.out.println("XML size: " + (xml.length() / 1024) + "KB write: " + write + "ms load: " + load + "ms vertices: " + loaded.size());
+			loaded = null;
+
+			File serialized = File.createTempFile("network", ".ser");
+			serialized.deleteOnExit();
+			start = System.currentTimeMillis();
+			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(serialized));
+			out.writeObject(network);
+			out.close();
+			write = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			try {
+				ObjectInputStream in = new ObjectInputStream(new FileInputStream(serialized));
+				loaded = (Network)in.readObject();
+				in.close();
+				load = System.currentTimeMillis() - start;
+				System.out.println("Serialized size: " + (serialized.length() / 1024) + "KB write: " + write + "ms load: " + load + "ms vertices: " + loaded.size());
+			} catch (Exception failed) {
+				// The basic network is not always deserializable.
+				System.out.println("Serialized size: " + (serialized.length() / 1024) + "KB write: " + write + "ms load failed: " + failed);
+			}
+			loaded = null;
+
+			DatabaseMemory memory = (DatabaseMemory)bot.memory();
+			start = System.currentTimeMillis();
+			memory.importSnapshot(snapshot);
+			load = System.currentTimeMillis() - start;
+			File export = File.createTempFile("database", ".snapshot");
+			export.deleteOnExit();
+			start = System.currentTimeMillis();
+			memory.exportSnapshot(export);
+			write = System.currentTimeMillis() - start;
+			System.out.println("Database import: " + load + "ms export: " + write + "ms size: " + (export.length() / 1024) + "KB vertices: " + memory.getLongTermMemory().size());
+			bot.shutdown();
+		} catch (Throwable error) {
+			error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Create a network of words and meanings, and sentences of ordered words.
+	 */
+	public static void loadSentences(Network network) {
+		Vertex[] words = new Vertex[WORDS];
+		for (int index = 0; index < WORDS; index++) {
+			Vertex word = network.createWord("word" + index);
+			Vertex meaning = network.createVertex();
+			meaning.addRelationship(Primitive.INSTANTIATION, Primitive.THING);
+			meaning.addRelationship(Primitive.WORD, word);
+			word.addRelationship(Primitive.MEANING, meaning);
+			words[index] = word;
+		}
+		for (int index = 0; index < SENTENCES; index++) {
+			Vertex sentence = network.createVertex();
+			sentence.addRelationship(Primitive.INSTANTIATION, Primitive.SENTENCE);
+			for (int position = 0; position < WORDS_PER_SENTENCE; position++) {
+				Vertex word = words[(index * WORDS_PER_SENTENCE + position) % WORDS];
+				sentence.addRelationship(Primitive.WORD, word, position);
+				word.addRelationship(Primitive.SENTENCE, sentence);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,396 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre;
+
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.botlibre.api.avatar.Avatar;
+import org.botlibre.api.emotion.Emotion;
+import org.botlibre.api.emotion.Mood;
+import org.botlibre.api.knowledge.Memory;
+import org.botlibre.api.sense.Awareness;
+import org.botlibre.api.sense.Sense;
+import org.botlibre.api.sense.Tool;
+import org.botlibre.api.thought.Mind;
+import org.botlibre.api.thought.Thought;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * The parsed config file, the classes, constructors, and properties of a bot's components, shared by all bot instances.
+ * Also keeps a snapshot of each bot's properties and primitive vertex ids, taken when the bot is first started,
+ * so a bot evicted from the pool can be recreated without parsing the config or querying its properties.
+ */
+
+public class BootImage {
+	public static boolean ENABLED = true;
+	/** Time a snapshot is used for, as another server may change the bot's properties. */
+	public static long SNAPSHOT_TIMEOUT = 10 * 60 * 1000; // 10 minutes.
+	/** Max number of primitive vertex ids in a snapshot. */
+	public static int MAX_PRIMITIVES = 1000;
+	
+	protected static ConcurrentMap<String, BootImage> images = new ConcurrentHashMap<String, BootImage>();
+	protected static ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+	/** Incremented each time a memory's snapshot is invalidated, so a snapshot taken before the invalidation is not cached. */
+	protected static Map<String, Long> versions = new HashMap<String, Long>();
+	
+	protected static AtomicLong coldStarts = new AtomicLong();
+	protected static AtomicLong coldTime = new AtomicLong();
+	protected static AtomicLong warmStarts = new AtomicLong();
+	protected static AtomicLong warmTime = new AtomicLong();
+	
+	protected Component memory;
+	protected Component mind;
+	protected List<Component> thoughts = new ArrayList<Component>();
+	protected Component mood;
+	protected List<Component> emotions = new ArrayList<Component>();
+	protected Component avatar;
+	protected Component awareness;
+	protected List<Component> senses = new ArrayList<Component>();
+	protected List<Component> tools = new ArrayList<Component>();
+
+	/**
+	 * The class, constructor, and config properties of a component.
+	 */
+	public static class Component {
+		protected Class<?> type;
+		protected Constructor<?> constructor;
+		protected Map<String, Object> properties;
+		
+		public Component(Class<?> type, Map<String, Object> properties) throws NoSuchMethodException {
+			this.type = type;
+			this.constructor = type.getConstructor();
+			this.properties = properties;
+		}
+		
+		public Object newInstance() throws Exception {
+			return this.constructor.newInstance();
+		}
+		
+		/**
+		 * Return a copy of the properties, as a component may change them.
+		 */
+		public Map<String, Object> getProperties() {
+			return new HashMap<String, Object>(this.properties);
+		}
+
+		public Class<?> getType() {
+			return type;
+		}
+	}
+
+	/**
+	 * A bot's properties and primitive vertex ids.
+	 */
+	public static class Snapshot {
+		protected long time = System.currentTimeMillis();
+		protected Map<String, String> properties = new HashMap<String, String>();
+		protected Set<String> startup = new HashSet<String>();
+		protected Map<Object, Long> primitives = new HashMap<Object, Long>();
+		
+		public boolean isExpired() {
+			return (System.currentTimeMillis() - this.time) > SNAPSHOT_TIMEOUT;
+		}
+		
+		public void addProperty(String property, String value, boolean startup) {
+			this.properties.put(property, value);
+			if (startup) {
+				this.startup.add(property);
+			}
+		}
+		
+		public void addPrimitive(Object key, Long id) {
+			this.primitives.put(key, id);
+		}
+
+		/**
+		 * Return the properties loaded on startup.
+		 */
+		public Map<String, String> getStartupProperties() {
+			Map<String, String> properties = new HashMap<String, String>();
+			for (String property : this.startup) {
+				properties.put(property, this.properties.get(property));
+			}
+			return properties;
+		}
+
+		/**
+		 * Return the properties of the property set.
+		 */
+		public Map<String, String> getProperties(String propertySet) {
+			Map<String, String> properties = new HashMap<String, String>();
+			for (Map.Entry<String, String> entry : this.properties.entrySet()) {
+				if (entry.getKey().startsWith(propertySet)) {
+					properties.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return properties;
+		}
+
+		/**
+		 * Return the vertex ids of the primitives, by vertex cache key.
+		 */
+		public Map<Object, Long> getPrimitives() {
+			return primitives;
+		}
+
+		public long getTime() {
+			return time;
+		}
+	}
+	
+	/**
+	 * Return the boot image of the config file, parse it if not cached.
+	 */
+	public static BootImage getImage(String configFile) {
+		BootImage image = null;
+		if (ENABLED) {
+			image = images.get(configFile);
+			if (image != null) {
+				return image;
+			}
+		}
+		image = parse(configFile);
+		if (ENABLED) {
+			images.putIfAbsent(configFile, image);
+		}
+		return image;
+	}
+	
+	/**
+	 * Parses the config.xml files using the xerces xml dom parser.
+	 */
+	@SuppressWarnings("unchecked")
+	public static BootImage parse(String configFile) {
+		BootImage image = new BootImage();
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			DocumentBuilder parser = factory.newDocumentBuilder();
+			URL url = Bot.class.getResource(configFile);
+			Document document = parser.parse(url.toString());
+			Element root = document.getDocumentElement();
+
+			Element memoryElement = (Element) root.getElementsByTagName("memory").item(0);
+			image.memory = parseComponent(memoryElement);
+      
+			Element mindElement = (Element) root.getElementsByTagName("mind").item(0);
+			image.mind = parseComponent(mindElement);
+			NodeList thoughtElements = ((Element) mindElement.getElementsByTagName("thoughts").item(0)).getElementsByTagName("thought");
+			for (int index = 0; index < thoughtElements.getLength(); index++) {
+				image.thoughts.add(parseComponent((Element) thoughtElements.item(index)));
+			}
+			
+			Element moodElement = (Element) root.getElementsByTagName("mood").item(0);
+			if (moodElement != null) {
+				image.mood = parseComponent(moodElement);
+				NodeList emotionElements = ((Element) moodElement.getElementsByTagName("emotions").item(0)).getElementsByTagName("emotion");
+				for (int index = 0; index < emotionElements.getLength(); index++) {
+					image.emotions.add(parseComponent((Element) emotionElements.item(index)));
+				}
+			}
+			
+			Element avatarElement = (Element) root.getElementsByTagName("avatar").item(0);
+			image.avatar = parseComponent(avatarElement);
+
+			Element awarenessElement = (Element) root.getElementsByTagName("awareness").item(0);
+			image.awareness = parseComponent(awarenessElement);
+			NodeList senseElements = ((Element) awarenessElement.getElementsByTagName("senses").item(0)).getElementsByTagName("sense");
+			for (int index = 0; index < senseElements.getLength(); index++) {
+				image.senses.add(parseComponent((Element) senseElements.item(index)));
+			}
+			NodeList toolElements = ((Element) awarenessElement.getElementsByTagName("tools").item(0)).getElementsByTagName("tool");
+			for (int index = 0; index < toolElements.getLength(); index++) {
+				image.tools.add(parseComponent((Element) toolElements.item(index)));
+			}
+		} catch (Exception exception) {
+			throw new InitializationException(exception);
+		}
+		return image;
+	}
+	
+	/**
+	 * Return the component of the element's implementation class and properties.
+	 */
+	protected static Component parseComponent(Element element) throws Exception {
+		Element implementationClassElement = (Element) element.getElementsByTagName("implementation-class").item(0);
+		Class<?> type = Class.forName(implementationClassElement.getFirstChild().getNodeValue());
+		Map<String, Object> propertyValues = new HashMap<String, Object>();
+		NodeList properties = element.getElementsByTagName("property");
+		for (int index = 0; index < properties.getLength(); index++) {
+			Element property = (Element) properties.item(index);
+			propertyValues.put(property.getAttribute("name"), property.getAttribute("value"));
+		}
+		return new Component(type, propertyValues);
+	}
+	
+	/**
+	 * Create and initialize the bot's components.
+	 */
+	public void build(Bot bot) {
+		try {
+			bot.setMemory((Memory)this.memory.newInstance());
+			bot.memory().initialize(this.memory.getProperties());
+			
+			bot.setMind((Mind)this.mind.newInstance());
+			bot.mind().initialize(this.mind.getProperties());
+			for (Component component : this.thoughts) {
+				Thought thought = (Thought)component.newInstance();
+				bot.mind().addThought(thought);
+				thought.initialize(component.getProperties());
+			}
+			
+			if (this.mood != null) {
+				bot.setMood((Mood)this.mood.newInstance());
+				bot.mood().initialize(this.mood.getProperties());
+				for (Component component : this.emotions) {
+					Emotion emotion = (Emotion)component.newInstance();
+					bot.mood().addEmotion(emotion);
+					emotion.initialize(component.getProperties());
+				}
+			}
+			
+			bot.setAvatar((Avatar)this.avatar.newInstance());
+			bot.avatar().initialize(this.avatar.getProperties());
+			
+			bot.setAwareness((Awareness)this.awareness.newInstance());
+			for (Component component : this.senses) {
+				Sense sense = (Sense)component.newInstance();
+				bot.awareness().addSense(sense);
+				sense.initialize(component.getProperties());
+			}
+			for (Component component : this.tools) {
+				Tool tool = (Tool)component.newInstance();
+				bot.awareness().addTool(tool);
+				tool.initialize(component.getProperties());
+			}
+		} catch (Exception exception) {
+			throw new InitializationException(exception);
+		}
+	}
+	
+	/**
+	 * Return the snapshot of the bot's memory, or null if none or expired.
+	 */
+	public static Snapshot getSnapshot(String memory) {
+		if (!ENABLED || (memory == null)) {
+			return null;
+		}
+		Snapshot snapshot = snapshots.get(memory);
+		if ((snapshot != null) && snapshot.isExpired()) {
+			snapshots.remove(memory, snapshot);
+			return null;
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Return the memory's snapshot version, read before the snapshot is taken.
+	 */
+	public static synchronized long getVersion(String memory) {
+		Long version = versions.get(memory);
+		if (version == null) {
+			return 0;
+		}
+		return version;
+	}
+	
+	/**
+	 * Cache the snapshot, unless the memory was invalidated since the version was read.
+	 */
+	public static synchronized void putSnapshot(String memory, Snapshot snapshot, long version) {
+		if (!ENABLED || (memory == null) || (version != getVersion(memory))) {
+			return;
+		}
+		snapshots.put(memory, snapshot);
+	}
+	
+	/**
+	 * Remove the snapshot when the bot's properties are changed, or its memory is deleted.
+	 * This must be called after the change is committed.
+	 */
+	public static synchronized void invalidate(String memory) {
+		if (memory != null) {
+			versions.put(memory, getVersion(memory) + 1);
+			snapshots.remove(memory);
+		}
+	}
+	
+	/**
+	 * Remove all cached config files and snapshots.
+	 */
+	public static void clear() {
+		images.clear();
+		snapshots.clear();
+	}
+	
+	/**
+	 * Record the time to create a bot, from a snapshot or not.
+	 */
+	public static void recordStart(boolean warm, long time) {
+		if (warm) {
+			warmStarts.incrementAndGet();
+			warmTime.addAndGet(time);
+		} else {
+			coldStarts.incrementAndGet();
+			coldTime.addAndGet(time);
+		}
+	}
+	
+	public static long getColdStarts() {
+		return coldStarts.get();
+	}
+	
+	/**
+	 * Return the total time of creating bots without a snapshot.
+	 */
+	public static long getColdTime() {
+		return coldTime.get();
+	}
+	
+	public static long getWarmStarts() {
+		return warmStarts.get();
+	}
+	
+	/**
+	 * Return the total time of creating bots from a snapshot.
+	 */
+	public static long getWarmTime() {
+		return warmTime.get();
+	}
+	
+	public static void resetStats() {
+		coldStarts.set(0);
+		coldTime.set(0);
+		warmStarts.set(0);
+		warmTime.set(0);
+	}
+}
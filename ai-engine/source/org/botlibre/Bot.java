@@ -20,15 +20,11 @@ package org.botlibre;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.URL;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -37,21 +33,19 @@ import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import java.util.logging.StreamHandler;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
 import org.botlibre.api.avatar.Avatar;
-import org.botlibre.api.emotion.Emotion;
 import org.botlibre.api.emotion.Mood;
 import org.botlibre.api.knowledge.Memory;
+import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.api.sense.Awareness;
 import org.botlibre.api.sense.Sense;
 import org.botlibre.api.sense.Tool;
 import org.botlibre.api.thought.Mind;
 import org.botlibre.api.thought.Thought;
 import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.sense.text.TextEntry;
+import org.botlibre.util.Tracer;
 import org.botlibre.util.Utils;
-import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
@@ -74,8 +68,6 @@ public class Bot {
 	public static int MAX_CACHE = 100000;
 	public static int MIN_CACHE = 10000;
 	public static int POOL_SIZE = 20;
-	private static ConcurrentMap<String, Bot> instances = new ConcurrentHashMap<String, Bot>();
-	private static Queue<String> instancesQueue = new ConcurrentLinkedQueue<String>();
 	
 	public static Bot systemCache;
 	
@@ -90,10 +82,14 @@ public class Bot {
 	private String name;
 	private ActiveState state = ActiveState.INIT;
 	public enum ActiveState {INIT, ACTIVE, POOLED, SHUTDOWN}
+	/** The instance was checked out of the pool, or created for a request, and is not yet returned. */
+	private boolean isCheckedOut;
 
 	private Set<LogListener> logListeners = new HashSet<LogListener>();	
 	private Level debugLevel = DEFAULT_DEBUG_LEVEL;	
 	private Logger log;
+	private volatile LogBuffer logBuffer;
+	private Tracer tracer = new Tracer();
 		
 	static {
 		Logger root = Logger.getLogger("org.botlibre");
@@ -138,6 +134,7 @@ public class Bot {
 	}
 	
 	public static Bot createInstance(String configFile, String memory, boolean isSchema) {
+		long start = System.currentTimeMillis();
 		Bot Bot = new Bot();
 		Bot.parseConfigFile(configFile);
 		Bot.setState(ActiveState.ACTIVE);
@@ -148,12 +145,14 @@ public class Bot {
 		Bot.mood().awake();
 		Bot.avatar().awake();
 		Bot.awareness().awake();
+		BootImage.recordStart(Bot.isWarmStart(), System.currentTimeMillis() - start);
 		return Bot;
 	}
 	
 	public static Bot fastCreateInstance(String configFile, String memory, boolean isSchema) {
 		Bot bot = new Bot();
 		long start = System.currentTimeMillis();
+		long createStart = start;
 		bot.parseConfigFile(configFile);
 		long time = System.currentTimeMillis() - start;
 		if (time > 500) {
@@ -177,6 +176,7 @@ public class Bot {
 		if (time > 500) {
 			System.out.println("Connect awake time: " + time);
 		}
+		BootImage.recordStart(bot.isWarmStart(), System.currentTimeMillis() - createStart);
 		return bot;
 	}
 	
@@ -184,9 +184,9 @@ public class Bot {
 	 * Return the cached instance from the pool if available, otherwise create a new instance.
 	 */
 	public static Bot createInstanceFromPool(String instanceName, boolean isSchema) {
-		Bot instance = instances.remove(instanceName);
+		long start = System.currentTimeMillis();
+		Bot instance = BotPool.remove(instanceName, isSchema);
 		if (instance != null) {
-			instancesQueue.remove(instanceName);
 			if (instance.getState() != ActiveState.POOLED) {
 				instance.log(instance, "Invalid instance in pool", Level.INFO);
 				instance = null;
@@ -197,14 +197,24 @@ public class Bot {
 		}
 		if (instance == null) {
 			//instance =  createInstance(CONFIG_FILE, instanceName);
-			long start = System.currentTimeMillis();
 			instance =  fastCreateInstance(CONFIG_FILE, instanceName, isSchema);
 			long time = System.currentTimeMillis() - start;
+			BotPool.recordRequest(false, time);
 			instance.log(instance, "Creating new instance, time, cache size:", Level.INFO, instanceName, time, instance.memory().cacheSize());
+		} else {
+			BotPool.recordRequest(true, System.currentTimeMillis() - start);
 		}
+		instance.isCheckedOut = true;
 		return instance;
 	}
 	
+	/**
+	 * Return if the bot's memory was started from its boot image snapshot.
+	 */
+	public boolean isWarmStart() {
+		return (memory() instanceof DatabaseMemory) && ((DatabaseMemory)memory()).isWarmStart();
+	}
+	
 	public Bot() {
 		this.log = Logger.getLogger("org.botlibre." + hashCode());
 		this.log.setLevel(this.debugLevel);
@@ -266,24 +276,122 @@ public class Bot {
 		return this.debugLevel.intValue() <= Level.SEVERE.intValue();
 	}
 	
+	/**
+	 * Return if a message of the level is logged, or recorded in the log buffer.
+	 * Callers can check this before building an expensive message or argument.
+	 */
+	public boolean isLoggable(Level level) {
+		if (this.debugLevel.intValue() <= level.intValue()) {
+			return true;
+		}
+		LogBuffer buffer = this.logBuffer;
+		return (buffer != null) && buffer.isLoggable(level);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 * The fixed argument methods avoid allocating an arguments array when the level is not logged.
+	 */
+	public void log(Object source, String message, Level level) {
+		if (isLoggable(level)) {
+			logArguments(source, message, level, 0, null, null, null, null);
+		}
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(Object source, String message, Level level, Object argument) {
+		if (isLoggable(level)) {
+			logArguments(source, message, level, 1, argument, null, null, null);
+		}
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(Object source, String message, Level level, Object first, Object second) {
+		if (isLoggable(level)) {
+			logArguments(source, message, level, 2, first, second, null, null);
+		}
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(Object source, String message, Level level, Object first, Object second, Object third) {
+		if (isLoggable(level)) {
+			logArguments(source, message, level, 3, first, second, third, null);
+		}
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(Object source, String message, Level level, Object first, Object second, Object third, Object fourth) {
+		if (isLoggable(level)) {
+			logArguments(source, message, level, 4, first, second, third, fourth);
+		}
+	}
+	
 	/**
 	 * Log the message if the debug level is greater or equal to the level.
 	 */
 	public void log(Object source, String message, Level level, Object... arguments) {
+		if (!isLoggable(level)) {
+			return;
+		}
+		LogBuffer buffer = this.logBuffer;
+		if ((buffer != null) && buffer.isLoggable(level)) {
+			buffer.add(source, message, level, arguments);
+		}
+		if (this.debugLevel.intValue() <= level.intValue()) {
+			writeLog(source, message, level, arguments);
+		}
+	}
+	
+	/**
+	 * Record the message in the log buffer without formatting it, and format it to the log if the debug level is greater or equal to the level.
+	 */
+	protected void logArguments(Object source, String message, Level level, int size, Object first, Object second, Object third, Object fourth) {
+		LogBuffer buffer = this.logBuffer;
+		if ((buffer != null) && buffer.isLoggable(level)) {
+			buffer.add(source, message, level, size, first, second, third, fourth);
+		}
+		if (this.debugLevel.intValue() <= level.intValue()) {
+			Object[] arguments = new Object[size];
+			if (size > 0) {
+				arguments[0] = first;
+			}
+			if (size > 1) {
+				arguments[1] = second;
+			}
+			if (size > 2) {
+				arguments[2] = third;
+			}
+			if (size > 3) {
+				arguments[3] = fourth;
+			}
+			writeLog(source, message, level, arguments);
+		}
+	}
+	
+	/**
+	 * Notify the log listeners and format the message to the log.
+	 */
+	protected void writeLog(Object source, String message, Level level, Object[] arguments) {
 		try {
-			if (this.debugLevel.intValue() <= level.intValue()) {
-				for (LogListener listener : getLogListeners()) {
-					listener.log(source, message, level, arguments);
-				}
-				StringWriter writer = new StringWriter();
-				writer.write(getName()
-						+ " - " + Thread.currentThread()
-						+ " -- " + source + ":" + message);
-				for (Object argument : arguments) {
-					writer.write(" - " + argument);
-				}
-				getLog().log(level, writer.toString());			
+			for (LogListener listener : getLogListeners()) {
+				listener.log(source, message, level, arguments);
 			}
+			StringWriter writer = new StringWriter();
+			writer.write(getName()
+					+ " - " + Thread.currentThread()
+					+ " -- " + source + ":" + message);
+			for (Object argument : arguments) {
+				writer.write(" - " + argument);
+			}
+			getLog().log(level, writer.toString());
 		} catch (Exception exception) {
 			System.out.println(exception);
 		}
@@ -349,6 +457,21 @@ public class Bot {
 		this.awareness = awareness;
 	}
 	
+	/**
+	 * Process the text input for the conversation and return the response output, or null if there is no response.
+	 * The input is processed on the caller's thread in its own network, so many conversations can chat concurrently.
+	 * A null conversation id starts a new conversation, the output's CONVERSATION relationship is the conversation,
+	 * and the response text can be printed from the output using the TextEntry sense's printInput().
+	 */
+	public Vertex chat(Long conversationId, String text) {
+		TextEntry sense = awareness().getSense(TextEntry.class);
+		if (sense == null) {
+			log(this, "Missing TextEntry sense", Level.WARNING);
+			return null;
+		}
+		return sense.chat(conversationId, text);
+	}
+	
 	/**
 	 * Return the mind.
 	 * The mind defines the thoughts.
@@ -433,91 +556,10 @@ public class Bot {
 	/**
 	 * Parses the config.xml files using the xerces xml dom parser.
 	 * Loads the module implementors into the Bot system.
+	 * The parsed config file is cached in its boot image, and shared by all instances.
 	 */
-	@SuppressWarnings("unchecked")
 	protected void parseConfigFile(String configFile) {
-		// Read config xml to initialize plugins.
-		try {
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder parser = factory.newDocumentBuilder();
-			URL url = Bot.class.getResource(configFile);
-			Document document = parser.parse(url.toString());
-			Element root = document.getDocumentElement();
-
-			// Parse and initialize memory.
-			Element memoryElement = (Element) root.getElementsByTagName("memory").item(0);
-			Element implementationClassElement = (Element) memoryElement.getElementsByTagName("implementation-class").item(0);
-			Class<Memory> memoryImplementor = (Class<Memory>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-			setMemory(memoryImplementor.newInstance());
-			memory().initialize(getProperties(memoryElement));
-      
-			// Parse and initialize mind.
-			Element mindElement = (Element) root.getElementsByTagName("mind").item(0);
-			implementationClassElement = (Element) mindElement.getElementsByTagName("implementation-class").item(0);
-			Class<Mind> mindImplementor = (Class<Mind>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-			setMind(mindImplementor.newInstance());
-			mind().initialize(getProperties(mindElement));
-			NodeList thoughtElements = ((Element) mindElement.getElementsByTagName("thoughts").item(0)).getElementsByTagName("thought");
-			for (int index = 0; index < thoughtElements.getLength(); index++) {
-				Element thoughtElement = (Element) thoughtElements.item(index);
-				implementationClassElement = (Element) thoughtElement.getElementsByTagName("implementation-class").item(0);
-				Class<Thought> thoughtImplementor = (Class<Thought>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-				Thought thought = thoughtImplementor.newInstance();
-				mind().addThought(thought);
-				thought.initialize(getProperties(thoughtElement));
-			}
-			
-			// Parse and initialize mood.
-			Element moodElement = (Element) root.getElementsByTagName("mood").item(0);
-			if (moodElement != null) {
-				implementationClassElement = (Element) moodElement.getElementsByTagName("implementation-class").item(0);
-				Class<Mood> moodImplementor = (Class<Mood>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-				setMood(moodImplementor.newInstance());
-				mood().initialize(getProperties(moodElement));
-				NodeList emotionElements = ((Element) moodElement.getElementsByTagName("emotions").item(0)).getElementsByTagName("emotion");
-				for (int index = 0; index < emotionElements.getLength(); index++) {
-					Element emotionElement = (Element) emotionElements.item(index);
-					implementationClassElement = (Element) emotionElement.getElementsByTagName("implementation-class").item(0);
-					Class<Emotion> emotionImplementor = (Class<Emotion>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-					Emotion emotion = emotionImplementor.newInstance();
-					mood().addEmotion(emotion);
-					emotion.initialize(getProperties(emotionElement));
-				}
-			}
-			
-			// Parse and initialize avatar.
-			Element avatarElement = (Element) root.getElementsByTagName("avatar").item(0);
-			implementationClassElement = (Element) avatarElement.getElementsByTagName("implementation-class").item(0);
-			Class<Avatar> avatarImplementor = (Class<Avatar>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-			setAvatar(avatarImplementor.newInstance());
-			avatar().initialize(getProperties(avatarElement));
-
-			// Parse and initialize awareness.
-			Element awarenessElement = (Element) root.getElementsByTagName("awareness").item(0);
-			implementationClassElement = (Element) awarenessElement.getElementsByTagName("implementation-class").item(0);
-			Class<Awareness> awarenessImplementor = (Class<Awareness>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-			setAwareness(awarenessImplementor.newInstance());
-			NodeList senseElements = ((Element) awarenessElement.getElementsByTagName("senses").item(0)).getElementsByTagName("sense");
-			for (int index = 0; index < senseElements.getLength(); index++) {
-				Element senseElement = (Element) senseElements.item(index);
-				implementationClassElement = (Element) senseElement.getElementsByTagName("implementation-class").item(0);
-				Class<Sense> senseImplementor = (Class<Sense>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-				Sense sense = senseImplementor.newInstance();
-				awareness().addSense(sense);
-				sense.initialize(getProperties(senseElement));
-			}
-			NodeList toolElements = ((Element) awarenessElement.getElementsByTagName("tools").item(0)).getElementsByTagName("tool");
-			for (int index = 0; index < toolElements.getLength(); index++) {
-				Element toolElement = (Element) toolElements.item(index);
-				implementationClassElement = (Element) toolElement.getElementsByTagName("implementation-class").item(0);
-				Class<Tool> toolImplementor = (Class<Tool>)Class.forName(implementationClassElement.getFirstChild().getNodeValue());
-				Tool tool = toolImplementor.newInstance();
-				awareness().addTool(tool);
-				tool.initialize(getProperties(toolElement));
-			}
-		} catch (Exception exception) {
-			throw new InitializationException(exception);
-		}		
+		BootImage.getImage(configFile).build(this);
 	}
 	
 	/**
@@ -531,6 +573,7 @@ public class Bot {
 		this.state = ActiveState.SHUTDOWN;
 		log(this, "Shutting down", Level.INFO);
 		try {
+			checkIn();
 			awareness().shutdown();
 			mind().shutdown();
 			mood().shutdown();
@@ -546,9 +589,8 @@ public class Bot {
 	 * Shutdown the pooled instance.
 	 */
 	public static void forceShutdown(String name) {
-		Bot instance = instances.remove(name);
+		Bot instance = BotPool.forceRemove(name);
 		if (instance != null) {
-			instancesQueue.remove(name);
 			instance.log(instance, "Forced shutdown", Level.WARNING);
 			instance.shutdown();
 		}
@@ -557,23 +599,20 @@ public class Bot {
 	}
 	
 	public static void clearPool() {
-		while (instances.size() > 0) {
-			try {
-				String oldest = instancesQueue.remove();
-				Bot instance = instances.remove(oldest);
-				if (instance != null) {
-					instance.shutdown();
-				}
-			} catch (Exception exception) {
-				new Bot().log(instancesQueue, exception);
-			}
-		}		
+		BotPool.clear();
 	}
 	
 	/**
-	 * Return the instance to the pool, or shutdown if too many instances pooled.
+	 * Return the instance to the pool, the instances with the least traffic are evicted if the pool is full.
 	 */
-	public synchronized void pool() {
+	public void pool() {
+		pool(false);
+	}
+	
+	/**
+	 * Return the instance to the pool, or a prefetched instance.
+	 */
+	public synchronized void pool(boolean isPrefetched) {
 		if (this.state == ActiveState.SHUTDOWN) {
 			log(this, "Already shutdown", Level.INFO);
 			return;
@@ -585,6 +624,9 @@ public class Bot {
 		String name = memory().getMemoryName();
 		log(this, "Pooling instance", Level.INFO, name);
 		synchronized (memory()) {
+			if (memory() instanceof DatabaseMemory) {
+				((DatabaseMemory)memory()).flush();
+			}
 			memory().getShortTermMemory().clear();
 		}
 		if (Utils.checkLowMemory()) {
@@ -595,21 +637,10 @@ public class Bot {
 			log(this, "Cache too big - clearing server cache", Level.WARNING, memory().cacheSize(), MIN_CACHE, MAX_CACHE);
 			memory().freeMemory();
 		}
-		if (instances.containsKey(name)) {
+		if (BotPool.getInstances().containsKey(name)) {
 			shutdown();
 			return;
 		}
-		while (instances.size() >= POOL_SIZE) {
-			try {
-				String oldest = instancesQueue.remove();
-				Bot instance = instances.remove(oldest);
-				if (instance != null) {
-					instance.shutdown();
-				}
-			} catch (Exception exception) {
-				log(instancesQueue, exception);
-			}
-		}
 		try {
 			awareness().pool();
 			mind().pool();
@@ -622,11 +653,19 @@ public class Bot {
 		// Shutdown if put not successful.
 		setState(ActiveState.POOLED);
 		setDebugLevel(Level.INFO);
-		if (null != instances.putIfAbsent(name, this)) {
+		checkIn();
+		if (!BotPool.add(name, this, isPrefetched)) {
 			shutdown();
-			return;
-		} else {
-			instancesQueue.add(name);
+		}
+	}
+	
+	/**
+	 * Notify the pool that the checked out instance has been returned or shutdown, so it can be prefetched again.
+	 */
+	protected void checkIn() {
+		if (this.isCheckedOut) {
+			this.isCheckedOut = false;
+			BotPool.checkIn(memory().getMemoryName());
 		}
 	}
 	
@@ -716,13 +755,38 @@ public class Bot {
 	}
 
 	public static ConcurrentMap<String, Bot> getInstances() {
-		return instances;
+		return BotPool.getInstances();
 	}
 
 	public Logger getLog() {
 		return log;
 	}
 
+	/**
+	 * Return the tracer that records the time of each stage of processing an input.
+	 */
+	public Tracer getTracer() {
+		return tracer;
+	}
+
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Return the buffer recording recent messages, or null.
+	 */
+	public LogBuffer getLogBuffer() {
+		return logBuffer;
+	}
+
+	/**
+	 * Set a buffer to record recent messages of its level, independent of the debug level.
+	 */
+	public void setLogBuffer(LogBuffer logBuffer) {
+		this.logBuffer = logBuffer;
+	}
+
 	public void setLog(Logger log) {
 		this.log = log;
 	}
@@ -0,0 +1,489 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.botlibre.util.Utils;
+
+/**
+ * Pool of bot instances, shared by the process.
+ * Pooled bots are evicted by their recent traffic, the number of requests decayed by the time since the last request,
+ * when the pool exceeds its size or the estimated heap cost of the pooled bots exceeds the max cost.
+ * The cost of a bot is the number of vertices in its memory's cache and retained by its short term memory.
+ * Evicted bots are shutdown in the background, and a bot requested before its shutdown is reused.
+ * When the pool has room, the bots with the most recent traffic that are not pooled or checked out are prefetched.
+ */
+
+public class BotPool {
+	/** Max number of vertices cached or retained by the pooled bots. */
+	public static long MAX_COST = 1000000;
+	/** Time for a bot's request count to decay by half. */
+	public static long HALF_LIFE = 10 * 60 * 1000; // 10 minutes.
+	/** Number of bots with the most traffic created in the background when the pool has room, 0 to disable. */
+	public static int PREFETCH_SIZE = 2;
+	public static long PREFETCH_INTERVAL = 60 * 1000; // 1 minute.
+	/** Max number of bots whose traffic is tracked. */
+	public static int MAX_USAGE = 10000;
+	
+	protected static ConcurrentMap<String, Bot> instances = new ConcurrentHashMap<String, Bot>();
+	/** Bots evicted and waiting to be shutdown. */
+	protected static ConcurrentMap<String, Bot> evicted = new ConcurrentHashMap<String, Bot>();
+	protected static ConcurrentMap<String, Usage> usages = new ConcurrentHashMap<String, Usage>();
+	protected static long cost;
+	
+	protected static ScheduledExecutorService executor;
+	
+	protected static AtomicLong hits = new AtomicLong();
+	protected static AtomicLong misses = new AtomicLong();
+	protected static AtomicLong prefetchHits = new AtomicLong();
+	protected static AtomicLong prefetches = new AtomicLong();
+	protected static AtomicLong evictions = new AtomicLong();
+	protected static AtomicLong hitTime = new AtomicLong();
+	protected static AtomicLong missTime = new AtomicLong();
+	
+	/**
+	 * The recent traffic of a bot, and its cost while pooled.
+	 */
+	public static class Usage {
+		protected String name;
+		protected double requests;
+		protected long lastAccess;
+		protected long cost;
+		protected boolean isPrefetched;
+		protected boolean isSchema;
+		/** Number of instances checked out of the pool, or created for a request, and not yet returned. */
+		protected int checkedOut;
+		
+		public Usage(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Return the number of requests decayed by the time since the last request.
+		 */
+		public synchronized double getTraffic(long time) {
+			if (this.lastAccess == 0) {
+				return 0;
+			}
+			return this.requests * Math.pow(0.5, (double)(time - this.lastAccess) / HALF_LIFE);
+		}
+		
+		public synchronized void access() {
+			long time = System.currentTimeMillis();
+			this.requests = getTraffic(time) + 1;
+			this.lastAccess = time;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getLastAccess() {
+			return lastAccess;
+		}
+
+		public int getCheckedOut() {
+			return checkedOut;
+		}
+
+		/**
+		 * Return the number of vertices cached or retained by the bot when it was pooled.
+		 */
+		public long getCost() {
+			return cost;
+		}
+	}
+	
+	/**
+	 * Return the pooled instance, or null.
+	 * The name is checked out until the instance is returned or shutdown, so it is not prefetched.
+	 */
+	public static Bot remove(String name, boolean isSchema) {
+		Usage usage = getUsage(name);
+		usage.access();
+		usage.isSchema = isSchema;
+		Bot instance = null;
+		boolean isPrefetched = false;
+		synchronized (BotPool.class) {
+			instance = instances.remove(name);
+			if (instance == null) {
+				// Reuse the instance if not yet shutdown.
+				instance = evicted.remove(name);
+			} else {
+				cost = cost - usage.cost;
+			}
+			isPrefetched = usage.isPrefetched;
+			usage.isPrefetched = false;
+			usage.checkedOut++;
+		}
+		if ((instance != null) && isPrefetched) {
+			prefetchHits.incrementAndGet();
+		}
+		return instance;
+	}
+	
+	/**
+	 * Record that the checked out instance has been returned or shutdown.
+	 */
+	public static void checkIn(String name) {
+		Usage usage = getUsage(name);
+		synchronized (BotPool.class) {
+			if (usage.checkedOut > 0) {
+				usage.checkedOut--;
+			}
+		}
+	}
+	
+	/**
+	 * Return the instance to the pool, evict the instances with the least traffic if the pool is full.
+	 * Return false if an instance with the name is already pooled, or a prefetched instance is already checked out.
+	 */
+	public static boolean add(String name, Bot instance) {
+		return add(name, instance, false);
+	}
+	
+	protected static boolean add(String name, Bot instance, boolean isPrefetched) {
+		Usage usage = getUsage(name);
+		long instanceCost = cost(instance);
+		List<String> evictedNames = new ArrayList<String>();
+		Bot old = null;
+		synchronized (BotPool.class) {
+			if (instances.containsKey(name)) {
+				return false;
+			}
+			// The instance was requested while being prefetched.
+			if (isPrefetched && (usage.checkedOut > 0)) {
+				return false;
+			}
+			old = evicted.remove(name);
+			instances.put(name, instance);
+			usage.cost = instanceCost;
+			usage.isPrefetched = isPrefetched;
+			cost = cost + instanceCost;
+			long maxCost = MAX_COST;
+			if (Utils.checkLowMemory()) {
+				maxCost = Math.min(maxCost, cost / 2);
+			}
+			if ((instances.size() > Bot.POOL_SIZE) || (cost > maxCost)) {
+				long time = System.currentTimeMillis();
+				List<Usage> pooled = new ArrayList<Usage>(instances.size());
+				for (String pooledName : instances.keySet()) {
+					pooled.add(getUsage(pooledName));
+				}
+				Collections.sort(pooled, new TrafficComparator(time));
+				for (Usage victim : pooled) {
+					if ((instances.size() <= Bot.POOL_SIZE) && (cost <= maxCost)) {
+						break;
+					}
+					Bot victimInstance = instances.remove(victim.name);
+					if (victimInstance != null) {
+						cost = cost - victim.cost;
+						evictions.incrementAndGet();
+						evicted.put(victim.name, victimInstance);
+						evictedNames.add(victim.name);
+					}
+				}
+			}
+		}
+		if (old != null) {
+			shutdownLater(old, null);
+		}
+		for (String victim : evictedNames) {
+			shutdownLater(evicted.get(victim), victim);
+		}
+		return true;
+	}
+	
+	/**
+	 * Orders bots by least traffic, then least recently used.
+	 */
+	public static class TrafficComparator implements Comparator<Usage> {
+		protected long time;
+		
+		public TrafficComparator(long time) {
+			this.time = time;
+		}
+		
+		public int compare(Usage first, Usage second) {
+			int result = Double.compare(first.getTraffic(this.time), second.getTraffic(this.time));
+			if (result == 0) {
+				result = Long.compare(first.getLastAccess(), second.getLastAccess());
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * Return the number of vertices cached or retained by the bot.
+	 */
+	public static long cost(Bot instance) {
+		try {
+			return 1 + instance.memory().cacheSize() + instance.memory().getShortTermMemory().size();
+		} catch (Exception exception) {
+			return 1;
+		}
+	}
+	
+	public static Usage getUsage(String name) {
+		Usage usage = usages.get(name);
+		if (usage == null) {
+			if (usages.size() >= MAX_USAGE) {
+				trimUsages();
+			}
+			usages.putIfAbsent(name, new Usage(name));
+			usage = usages.get(name);
+		}
+		return usage;
+	}
+	
+	/**
+	 * Remove the traffic of the bots with the least traffic that are not pooled.
+	 */
+	protected static synchronized void trimUsages() {
+		List<Usage> unpooled = new ArrayList<Usage>();
+		for (Usage usage : usages.values()) {
+			if (!instances.containsKey(usage.name) && (usage.checkedOut == 0)) {
+				unpooled.add(usage);
+			}
+		}
+		Collections.sort(unpooled, new TrafficComparator(System.currentTimeMillis()));
+		for (int index = 0; index < unpooled.size() / 2; index++) {
+			usages.remove(unpooled.get(index).name);
+		}
+	}
+	
+	protected static synchronized ScheduledExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "bot-pool");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			if (PREFETCH_SIZE > 0) {
+				executor.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						prefetch();
+					}
+				}, PREFETCH_INTERVAL, PREFETCH_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}
+		return executor;
+	}
+	
+	/**
+	 * Shutdown the instance in the background.
+	 * If evicted under the name, it is not shutdown if reused first.
+	 */
+	protected static void shutdownLater(final Bot instance, final String name) {
+		if (instance == null) {
+			return;
+		}
+		getExecutor().execute(new Runnable() {
+			public void run() {
+				if ((name == null) || evicted.remove(name, instance)) {
+					instance.log(instance, "Evicting instance from pool", Level.INFO, name);
+					instance.shutdown();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Create the bots with the most recent traffic that are not pooled or checked out, if the pool has room.
+	 */
+	public static void prefetch() {
+		try {
+			long time = System.currentTimeMillis();
+			List<Usage> candidates = new ArrayList<Usage>();
+			synchronized (BotPool.class) {
+				if ((instances.size() + PREFETCH_SIZE) > Bot.POOL_SIZE || (cost >= MAX_COST / 2) || Utils.checkLowMemory()) {
+					return;
+				}
+				for (Usage usage : usages.values()) {
+					if (!instances.containsKey(usage.name) && !evicted.containsKey(usage.name) && (usage.checkedOut == 0)
+							&& usage.getTraffic(time) >= 1) {
+						candidates.add(usage);
+					}
+				}
+			}
+			Collections.sort(candidates, Collections.reverseOrder(new TrafficComparator(time)));
+			for (int index = 0; index < candidates.size() && index < PREFETCH_SIZE; index++) {
+				String name = candidates.get(index).name;
+				Bot instance = null;
+				try {
+					instance = Bot.fastCreateInstance(Bot.CONFIG_FILE, name, candidates.get(index).isSchema);
+				} catch (Exception exception) {
+					// The bot may have been deleted.
+					usages.remove(name);
+					continue;
+				}
+				prefetches.incrementAndGet();
+				instance.pool(true);
+			}
+		} catch (Exception exception) {
+			new Bot().log(BotPool.class, exception);
+		}
+	}
+	
+	/**
+	 * Shutdown the pooled instance.
+	 */
+	public static Bot forceRemove(String name) {
+		synchronized (BotPool.class) {
+			Bot instance = instances.remove(name);
+			if (instance != null) {
+				cost = cost - getUsage(name).cost;
+			} else {
+				instance = evicted.remove(name);
+			}
+			usages.remove(name);
+			return instance;
+		}
+	}
+	
+	/**
+	 * Shutdown all pooled instances.
+	 */
+	public static void clear() {
+		List<Bot> all = new ArrayList<Bot>();
+		synchronized (BotPool.class) {
+			all.addAll(instances.values());
+			all.addAll(evicted.values());
+			instances.clear();
+			evicted.clear();
+			cost = 0;
+		}
+		for (Bot instance : all) {
+			try {
+				instance.shutdown();
+			} catch (Exception exception) {
+				instance.log(BotPool.class, exception);
+			}
+		}
+	}
+	
+	/**
+	 * Record the time to return a bot from the pool, or create it.
+	 */
+	public static void recordRequest(boolean hit, long time) {
+		if (hit) {
+			hits.incrementAndGet();
+			hitTime.addAndGet(time);
+		} else {
+			misses.incrementAndGet();
+			missTime.addAndGet(time);
+		}
+	}
+	
+	public static ConcurrentMap<String, Bot> getInstances() {
+		return instances;
+	}
+	
+	public static Map<String, Usage> getUsages() {
+		return usages;
+	}
+	
+	/**
+	 * Return the number of vertices cached or retained by the pooled bots.
+	 */
+	public static synchronized long getCost() {
+		return cost;
+	}
+
+	public static long getHits() {
+		return hits.get();
+	}
+
+	public static long getMisses() {
+		return misses.get();
+	}
+	
+	public static float getHitRate() {
+		long total = hits.get() + misses.get();
+		if (total == 0) {
+			return 0;
+		}
+		return (float)hits.get() / total;
+	}
+
+	/**
+	 * Return the number of hits on prefetched bots.
+	 */
+	public static long getPrefetchHits() {
+		return prefetchHits.get();
+	}
+
+	public static long getPrefetches() {
+		return prefetches.get();
+	}
+
+	public static long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * Return the average time to return a pooled bot.
+	 */
+	public static long getAverageHitTime() {
+		if (hits.get() == 0) {
+			return 0;
+		}
+		return hitTime.get() / hits.get();
+	}
+	
+	/**
+	 * Return the average time to create a bot not in the pool.
+	 */
+	public static long getAverageMissTime() {
+		if (misses.get() == 0) {
+			return 0;
+		}
+		return missTime.get() / misses.get();
+	}
+	
+	public static void resetStats() {
+		hits.set(0);
+		misses.set(0);
+		prefetchHits.set(0);
+		prefetches.set(0);
+		evictions.set(0);
+		hitTime.set(0);
+		missTime.set(0);
+	}
+	
+	public static String printStats() {
+		return "BotPool(size: " + instances.size() + " cost: " + getCost() + " hits: " + getHits() + " misses: " + getMisses()
+				+ " prefetch hits: " + getPrefetchHits() + " prefetches: " + getPrefetches() + " evictions: " + getEvictions()
+				+ " hit time: " + getAverageHitTime() + "ms miss time: " + getAverageMissTime() + "ms)";
+	}
+}
@@ -0,0 +1,235 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Bounded in-memory log of the most recent messages.
+ * Messages are recorded into preallocated entries, and are only formatted when read.
+ * Only immutable arguments are recorded as is, any other argument such as a vertex is converted to a string when it is recorded,
+ * as it is not thread safe to format it later from another thread, and the buffer must not hold on to it.
+ * The source is recorded as its class name, as formatting a memory or network source can query its size.
+ * This allows fine tracing to be enabled in production, the bot's log level only controls the formatted log.
+ */
+
+public class LogBuffer {
+	public static int DEFAULT_SIZE = 1024;
+	public static int MAX_ARGUMENTS = 4;
+	
+	protected Entry[] entries;
+	protected AtomicLong count = new AtomicLong();
+	protected volatile Level level;
+
+	/**
+	 * A recorded message, reused when the buffer wraps.
+	 */
+	protected static class Entry {
+		long time;
+		Level level;
+		String source;
+		String message;
+		String thread;
+		int size;
+		Object[] arguments = new Object[MAX_ARGUMENTS];
+		/** The arguments of a message with more than MAX_ARGUMENTS arguments. */
+		Object[] extra;
+	}
+	
+	public LogBuffer() {
+		this(DEFAULT_SIZE, Level.FINE);
+	}
+	
+	public LogBuffer(int size, Level level) {
+		this.entries = new Entry[size];
+		for (int index = 0; index < size; index++) {
+			this.entries[index] = new Entry();
+		}
+		this.level = level;
+	}
+
+	/**
+	 * Return if messages of the level are recorded.
+	 */
+	public boolean isLoggable(Level level) {
+		return this.level.intValue() <= level.intValue();
+	}
+	
+	/**
+	 * Record the message and its arguments, up to MAX_ARGUMENTS arguments.
+	 */
+	public void add(Object source, String message, Level level, int size, Object first, Object second, Object third, Object fourth) {
+		Entry entry = next();
+		synchronized (entry) {
+			set(entry, source, message, level);
+			entry.size = size;
+			entry.arguments[0] = record(first);
+			entry.arguments[1] = record(second);
+			entry.arguments[2] = record(third);
+			entry.arguments[3] = record(fourth);
+			entry.extra = null;
+		}
+	}
+	
+	/**
+	 * Record the message and its arguments.
+	 */
+	public void add(Object source, String message, Level level, Object[] arguments) {
+		Entry entry = next();
+		synchronized (entry) {
+			set(entry, source, message, level);
+			entry.size = 0;
+			Object[] extra = null;
+			if (arguments != null) {
+				extra = new Object[arguments.length];
+				for (int index = 0; index < arguments.length; index++) {
+					extra[index] = record(arguments[index]);
+				}
+			}
+			entry.extra = extra;
+		}
+	}
+	
+	protected Entry next() {
+		return this.entries[(int)(this.count.getAndIncrement() % this.entries.length)];
+	}
+	
+	/**
+	 * Return the value to record for the argument, immutable values as is, and anything else as its string.
+	 */
+	protected static Object record(Object argument) {
+		if ((argument == null) || (argument instanceof String) || (argument instanceof Number)
+					|| (argument instanceof Boolean) || (argument instanceof Character) || (argument instanceof Enum)
+					|| (argument instanceof Level)) {
+			return argument;
+		}
+		try {
+			return String.valueOf(argument);
+		} catch (Exception exception) {
+			return exception.toString();
+		}
+	}
+	
+	protected void set(Entry entry, Object source, String message, Level level) {
+		entry.time = System.currentTimeMillis();
+		entry.level = level;
+		if ((source == null) || (source instanceof String)) {
+			entry.source = (String)source;
+		} else if (source.getClass().isAnonymousClass()) {
+			entry.source = source.getClass().getName();
+		} else {
+			entry.source = source.getClass().getSimpleName();
+		}
+		entry.message = message;
+		entry.thread = Thread.currentThread().getName();
+	}
+
+	/**
+	 * Return the recorded messages formatted, oldest first.
+	 */
+	public List<String> getMessages() {
+		long count = this.count.get();
+		int size = (int)Math.min(count, this.entries.length);
+		List<String> messages = new ArrayList<String>(size);
+		for (long index = count - size; index < count; index++) {
+			Entry entry = this.entries[(int)(index % this.entries.length)];
+			synchronized (entry) {
+				if (entry.level != null) {
+					messages.add(format(entry));
+				}
+			}
+		}
+		return messages;
+	}
+	
+	protected String format(Entry entry) {
+		StringWriter writer = new StringWriter();
+		writer.write(String.valueOf(entry.time));
+		writer.write(" ");
+		writer.write(entry.level.getName());
+		writer.write(" - ");
+		writer.write(entry.thread);
+		writer.write(" -- ");
+		try {
+			writer.write(String.valueOf(entry.source));
+			writer.write(":");
+			writer.write(String.valueOf(entry.message));
+			if (entry.extra != null) {
+				for (Object argument : entry.extra) {
+					writer.write(" - " + argument);
+				}
+			} else {
+				for (int index = 0; index < entry.size; index++) {
+					writer.write(" - " + entry.arguments[index]);
+				}
+			}
+		} catch (Exception exception) {
+			writer.write(" - " + exception);
+		}
+		return writer.toString();
+	}
+	
+	/**
+	 * Remove the recorded messages, and release their arguments.
+	 */
+	public void clear() {
+		for (Entry entry : this.entries) {
+			synchronized (entry) {
+				entry.level = null;
+				entry.source = null;
+				entry.message = null;
+				entry.size = 0;
+				entry.extra = null;
+				for (int index = 0; index < MAX_ARGUMENTS; index++) {
+					entry.arguments[index] = null;
+				}
+			}
+		}
+		this.count.set(0);
+	}
+
+	/**
+	 * Return the total number of messages recorded.
+	 */
+	public long getCount() {
+		return this.count.get();
+	}
+
+	/**
+	 * Return the number of messages overwritten.
+	 */
+	public long getDropped() {
+		return Math.max(0, this.count.get() - this.entries.length);
+	}
+	
+	public int getSize() {
+		return this.entries.length;
+	}
+
+	public Level getLevel() {
+		return level;
+	}
+
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+}
@@ -20,6 +20,7 @@ package org.botlibre.aiml;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URL;
@@ -30,13 +31,22 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.botlibre.BotException;
 import org.botlibre.api.knowledge.Network;
@@ -69,6 +79,10 @@ import org.xml.sax.InputSource;
 public class AIMLParser {
 	public static int MAX_FILE_SIZE = 10000000; // 10meg
 	public static int PAGE = 100;
+	/** Number of categories saved together when parsing from a stream. */
+	public static int STREAM_PAGE = 500;
+	/** Number of threads converting templates to Self code when parsing from a stream. */
+	public static int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
 	public static int MAX_IDENTIFIER = 100;
 
 	public static Set<String> htmlTags = new HashSet<String>(Arrays.asList(new String[] {
@@ -221,6 +235,195 @@ public class AIMLParser {
 		}
 	}
 	
+	/**
+	 * A category read from the stream, with its template converted to Self code by a worker thread.
+	 */
+	protected static class StreamedCategory {
+		protected Element category;
+		protected String topic;
+		protected String templateCode;
+		protected boolean[] srai;
+	}
+	
+	/**
+	 * Parse the AIML from the stream into a vertex state machine defined in the network.
+	 * Unlike parsing the text, the document is not loaded into memory, each category is read from the stream as it is parsed,
+	 * and the file size is not limited.
+	 * The categories' templates are converted to Self code by worker threads, the vertices are created in order,
+	 * and saved every STREAM_PAGE categories.
+	 * The categories are parsed in document order, and topic names must be attributes.
+	 */
+	public Vertex parseAIML(InputStream stream, String encoding, boolean parseAsStateMachine, boolean createStates, boolean pin, boolean indexStatic,
+				Vertex stateMachine, Network network) {
+		if (encoding == null || encoding.trim().isEmpty()) {
+			encoding = "UTF-8";
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		XMLStreamReader reader = null;
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			reader = factory.createXMLStreamReader(stream, encoding);
+			DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			Map<String, Vertex> cache = new HashMap<String, Vertex>();
+			Map<String, Vertex> topics = new HashMap<String, Vertex>();
+			LinkedList<Future<StreamedCategory>> pending = new LinkedList<Future<StreamedCategory>>();
+
+			Vertex sentenceState = null;
+			if (parseAsStateMachine) {
+				if (createStates) {
+					sentenceState = createSentenceState(stateMachine, network);
+				} else {
+					sentenceState = stateMachine;
+				}
+			}
+			String topic = null;
+			int depth = 0;
+			int count = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					String name = reader.getLocalName();
+					if (depth == 2 && name.equals("topic")) {
+						topic = "";
+						for (int index = 0; index < reader.getAttributeCount(); index++) {
+							if (reader.getAttributeLocalName(index).equalsIgnoreCase("name")) {
+								topic = reader.getAttributeValue(index);
+							}
+						}
+					} else if (name.equals("category") && (depth == 2 || (depth == 3 && topic != null))) {
+						// Each category is its own document, so the workers do not share any nodes.
+						Element category = readElement(reader, builder.newDocument());
+						depth--;
+						pending.add(executor.submit(convertTemplate(category, topic, network)));
+						if (pending.size() >= (THREADS * 4)) {
+							parseCategory(pending.removeFirst().get(), topics, parseAsStateMachine, createStates, pin, indexStatic, sentenceState, cache, network);
+							count++;
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					if (depth == 2 && reader.getLocalName().equals("topic")) {
+						topic = null;
+					}
+					depth--;
+				}
+				if (count >= STREAM_PAGE) {
+					network.save();
+					network.clear();
+					topics.clear();
+					count = 0;
+					if (parseAsStateMachine) {
+						stateMachine = network.createVertex(stateMachine);
+						sentenceState = network.createVertex(sentenceState);
+					}
+				}
+			}
+			while (!pending.isEmpty()) {
+				parseCategory(pending.removeFirst().get(), topics, parseAsStateMachine, createStates, pin, indexStatic, sentenceState, cache, network);
+			}
+			network.save();
+			network.getBot().log(this, "Compiled new AIML script", Level.INFO);
+			return stateMachine;
+		} catch (Exception exception) {
+			network.getBot().log(this, exception);
+			throw new BotException("Parsing error occurred - " + exception.toString(), exception);
+		} finally {
+			executor.shutdownNow();
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (XMLStreamException ignore) {}
+			}
+			try {
+				stream.close();
+			} catch (IOException ignore) {}
+		}
+	}
+	
+	/**
+	 * Return a task that converts the category's template to Self code.
+	 * Templates with a learn tag create vertices while converting, so are converted when the category is parsed.
+	 */
+	protected Callable<StreamedCategory> convertTemplate(final Element category, final String topic, final Network network) {
+		return new Callable<StreamedCategory>() {
+			public StreamedCategory call() {
+				StreamedCategory parsed = new StreamedCategory();
+				parsed.category = category;
+				parsed.topic = topic;
+				if (category.getElementsByTagName("learn").getLength() > 0) {
+					return parsed;
+				}
+				List<Element> patterns = getLocalElementsByTagName("pattern", category);
+				List<Element> templates = getLocalElementsByTagName("template", category);
+				if (patterns.isEmpty() || templates.isEmpty()) {
+					return parsed;
+				}
+				try {
+					String text = getPattern(patterns.get(0), network).toLowerCase();
+					boolean multiStar = isPattern(text) && isMultiStar(text);
+					boolean[] srai = new boolean[1];
+					parsed.templateCode = getTemplate(templates.get(0), false, multiStar, srai, false, false, false, network);
+					parsed.srai = srai;
+				} catch (RuntimeException exception) {
+					// Converted again when parsed, to report the error.
+					parsed.templateCode = null;
+				}
+				return parsed;
+			}
+		};
+	}
+	
+	protected void parseCategory(StreamedCategory parsed, Map<String, Vertex> topics, boolean parseAsStateMachine, boolean createStates, boolean pin,
+				boolean indexStatic, Vertex sentenceState, Map<String, Vertex> cache, Network network) {
+		Vertex topicFilter = null;
+		if (parsed.topic != null) {
+			topicFilter = topics.get(parsed.topic);
+			if (topicFilter == null) {
+				if (!isPattern(parsed.topic)) {
+					topicFilter = network.createSentence(parsed.topic);
+				} else {
+					topicFilter = network.createPattern(parsed.topic, getSelfCompiler());
+				}
+				network.getBot().log(this, "Topic", Level.INFO, topicFilter);
+				topics.put(parsed.topic, topicFilter);
+			}
+		}
+		parseCategory(parsed.category, topicFilter, parseAsStateMachine, createStates, pin, indexStatic, sentenceState, cache,
+				parsed.templateCode, parsed.srai, network);
+	}
+	
+	/**
+	 * Read the element the stream is positioned at into a DOM element, the stream is left at the element's end.
+	 */
+	protected Element readElement(XMLStreamReader reader, Document document) throws XMLStreamException {
+		Element root = createElement(reader, document);
+		document.appendChild(root);
+		Element current = root;
+		while (current != null) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				Element child = createElement(reader, document);
+				current.appendChild(child);
+				current = child;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				Node parent = current.getParentNode();
+				current = (parent instanceof Element) ? (Element)parent : null;
+			} else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+				current.appendChild(document.createTextNode(reader.getText()));
+			}
+		}
+		return root;
+	}
+	
+	protected Element createElement(XMLStreamReader reader, Document document) {
+		Element element = document.createElement(reader.getLocalName());
+		for (int index = 0; index < reader.getAttributeCount(); index++) {
+			element.setAttribute(reader.getAttributeLocalName(index), reader.getAttributeValue(index));
+		}
+		return element;
+	}
+	
 	public Vertex createSentenceState(Vertex stateMachine, Network network) {
 		Vertex sentenceState = null;
 		// Get first case that gets sentence from input.
@@ -280,9 +483,38 @@ public class AIMLParser {
 				|| text.indexOf('{') != -1 || text.indexOf('}') != -1 || text.indexOf('[') != -1 || text.indexOf(']') != -1);
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Return if the pattern has more than one wildcard.
+	 */
+	public boolean isMultiStar(String text) {
+		int underscoreIndex = text.indexOf('_');
+		int poundIndex = text.indexOf('#');
+		int starIndex = text.indexOf('*');
+		int hatIndex = text.indexOf('^');
+		if (underscoreIndex != -1) {
+			return (text.indexOf('_', underscoreIndex + 1) != -1) || starIndex != -1 || poundIndex != -1 || hatIndex != -1;
+		} else if (starIndex != -1) {
+			return (text.indexOf('*', starIndex + 1) != -1) || underscoreIndex != -1 || poundIndex != -1 || hatIndex != -1;
+		} else if (poundIndex != -1) {
+			return (text.indexOf('#', poundIndex + 1) != -1) || underscoreIndex != -1 || starIndex != -1 || hatIndex != -1;
+		} else if (hatIndex != -1) {
+			return (text.indexOf('^', hatIndex + 1) != -1) || underscoreIndex != -1 || starIndex != -1 || poundIndex != -1;
+		}
+		return false;
+	}
+
 	public void parseCategory(Element category, Vertex topic, boolean parseAsStateMachine, boolean createStates, boolean pin, boolean indexStatic,
 				Vertex sentenceState, Map<String, Vertex> cache, Network network) {
+		parseCategory(category, topic, parseAsStateMachine, createStates, pin, indexStatic, sentenceState, cache, null, null, network);
+	}
+
+	/**
+	 * Parse the category.
+	 * The template's Self code can be given if it was already converted, otherwise it is converted from the template element.
+	 */
+	@SuppressWarnings("unchecked")
+	public void parseCategory(Element category, Vertex topic, boolean parseAsStateMachine, boolean createStates, boolean pin, boolean indexStatic,
+				Vertex sentenceState, Map<String, Vertex> cache, String templateCode, boolean[] templateSrai, Network network) {
 		checkSupportedChildren(category, categoryChildren, network);
 		// <pattern>
 		List<Element> patterns = getLocalElementsByTagName("pattern", category);
@@ -301,9 +533,6 @@ public class AIMLParser {
 		boolean multiStar = false;
 		boolean isDefault = false;
 		int underscoreIndex = text.indexOf('_');
-		int poundIndex = text.indexOf('#');
-		int starIndex = text.indexOf('*');
-		int hatIndex = text.indexOf('^');
 		boolean isDollarPattern = text.indexOf('$') != -1;
 		if (!isPattern(text)) {
 			question = network.createSentence(text);
@@ -322,22 +551,8 @@ public class AIMLParser {
 			isPattern = true;
 			if (underscoreIndex != -1) {
 				is_Pattern = true;
-				if ((text.indexOf('_', underscoreIndex + 1) != -1) || starIndex != -1 || poundIndex != -1 || hatIndex != -1)  {
-					multiStar = true;
-				}
-			} else if (starIndex != -1) {
-				if ((text.indexOf('*', starIndex + 1) != -1) || underscoreIndex != -1 || poundIndex != -1 || hatIndex != -1)  {
-					multiStar = true;
-				}				
-			} else if (poundIndex != -1) {
-				if ((text.indexOf('#', poundIndex + 1) != -1) || underscoreIndex != -1 || starIndex != -1 || hatIndex != -1)  {
-					multiStar = true;
-				}				
-			} else if (hatIndex != -1) {
-				if ((text.indexOf('^', hatIndex + 1) != -1) || underscoreIndex != -1 || starIndex != -1 || poundIndex != -1)  {
-					multiStar = true;
-				}				
 			}
+			multiStar = isMultiStar(text);
 			if (text.startsWith("*")) {
 				isStarStartPattern = true;
 			}
@@ -398,8 +613,12 @@ public class AIMLParser {
 				equation.addRelationship(Primitive.THAT, that);
 			}
 		}
-		boolean[] srai = new boolean[1];
-		String templateText = getTemplate(template, false, multiStar, srai, false, false, false, network);
+		boolean[] srai = templateSrai;
+		String templateText = templateCode;
+		if (templateText == null) {
+			srai = new boolean[1];
+			templateText = getTemplate(template, false, multiStar, srai, false, false, false, network);
+		}
 		boolean isTemplate = templateText.startsWith("Template(");
 		Vertex response = null;
 		if (isTemplate) {
@@ -53,6 +53,12 @@ public interface Memory {
 	 */
 	Network newMemory();
 
+	/**
+	 * Return an isolated transactional memory that commits without locking the memory.
+	 * Used to process conversations concurrently, any duplicate new data is merged on commit.
+	 */
+	Network newIsolatedMemory();
+
 	/**
 	 * Represents the persisted memory (or cache there of).
 	 */
@@ -64,6 +70,12 @@ public interface Memory {
 	 * The changes should also be persisted, as the long term should always just be a cache of the storage.
 	 */
 	void save() throws MemoryStorageException;
+	
+	/**
+	 * Save the network's changes.
+	 * The memory may defer the save of the short term memory, such as in write-behind mode.
+	 */
+	void save(Network network) throws MemoryStorageException;
 		
 	/**
 	 * Restores the memory from a persisted state.
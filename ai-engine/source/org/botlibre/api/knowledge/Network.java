@@ -18,6 +18,7 @@
 package org.botlibre.api.knowledge;
 
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -199,6 +200,18 @@ public interface Network {
 	 */
 	Vertex findByData(Object data);
 	
+	/**
+	 * Return the vertices with the given data values, keyed by data.
+	 * Allows the words of a sentence to be found together.
+	 */
+	Map<Object, Vertex> findAllByData(Collection<?> data);
+	
+	/**
+	 * Return all of the words with the same case folded text, including the text.
+	 * Allows the case variants of a word to be found together.
+	 */
+	List<Vertex> findAllByNormalizedData(String text);
+	
 	/**
 	 * Return the lob data.
 	 */
@@ -27,9 +27,13 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 
 import org.botlibre.Bot;
@@ -38,6 +42,7 @@ import org.botlibre.api.knowledge.Network;
 import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.self.SelfByteCodeCompiler;
+import org.botlibre.self.SelfClosureCompiler;
 import org.botlibre.self.SelfCompiler;
 import org.botlibre.self.SelfParseException;
 import org.botlibre.sense.text.TextEntry;
@@ -68,6 +73,12 @@ public abstract class AbstractNetwork implements Network, Cloneable {
 	protected boolean isShortTerm;
 	
 	protected Map<Object, Vertex> verticiesByData = null;
+	/** Data found to not exist by findAllByData while parsing, so is not looked up again. */
+	protected Set<Object> missingData;
+	/** Number of data lookups that queried the database, used to measure the queries per message. */
+	protected int dataQueryCount;
+	/** Closures compiled from the temporary decompiled expressions in this network, keyed on the expression. */
+	protected Map<Vertex, Object> compiled;
 	
 	/** Back reference to Bot instance. **/
 	protected Bot bot;
@@ -193,22 +204,7 @@ public abstract class AbstractNetwork implements Network, Cloneable {
 		Vertex similar = null;
 		if ((vertex == null) && (data instanceof String)) {
 			// Perform case insensitive lookup, and associate the same meaning.
-			String word = ((String)data).toLowerCase();
-			if (!word.equals(data)) {
-				similar = findByData(word);
-			}
-			if (similar == null) {
-				word = Utils.capitalize((String)data);
-				if (!word.equals(data)) {
-					similar = findByData(word);
-				}
-			}
-			if (similar == null) {
-				word = ((String)data).toUpperCase();
-				if (!word.equals(data)) {
-					similar = findByData(word);
-				}
-			}
+			similar = findCaseVariant((String)data, findAllByNormalizedData((String)data));
 			if (similar != null) {
 				meaning = similar.getRelationship(Primitive.MEANING);
 			}
@@ -520,6 +516,25 @@ public abstract class AbstractNetwork implements Network, Cloneable {
 			word.addRelationship(Primitive.MEANING, primitive);
 			return word;
 		}
+		boolean resolved = false;
+		if (wordsText.size() > 1) {
+			List<String> allText = new ArrayList<String>(wordsText);
+			allText.add(text);
+			resolved = resolveWords(allText);
+		}
+		try {
+			return createCompoundWord(text, wordsText);
+		} finally {
+			if (resolved) {
+				this.missingData = null;
+			}
+		}
+	}
+	
+	/**
+	 * Create the word, and its words if a compound word.
+	 */
+	protected Vertex createCompoundWord(String text, List<String> wordsText) {
 		Vertex compoundWord = createVertex(text);
 		// Check if is a compound word.
 		if (wordsText.size() > 1) {
@@ -1046,10 +1061,159 @@ public abstract class AbstractNetwork implements Network, Cloneable {
 		return fragment;
 	}
 	
+	/**
+	 * Return the vertices with the given data values, keyed by data.
+	 * By default each value is found individually.
+	 */
+	public synchronized Map<Object, Vertex> findAllByData(Collection<?> data) {
+		Map<Object, Vertex> vertices = new HashMap<Object, Vertex>();
+		for (Object value : data) {
+			Vertex vertex = findByData(value);
+			if (vertex != null) {
+				vertices.put(value, vertex);
+			}
+		}
+		return vertices;
+	}
+	
+	/**
+	 * Return all of the case variants of the text, including the text.
+	 * By default the lower case, capitalized, and upper case variants are found individually.
+	 */
+	public synchronized List<Vertex> findAllByNormalizedData(String text) {
+		List<Vertex> vertices = new ArrayList<Vertex>();
+		if (text == null) {
+			return vertices;
+		}
+		Set<String> variants = new LinkedHashSet<String>();
+		variants.add(text);
+		variants.add(text.toLowerCase());
+		variants.add(Utils.capitalize(text));
+		variants.add(text.toUpperCase());
+		for (String variant : variants) {
+			Vertex vertex = findByData(variant);
+			if (vertex != null) {
+				vertices.add(vertex);
+			}
+		}
+		return vertices;
+	}
+	
+	/**
+	 * Return the case variant of the text to take the meaning from,
+	 * preferring the lower case, then capitalized, then upper case word.
+	 */
+	public Vertex findCaseVariant(String text, List<Vertex> variants) {
+		if (variants.isEmpty()) {
+			return null;
+		}
+		Map<Object, Vertex> variantsByData = new HashMap<Object, Vertex>();
+		for (Vertex variant : variants) {
+			if (!text.equals(variant.getData())) {
+				variantsByData.put(variant.getData(), variant);
+			}
+		}
+		Vertex similar = variantsByData.get(text.toLowerCase());
+		if (similar == null) {
+			similar = variantsByData.get(Utils.capitalize(text));
+		}
+		if (similar == null) {
+			similar = variantsByData.get(text.toUpperCase());
+		}
+		return similar;
+	}
+	
+	/**
+	 * Find the words and their case variants together before the words are created.
+	 * The words that do not exist are recorded as missing, so are not looked up again until the parse is done.
+	 * Return true if the words were resolved, false if already resolving an outer parse.
+	 */
+	protected boolean resolveWords(Collection<String> words) {
+		if (this.missingData != null) {
+			return false;
+		}
+		Set<Object> variants = new LinkedHashSet<Object>();
+		for (String word : words) {
+			if (word.length() > MAX_TEXT) {
+				continue;
+			}
+			variants.add(word);
+			variants.add(word.toLowerCase());
+			variants.add(Utils.capitalize(word));
+			variants.add(word.toUpperCase());
+		}
+		if (variants.size() <= 1) {
+			return false;
+		}
+		Map<Object, Vertex> found = findAllByData(variants);
+		Set<Object> missing = new HashSet<Object>(variants);
+		missing.removeAll(found.keySet());
+		this.missingData = missing;
+		return true;
+	}
+	
+	/**
+	 * Return the compiled closure for the temporary expression, or null.
+	 */
+	public synchronized Object getCompiled(Vertex expression) {
+		if (this.compiled == null) {
+			return null;
+		}
+		return this.compiled.get(expression);
+	}
+
+	/**
+	 * Cache the compiled closure for the temporary expression.
+	 * The expressions are discarded with the network, so the cache is cleared if it grows too large.
+	 */
+	public synchronized void putCompiled(Vertex expression, Object closure) {
+		if (this.compiled == null) {
+			this.compiled = new IdentityHashMap<Vertex, Object>();
+		} else if (this.compiled.size() >= SelfClosureCompiler.MAX_CLOSURES) {
+			this.compiled.clear();
+		}
+		this.compiled.put(expression, closure);
+	}
+	
+	public int getDataQueryCount() {
+		return dataQueryCount;
+	}
+	
+	public void incrementDataQueryCount() {
+		this.dataQueryCount++;
+	}
+	
+	public void resetDataQueryCount() {
+		this.dataQueryCount = 0;
+	}
+	
 	/**
 	 * Tokenize the fragment into its words and create a vertex representation.
 	 */
 	public void parseFragment(Vertex fragment, String text, boolean generated, boolean whitespace) {
+		List<String> wordsText = new ArrayList<String>();
+		TextStream stream = new TextStream(text);
+		while (!stream.atEnd()) {
+			String wordText = stream.nextWord();
+			if (wordText == null) {
+				break;
+			}
+			wordsText.add(wordText);
+		}
+		boolean resolved = resolveWords(wordsText);
+		try {
+			parseFragmentWords(fragment, text, generated, whitespace);
+		} finally {
+			if (resolved) {
+				this.missingData = null;
+			}
+		}
+	}
+	
+	/**
+	 * Create the vertices for the words of the fragment.
+	 */
+	protected void parseFragmentWords(Vertex fragment, String text, boolean generated, boolean whitespace) {
 		boolean learnGrammar = true;
 		Language language = getBot().mind().getThought(Language.class);
 		if (language != null) {
@@ -1263,6 +1427,41 @@ public abstract class AbstractNetwork implements Network, Cloneable {
 	protected void log(String message, Level level, Object... arguments) {
 		getBot().log(this, message, level, arguments);
 	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	protected void log(String message, Level level) {
+		getBot().log(this, message, level);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	protected void log(String message, Level level, Object argument) {
+		getBot().log(this, message, level, argument);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	protected void log(String message, Level level, Object first, Object second) {
+		getBot().log(this, message, level, first, second);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	protected void log(String message, Level level, Object first, Object second, Object third) {
+		getBot().log(this, message, level, first, second, third);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	protected void log(String message, Level level, Object first, Object second, Object third, Object fourth) {
+		getBot().log(this, message, level, first, second, third, fourth);
+	}
 
 	/**
 	 * Return the associated Bot instance.
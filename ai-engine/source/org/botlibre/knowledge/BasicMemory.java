@@ -45,6 +45,8 @@ public class BasicMemory implements Memory {
 	protected Network longTermMemory;
 	protected List<MemoryEventListener> listeners;
 	protected Map<String, String> properties;
+	/** Decompiled Self byte-code, shared by all messages processed by this memory. */
+	protected ByteCodeCache byteCodeCache = new ByteCodeCache();
 	
 	public BasicMemory() {
 		this.activeMemory = new ArrayList<Vertex>();
@@ -88,6 +90,14 @@ public class BasicMemory implements Memory {
 		return this.properties.remove(property);
 	}
 
+	public ByteCodeCache getByteCodeCache() {
+		return byteCodeCache;
+	}
+
+	public void setByteCodeCache(ByteCodeCache byteCodeCache) {
+		this.byteCodeCache = byteCodeCache;
+	}
+
 	public Map<String, String> getProperties() {
 		return properties;
 	}
@@ -169,6 +179,14 @@ public class BasicMemory implements Memory {
 		return new BasicNetwork(getLongTermMemory());
 	}
 
+	/**
+	 * Return an isolated transactional memory that commits without locking the memory.
+	 * Only a database memory supports concurrent commits, so by default this is the same as newMemory().
+	 */
+	public Network newIsolatedMemory() {
+		return newMemory();
+	}
+
 	/**
 	 * Represents the persisted memory (or cache there of).
 	 */
@@ -202,6 +220,13 @@ public class BasicMemory implements Memory {
 		getLongTermMemory().merge(getShortTermMemory());
 		getShortTermMemory().resume();
 	}
+	
+	/**
+	 * Save the network's changes.
+	 */
+	public void save(Network network) {
+		network.save();
+	}
 		
 	/**
 	 * This implementation does not support persistence.
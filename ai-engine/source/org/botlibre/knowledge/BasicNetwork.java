@@ -142,6 +142,7 @@ public class BasicNetwork extends AbstractNetwork implements Serializable {
 		this.verticies = new HashSet<Vertex>();
 		this.verticiesById = new HashMap<Number, Vertex>();
 		this.verticiesByData = new HashMap<Object, Vertex>();
+		this.compiled = null;
 	}
 
 	/**
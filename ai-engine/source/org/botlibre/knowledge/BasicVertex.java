@@ -20,12 +20,12 @@ package org.botlibre.knowledge;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
-import java.lang.reflect.Method;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URL;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -37,6 +37,7 @@ import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
@@ -50,8 +51,10 @@ import org.botlibre.api.knowledge.Path;
 import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.api.knowledge.VertexIterator;
+import org.botlibre.self.SelfCallSite;
 import org.botlibre.self.SelfDecompiler;
 import org.botlibre.self.SelfExecutionException;
+import org.botlibre.self.SelfInterpreter;
 import org.botlibre.sense.service.RemoteService;
 import org.botlibre.thought.forgetfulness.Forgetfulness;
 import org.botlibre.thought.language.Language;
@@ -72,6 +75,10 @@ public class BasicVertex implements Vertex, Serializable {
 	public static int SMALL = 10;
 	public static int MEDIUM = 50;
 	public static int LARGE = 100;
+	/** Store the relationships of each type in a compact map, instead of a HashMap. */
+	public static boolean COMPACT_RELATIONSHIPS = true;
+	/** Strip accents from the normalized data, so words also match without their accents. */
+	public static boolean STRIP_ACCENTS = false;
 
 	private static final long serialVersionUID = 1L;
 	
@@ -94,6 +101,7 @@ public class BasicVertex implements Vertex, Serializable {
 	protected boolean isDirty;
 	protected long groupId;
 	protected boolean isTemporary;
+	protected int referenceCount;
 	
 	public BasicVertex() {
 		this.accessCount = 0;
@@ -134,6 +142,21 @@ public class BasicVertex implements Vertex, Serializable {
 		this.groupId = groupId;
 	}
 
+	/**
+	 * Return the number of relationships that reference the vertex as their target, type, or meta.
+	 * The count is maintained by the database as relationships are inserted and deleted, and is not updated in memory.
+	 */
+	public int getReferenceCount() {
+		return referenceCount;
+	}
+
+	/**
+	 * The reference count is maintained by the database.
+	 */
+	protected void setReferenceCount(int referenceCount) {
+		this.referenceCount = referenceCount;
+	}
+
 	/**
 	 * PERF: Used to check response without accessing relationships.
 	 */
@@ -478,10 +501,14 @@ public class BasicVertex implements Vertex, Serializable {
 			exception.printStackTrace();
 			throw exception;
 		}
-		// Stored as map of maps.
+		// Stored as map of compact maps.
 		Map<Relationship, Relationship> relationships = getRelationships().get(relationship.getType());
 		if (relationships == null) {
-			relationships = new HashMap<Relationship, Relationship>();
+			if (COMPACT_RELATIONSHIPS) {
+				relationships = new RelationshipMap();
+			} else {
+				relationships = new HashMap<Relationship, Relationship>();
+			}
 			getRelationships().put(relationship.getType(), relationships);
 		}
 		// Check if already has the relationship.
@@ -637,7 +664,7 @@ public class BasicVertex implements Vertex, Serializable {
 	 */
 	public Map<Vertex, Map<Relationship, Relationship>> getRelationships() {
 		if (this.relationships == null) {
-			this.relationships = new HashMap<Vertex, Map<Relationship, Relationship>>();
+			this.relationships = new HashMap<Vertex, Map<Relationship, Relationship>>(8);
 			// Lazy init from parent.
 			if (this.original != null) {
 				for (Iterator<Relationship> iterator = this.original.allRelationships(); iterator.hasNext(); ) {
@@ -1779,7 +1806,6 @@ public class BasicVertex implements Vertex, Serializable {
 	 * i.e. CALL #push ON #Context WITH :thing1
 	 * Call out to the named sense, arguments and return value must be vertices.
 	 */
-	@SuppressWarnings("rawtypes")
 	public Vertex applyCALL(List<Relationship> arguments, Map<Vertex, Vertex> variables, Network network) throws Exception {
 		String methodName = ((Primitive)arguments.get(0).getTarget().applyQuotient(variables, network).getData()).getIdentity();
 		String senseName = ((Primitive)arguments.get(1).getTarget().applyQuotient(variables, network).getData()).getIdentity();
@@ -1793,21 +1819,19 @@ public class BasicVertex implements Vertex, Serializable {
 		if (source == null) {
 			throw new SelfExecutionException(this, "Missing calling sense, thought, or tool.");
 		}
-		int size = arguments.size() - 1;
-		Object[] methodArguments = new Object[size];
-		Class[] argumentTypes = new Class[size];
-		argumentTypes[0] = Vertex.class;
-		methodArguments[0] = this;
+		Vertex vertex = this;
 		if (getNetwork() != network) {
-			methodArguments[0] = network.createVertex(this);			
+			vertex = network.createVertex(this);			
 		}
+		Vertex[] values = new Vertex[arguments.size() - 2];
 		for (int index = 2; index < arguments.size(); index++) {
-			Vertex argument = arguments.get(index).getTarget().applyQuotient(variables, network);
-			methodArguments[index - 1] = argument;
-			argumentTypes[index - 1] = Vertex.class;
+			values[index - 2] = arguments.get(index).getTarget().applyQuotient(variables, network);
+		}
+		SelfCallSite site = SelfInterpreter.getInterpreter().getCallSite(source.getClass(), methodName, values.length);
+		if (site.isMissing()) {
+			throw new SelfExecutionException(this, "Missing function: " + methodName + " on: " + senseName);
 		}
-		Method method = source.getClass().getMethod(methodName, argumentTypes);
-		Vertex result = (Vertex)method.invoke(source, methodArguments);
+		Vertex result = site.invoke(source, vertex, values);
 		if (result == null) {
 			result = network.createVertex(Primitive.NULL);
 		} else {
@@ -2684,9 +2708,13 @@ public class BasicVertex implements Vertex, Serializable {
 	 * Return all of the relationships of the type, sorted by index.
 	 */
 	public synchronized List<Relationship> orderedRelationships(Vertex relationshipType) {
-		if (getRelationships().get(relationshipType) == null) {
+		Map<Relationship, Relationship> relationships = getRelationships().get(relationshipType);
+		if (relationships == null) {
 			return null;
 		}
+		if (relationships instanceof RelationshipMap) {
+			return ((RelationshipMap)relationships).sortedValues();
+		}
 		List<Relationship> list = new ArrayList<Relationship>(getRelationships(relationshipType));
 		Collections.sort(list);
 		return list;
@@ -4118,6 +4146,36 @@ public class BasicVertex implements Vertex, Serializable {
 	public String getDataValue() {
 		return convertDataValue(this.data);
 	}
+
+	/**
+	 * Return the case folded string data, indexed to find all of the case variants of a word in one query.
+	 */
+	public String getNormalizedData() {
+		if (!(this.data instanceof String)) {
+			return null;
+		}
+		return normalize((String)this.data);
+	}
+
+	/**
+	 * The normalized data is derived from the data.
+	 */
+	protected void setNormalizedData(String value) {
+	}
+
+	/**
+	 * Return the text lower cased, and without accents if STRIP_ACCENTS is set.
+	 */
+	public static String normalize(String text) {
+		if (text == null) {
+			return null;
+		}
+		String normalized = text.toLowerCase(Locale.ROOT);
+		if (STRIP_ACCENTS) {
+			normalized = Normalizer.normalize(normalized, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+		}
+		return normalized;
+	}
 	
 	@SuppressWarnings("unchecked")
 	protected void setDataValue(String value) {
@@ -4169,6 +4227,15 @@ public class BasicVertex implements Vertex, Serializable {
 		}
 	}
 	
+	/**
+	 * Set the data from its stored data-type and value, as when loaded from the database.
+	 * Used to load a vertex from a snapshot.
+	 */
+	public void loadData(String type, String value) {
+		this.dataType = type;
+		setDataValue(value);
+	}
+
 	/**
 	 * Set the internal data-type of the vertex.
 	 */
@@ -4284,7 +4351,7 @@ public class BasicVertex implements Vertex, Serializable {
 		return this.allRelationships;
 	}
 
-	protected void setAllRelationships(Collection<Relationship> allRelationships) {
+	public void setAllRelationships(Collection<Relationship> allRelationships) {
 		this.allRelationships = allRelationships;
 		this.relationships = null;
 	}
@@ -0,0 +1,135 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of decompiled Self byte-code keyed on the id of the vertex that owns it.
+ * Each tree records the BinaryData id it was decompiled from, so a rewritten vertex misses and replaces its entry.
+ * The trees are independent of any network, each message builds its own copy, so per-message state is not shared.
+ * Records the hit rate and the size of the byte-code retained.
+ */
+public class ByteCodeCache {
+	public static int MAX_SIZE = 1000;
+
+	protected int maxSize = MAX_SIZE;
+	protected long hits;
+	protected long misses;
+	protected long bytes;
+	protected Map<Long, DecompiledByteCode> cache = new LinkedHashMap<Long, DecompiledByteCode>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, DecompiledByteCode> eldest) {
+			if (size() > maxSize) {
+				bytes = bytes - eldest.getValue().getSize();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	public ByteCodeCache() {
+	}
+
+	/**
+	 * Return the decompiled tree of the vertex's byte-code version, or null.
+	 */
+	public synchronized DecompiledByteCode get(long id, long version) {
+		DecompiledByteCode tree = this.cache.get(id);
+		if ((tree == null) || (tree.getVersion() != version)) {
+			this.misses++;
+			return null;
+		}
+		this.hits++;
+		return tree;
+	}
+
+	/**
+	 * Cache the decompiled tree of the vertex's byte-code, replacing any older version.
+	 */
+	public synchronized void put(long id, DecompiledByteCode tree) {
+		DecompiledByteCode old = this.cache.put(id, tree);
+		if (old != null) {
+			this.bytes = this.bytes - old.getSize();
+		}
+		this.bytes = this.bytes + tree.getSize();
+	}
+
+	/**
+	 * Remove the vertex's byte-code from the cache, it has been deleted.
+	 */
+	public synchronized void invalidate(long id) {
+		DecompiledByteCode old = this.cache.remove(id);
+		if (old != null) {
+			this.bytes = this.bytes - old.getSize();
+		}
+	}
+	public synchronized void clear() {
+		this.cache.clear();
+		this.bytes = 0;
+	}
+
+	public synchronized int size() {
+		return this.cache.size();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the percentage of lookups found in the cache.
+	 */
+	public synchronized float getHitRate() {
+		long total = this.hits + this.misses;
+		if (total == 0) {
+			return 0;
+		}
+		return (this.hits * 100f) / total;
+	}
+
+	/**
+	 * Return the size of the byte-code of all cached trees.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized void resetStats() {
+		this.hits = 0;
+		this.misses = 0;
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + size() + ", " + getHitRate() + "%, " + getBytes() + " bytes)";
+	}
+}
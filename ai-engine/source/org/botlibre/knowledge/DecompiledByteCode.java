@@ -0,0 +1,174 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+
+/**
+ * A decompiled Self expression, function or state, kept independent of any network.
+ * The temporary vertices of the tree are numbered, and the stored vertices they reference are kept by id,
+ * so the tree can be rebuilt in each message's network without reading or parsing the byte-code.
+ * A reference is the negated node number plus one for a temporary vertex, the id for a stored vertex, or 0 for none.
+ */
+public class DecompiledByteCode {
+	/** The id of the BinaryData the tree was decompiled from. */
+	protected long version;
+	/** The size of the byte-code the tree was decompiled from. */
+	protected int size;
+	protected long root;
+	protected String[] names;
+	/** The type, target, meta and index of each relationship of each node. */
+	protected long[][] relationships;
+	protected float[][] correctness;
+
+	/**
+	 * Record the tree of temporary vertices from the root.
+	 * Return null if the tree references a vertex that has not been stored, as it cannot be found by id.
+	 */
+	public static DecompiledByteCode record(Vertex root, long version, int size) {
+		Map<Vertex, Integer> nodes = new IdentityHashMap<Vertex, Integer>();
+		List<Vertex> vertices = new ArrayList<Vertex>();
+		DecompiledByteCode tree = new DecompiledByteCode();
+		tree.version = version;
+		tree.size = size;
+		tree.root = reference(root, nodes, vertices);
+		if (tree.root == 0) {
+			return null;
+		}
+		List<long[]> relationships = new ArrayList<long[]>();
+		List<float[]> correctness = new ArrayList<float[]>();
+		// The list grows as new temporary vertices are referenced.
+		for (int index = 0; index < vertices.size(); index++) {
+			Vertex vertex = vertices.get(index);
+			List<Relationship> all = new ArrayList<Relationship>();
+			Iterator<Relationship> iterator = vertex.allRelationships();
+			while (iterator.hasNext()) {
+				all.add(iterator.next());
+			}
+			long[] references = new long[all.size() * 4];
+			float[] values = new float[all.size()];
+			for (int position = 0; position < all.size(); position++) {
+				Relationship relationship = all.get(position);
+				long type = reference(relationship.getType(), nodes, vertices);
+				long target = reference(relationship.getTarget(), nodes, vertices);
+				long meta = 0;
+				if (relationship.getMeta() != null) {
+					meta = reference(relationship.getMeta(), nodes, vertices);
+					if (meta == 0) {
+						return null;
+					}
+				}
+				if ((type == 0) || (target == 0)) {
+					return null;
+				}
+				references[position * 4] = type;
+				references[position * 4 + 1] = target;
+				references[position * 4 + 2] = meta;
+				references[position * 4 + 3] = relationship.getIndex();
+				values[position] = relationship.getCorrectness();
+			}
+			relationships.add(references);
+			correctness.add(values);
+		}
+		tree.names = new String[vertices.size()];
+		for (int index = 0; index < vertices.size(); index++) {
+			tree.names[index] = vertices.get(index).getName();
+		}
+		tree.relationships = relationships.toArray(new long[relationships.size()][]);
+		tree.correctness = correctness.toArray(new float[correctness.size()][]);
+		return tree;
+	}
+
+	protected static long reference(Vertex vertex, Map<Vertex, Integer> nodes, List<Vertex> vertices) {
+		if (vertex.isTemporary()) {
+			Integer node = nodes.get(vertex);
+			if (node == null) {
+				node = vertices.size();
+				nodes.put(vertex, node);
+				vertices.add(vertex);
+			}
+			return -(node + 1);
+		}
+		if (vertex.getId() == null) {
+			return 0;
+		}
+		return vertex.getId();
+	}
+
+	/**
+	 * Build the tree's temporary vertices in the network, and return the root.
+	 * Relationships to stored vertices that no longer exist are skipped, as when parsing the byte-code.
+	 */
+	public Vertex create(Network network) {
+		Vertex[] vertices = new Vertex[this.names.length];
+		for (int index = 0; index < vertices.length; index++) {
+			vertices[index] = network.createTemporyVertex();
+			if (this.names[index] != null) {
+				vertices[index].setName(this.names[index]);
+			}
+		}
+		for (int index = 0; index < vertices.length; index++) {
+			long[] references = this.relationships[index];
+			for (int position = 0; position < this.correctness[index].length; position++) {
+				Vertex type = resolve(references[position * 4], vertices, network);
+				Vertex target = resolve(references[position * 4 + 1], vertices, network);
+				if ((type == null) || (target == null)) {
+					continue;
+				}
+				Relationship relationship = new BasicRelationship(vertices[index], type, target);
+				relationship.setIndex((int)references[position * 4 + 3]);
+				relationship.setCorrectness(this.correctness[index][position]);
+				Vertex meta = resolve(references[position * 4 + 2], vertices, network);
+				if (meta != null) {
+					relationship.setMeta(meta);
+				}
+				vertices[index].addRelationship(relationship, true);
+			}
+		}
+		return resolve(this.root, vertices, network);
+	}
+
+	protected Vertex resolve(long reference, Vertex[] vertices, Network network) {
+		if (reference < 0) {
+			return vertices[(int)(-reference - 1)];
+		} else if (reference == 0) {
+			return null;
+		}
+		return network.findById(reference);
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.version + ", " + this.names.length + " vertices)";
+	}
+}
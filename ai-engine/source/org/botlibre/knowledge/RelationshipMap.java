@@ -0,0 +1,366 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.botlibre.api.knowledge.Relationship;
+
+/**
+ * Compact map of the relationships of a vertex of one type.
+ * The relationship is both the key and the value, so they are stored once in an open addressing table,
+ * instead of a HashMap entry per relationship.
+ * Also keeps the relationships sorted by index, the sorted view is reused until the relationships are changed,
+ * or an index is changed.
+ * Not thread safe, the vertex synchronizes access.
+ */
+public class RelationshipMap extends AbstractMap<Relationship, Relationship> implements Serializable {
+	private static final long serialVersionUID = 1L;
+	protected static final int MIN_CAPACITY = 4;
+	/** Marks a removed slot, so removes do not move the other relationships. */
+	protected static final Relationship REMOVED = new BasicRelationship();
+
+	protected transient Relationship[] table;
+	protected transient int size;
+	/** Used and removed slots. */
+	protected transient int used;
+	protected transient int modCount;
+	protected transient Relationship[] sorted;
+	protected transient int sortedModCount = -1;
+
+	public RelationshipMap() {
+		this.table = new Relationship[MIN_CAPACITY];
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	protected int indexOf(Object key) {
+		Relationship[] table = this.table;
+		int mask = table.length - 1;
+		int index = spread(key.hashCode()) & mask;
+		while (true) {
+			Relationship relationship = table[index];
+			if (relationship == null) {
+				return -1;
+			}
+			if (relationship != REMOVED && (relationship == key || relationship.equals(key))) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	protected static int spread(int hashCode) {
+		return hashCode ^ (hashCode >>> 16);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof Relationship)) {
+			return false;
+		}
+		return indexOf(key) != -1;
+	}
+
+	@Override
+	public Relationship get(Object key) {
+		if (!(key instanceof Relationship)) {
+			return null;
+		}
+		int index = indexOf(key);
+		if (index == -1) {
+			return null;
+		}
+		return this.table[index];
+	}
+
+	/**
+	 * Add the relationship, the key and value must be the same relationship.
+	 */
+	@Override
+	public Relationship put(Relationship key, Relationship value) {
+		int index = indexOf(key);
+		if (index != -1) {
+			Relationship old = this.table[index];
+			this.table[index] = value;
+			if (old != value) {
+				this.sorted = null;
+			}
+			return old;
+		}
+		if ((this.used + 1) * 4 > this.table.length * 3) {
+			resize();
+		}
+		Relationship[] table = this.table;
+		int mask = table.length - 1;
+		index = spread(key.hashCode()) & mask;
+		while (table[index] != null && table[index] != REMOVED) {
+			index = (index + 1) & mask;
+		}
+		if (table[index] == null) {
+			this.used++;
+		}
+		table[index] = value;
+		this.size++;
+		this.modCount++;
+		return null;
+	}
+
+	/**
+	 * Rehash into a table sized for the current relationships, dropping the removed slots.
+	 */
+	protected void resize() {
+		int capacity = MIN_CAPACITY;
+		// Half full after resize.
+		while (capacity < (this.size + 1) * 2) {
+			capacity = capacity * 2;
+		}
+		Relationship[] old = this.table;
+		Relationship[] table = new Relationship[capacity];
+		int mask = capacity - 1;
+		for (Relationship relationship : old) {
+			if (relationship != null && relationship != REMOVED) {
+				int index = spread(relationship.hashCode()) & mask;
+				while (table[index] != null) {
+					index = (index + 1) & mask;
+				}
+				table[index] = relationship;
+			}
+		}
+		this.table = table;
+		this.used = this.size;
+	}
+
+	@Override
+	public Relationship remove(Object key) {
+		if (!(key instanceof Relationship)) {
+			return null;
+		}
+		int index = indexOf(key);
+		if (index == -1) {
+			return null;
+		}
+		return removeAt(index);
+	}
+
+	protected Relationship removeAt(int index) {
+		Relationship old = this.table[index];
+		this.table[index] = REMOVED;
+		this.size--;
+		this.modCount++;
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		this.table = new Relationship[MIN_CAPACITY];
+		this.size = 0;
+		this.used = 0;
+		this.modCount++;
+		this.sorted = null;
+	}
+
+	/**
+	 * Return the relationships sorted by index.
+	 * The sort is cached, and only redone if the relationships or their indexes have changed.
+	 */
+	public List<Relationship> sortedValues() {
+		Relationship[] sorted = this.sorted;
+		boolean valid = (sorted != null) && (this.sortedModCount == this.modCount);
+		if (valid) {
+			// Indexes can be changed directly on the relationship.
+			for (int index = 1; index < sorted.length; index++) {
+				if (sorted[index - 1].getIndex() > sorted[index].getIndex()) {
+					valid = false;
+					break;
+				}
+			}
+		}
+		if (!valid) {
+			sorted = new Relationship[this.size];
+			int index = 0;
+			for (Relationship relationship : this.table) {
+				if (relationship != null && relationship != REMOVED) {
+					sorted[index++] = relationship;
+				}
+			}
+			Arrays.sort(sorted);
+			this.sorted = sorted;
+			this.sortedModCount = this.modCount;
+		}
+		return new ArrayList<Relationship>(Arrays.asList(sorted));
+	}
+
+	/**
+	 * Iterates the table, remove leaves a removed slot, so does not move any relationships.
+	 */
+	protected class TableIterator implements Iterator<Relationship> {
+		protected int next;
+		protected int last = -1;
+		protected int expectedModCount = modCount;
+
+		protected TableIterator() {
+			advance();
+		}
+
+		protected void advance() {
+			Relationship[] table = RelationshipMap.this.table;
+			while (this.next < table.length && (table[this.next] == null || table[this.next] == REMOVED)) {
+				this.next++;
+			}
+		}
+
+		public boolean hasNext() {
+			return this.next < table.length;
+		}
+
+		public Relationship next() {
+			if (this.expectedModCount != modCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (this.next >= table.length) {
+				throw new NoSuchElementException();
+			}
+			this.last = this.next;
+			this.next++;
+			advance();
+			return table[this.last];
+		}
+
+		public void remove() {
+			if (this.last == -1) {
+				throw new IllegalStateException();
+			}
+			if (this.expectedModCount != modCount) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(this.last);
+			this.last = -1;
+			this.expectedModCount = modCount;
+		}
+	}
+
+	@Override
+	public Collection<Relationship> values() {
+		return new AbstractCollection<Relationship>() {
+			public Iterator<Relationship> iterator() {
+				return new TableIterator();
+			}
+			public int size() {
+				return size;
+			}
+			public boolean contains(Object value) {
+				return containsKey(value);
+			}
+		};
+	}
+
+	@Override
+	public Set<Relationship> keySet() {
+		return new AbstractSet<Relationship>() {
+			public Iterator<Relationship> iterator() {
+				return new TableIterator();
+			}
+			public int size() {
+				return size;
+			}
+			public boolean contains(Object value) {
+				return containsKey(value);
+			}
+			public boolean remove(Object value) {
+				return RelationshipMap.this.remove(value) != null;
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<Relationship, Relationship>> entrySet() {
+		return new AbstractSet<Map.Entry<Relationship, Relationship>>() {
+			public Iterator<Map.Entry<Relationship, Relationship>> iterator() {
+				final TableIterator iterator = new TableIterator();
+				return new Iterator<Map.Entry<Relationship, Relationship>>() {
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+					public Map.Entry<Relationship, Relationship> next() {
+						Relationship relationship = iterator.next();
+						return new AbstractMap.SimpleImmutableEntry<Relationship, Relationship>(relationship, relationship);
+					}
+					public void remove() {
+						iterator.remove();
+					}
+				};
+			}
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Only write the relationships, the removed marker is not serialized.
+	 */
+	private void writeObject(ObjectOutputStream stream) throws IOException {
+		stream.defaultWriteObject();
+		stream.writeInt(this.size);
+		for (Relationship relationship : values()) {
+			stream.writeObject(relationship);
+		}
+	}
+
+	private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+		stream.defaultReadObject();
+		int size = stream.readInt();
+		this.table = new Relationship[MIN_CAPACITY];
+		this.sortedModCount = -1;
+		for (int index = 0; index < size; index++) {
+			Relationship relationship = (Relationship)stream.readObject();
+			put(relationship, relationship);
+		}
+	}
+
+	/**
+	 * Return the number of table slots, used to estimate the footprint.
+	 */
+	public int capacity() {
+		return this.table.length;
+	}
+}
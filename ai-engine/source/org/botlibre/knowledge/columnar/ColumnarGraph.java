@@ -0,0 +1,598 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.columnar;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Column store of a graph of vertices and relationships.
+ * Vertices and relationships are positions in primitive columns, vertices are found by id with a long to int map,
+ * and by data with an open addressing index over the data column.
+ * Each relationship is linked into three doubly linked lists, the relationships of its source,
+ * the relationships to its target, and the relationships of its type, so all of the relationships to a vertex
+ * are found without scanning the graph.
+ * Removed relationship positions are reused, removed vertex positions are not.
+ * The graph is not thread safe, it is synchronized by its network.
+ */
+
+public class ColumnarGraph {
+	public static final int PINNED = 1;
+	public static final int DELETED = 2;
+
+	protected boolean isDirect;
+
+	protected int vertexCount;
+	protected int removedVertices;
+	protected LongColumn ids;
+	protected LongColumn creationDates;
+	protected LongColumn accessDates;
+	protected IntColumn accessCounts;
+	protected IntColumn consciousnessLevels;
+	protected IntColumn flags;
+	protected IntColumn relationshipCounts;
+	protected IntColumn firstRelationships;
+	protected IntColumn firstTargetRelationships;
+	protected IntColumn firstTypeRelationships;
+	protected Object[] data;
+	protected String[] names;
+	protected LongIntMap idIndex;
+	/** Open addressing index of the data vertices, each slot is the position plus one. */
+	protected int[] dataIndex;
+	protected int dataCount;
+
+	protected int relationshipCount;
+	protected int relationshipSize;
+	protected int freeRelationship;
+	protected IntColumn sources;
+	protected IntColumn types;
+	protected IntColumn targets;
+	protected IntColumn metas;
+	protected IntColumn indexes;
+	protected IntColumn correctness;
+	protected LongColumn relationshipCreationDates;
+	protected LongColumn relationshipAccessDates;
+	protected IntColumn relationshipAccessCounts;
+	protected IntColumn relationshipFlags;
+	protected IntColumn nextRelationships;
+	protected IntColumn previousRelationships;
+	protected IntColumn nextTargetRelationships;
+	protected IntColumn previousTargetRelationships;
+	protected IntColumn nextTypeRelationships;
+	protected IntColumn previousTypeRelationships;
+
+	/**
+	 * Create a graph, with the primitive columns on the heap, or in direct buffers outside of the heap.
+	 */
+	public ColumnarGraph(boolean isDirect) {
+		this.isDirect = isDirect;
+		this.ids = new LongColumn(isDirect);
+		this.creationDates = new LongColumn(isDirect);
+		this.accessDates = new LongColumn(isDirect);
+		this.accessCounts = new IntColumn(isDirect);
+		this.consciousnessLevels = new IntColumn(isDirect);
+		this.flags = new IntColumn(isDirect);
+		this.relationshipCounts = new IntColumn(isDirect);
+		this.firstRelationships = new IntColumn(isDirect);
+		this.firstTargetRelationships = new IntColumn(isDirect);
+		this.firstTypeRelationships = new IntColumn(isDirect);
+		this.data = new Object[1024];
+		this.names = new String[1024];
+		this.idIndex = new LongIntMap();
+		this.dataIndex = new int[2048];
+
+		this.freeRelationship = -1;
+		this.sources = new IntColumn(isDirect);
+		this.types = new IntColumn(isDirect);
+		this.targets = new IntColumn(isDirect);
+		this.metas = new IntColumn(isDirect);
+		this.indexes = new IntColumn(isDirect);
+		this.correctness = new IntColumn(isDirect);
+		this.relationshipCreationDates = new LongColumn(isDirect);
+		this.relationshipAccessDates = new LongColumn(isDirect);
+		this.relationshipAccessCounts = new IntColumn(isDirect);
+		this.relationshipFlags = new IntColumn(isDirect);
+		this.nextRelationships = new IntColumn(isDirect);
+		this.previousRelationships = new IntColumn(isDirect);
+		this.nextTargetRelationships = new IntColumn(isDirect);
+		this.previousTargetRelationships = new IntColumn(isDirect);
+		this.nextTypeRelationships = new IntColumn(isDirect);
+		this.previousTypeRelationships = new IntColumn(isDirect);
+	}
+
+	public static long time(Date date) {
+		if (date == null) {
+			return -1;
+		}
+		return date.getTime();
+	}
+
+	public static Date date(long time) {
+		if (time == -1) {
+			return null;
+		}
+		return new Date(time);
+	}
+
+	public boolean isDirect() {
+		return isDirect;
+	}
+
+	/**
+	 * Return the number of vertex positions, including removed vertices.
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Return the number of vertices.
+	 */
+	public int size() {
+		return this.vertexCount - this.removedVertices;
+	}
+
+	/**
+	 * Return the number of relationships.
+	 */
+	public int getRelationshipCount() {
+		return relationshipCount;
+	}
+
+	/**
+	 * Add a vertex with the id, and return its position.
+	 */
+	public int addVertex(long id) {
+		int position = this.vertexCount;
+		if (position == Integer.MAX_VALUE) {
+			throw new IllegalStateException("Graph is full.");
+		}
+		this.ids.ensureCapacity(position);
+		this.creationDates.ensureCapacity(position);
+		this.accessDates.ensureCapacity(position);
+		this.accessCounts.ensureCapacity(position);
+		this.consciousnessLevels.ensureCapacity(position);
+		this.flags.ensureCapacity(position);
+		this.relationshipCounts.ensureCapacity(position);
+		this.firstRelationships.ensureCapacity(position);
+		this.firstTargetRelationships.ensureCapacity(position);
+		this.firstTypeRelationships.ensureCapacity(position);
+		if (position == this.data.length) {
+			int length = (int)Math.min(Integer.MAX_VALUE - 8, (long)position * 2);
+			this.data = Arrays.copyOf(this.data, length);
+			this.names = Arrays.copyOf(this.names, length);
+		}
+		this.ids.set(position, id);
+		this.creationDates.set(position, -1);
+		this.accessDates.set(position, -1);
+		this.accessCounts.set(position, 0);
+		this.consciousnessLevels.set(position, 0);
+		this.flags.set(position, 0);
+		this.relationshipCounts.set(position, 0);
+		this.firstRelationships.set(position, -1);
+		this.firstTargetRelationships.set(position, -1);
+		this.firstTypeRelationships.set(position, -1);
+		this.idIndex.put(id, position);
+		this.vertexCount++;
+		return position;
+	}
+
+	/**
+	 * Remove the vertex, and all of the relationships of, to, and of the type of the vertex.
+	 */
+	public void removeVertex(int position) {
+		if (isRemoved(position)) {
+			return;
+		}
+		while (this.firstRelationships.get(position) != -1) {
+			removeRelationship(this.firstRelationships.get(position));
+		}
+		while (this.firstTargetRelationships.get(position) != -1) {
+			removeRelationship(this.firstTargetRelationships.get(position));
+		}
+		while (this.firstTypeRelationships.get(position) != -1) {
+			removeRelationship(this.firstTypeRelationships.get(position));
+		}
+		setData(position, null);
+		this.names[position] = null;
+		this.idIndex.remove(this.ids.get(position));
+		this.flags.set(position, this.flags.get(position) | DELETED);
+		this.removedVertices++;
+	}
+
+	public boolean isRemoved(int position) {
+		return (this.flags.get(position) & DELETED) != 0;
+	}
+
+	/**
+	 * Return the position of the vertex with the id, or -1.
+	 */
+	public int findById(long id) {
+		return this.idIndex.get(id);
+	}
+
+	/**
+	 * Return the position of the vertex with the data, or -1.
+	 */
+	public int findByData(Object data) {
+		int mask = this.dataIndex.length - 1;
+		int slot = spread(data.hashCode()) & mask;
+		while (this.dataIndex[slot] != 0) {
+			int position = this.dataIndex[slot] - 1;
+			if (data.equals(this.data[position])) {
+				return position;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	protected static int spread(int hash) {
+		hash = hash * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	public long getId(int position) {
+		return this.ids.get(position);
+	}
+
+	public Object getData(int position) {
+		return this.data[position];
+	}
+
+	/**
+	 * Set the vertex data, and index it.
+	 * The data must be unique.
+	 */
+	public void setData(int position, Object data) {
+		Object existing = this.data[position];
+		if ((existing == null) ? (data == null) : existing.equals(data)) {
+			this.data[position] = data;
+			return;
+		}
+		if (existing != null) {
+			removeDataIndex(position, existing);
+		}
+		this.data[position] = data;
+		if (data != null) {
+			if ((this.dataCount + 1) * 2 > this.dataIndex.length) {
+				growDataIndex();
+			}
+			insertDataIndex(position, data);
+		}
+	}
+
+	protected void insertDataIndex(int position, Object data) {
+		int mask = this.dataIndex.length - 1;
+		int slot = spread(data.hashCode()) & mask;
+		while (this.dataIndex[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.dataIndex[slot] = position + 1;
+		this.dataCount++;
+	}
+
+	protected void removeDataIndex(int position, Object data) {
+		int mask = this.dataIndex.length - 1;
+		int slot = spread(data.hashCode()) & mask;
+		while ((this.dataIndex[slot] != 0) && (this.dataIndex[slot] != position + 1)) {
+			slot = (slot + 1) & mask;
+		}
+		if (this.dataIndex[slot] == 0) {
+			return;
+		}
+		this.dataCount--;
+		// Shift back any following entries that probed past the removed slot.
+		int empty = slot;
+		int next = (slot + 1) & mask;
+		while (this.dataIndex[next] != 0) {
+			int home = spread(this.data[this.dataIndex[next] - 1].hashCode()) & mask;
+			if (((next - home) & mask) >= ((next - empty) & mask)) {
+				this.dataIndex[empty] = this.dataIndex[next];
+				empty = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.dataIndex[empty] = 0;
+	}
+
+	protected void growDataIndex() {
+		int[] index = this.dataIndex;
+		this.dataIndex = new int[index.length * 2];
+		this.dataCount = 0;
+		for (int slot = 0; slot < index.length; slot++) {
+			if (index[slot] != 0) {
+				insertDataIndex(index[slot] - 1, this.data[index[slot] - 1]);
+			}
+		}
+	}
+
+	public String getName(int position) {
+		return this.names[position];
+	}
+
+	public void setName(int position, String name) {
+		this.names[position] = name;
+	}
+
+	public long getCreationDate(int position) {
+		return this.creationDates.get(position);
+	}
+
+	public void setCreationDate(int position, long time) {
+		this.creationDates.set(position, time);
+	}
+
+	public long getAccessDate(int position) {
+		return this.accessDates.get(position);
+	}
+
+	public void setAccessDate(int position, long time) {
+		this.accessDates.set(position, time);
+	}
+
+	public int getAccessCount(int position) {
+		return this.accessCounts.get(position);
+	}
+
+	public void setAccessCount(int position, int count) {
+		this.accessCounts.set(position, count);
+	}
+
+	public int getConsciousnessLevel(int position) {
+		return this.consciousnessLevels.get(position);
+	}
+
+	public void setConsciousnessLevel(int position, int level) {
+		this.consciousnessLevels.set(position, level);
+	}
+
+	public boolean isPinned(int position) {
+		return (this.flags.get(position) & PINNED) != 0;
+	}
+
+	public void setPinned(int position, boolean pinned) {
+		if (pinned) {
+			this.flags.set(position, this.flags.get(position) | PINNED);
+		} else {
+			this.flags.set(position, this.flags.get(position) & ~PINNED);
+		}
+	}
+
+	/**
+	 * Return the number of relationships of the vertex.
+	 */
+	public int getRelationshipCount(int position) {
+		return this.relationshipCounts.get(position);
+	}
+
+	/**
+	 * Return the first relationship of the vertex, or -1.
+	 */
+	public int getFirstRelationship(int position) {
+		return this.firstRelationships.get(position);
+	}
+
+	/**
+	 * Return the next relationship of the same source, or -1.
+	 */
+	public int getNextRelationship(int relationship) {
+		return this.nextRelationships.get(relationship);
+	}
+
+	/**
+	 * Return the first relationship to the vertex, or -1.
+	 */
+	public int getFirstTargetRelationship(int position) {
+		return this.firstTargetRelationships.get(position);
+	}
+
+	/**
+	 * Return the next relationship to the same target, or -1.
+	 */
+	public int getNextTargetRelationship(int relationship) {
+		return this.nextTargetRelationships.get(relationship);
+	}
+
+	/**
+	 * Return the first relationship of the vertex type, or -1.
+	 */
+	public int getFirstTypeRelationship(int position) {
+		return this.firstTypeRelationships.get(position);
+	}
+
+	/**
+	 * Return the next relationship of the same type, or -1.
+	 */
+	public int getNextTypeRelationship(int relationship) {
+		return this.nextTypeRelationships.get(relationship);
+	}
+
+	/**
+	 * Add the relationship, and return its position.
+	 */
+	public int addRelationship(int source, int type, int target) {
+		int relationship = this.freeRelationship;
+		if (relationship != -1) {
+			this.freeRelationship = this.nextRelationships.get(relationship);
+		} else {
+			relationship = this.relationshipSize;
+			if (relationship == Integer.MAX_VALUE) {
+				throw new IllegalStateException("Graph is full.");
+			}
+			this.sources.ensureCapacity(relationship);
+			this.types.ensureCapacity(relationship);
+			this.targets.ensureCapacity(relationship);
+			this.metas.ensureCapacity(relationship);
+			this.indexes.ensureCapacity(relationship);
+			this.correctness.ensureCapacity(relationship);
+			this.relationshipCreationDates.ensureCapacity(relationship);
+			this.relationshipAccessDates.ensureCapacity(relationship);
+			this.relationshipAccessCounts.ensureCapacity(relationship);
+			this.relationshipFlags.ensureCapacity(relationship);
+			this.nextRelationships.ensureCapacity(relationship);
+			this.previousRelationships.ensureCapacity(relationship);
+			this.nextTargetRelationships.ensureCapacity(relationship);
+			this.previousTargetRelationships.ensureCapacity(relationship);
+			this.nextTypeRelationships.ensureCapacity(relationship);
+			this.previousTypeRelationships.ensureCapacity(relationship);
+			this.relationshipSize++;
+		}
+		this.sources.set(relationship, source);
+		this.types.set(relationship, type);
+		this.targets.set(relationship, target);
+		this.metas.set(relationship, -1);
+		this.indexes.set(relationship, 0);
+		this.correctness.setFloat(relationship, 0.5f);
+		this.relationshipCreationDates.set(relationship, -1);
+		this.relationshipAccessDates.set(relationship, -1);
+		this.relationshipAccessCounts.set(relationship, 0);
+		this.relationshipFlags.set(relationship, 0);
+		link(relationship, this.firstRelationships, source, this.nextRelationships, this.previousRelationships);
+		link(relationship, this.firstTargetRelationships, target, this.nextTargetRelationships, this.previousTargetRelationships);
+		link(relationship, this.firstTypeRelationships, type, this.nextTypeRelationships, this.previousTypeRelationships);
+		this.relationshipCounts.set(source, this.relationshipCounts.get(source) + 1);
+		this.relationshipCount++;
+		return relationship;
+	}
+
+	/**
+	 * Remove the relationship, its position is reused.
+	 */
+	public void removeRelationship(int relationship) {
+		if (isRelationshipRemoved(relationship)) {
+			return;
+		}
+		int source = this.sources.get(relationship);
+		unlink(relationship, this.firstRelationships, source, this.nextRelationships, this.previousRelationships);
+		unlink(relationship, this.firstTargetRelationships, this.targets.get(relationship), this.nextTargetRelationships, this.previousTargetRelationships);
+		unlink(relationship, this.firstTypeRelationships, this.types.get(relationship), this.nextTypeRelationships, this.previousTypeRelationships);
+		this.relationshipCounts.set(source, this.relationshipCounts.get(source) - 1);
+		this.relationshipFlags.set(relationship, DELETED);
+		this.sources.set(relationship, -1);
+		this.nextRelationships.set(relationship, this.freeRelationship);
+		this.freeRelationship = relationship;
+		this.relationshipCount--;
+	}
+
+	public boolean isRelationshipRemoved(int relationship) {
+		return (relationship < 0) || (relationship >= this.relationshipSize)
+				|| ((this.relationshipFlags.get(relationship) & DELETED) != 0);
+	}
+
+	/**
+	 * Add the relationship to the front of the vertex's list.
+	 */
+	protected void link(int relationship, IntColumn first, int vertex, IntColumn next, IntColumn previous) {
+		int head = first.get(vertex);
+		next.set(relationship, head);
+		previous.set(relationship, -1);
+		if (head != -1) {
+			previous.set(head, relationship);
+		}
+		first.set(vertex, relationship);
+	}
+
+	/**
+	 * Remove the relationship from the vertex's list.
+	 */
+	protected void unlink(int relationship, IntColumn first, int vertex, IntColumn next, IntColumn previous) {
+		int before = previous.get(relationship);
+		int after = next.get(relationship);
+		if (before == -1) {
+			first.set(vertex, after);
+		} else {
+			next.set(before, after);
+		}
+		if (after != -1) {
+			previous.set(after, before);
+		}
+	}
+
+	public int getSource(int relationship) {
+		return this.sources.get(relationship);
+	}
+
+	public int getType(int relationship) {
+		return this.types.get(relationship);
+	}
+
+	public int getTarget(int relationship) {
+		return this.targets.get(relationship);
+	}
+
+	public int getMeta(int relationship) {
+		return this.metas.get(relationship);
+	}
+
+	public void setMeta(int relationship, int meta) {
+		this.metas.set(relationship, meta);
+	}
+
+	public int getIndex(int relationship) {
+		return this.indexes.get(relationship);
+	}
+
+	public void setIndex(int relationship, int index) {
+		this.indexes.set(relationship, index);
+	}
+
+	public float getCorrectness(int relationship) {
+		return this.correctness.getFloat(relationship);
+	}
+
+	public void setCorrectness(int relationship, float correctness) {
+		this.correctness.setFloat(relationship, correctness);
+	}
+
+	public long getRelationshipCreationDate(int relationship) {
+		return this.relationshipCreationDates.get(relationship);
+	}
+
+	public void setRelationshipCreationDate(int relationship, long time) {
+		this.relationshipCreationDates.set(relationship, time);
+	}
+
+	public long getRelationshipAccessDate(int relationship) {
+		return this.relationshipAccessDates.get(relationship);
+	}
+
+	public void setRelationshipAccessDate(int relationship, long time) {
+		this.relationshipAccessDates.set(relationship, time);
+	}
+
+	public int getRelationshipAccessCount(int relationship) {
+		return this.relationshipAccessCounts.get(relationship);
+	}
+
+	public void setRelationshipAccessCount(int relationship, int count) {
+		this.relationshipAccessCounts.set(relationship, count);
+	}
+
+	public boolean isRelationshipPinned(int relationship) {
+		return (this.relationshipFlags.get(relationship) & PINNED) != 0;
+	}
+
+	public void setRelationshipPinned(int relationship, boolean pinned) {
+		this.relationshipFlags.set(relationship, pinned ? PINNED : 0);
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + size() + ", " + this.relationshipCount + ")";
+	}
+}
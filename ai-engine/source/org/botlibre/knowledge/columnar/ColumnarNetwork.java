@@ -0,0 +1,628 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.columnar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Data;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.AbstractNetwork;
+import org.botlibre.knowledge.BasicRelationship;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.Primitive;
+
+/**
+ * In memory network that stores its vertices and relationships in the primitive columns of a graph,
+ * instead of a map of vertex objects.
+ * Vertices are materialized from the graph when accessed, and kept until the network is resumed,
+ * where their changes are written back to the graph and all but the MAX_SIZE most conscious are released.
+ * Vertices are found by id and data through the graph's indexes,
+ * and the relationships to a vertex through the graph's target and type lists, instead of scanning all vertices.
+ * The columns can be stored outside of the heap, to support networks of tens of millions of relationships.
+ */
+
+public class ColumnarNetwork extends AbstractNetwork {
+	/** Store the columns in direct buffers outside of the heap by default. */
+	public static boolean DIRECT = false;
+
+	protected ColumnarGraph graph;
+	/** Materialized vertices, keyed by position. */
+	protected Map<Integer, Vertex> vertices;
+
+	public ColumnarNetwork() {
+		this(DIRECT);
+	}
+
+	public ColumnarNetwork(boolean isDirect) {
+		super(false);
+		this.graph = new ColumnarGraph(isDirect);
+		this.vertices = new HashMap<Integer, Vertex>();
+	}
+
+	public ColumnarGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * Return the vertex at the position in the graph, materializing it if required.
+	 */
+	public synchronized Vertex getVertex(int position) {
+		if (position < 0) {
+			return null;
+		}
+		Vertex vertex = this.vertices.get(position);
+		if (vertex == null) {
+			if (this.graph.isRemoved(position)) {
+				return null;
+			}
+			vertex = new ColumnarVertex(this, position);
+			this.vertices.put(position, vertex);
+		}
+		return vertex;
+	}
+
+	/**
+	 * Return the relationship at the position in the graph.
+	 */
+	public synchronized Relationship getRelationship(Vertex source, int position) {
+		BasicRelationship relationship = new BasicRelationship(source,
+				getVertex(this.graph.getType(position)), getVertex(this.graph.getTarget(position)));
+		relationship.setId(Long.valueOf(position));
+		relationship.setIndex(this.graph.getIndex(position));
+		relationship.setCorrectness(this.graph.getCorrectness(position));
+		relationship.setMeta(getVertex(this.graph.getMeta(position)));
+		relationship.setCreationDate(ColumnarGraph.date(this.graph.getRelationshipCreationDate(position)));
+		relationship.setAccessDate(ColumnarGraph.date(this.graph.getRelationshipAccessDate(position)));
+		relationship.setAccessCount(this.graph.getRelationshipAccessCount(position));
+		relationship.setPinned(this.graph.isRelationshipPinned(position));
+		return relationship;
+	}
+
+	/**
+	 * Return the position of the vertex in the graph, or -1.
+	 * If add is true, a new vertex is added to the graph, and a vertex from another network is merged.
+	 */
+	protected int getPosition(Vertex vertex, boolean add) {
+		if (vertex == null) {
+			return -1;
+		}
+		if ((vertex instanceof ColumnarVertex) && (vertex.getNetwork() == this)) {
+			int position = ((ColumnarVertex)vertex).getPosition();
+			if (this.graph.isRemoved(position)) {
+				return -1;
+			}
+			return position;
+		}
+		if (vertex.getId() != null) {
+			int position = this.graph.findById(vertex.getId());
+			if ((position != -1) || (vertex.getNetwork() == this)) {
+				// A vertex of this network that is not in the graph was removed.
+				return position;
+			}
+		}
+		if (!add) {
+			return -1;
+		}
+		if (vertex.getNetwork() == this) {
+			addVertex(vertex);
+			return this.graph.findById(vertex.getId());
+		}
+		return getPosition(createVertex(vertex), false);
+	}
+
+	/**
+	 * Return the position of the source vertex's relationship in the graph, or -1.
+	 */
+	protected synchronized int findRelationship(int source, Relationship relationship) {
+		if (relationship.getId() != null) {
+			int position = relationship.getId().intValue();
+			if (!this.graph.isRelationshipRemoved(position) && (this.graph.getSource(position) == source)) {
+				return position;
+			}
+		}
+		int type = getPosition(relationship.getType(), false);
+		int target = getPosition(relationship.getTarget(), false);
+		if ((type == -1) || (target == -1)) {
+			return -1;
+		}
+		for (int position = this.graph.getFirstRelationship(source); position != -1; position = this.graph.getNextRelationship(position)) {
+			if ((this.graph.getType(position) == type) && (this.graph.getTarget(position) == target)) {
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add or update the source vertex's relationship in the graph, and return its position, or -1 if its vertices were removed.
+	 * The relationship's id is set to its position.
+	 */
+	protected synchronized int storeRelationship(int source, Relationship relationship) {
+		int position = -1;
+		if (relationship.getId() != null) {
+			position = relationship.getId().intValue();
+			if (this.graph.isRelationshipRemoved(position) || (this.graph.getSource(position) != source)) {
+				position = -1;
+			}
+		}
+		if (position == -1) {
+			int type = getPosition(relationship.getType(), true);
+			int target = getPosition(relationship.getTarget(), true);
+			if ((type == -1) || (target == -1)) {
+				return -1;
+			}
+			position = this.graph.addRelationship(source, type, target);
+			if (relationship instanceof BasicRelationship) {
+				((BasicRelationship)relationship).setId(Long.valueOf(position));
+			}
+		}
+		this.graph.setMeta(position, getPosition(relationship.getMeta(), true));
+		this.graph.setIndex(position, relationship.getIndex());
+		this.graph.setCorrectness(position, relationship.getCorrectness());
+		this.graph.setRelationshipCreationDate(position, ColumnarGraph.time(relationship.getCreationDate()));
+		this.graph.setRelationshipAccessDate(position, ColumnarGraph.time(relationship.getAccessDate()));
+		this.graph.setRelationshipAccessCount(position, relationship.getAccessCount());
+		this.graph.setRelationshipPinned(position, relationship.isPinned());
+		return position;
+	}
+
+	/**
+	 * Write the vertex's attributes to the graph.
+	 */
+	protected void storeVertex(int position, Vertex vertex) {
+		this.graph.setName(position, vertex.getName());
+		this.graph.setData(position, vertex.getData());
+		this.graph.setCreationDate(position, ColumnarGraph.time(vertex.getCreationDate()));
+		this.graph.setAccessDate(position, ColumnarGraph.time(vertex.getAccessDate()));
+		this.graph.setAccessCount(position, vertex.getAccessCount());
+		this.graph.setConsciousnessLevel(position, vertex.getConsciousnessLevel());
+		this.graph.setPinned(position, vertex.isPinned());
+	}
+
+	/**
+	 * Write the changes of the materialized vertices to the graph.
+	 * The relationships of vertices whose relationships were accessed are written,
+	 * and any relationships removed from the vertex without going through the graph are removed.
+	 */
+	public synchronized void flush() {
+		for (Map.Entry<Integer, Vertex> entry : new ArrayList<Map.Entry<Integer, Vertex>>(this.vertices.entrySet())) {
+			int position = entry.getKey();
+			Vertex vertex = entry.getValue();
+			if (this.graph.isRemoved(position)) {
+				continue;
+			}
+			storeVertex(position, vertex);
+			if (!vertex.hasRelationships()) {
+				continue;
+			}
+			int[] current = new int[vertex.totalRelationships()];
+			int count = 0;
+			for (Iterator<Relationship> iterator = vertex.allRelationships(); iterator.hasNext(); ) {
+				int relationship = storeRelationship(position, iterator.next());
+				if (relationship != -1) {
+					if (count == current.length) {
+						current = Arrays.copyOf(current, count * 2 + 1);
+					}
+					current[count++] = relationship;
+				}
+			}
+			if (count != this.graph.getRelationshipCount(position)) {
+				Arrays.sort(current, 0, count);
+				int relationship = this.graph.getFirstRelationship(position);
+				while (relationship != -1) {
+					int next = this.graph.getNextRelationship(relationship);
+					if (Arrays.binarySearch(current, 0, count, relationship) < 0) {
+						this.graph.removeRelationship(relationship);
+					}
+					relationship = next;
+				}
+			}
+		}
+	}
+
+	protected void addRelationship(Relationship relationship) {
+		// Written through the vertex's relationships.
+	}
+
+	/**
+	 * Write the changes to the graph, and release the materialized vertices.
+	 * Keep the MAX_SIZE number of most conscious vertices in memory.
+	 */
+	public synchronized void resume() {
+		getBot().log(this, "Resuming", Bot.FINE, this);
+		flush();
+		int level = 1;
+		while ((this.vertices.size() > MAX_SIZE) && (level < 256)) {
+			Iterator<Vertex> iterator = this.vertices.values().iterator();
+			while ((this.vertices.size() > MAX_SIZE) && iterator.hasNext()) {
+				Vertex vertex = iterator.next();
+				if ((!vertex.isPrimitive()) && vertex.getConsciousnessLevel() <= level) {
+					iterator.remove();
+				}
+			}
+			level = level * 2;
+		}
+	}
+
+	/**
+	 * Write the changes to the graph.
+	 * This implementation does not support persistence.
+	 */
+	public synchronized void save() {
+		getBot().log(this, "Saving", Bot.FINE, this);
+		flush();
+	}
+
+	/**
+	 * Merge the vertices and relations of the network into this network,
+	 * then write the changes to the graph.
+	 */
+	public synchronized void merge(Network network) {
+		super.merge(network);
+		resume();
+	}
+
+	/**
+	 * Clear all vertices from the network.
+	 */
+	public synchronized void clear() {
+		this.graph = new ColumnarGraph(this.graph.isDirect());
+		this.vertices = new HashMap<Integer, Vertex>();
+	}
+
+	/**
+	 * Add the new vertex to the graph.
+	 * Used to load an existing vertex, createVertex must be used to create a new one.
+	 */
+	public synchronized void addVertex(Vertex vertex) {
+		if ((vertex instanceof ColumnarVertex) && (vertex.getNetwork() == this)) {
+			return;
+		}
+		if ((vertex.getId() != null) && (this.graph.findById(vertex.getId()) != -1)) {
+			return;
+		}
+		List<Relationship> relationships = null;
+		if (vertex.hasRelationships()) {
+			relationships = new ArrayList<Relationship>();
+			for (Iterator<Relationship> iterator = vertex.allRelationships(); iterator.hasNext(); ) {
+				relationships.add(iterator.next());
+			}
+		}
+		if (vertex.getId() == null) {
+			vertex.setId(nextId());
+		} else if (nextId <= vertex.getId().longValue()) {
+			// Ensure the nextId sequence is consistent when restoring the network from storage.
+			nextId = vertex.getId().longValue() + 1;
+		}
+		int position = this.graph.addVertex(vertex.getId());
+		storeVertex(position, vertex);
+		((BasicVertex)vertex).setNetwork(this);
+		((BasicVertex)vertex).setAllRelationships(new ColumnarVertex.ColumnarRelationships(this, (BasicVertex)vertex, position));
+		this.vertices.put(position, vertex);
+		if (relationships != null) {
+			for (Relationship relationship : relationships) {
+				vertex.addRelationship(relationship, true);
+			}
+		}
+	}
+
+	public Network getParent() {
+		return null;
+	}
+
+	public void setParent(Network parent) {
+	}
+
+	public synchronized int size() {
+		return this.graph.size();
+	}
+
+	/**
+	 * Remove the vertex and all references to it from the network.
+	 */
+	public synchronized void removeVertexAndReferences(Vertex vertex) {
+		if (getPosition(vertex, false) == -1) {
+			return;
+		}
+		for (Relationship relationship : findAllRelationshipsTo(vertex)) {
+			relationship.getSource().internalRemoveRelationship(relationship);
+		}
+		removeVertex(vertex);
+	}
+
+	/**
+	 * Remove the vertex, and its relationships from the network.
+	 */
+	public synchronized void removeVertex(Vertex vertex) {
+		int position = getPosition(vertex, false);
+		if (position == -1) {
+			return;
+		}
+		this.graph.removeVertex(position);
+		this.vertices.remove(position);
+	}
+
+	public void removeRelationship(Relationship relationship) {
+		// Removed through the vertex's relationships.
+	}
+
+	public synchronized int countAll() {
+		return this.graph.size();
+	}
+
+	public synchronized int countAllLike(String filter) {
+		return findAllLike(filter, Integer.MAX_VALUE, 0).size();
+	}
+
+	/**
+	 * Return the first page of vertices.
+	 */
+	public synchronized List<Vertex> findAll() {
+		return findAll(1000, 0);
+	}
+
+	/**
+	 * Return the page of vertices.
+	 */
+	public synchronized List<Vertex> findAll(int pageSize, int page) {
+		List<Vertex> result = new ArrayList<Vertex>();
+		int skip = pageSize * page;
+		for (int position = 0; (position < this.graph.getVertexCount()) && (result.size() < pageSize); position++) {
+			if (this.graph.isRemoved(position)) {
+				continue;
+			}
+			if (skip > 0) {
+				skip--;
+			} else {
+				result.add(getVertex(position));
+			}
+		}
+		return result;
+	}
+
+	public List<Vertex> findAllQuery(String query) {
+		return new ArrayList<Vertex>();
+	}
+
+	/**
+	 * Return all vertices matching the query.
+	 * Currently unable to process in memory.
+	 */
+	@SuppressWarnings("rawtypes")
+	public List<Vertex> findAllQuery(String query, Map parameters, int pageSize, int page) {
+		return new ArrayList<Vertex>();
+	}
+
+	/**
+	 * Return all vertices matching the query.
+	 * Currently unable to process in memory.
+	 */
+	public List<Vertex> findAllQuery(String query, int max) {
+		return new ArrayList<Vertex>();
+	}
+
+	@SuppressWarnings("rawtypes")
+	public List findByNativeQuery(String sql, Class type, int max) {
+		return new ArrayList<Vertex>();
+	}
+
+	public int executeNativeQuery(String sql) {
+		return 0;
+	}
+
+	public int executeQuery(String jpql) {
+		return 0;
+	}
+
+	public List<Vertex> findAllLike(String filter) {
+		return findAllLike(filter, 1000, 0);
+	}
+
+	/**
+	 * Return the page of vertices whose data matches the filter.
+	 * This scans the data column, only the matching vertices are materialized.
+	 */
+	public synchronized List<Vertex> findAllLike(String filter, int pageSize, int page) {
+		Pattern pattern = Pattern.compile(filter.replace("*", ".*"));
+		List<Vertex> result = new ArrayList<Vertex>();
+		int skip = pageSize * page;
+		for (int position = 0; (position < this.graph.getVertexCount()) && (result.size() < pageSize); position++) {
+			Object data = this.graph.getData(position);
+			if ((data == null) || (data instanceof Data)) {
+				continue;
+			}
+			if (pattern.matcher(BasicVertex.convertDataValue(data)).matches()) {
+				if (skip > 0) {
+					skip--;
+				} else {
+					result.add(getVertex(position));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the vertex with the data, using the graph's data index.
+	 */
+	public synchronized Vertex findByData(Object data) {
+		if (data == null) {
+			return null;
+		}
+		return getVertex(this.graph.findByData(data));
+	}
+
+	/**
+	 * Return the lob data.
+	 */
+	public synchronized Data findData(Data data) {
+		return data;
+	}
+
+	/**
+	 * Return the vertex with the name.
+	 * This scans the name column.
+	 */
+	public synchronized Vertex findByName(String name) {
+		if (name == null) {
+			return null;
+		}
+		for (int position = 0; position < this.graph.getVertexCount(); position++) {
+			if (name.equals(this.graph.getName(position))) {
+				return getVertex(position);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the vertex with the id, using the graph's id index.
+	 */
+	public synchronized Vertex findById(Number id) {
+		if (id == null) {
+			return null;
+		}
+		return getVertex(this.graph.findById(id.longValue()));
+	}
+
+	public CriteriaBuilder getCriteriaBuilder() {
+		return null;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public List search(CriteriaQuery criteria, int page, int max) {
+		return new ArrayList<Vertex>();
+	}
+
+	/**
+	 * Return the instances of the type, most recent first.
+	 * If the relationship is set, only instances with a relationship of the type are returned, created after the start if set.
+	 * Uses the graph's target list of the type.
+	 */
+	public synchronized List<Vertex> findAllInstances(Vertex type, Vertex relationship, Calendar start) {
+		List<Vertex> instances = new ArrayList<Vertex>();
+		int typePosition = getPosition(type, false);
+		int instantiation = this.graph.findByData(Primitive.INSTANTIATION);
+		if ((typePosition == -1) || (instantiation == -1)) {
+			return instances;
+		}
+		int relationshipType = -1;
+		if (relationship != null) {
+			relationshipType = getPosition(relationship, false);
+			if (relationshipType == -1) {
+				return instances;
+			}
+		}
+		long startTime = (start == null) ? -1 : start.getTimeInMillis();
+		final Map<Vertex, Long> dates = new HashMap<Vertex, Long>();
+		for (int position = this.graph.getFirstTargetRelationship(typePosition); position != -1; position = this.graph.getNextTargetRelationship(position)) {
+			if ((this.graph.getType(position) != instantiation) || (this.graph.getCorrectness(position) <= 0)) {
+				continue;
+			}
+			int source = this.graph.getSource(position);
+			boolean found = true;
+			if (relationshipType != -1) {
+				found = false;
+				for (int each = this.graph.getFirstRelationship(source); each != -1; each = this.graph.getNextRelationship(each)) {
+					if ((this.graph.getType(each) == relationshipType) && (this.graph.getCorrectness(each) > 0)
+							&& ((startTime == -1) || (this.graph.getRelationshipCreationDate(each) >= startTime))) {
+						found = true;
+						break;
+					}
+				}
+			} else if (startTime != -1) {
+				found = this.graph.getRelationshipCreationDate(position) >= startTime;
+			}
+			if (found) {
+				Vertex instance = getVertex(source);
+				if (!dates.containsKey(instance)) {
+					dates.put(instance, this.graph.getRelationshipCreationDate(position));
+					instances.add(instance);
+				}
+			}
+		}
+		Collections.sort(instances, new Comparator<Vertex>() {
+			public int compare(Vertex first, Vertex second) {
+				return dates.get(second).compareTo(dates.get(first));
+			}
+		});
+		if (instances.size() > 1000) {
+			return new ArrayList<Vertex>(instances.subList(0, 1000));
+		}
+		return instances;
+	}
+
+	/**
+	 * Return the relationships to the vertex, or of the vertex type.
+	 * Uses the graph's target and type lists of the vertex.
+	 */
+	public synchronized List<Relationship> findAllRelationshipsTo(Vertex vertex) {
+		List<Relationship> relationships = new ArrayList<Relationship>();
+		int position = getPosition(vertex, false);
+		if (position == -1) {
+			return relationships;
+		}
+		for (int relationship = this.graph.getFirstTargetRelationship(position); relationship != -1; relationship = this.graph.getNextTargetRelationship(relationship)) {
+			relationships.add(getRelationship(getVertex(this.graph.getSource(relationship)), relationship));
+		}
+		for (int relationship = this.graph.getFirstTypeRelationship(position); relationship != -1; relationship = this.graph.getNextTypeRelationship(relationship)) {
+			if (this.graph.getTarget(relationship) != position) {
+				relationships.add(getRelationship(getVertex(this.graph.getSource(relationship)), relationship));
+			}
+		}
+		return relationships;
+	}
+
+	/**
+	 * Return the relationships of the type to the vertex.
+	 * Uses the graph's target list of the vertex.
+	 */
+	public synchronized List<Relationship> findAllRelationshipsTo(Vertex vertex, Vertex type) {
+		List<Relationship> relationships = new ArrayList<Relationship>();
+		int position = getPosition(vertex, false);
+		int typePosition = getPosition(type, false);
+		if ((position == -1) || (typePosition == -1)) {
+			return relationships;
+		}
+		for (int relationship = this.graph.getFirstTargetRelationship(position); relationship != -1; relationship = this.graph.getNextTargetRelationship(relationship)) {
+			if (this.graph.getType(relationship) == typePosition) {
+				relationships.add(getRelationship(getVertex(this.graph.getSource(relationship)), relationship));
+			}
+		}
+		return relationships;
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.graph + ")";
+	}
+}
@@ -0,0 +1,130 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.columnar;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.knowledge.BasicVertex;
+
+/**
+ * Vertex of a columnar network, materialized from the graph's columns when accessed.
+ * Its relationships are read from the graph the first time they are accessed,
+ * new and removed relationships are written through to the graph.
+ */
+
+public class ColumnarVertex extends BasicVertex {
+	private static final long serialVersionUID = 1L;
+
+	protected int position;
+
+	/**
+	 * Collection of a vertex's relationships in the graph.
+	 * The vertex adds and removes its relationships through this collection, so the graph stays current.
+	 */
+	protected static class ColumnarRelationships extends AbstractCollection<Relationship> {
+		protected ColumnarNetwork network;
+		protected BasicVertex source;
+		protected int position;
+
+		public ColumnarRelationships(ColumnarNetwork network, BasicVertex source, int position) {
+			this.network = network;
+			this.source = source;
+			this.position = position;
+		}
+
+		public int size() {
+			return this.network.getGraph().getRelationshipCount(this.position);
+		}
+
+		public Iterator<Relationship> iterator() {
+			return new Iterator<Relationship>() {
+				int next = network.getGraph().getFirstRelationship(position);
+
+				public boolean hasNext() {
+					return this.next != -1;
+				}
+
+				public Relationship next() {
+					if (this.next == -1) {
+						throw new NoSuchElementException();
+					}
+					int relationship = this.next;
+					this.next = network.getGraph().getNextRelationship(relationship);
+					return network.getRelationship(source, relationship);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		public boolean add(Relationship relationship) {
+			this.network.storeRelationship(this.position, relationship);
+			return true;
+		}
+
+		public boolean contains(Object object) {
+			return (object instanceof Relationship) && (this.network.findRelationship(this.position, (Relationship)object) != -1);
+		}
+
+		public boolean remove(Object object) {
+			if (!(object instanceof Relationship)) {
+				return false;
+			}
+			int relationship = this.network.findRelationship(this.position, (Relationship)object);
+			if (relationship == -1) {
+				return false;
+			}
+			this.network.getGraph().removeRelationship(relationship);
+			return true;
+		}
+
+		public void clear() {
+			ColumnarGraph graph = this.network.getGraph();
+			while (graph.getFirstRelationship(this.position) != -1) {
+				graph.removeRelationship(graph.getFirstRelationship(this.position));
+			}
+		}
+	}
+
+	public ColumnarVertex(ColumnarNetwork network, int position) {
+		ColumnarGraph graph = network.getGraph();
+		this.position = position;
+		this.id = graph.getId(position);
+		this.name = graph.getName(position);
+		setData(graph.getData(position));
+		this.creationDate = ColumnarGraph.date(graph.getCreationDate(position));
+		this.accessDate = ColumnarGraph.date(graph.getAccessDate(position));
+		this.accessCount = graph.getAccessCount(position);
+		this.consciousnessLevel = graph.getConsciousnessLevel(position);
+		this.pinned = graph.isPinned(position);
+		this.network = network;
+		setAllRelationships(new ColumnarRelationships(network, this, position));
+	}
+
+	/**
+	 * Return the vertex's position in the graph.
+	 */
+	public int getPosition() {
+		return position;
+	}
+}
@@ -0,0 +1,105 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.columnar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Growable column of int values, stored in fixed size chunks so growing never copies the column.
+ * The chunks are either int arrays, or direct buffers outside of the heap.
+ */
+
+public class IntColumn {
+	public static final int SHIFT = 16;
+	public static final int CHUNK_SIZE = 1 << SHIFT;
+	public static final int MASK = CHUNK_SIZE - 1;
+
+	protected boolean isDirect;
+	protected int[][] arrays;
+	protected IntBuffer[] buffers;
+	protected int chunks;
+
+	public IntColumn(boolean isDirect) {
+		this.isDirect = isDirect;
+		if (isDirect) {
+			this.buffers = new IntBuffer[16];
+		} else {
+			this.arrays = new int[16][];
+		}
+	}
+
+	public boolean isDirect() {
+		return isDirect;
+	}
+
+	/**
+	 * Return the number of values the column can store without growing.
+	 */
+	public long capacity() {
+		return (long)this.chunks << SHIFT;
+	}
+
+	/**
+	 * Add chunks until the column can store the index.
+	 */
+	public void ensureCapacity(int index) {
+		while (index >= capacity()) {
+			if (this.isDirect) {
+				if (this.chunks == this.buffers.length) {
+					IntBuffer[] buffers = new IntBuffer[this.chunks * 2];
+					System.arraycopy(this.buffers, 0, buffers, 0, this.chunks);
+					this.buffers = buffers;
+				}
+				this.buffers[this.chunks] = ByteBuffer.allocateDirect(CHUNK_SIZE * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+			} else {
+				if (this.chunks == this.arrays.length) {
+					int[][] arrays = new int[this.chunks * 2][];
+					System.arraycopy(this.arrays, 0, arrays, 0, this.chunks);
+					this.arrays = arrays;
+				}
+				this.arrays[this.chunks] = new int[CHUNK_SIZE];
+			}
+			this.chunks++;
+		}
+	}
+
+	public int get(int index) {
+		if (this.isDirect) {
+			return this.buffers[index >>> SHIFT].get(index & MASK);
+		}
+		return this.arrays[index >>> SHIFT][index & MASK];
+	}
+
+	public void set(int index, int value) {
+		if (this.isDirect) {
+			this.buffers[index >>> SHIFT].put(index & MASK, value);
+		} else {
+			this.arrays[index >>> SHIFT][index & MASK] = value;
+		}
+	}
+
+	public float getFloat(int index) {
+		return Float.intBitsToFloat(get(index));
+	}
+
+	public void setFloat(int index, float value) {
+		set(index, Float.floatToRawIntBits(value));
+	}
+}
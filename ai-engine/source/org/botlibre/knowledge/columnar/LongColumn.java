@@ -0,0 +1,93 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.columnar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Growable column of long values, stored in fixed size chunks so growing never copies the column.
+ * The chunks are either long arrays, or direct buffers outside of the heap.
+ */
+
+public class LongColumn {
+	protected boolean isDirect;
+	protected long[][] arrays;
+	protected LongBuffer[] buffers;
+	protected int chunks;
+
+	public LongColumn(boolean isDirect) {
+		this.isDirect = isDirect;
+		if (isDirect) {
+			this.buffers = new LongBuffer[16];
+		} else {
+			this.arrays = new long[16][];
+		}
+	}
+
+	public boolean isDirect() {
+		return isDirect;
+	}
+
+	/**
+	 * Return the number of values the column can store without growing.
+	 */
+	public long capacity() {
+		return (long)this.chunks << IntColumn.SHIFT;
+	}
+
+	/**
+	 * Add chunks until the column can store the index.
+	 */
+	public void ensureCapacity(int index) {
+		while (index >= capacity()) {
+			if (this.isDirect) {
+				if (this.chunks == this.buffers.length) {
+					LongBuffer[] buffers = new LongBuffer[this.chunks * 2];
+					System.arraycopy(this.buffers, 0, buffers, 0, this.chunks);
+					this.buffers = buffers;
+				}
+				this.buffers[this.chunks] = ByteBuffer.allocateDirect(IntColumn.CHUNK_SIZE * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+			} else {
+				if (this.chunks == this.arrays.length) {
+					long[][] arrays = new long[this.chunks * 2][];
+					System.arraycopy(this.arrays, 0, arrays, 0, this.chunks);
+					this.arrays = arrays;
+				}
+				this.arrays[this.chunks] = new long[IntColumn.CHUNK_SIZE];
+			}
+			this.chunks++;
+		}
+	}
+
+	public long get(int index) {
+		if (this.isDirect) {
+			return this.buffers[index >>> IntColumn.SHIFT].get(index & IntColumn.MASK);
+		}
+		return this.arrays[index >>> IntColumn.SHIFT][index & IntColumn.MASK];
+	}
+
+	public void set(int index, long value) {
+		if (this.isDirect) {
+			this.buffers[index >>> IntColumn.SHIFT].put(index & IntColumn.MASK, value);
+		} else {
+			this.arrays[index >>> IntColumn.SHIFT][index & IntColumn.MASK] = value;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.columnar;
+
+/**
+ * Open addressing map of long keys to positive int values, without boxing.
+ * Uses linear probing, removed entries shift the following entries back so no deleted markers are required.
+ */
+
+public class LongIntMap {
+	protected long[] keys;
+	/** The value plus one, 0 is an empty slot. */
+	protected int[] values;
+	protected int size;
+	protected int mask;
+
+	public LongIntMap() {
+		this(1024);
+	}
+
+	public LongIntMap(int capacity) {
+		int slots = 16;
+		while (slots < capacity * 2) {
+			slots = slots * 2;
+		}
+		this.keys = new long[slots];
+		this.values = new int[slots];
+		this.mask = slots - 1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	protected int slot(long key) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32)) & this.mask;
+	}
+
+	/**
+	 * Return the value of the key, or -1.
+	 */
+	public int get(long key) {
+		int slot = slot(key);
+		while (this.values[slot] != 0) {
+			if (this.keys[slot] == key) {
+				return this.values[slot] - 1;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	public void put(long key, int value) {
+		if ((this.size + 1) * 2 > this.keys.length) {
+			grow();
+		}
+		int slot = slot(key);
+		while (this.values[slot] != 0) {
+			if (this.keys[slot] == key) {
+				this.values[slot] = value + 1;
+				return;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		this.keys[slot] = key;
+		this.values[slot] = value + 1;
+		this.size++;
+	}
+
+	public void remove(long key) {
+		int slot = slot(key);
+		while (this.values[slot] != 0) {
+			if (this.keys[slot] == key) {
+				break;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+		if (this.values[slot] == 0) {
+			return;
+		}
+		this.size--;
+		// Shift back any following entries that probed past the removed slot.
+		int empty = slot;
+		int next = (slot + 1) & this.mask;
+		while (this.values[next] != 0) {
+			int home = slot(this.keys[next]);
+			if (((next - home) & this.mask) >= ((next - empty) & this.mask)) {
+				this.keys[empty] = this.keys[next];
+				this.values[empty] = this.values[next];
+				empty = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		this.values[empty] = 0;
+	}
+
+	protected void grow() {
+		long[] keys = this.keys;
+		int[] values = this.values;
+		this.keys = new long[keys.length * 2];
+		this.values = new int[keys.length * 2];
+		this.mask = this.keys.length - 1;
+		this.size = 0;
+		for (int index = 0; index < keys.length; index++) {
+			if (values[index] != 0) {
+				put(keys[index], values[index] - 1);
+			}
+		}
+	}
+}
@@ -17,6 +17,10 @@
  ******************************************************************************/
 package org.botlibre.knowledge.database;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.sql.Connection;
@@ -28,6 +32,11 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import javax.persistence.EntityManager;
@@ -37,6 +46,7 @@ import javax.persistence.Persistence;
 import javax.persistence.Query;
 import javax.persistence.metamodel.Metamodel;
 
+import org.botlibre.BootImage;
 import org.botlibre.Bot;
 import org.botlibre.BotException;
 import org.botlibre.LogListener;
@@ -47,7 +57,10 @@ import org.botlibre.api.thought.Thought;
 import org.botlibre.knowledge.BasicMemory;
 import org.botlibre.knowledge.BasicNetwork;
 import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.Primitive;
 import org.botlibre.knowledge.Property;
+import org.botlibre.knowledge.snapshot.MappedNetwork;
+import org.botlibre.knowledge.snapshot.NetworkSnapshot;
 import org.botlibre.util.Utils;
 import org.eclipse.persistence.config.PersistenceUnitProperties;
 import org.eclipse.persistence.internal.databaseaccess.Accessor;
@@ -95,14 +108,56 @@ public class DatabaseMemory extends BasicMemory {
 	public static String CACHE_SIZE = "5000";
 	public static boolean TEST = false;
 	public static boolean RECREATE_DATABASE = false;
+	/** Default number of inserts and updates grouped into each JDBC batch. */
+	public static String BATCH_SIZE = "500";
+	/** Number of vertices migrated in each transaction. */
+	public static int MIGRATE_PAGE = 1000;
+	/** Default for write-behind mode, saves are deferred and grouped into a single commit. */
+	public static boolean WRITE_BEHIND = false;
+	/** Default maximum time a deferred save is not committed, the durability window. */
+	public static long WRITE_BEHIND_WINDOW = 1000;
+	/** Default maximum number of deferred saves before they are committed. */
+	public static int WRITE_BEHIND_MAX_PENDING = 50;
+	/** Recompute the number of relationships that reference each vertex, the counts are then maintained on relationship inserts and deletes. */
+	public static String RECOUNT_REFERENCES = "update vertex set referencecount = (select count(*) from relationship r"
+			+ " where r.target_id = vertex.id or r.type_id = vertex.id or r.meta_id = vertex.id)";
+	
+	protected static ScheduledExecutorService flusher;
 	
 	public static ConcurrentMap<String, SessionInfo> sessions = new ConcurrentHashMap<String, SessionInfo>();
+	/** Lock for each database used to merge the commits of networks that create new data vertices. */
+	protected static ConcurrentMap<String, Object> mergeLocks = new ConcurrentHashMap<String, Object>();
+	
+	/** Number of duplicate data vertices merged from concurrent conversations. */
+	protected AtomicLong mergeConflicts = new AtomicLong();
+	/** This bot's hits and misses on the shared vertex cache. */
+	protected VertexCache.Stats vertexCacheStats = new VertexCache.Stats();
+	/** If the properties were loaded from the boot image snapshot. */
+	protected boolean isWarmStart;
+	
+	protected boolean isWriteBehind = WRITE_BEHIND;
+	protected long writeBehindWindow = WRITE_BEHIND_WINDOW;
+	protected int writeBehindMaxPending = WRITE_BEHIND_MAX_PENDING;
+	protected String batchSize = BATCH_SIZE;
+	/** Maximum number of template vertices materialized by this bot's mapped template network. */
+	protected int templateCacheSize = MappedNetwork.CACHE_SIZE;
+	/** Number of saves deferred since the last commit. */
+	protected int pendingSaves;
+	/** Time of the oldest deferred save, or 0. */
+	protected long pendingSince;
+	protected boolean isFlushScheduled;
+	protected long flushes;
+	protected long deferredSaves;
+	protected long flushTime;
+	protected long maxFlushTime;
 	
 	private EntityManagerFactory factory;
 	private EntityManager entityManager;
 	private LogListener listener;
 	private String database;
 	private boolean isFast;
+	/** Optional shared read-only template network layered under the database networks. */
+	private Network template;
 	private boolean isSchema;
 	
 	public class SessionInfo {
@@ -155,6 +210,26 @@ public class DatabaseMemory extends BasicMemory {
 			BasicNetwork.MAX_SIZE = Integer.parseInt((String)properties.get("cache.size"));
 			this.bot.log(this, "Init property:", Level.FINEST, "cache.size", CACHE_SIZE);
 		}
+		if (properties.containsKey("write-behind")) {
+			this.isWriteBehind = Boolean.valueOf((String)properties.get("write-behind"));
+			this.bot.log(this, "Init property:", Level.FINEST, "write-behind", this.isWriteBehind);
+		}
+		if (properties.containsKey("write-behind.window")) {
+			this.writeBehindWindow = Long.parseLong((String)properties.get("write-behind.window"));
+			this.bot.log(this, "Init property:", Level.FINEST, "write-behind.window", this.writeBehindWindow);
+		}
+		if (properties.containsKey("write-behind.max-pending")) {
+			this.writeBehindMaxPending = Integer.parseInt((String)properties.get("write-behind.max-pending"));
+			this.bot.log(this, "Init property:", Level.FINEST, "write-behind.max-pending", this.writeBehindMaxPending);
+		}
+		if (properties.containsKey("jdbc.batch-size")) {
+			this.batchSize = (String)properties.get("jdbc.batch-size");
+			this.bot.log(this, "Init property:", Level.FINEST, "jdbc.batch-size", this.batchSize);
+		}
+		if (properties.containsKey("template.cache-size")) {
+			this.templateCacheSize = Integer.parseInt((String)properties.get("template.cache-size"));
+			this.bot.log(this, "Init property:", Level.FINEST, "template.cache-size", this.templateCacheSize);
+		}
 	}
 	
 	public EntityManagerFactory getFactory() {
@@ -183,9 +258,117 @@ public class DatabaseMemory extends BasicMemory {
 
 	/**
 	 * Commit short-term memory to the database.
+	 * In write-behind mode the commit is deferred until the durability window expires,
+	 * or the maximum number of saves are pending, and all pending changes are committed in one transaction.
+	 * Changes are committed in id order within the one transaction, so a crash loses at most the window, never part of a save.
 	 */
 	@Override
 	public synchronized void save() {
+		if (this.isWriteBehind) {
+			if (deferSave()) {
+				flush();
+			}
+			return;
+		}
+		commit();
+	}
+	
+	/**
+	 * Save the network, in write-behind mode the short-term memory's save is deferred with the memory's other saves.
+	 * The short-term memory is not resumed, so the vertices being processed remain managed.
+	 */
+	@Override
+	public synchronized void save(Network network) {
+		if (this.isWriteBehind && (network == getShortTermMemory())) {
+			if (deferSave()) {
+				flush(false);
+			}
+			return;
+		}
+		network.save();
+	}
+	
+	/**
+	 * Defer the save, and schedule the commit of the deferred saves at the end of the durability window.
+	 * Return true if the deferred saves should be committed now.
+	 */
+	protected boolean deferSave() {
+		this.pendingSaves++;
+		this.deferredSaves++;
+		long now = System.currentTimeMillis();
+		if (this.pendingSince == 0) {
+			this.pendingSince = now;
+		}
+		if ((this.pendingSaves >= this.writeBehindMaxPending) || ((now - this.pendingSince) >= this.writeBehindWindow)) {
+			return true;
+		}
+		if (!this.isFlushScheduled) {
+			this.isFlushScheduled = true;
+			getFlusher().schedule(new Runnable() {
+				public void run() {
+					synchronized (DatabaseMemory.this) {
+						isFlushScheduled = false;
+						try {
+							if (pendingSaves > 0 && getEntityManager() != null) {
+								flush();
+							}
+						} catch (Exception exception) {
+							bot.log(DatabaseMemory.this, exception);
+						}
+					}
+				}
+			}, this.writeBehindWindow, TimeUnit.MILLISECONDS);
+		}
+		return false;
+	}
+	
+	/**
+	 * Commit any deferred saves.
+	 */
+	public synchronized void flush() {
+		flush(true);
+	}
+	
+	/**
+	 * Commit any deferred saves, and resume or clear the short-term memory if resume.
+	 */
+	protected void flush(boolean resume) {
+		if (this.pendingSaves == 0) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		this.pendingSaves = 0;
+		this.pendingSince = 0;
+		if (resume) {
+			commit();
+		} else {
+			getShortTermMemory().save();
+		}
+		long time = System.currentTimeMillis() - start;
+		this.flushes++;
+		this.flushTime = this.flushTime + time;
+		if (time > this.maxFlushTime) {
+			this.maxFlushTime = time;
+		}
+	}
+	
+	protected static synchronized ScheduledExecutorService getFlusher() {
+		if (flusher == null) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "write-behind");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return flusher;
+	}
+	
+	/**
+	 * Commit the short-term memory, and resume or clear it.
+	 */
+	protected void commit() {
 		getShortTermMemory().save();
 		// Check for low memory.
 		if (Utils.checkLowMemory()) {
@@ -200,6 +383,95 @@ public class DatabaseMemory extends BasicMemory {
 		}
 	}
 	
+	public boolean isWriteBehind() {
+		return isWriteBehind;
+	}
+
+	/**
+	 * Set write-behind mode, any deferred saves are committed when disabled.
+	 */
+	public synchronized void setWriteBehind(boolean isWriteBehind) {
+		if (!isWriteBehind && this.isWriteBehind) {
+			flush();
+		}
+		this.isWriteBehind = isWriteBehind;
+	}
+
+	public synchronized long getWriteBehindWindow() {
+		return writeBehindWindow;
+	}
+
+	/**
+	 * Set the maximum time a deferred save is not committed.
+	 */
+	public synchronized void setWriteBehindWindow(long writeBehindWindow) {
+		this.writeBehindWindow = writeBehindWindow;
+	}
+
+	public String getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Set the number of inserts and updates grouped into each JDBC batch, used when the database is next connected.
+	 */
+	public void setBatchSize(String batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public synchronized int getWriteBehindMaxPending() {
+		return writeBehindMaxPending;
+	}
+
+	/**
+	 * Set the maximum number of deferred saves before they are committed.
+	 */
+	public synchronized void setWriteBehindMaxPending(int writeBehindMaxPending) {
+		this.writeBehindMaxPending = writeBehindMaxPending;
+	}
+
+	/**
+	 * Return the number of saves deferred and not yet committed, the write-behind queue depth.
+	 */
+	public synchronized int getPendingSaves() {
+		return pendingSaves;
+	}
+
+	/**
+	 * Return the total number of saves deferred in write-behind mode.
+	 */
+	public synchronized long getDeferredSaves() {
+		return deferredSaves;
+	}
+
+	/**
+	 * Return the number of commits of deferred saves.
+	 */
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+
+	/**
+	 * Return the average commit time of deferred saves.
+	 */
+	public synchronized long getAverageFlushTime() {
+		if (this.flushes == 0) {
+			return 0;
+		}
+		return this.flushTime / this.flushes;
+	}
+
+	public synchronized long getMaxFlushTime() {
+		return maxFlushTime;
+	}
+
+	public synchronized void resetWriteBehindStats() {
+		this.deferredSaves = 0;
+		this.flushes = 0;
+		this.flushTime = 0;
+		this.maxFlushTime = 0;
+	}
+	
 	/**
 	 * Reset state when instance is pooled.
 	 */
@@ -216,6 +488,8 @@ public class DatabaseMemory extends BasicMemory {
 	public synchronized void shutdown() {
 		try {
 			if (getShortTermMemory() != null) {
+				// Commit any deferred saves.
+				setWriteBehind(false);
 				getShortTermMemory().clear();
 			}
 			ServerSession session = null;
@@ -286,7 +560,7 @@ public class DatabaseMemory extends BasicMemory {
 		// Check database version and migrate schema if required.
 		try {
 			version = ((Number)this.entityManager.createNativeQuery("select version from schema_version").getSingleResult()).intValue();
-			if (version == 2) {
+			if (version == 4) {
 				schemaMigrationRequired = false;
 			}
 		} catch (Exception missing) {
@@ -295,6 +569,7 @@ public class DatabaseMemory extends BasicMemory {
 		}
 		if (schemaMigrationRequired) {
 			this.bot.log(this, "Migrating schema", Level.WARNING, version);
+			boolean migrated = true;
 			if (version < 1) {
 				executeDDL("update vertex set datavalue = replace(datavalue, 'org.pandora', 'org.botlibre') where datavalue like 'org.pandora.%'");
 				try {
@@ -323,6 +598,25 @@ public class DatabaseMemory extends BasicMemory {
 				executeDDL("ALTER TABLE vertex ADD COLUMN groupid bigint");
 				executeDDL("ALTER TABLE relationship ADD COLUMN hashcode integer");*/
 			}
+			if (version < 3) {
+				try {
+					this.entityManager.createNativeQuery("select normalizeddata from vertex where normalizeddata <> normalizeddata").getResultList();
+				} catch (Exception missing) {
+					executeDDL("alter table vertex ADD COLUMN normalizeddata varchar(1024)");
+				}
+				// Resumes from the vertices not yet migrated if a previous migration failed.
+				migrated = migrateNormalizedData();
+				executeDDL("create index VT_ND_INDX on vertex (normalizeddata)");
+			}
+			if (version < 4) {
+				try {
+					this.entityManager.createNativeQuery("select referencecount from vertex where referencecount <> referencecount").getResultList();
+				} catch (Exception missing) {
+					executeDDL("alter table vertex ADD COLUMN referencecount int DEFAULT 0");
+					executeDDL(RECOUNT_REFERENCES);
+					executeDDL("create index VT_RC_INDX on vertex (referencecount, accesscount, accessdate)");
+				}
+			}
 			try {
 				this.entityManager.createNativeQuery("select property from property where property <> property").getResultList();
 			} catch (Exception missing) {
@@ -336,8 +630,12 @@ public class DatabaseMemory extends BasicMemory {
 				thought.migrateProperties();
 			}
 			this.bot.mood().migrateProperties();
-			executeDDL("delete from schema_version");
-			executeDDL("insert into schema_version (version) values (2)");
+			if (migrated) {
+				executeDDL("delete from schema_version");
+				executeDDL("insert into schema_version (version) values (4)");
+			} else {
+				this.bot.log(this, "Schema migration incomplete, it will be retried on the next restore", Level.WARNING, version);
+			}
 		}
 	}
 	
@@ -377,8 +675,11 @@ public class DatabaseMemory extends BasicMemory {
 			properties.put(PersistenceUnitProperties.CACHE_SIZE_DEFAULT, CACHE_SIZE);
 			properties.put(PersistenceUnitProperties.CACHE_STATEMENTS, "true");
 			properties.put(PersistenceUnitProperties.BATCH_WRITING, "JDBC");
+			properties.put(PersistenceUnitProperties.BATCH_WRITING_SIZE, this.batchSize);
 			if (recreateDatabase) {
 				properties.put(PersistenceUnitProperties.DDL_GENERATION, PersistenceUnitProperties.DROP_AND_CREATE);
+				VertexCache.removeCache(this.database);
+				BootImage.invalidate(this.database);
 			}
 			properties.put(PersistenceUnitProperties.SESSION_CUSTOMIZER, MemorySessionCustomizer.class.getName());
 			Level debugLevel = this.bot.getDebugLevel();
@@ -453,7 +754,7 @@ public class DatabaseMemory extends BasicMemory {
 					
 					query = this.entityManager.createNativeQuery("delete from schema_version");
 					query.executeUpdate();
-					query = this.entityManager.createNativeQuery("insert into schema_version (version) values (2)");
+					query = this.entityManager.createNativeQuery("insert into schema_version (version) values (4)");
 					query.executeUpdate();
 					
 					this.entityManager.getTransaction().commit();
@@ -498,6 +799,8 @@ public class DatabaseMemory extends BasicMemory {
 			this.longTermMemory.setBot(this.bot);
 			this.shortTermMemory = new DatabaseNetwork(this.entityManager, true);
 			this.shortTermMemory.setBot(this.bot);
+			((DatabaseNetwork)this.longTermMemory).setTemplate(this.template);
+			((DatabaseNetwork)this.shortTermMemory).setTemplate(this.template);
 			
 			this.listener = new LogListener() {
 				/**
@@ -635,6 +938,8 @@ public class DatabaseMemory extends BasicMemory {
 			this.longTermMemory.setBot(this.bot);
 			this.shortTermMemory = new DatabaseNetwork(this.entityManager, true);
 			this.shortTermMemory.setBot(this.bot);
+			((DatabaseNetwork)this.longTermMemory).setTemplate(this.template);
+			((DatabaseNetwork)this.shortTermMemory).setTemplate(this.template);
 			
 			this.listener = new LogListener() {
 				/**
@@ -681,13 +986,53 @@ public class DatabaseMemory extends BasicMemory {
 	
 	/**
 	 * Load any properties and init.
+	 * The properties and primitive vertex ids are loaded from the boot image snapshot if the bot was recently started,
+	 * otherwise they are queried and the snapshot is taken.
 	 */
-	@SuppressWarnings("unchecked")
 	public void awake() {
-		List<Property> properties = this.entityManager.createQuery("Select p from Property p where p.startup = true").getResultList();
+		BootImage.Snapshot snapshot = BootImage.getSnapshot(getMemoryName());
+		this.isWarmStart = snapshot != null;
+		if (snapshot == null) {
+			long version = BootImage.getVersion(getMemoryName());
+			snapshot = takeSnapshot();
+			BootImage.putSnapshot(getMemoryName(), snapshot, version);
+		} else {
+			VertexCache cache = getVertexCache();
+			if (cache != null) {
+				for (Map.Entry<Object, Long> entry : snapshot.getPrimitives().entrySet()) {
+					cache.put(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+		for (Map.Entry<String, String> entry : snapshot.getStartupProperties().entrySet()) {
+			setProperty(entry.getKey(), entry.getValue());
+		}
+	}
+	
+	/**
+	 * Query the properties and primitive vertex ids for the boot image.
+	 */
+	@SuppressWarnings("unchecked")
+	public BootImage.Snapshot takeSnapshot() {
+		BootImage.Snapshot snapshot = new BootImage.Snapshot();
+		List<Property> properties = this.entityManager.createQuery("Select p from Property p").getResultList();
 		for (Property property : properties) {
-			setProperty(property.getProperty(), property.getValue());
+			snapshot.addProperty(property.getProperty(), property.getValue(), property.isStartup());
+		}
+		Query query = this.entityManager.createQuery("Select v.id, v.dataValue from Vertex v where v.dataType = 'Primitive'");
+		query.setMaxResults(BootImage.MAX_PRIMITIVES);
+		List<Object[]> primitives = query.getResultList();
+		for (Object[] row : primitives) {
+			snapshot.addPrimitive(VertexCache.getKey(new Primitive((String)row[1])), (Long)row[0]);
 		}
+		return snapshot;
+	}
+	
+	/**
+	 * Return if the properties were loaded from the boot image snapshot.
+	 */
+	public boolean isWarmStart() {
+		return isWarmStart;
 	}
 	
 	/**
@@ -695,6 +1040,13 @@ public class DatabaseMemory extends BasicMemory {
 	 */
 	@SuppressWarnings("unchecked")
 	public void loadProperties(String propertySet) {
+		BootImage.Snapshot snapshot = BootImage.getSnapshot(getMemoryName());
+		if (snapshot != null) {
+			for (Map.Entry<String, String> entry : snapshot.getProperties(propertySet).entrySet()) {
+				setProperty(entry.getKey(), entry.getValue());
+			}
+			return;
+		}
 		List<Property> properties = this.entityManager.createQuery("Select p from Property p where p.property like '" + propertySet + "%'").getResultList();
 		for (Property property : properties) {
 			setProperty(property.getProperty(), property.getValue());
@@ -709,6 +1061,7 @@ public class DatabaseMemory extends BasicMemory {
 		try {
 			this.entityManager.createQuery("Delete from Property p where p.property like '" + propertySet + "%'").executeUpdate();
 			this.entityManager.getTransaction().commit();
+			BootImage.invalidate(getMemoryName());
 		} finally {
 			if (this.entityManager.getTransaction().isActive()) {
 				this.entityManager.getTransaction().rollback();
@@ -716,6 +1069,57 @@ public class DatabaseMemory extends BasicMemory {
 		}
 	}
 
+	/**
+	 * Populate the normalized data of the existing string vertices.
+	 * The values are computed with BasicVertex.normalize() so they match the lookups, the database lower() function
+	 * is locale dependent and does not strip accents.
+	 * The vertices not yet migrated are read in pages in id order, and each page is committed in its own transaction,
+	 * so the vertices are never all loaded at once, and a failed migration resumes from the vertices not yet migrated.
+	 * Return false if the migration failed.
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean migrateNormalizedData() {
+		long lastId = 0;
+		int count = 0;
+		while (true) {
+			List<Object[]> rows = null;
+			try {
+				Query select = this.entityManager.createNativeQuery(
+						"select id, datavalue from vertex where datatype = 'String' and normalizeddata is null and id > ? order by id");
+				select.setParameter(1, lastId);
+				select.setMaxResults(MIGRATE_PAGE);
+				rows = select.getResultList();
+			} catch (Exception failed) {
+				this.bot.log(this, failed);
+				return false;
+			}
+			if (rows.isEmpty()) {
+				break;
+			}
+			this.entityManager.getTransaction().begin();
+			try {
+				Query update = this.entityManager.createNativeQuery("update vertex set normalizeddata = ? where id = ?");
+				for (Object[] row : rows) {
+					update.setParameter(1, BasicVertex.normalize((String)row[1]));
+					update.setParameter(2, row[0]);
+					update.executeUpdate();
+					lastId = ((Number)row[0]).longValue();
+				}
+				this.entityManager.getTransaction().commit();
+			} catch (Exception failed) {
+				this.bot.log(this, failed);
+				return false;
+			} finally {
+				if (this.entityManager.getTransaction().isActive()) {
+					this.entityManager.getTransaction().rollback();
+				}
+			}
+			count = count + rows.size();
+			this.bot.log(this, "Migrated normalized data", Level.INFO, count);
+		}
+		return true;
+	}
+	
 	public boolean executeDDL(String ddl) {
 		this.entityManager.getTransaction().begin();
 		try {
@@ -745,8 +1149,100 @@ public class DatabaseMemory extends BasicMemory {
 	public Network newMemory() {
 		DatabaseNetwork memory = new DatabaseNetwork(getFactory().createEntityManager(), true);
 		memory.setBot(this.bot);
+		memory.setTemplate(this.template);
 		return memory;
 	}
+	
+	/**
+	 * Return an isolated transactional memory that commits without the memory's lock.
+	 * Data vertices it creates are merged with any committed concurrently by another network.
+	 */
+	@Override
+	public Network newIsolatedMemory() {
+		DatabaseNetwork memory = (DatabaseNetwork)newMemory();
+		memory.setIsolated(true);
+		return memory;
+	}
+
+	public Network getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Layer the read-only template network under the database networks.
+	 * Data not in the database is found in the template, and copied into the database when accessed from a writable network.
+	 */
+	public void setTemplate(Network template) {
+		if (template != null) {
+			template.setBot(this.bot);
+		}
+		this.template = template;
+		if (this.longTermMemory != null) {
+			((DatabaseNetwork)this.longTermMemory).setTemplate(template);
+		}
+		if (this.shortTermMemory != null) {
+			((DatabaseNetwork)this.shortTermMemory).setTemplate(template);
+		}
+	}
+
+	/**
+	 * Layer the memory mapped network snapshot file under the database networks.
+	 * The snapshot is mapped once and shared by all of the bots using the same file, such as bots created from the same template.
+	 */
+	public void setTemplate(File file) {
+		MappedNetwork template = MappedNetwork.open(file);
+		template.setCacheSize(this.templateCacheSize);
+		setTemplate(template);
+	}
+
+	public int getTemplateCacheSize() {
+		return templateCacheSize;
+	}
+
+	/**
+	 * Set the maximum number of template vertices materialized by the template network opened from a snapshot file.
+	 */
+	public void setTemplateCacheSize(int templateCacheSize) {
+		this.templateCacheSize = templateCacheSize;
+	}
+
+	/**
+	 * Return the lock used to merge the commits of networks that create new data vertices, isolated or not.
+	 * The lock is shared by all instances of the same database.
+	 */
+	public Object getMergeLock() {
+		Object lock = mergeLocks.get(this.database);
+		if (lock == null) {
+			mergeLocks.putIfAbsent(this.database, new Object());
+			lock = mergeLocks.get(this.database);
+		}
+		return lock;
+	}
+
+	/**
+	 * Return this bot's hit and miss statistics on the database's shared vertex cache.
+	 */
+	public VertexCache.Stats getVertexCacheStats() {
+		return vertexCacheStats;
+	}
+
+	/**
+	 * Return the shared vertex cache for the database, it records the evictions.
+	 */
+	public VertexCache getVertexCache() {
+		return VertexCache.getCache(this);
+	}
+
+	public void incrementMergeConflicts(int count) {
+		this.mergeConflicts.addAndGet(count);
+	}
+
+	/**
+	 * Return the number of duplicate data vertices created by concurrent conversations that were merged on commit.
+	 */
+	public long getMergeConflicts() {
+		return this.mergeConflicts.get();
+	}
 
 	/**
 	 * Return the current connected database name.
@@ -853,6 +1349,7 @@ public class DatabaseMemory extends BasicMemory {
 					statement.executeUpdate(
 							"INSERT INTO SEQUENCE (seq_name, seq_count) (SELECT seq_name, seq_count FROM public.dblink('dbconnection', 'SELECT seq_name, seq_count FROM SEQUENCE') AS T1(seq_name varchar, seq_count numeric))");
 					statement.execute("select public.dblink_disconnect('dbconnection')");
+					statement.executeUpdate(RECOUNT_REFERENCES);
 				}
 				statement.close();
 				((JpaEntityManagerFactory)getFactory()).getServerSession().getReadConnectionPool().releaseConnection(accessor);
@@ -882,6 +1379,9 @@ public class DatabaseMemory extends BasicMemory {
 	 */
 	@Override
 	public void destroyMemory(String database, boolean isSchema) {
+		QuestionIndex.removeIndex(database);
+		PatternIndex.removeIndex(database);
+		VertexCache.removeCache(database);
 		try {
 			Accessor accessor = ((JpaEntityManagerFactory)getFactory()).getServerSession().getReadConnectionPool().acquireConnection();
 			Connection connection = accessor.getConnection();
@@ -891,6 +1391,7 @@ public class DatabaseMemory extends BasicMemory {
 			} else {
 				statement.executeUpdate("DROP DATABASE " + database);
 			}
+			BootImage.invalidate(database);
 			statement.close();
 			((JpaEntityManagerFactory)getFactory()).getServerSession().getReadConnectionPool().releaseConnection(accessor);
 		} catch (Exception failed) {
@@ -904,7 +1405,11 @@ public class DatabaseMemory extends BasicMemory {
 	 */
 	@Override
 	public void deleteMemory() {
+		QuestionIndex.removeIndex(getMemoryName());
+		PatternIndex.removeIndex(getMemoryName());
+		VertexCache.removeCache(getMemoryName());
 		restore(getMemoryName(), this.isSchema, true);
+		BootImage.invalidate(getMemoryName());
 	}
 
 	/**
@@ -975,6 +1480,47 @@ public class DatabaseMemory extends BasicMemory {
 		}
 	}
 
+	/**
+	 * Export the database to a binary network snapshot file.
+	 * The vertices are read in pages using an isolated memory, so the database does not need to fit in the heap.
+	 */
+	public void exportSnapshot(File file) {
+		Network network = newMemory();
+		OutputStream stream = null;
+		try {
+			stream = new FileOutputStream(file);
+			NetworkSnapshot.instance().write(network, stream, true);
+		} catch (IOException exception) {
+			this.bot.log(this, exception);
+			throw new BotException("IO error while writing a network snapshot.", exception);
+		} finally {
+			try {
+				if (stream != null) {
+					stream.close();
+				}
+			} catch (Exception ignore) {}
+			((DatabaseNetwork)network).getEntityManager().close();
+		}
+	}
+
+	/**
+	 * Bulk load the binary network snapshot file into the database.
+	 * The snapshot is committed in pages using an isolated memory.
+	 * If the database is not empty, vertices with data are merged with the existing vertices.
+	 */
+	public void importSnapshot(File file) {
+		Network network = newMemory();
+		try {
+			boolean merge = getLongTermMemory().size() != 0;
+			NetworkSnapshot.instance().load(file, network, NetworkSnapshot.PAGE_SIZE, merge);
+		} catch (RuntimeException failed) {
+			this.bot.log(this, failed);
+			throw failed;
+		} finally {
+			((DatabaseNetwork)network).getEntityManager().close();
+		}
+	}
+
 	/**
 	 * Clear the memory.
 	 */
@@ -19,9 +19,13 @@ package org.botlibre.knowledge.database;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,16 +37,22 @@ import javax.persistence.Query;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 
+import org.botlibre.BootImage;
 import org.botlibre.Bot;
 import org.botlibre.api.knowledge.Data;
 import org.botlibre.api.knowledge.Network;
 import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.knowledge.AbstractNetwork;
+import org.botlibre.knowledge.BasicMemory;
 import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.BinaryData;
 import org.botlibre.knowledge.Primitive;
 import org.botlibre.knowledge.Property;
 import org.botlibre.thought.consciousness.Consciousness;
+import org.botlibre.util.Trace.Span;
+import org.botlibre.util.Tracer;
+import org.botlibre.util.Utils;
 import org.eclipse.persistence.jpa.JpaEntityManager;
 import org.eclipse.persistence.sessions.UnitOfWork;
 
@@ -51,12 +61,24 @@ import org.eclipse.persistence.sessions.UnitOfWork;
  */
 
 public class DatabaseNetwork extends AbstractNetwork {
+	/** Maximum number of values in an IN query. */
+	public static int MAX_IN_SIZE = 500;
 	
 	private Boolean trackAccessCount;
 
 	private EntityManager entityManager;
 	/** Cache the size query result. */
 	private int size = -1;
+	/** Isolated networks commit without the memory's lock, and merge any duplicate data vertices. */
+	private boolean isIsolated;
+	/** Data vertices created by this network since its last commit. */
+	private List<Vertex> newDataVertices = new ArrayList<Vertex>();
+	/** Optional read-only template network, such as a shared mapped snapshot, searched for data not in the database. */
+	private Network template;
+	/** Template vertices found for data not in the database, referenced until they are modified. */
+	private Map<Object, Vertex> templateVerticiesByData = new HashMap<Object, Vertex>();
+	/** If properties were saved or removed in the current transaction, the boot image snapshot is invalidated once committed. */
+	private boolean isPropertyChanged;
 	
 	public DatabaseNetwork(EntityManager entityManager, boolean isShortTerm) {
 		super(isShortTerm);
@@ -71,6 +93,32 @@ public class DatabaseNetwork extends AbstractNetwork {
 	public void setEntityManager(EntityManager entityManager) {
 		this.entityManager = entityManager;
 	}
+
+	public boolean isIsolated() {
+		return isIsolated;
+	}
+
+	public Network getTemplate() {
+		return template;
+	}
+
+	/**
+	 * Set the read-only template network layered under this network.
+	 * Data not found in the database is found in the template, and the template vertex is returned.
+	 * A writable network copies the template vertex into the database when it is created or imported to be modified.
+	 */
+	public void setTemplate(Network template) {
+		this.template = template;
+		this.templateVerticiesByData.clear();
+	}
+
+	/**
+	 * Set if the network is an isolated conversation network.
+	 * Isolated networks do not lock the memory to commit, so conversations can be processed concurrently.
+	 */
+	public void setIsolated(boolean isIsolated) {
+		this.isIsolated = isIsolated;
+	}
 	
 	protected void addRelationship(Relationship relationship) {
 		this.entityManager.persist(relationship);
@@ -156,7 +204,7 @@ public class DatabaseNetwork extends AbstractNetwork {
 				this.entityManager.getTransaction().begin();
 				rowCount = this.entityManager.createQuery(jpql).executeUpdate();
 				this.entityManager.getTransaction().commit();
-				resetSize();
+				committed();
 			} catch (RuntimeException failed) {
 				this.bot.log(this, failed);
 				if (this.entityManager.getTransaction().isActive()) {
@@ -177,25 +225,173 @@ public class DatabaseNetwork extends AbstractNetwork {
 	 */
 	public void save() {
 		this.bot.log(this, "Saving", Level.FINE); //, newObjects);
-		synchronized (this.bot.memory()) {
-			try {
-				this.entityManager.getTransaction().begin();
-				this.entityManager.getTransaction().commit();
-				resetSize();
-			} catch (RuntimeException failed) {
-				this.bot.log(this, failed);
-				if (this.entityManager.getTransaction().isActive()) {
-					this.entityManager.getTransaction().rollback();
+		Span span = Tracer.start("save");
+		try {
+			if (this.isIsolated) {
+				saveMerged();
+			} else {
+				synchronized (this.bot.memory()) {
+					saveMerged();
 				}
-				// If commit fails, clear short-term memory to avoid
-				// repeated failures.
-				clear();
-				throw failed;
 			}
+		} finally {
+			Tracer.stop(span);
 		}
 		((DatabaseNetwork)this.bot.memory().getLongTermMemory()).resetSize();
 		//newObjects = new HashSet<Vertex>();
 	}
+
+	/**
+	 * Commit the network, merging any new data vertices.
+	 * Data vertices are unique, but an isolated network does not lock the memory, so another network may have committed the same data
+	 * since this network created its vertex. The commit is optimistic, only networks with new data vertices are serialized on the
+	 * database's merge lock, isolated or not, and any duplicate is merged into the committed vertex before the commit.
+	 */
+	protected void saveMerged() {
+		if (this.newDataVertices.isEmpty() || !(this.bot.memory() instanceof DatabaseMemory)) {
+			commit();
+			return;
+		}
+		DatabaseMemory memory = (DatabaseMemory)this.bot.memory();
+		synchronized (memory.getMergeLock()) {
+			try {
+				mergeDuplicates(memory);
+			} finally {
+				this.newDataVertices.clear();
+			}
+			commit();
+		}
+	}
+
+	/**
+	 * Merge any new data vertices that were committed by another network since they were created,
+	 * into the committed vertex, and replace all references to them.
+	 */
+	protected void mergeDuplicates(DatabaseMemory memory) {
+		Map<Vertex, Vertex> duplicates = new IdentityHashMap<Vertex, Vertex>();
+		for (Vertex vertex : this.newDataVertices) {
+			if (vertex.getData() instanceof Data) {
+				continue;
+			}
+			Query query = this.entityManager.createNamedQuery("findVertexByData");
+			query.setParameter("data", BasicVertex.convertDataValue(vertex.getData()));
+			query.setParameter("type", BasicVertex.convertDataType(vertex.getData()));
+			for (Object result : query.getResultList()) {
+				if (result != vertex) {
+					duplicates.put(vertex, (Vertex)result);
+					break;
+				}
+			}
+		}
+		if (duplicates.isEmpty()) {
+			return;
+		}
+		memory.incrementMergeConflicts(duplicates.size());
+		this.bot.log(this, "Merging duplicate vertices", Level.FINE, duplicates.size());
+		// Replace references from this network's vertices, and from the meta vertices of their relationships.
+		List<Vertex> vertices = new ArrayList<Vertex>(allActive());
+		Map<Vertex, Vertex> scanned = new IdentityHashMap<Vertex, Vertex>();
+		for (Vertex vertex : vertices) {
+			scanned.put(vertex, vertex);
+		}
+		for (int index = 0; index < vertices.size(); index++) {
+			Vertex vertex = vertices.get(index);
+			boolean isDuplicate = duplicates.containsKey(vertex);
+			List<Relationship> references = null;
+			for (Iterator<Relationship> iterator = vertex.allRelationships(); iterator.hasNext(); ) {
+				Relationship relationship = iterator.next();
+				Vertex meta = relationship.hasMeta() ? relationship.getMeta() : null;
+				if ((meta != null) && !scanned.containsKey(meta)) {
+					scanned.put(meta, meta);
+					vertices.add(meta);
+				}
+				if (!isDuplicate && (duplicates.containsKey(relationship.getTarget()) || duplicates.containsKey(relationship.getType())
+							|| ((meta != null) && duplicates.containsKey(meta)))) {
+					if (references == null) {
+						references = new ArrayList<Relationship>();
+					}
+					references.add(relationship);
+				}
+			}
+			if (references != null) {
+				for (Relationship relationship : references) {
+					vertex.internalRemoveRelationship(relationship);
+					mergeRelationship(vertex, relationship, duplicates);
+				}
+			}
+		}
+		// Move the duplicate's relationships to the committed vertex.
+		for (Map.Entry<Vertex, Vertex> entry : duplicates.entrySet()) {
+			Vertex duplicate = entry.getKey();
+			Vertex existing = entry.getValue();
+			List<Relationship> relationships = new ArrayList<Relationship>();
+			for (Iterator<Relationship> iterator = duplicate.allRelationships(); iterator.hasNext(); ) {
+				relationships.add(iterator.next());
+			}
+			duplicate.internalRemoveAllRelationships();
+			for (Relationship relationship : relationships) {
+				mergeRelationship(existing, relationship, duplicates);
+			}
+			if (this.entityManager.contains(duplicate)) {
+				this.entityManager.remove(duplicate);
+			}
+			this.verticiesByData.put(existing.getData(), existing);
+		}
+	}
+
+	/**
+	 * Add the relationship to the source, replacing any duplicate type, target, or meta with its committed vertex.
+	 */
+	protected void mergeRelationship(Vertex source, Relationship relationship, Map<Vertex, Vertex> duplicates) {
+		Vertex type = relationship.getType();
+		if (duplicates.containsKey(type)) {
+			type = duplicates.get(type);
+		}
+		Vertex target = relationship.getTarget();
+		if (duplicates.containsKey(target)) {
+			target = duplicates.get(target);
+		}
+		Relationship merged = source.addRelationship(type, target, relationship.getIndex());
+		merged.setCorrectness(relationship.getCorrectness());
+		if (relationship.hasMeta() && !merged.hasMeta()) {
+			Vertex meta = relationship.getMeta();
+			if (duplicates.containsKey(meta)) {
+				meta = duplicates.get(meta);
+			}
+			merged.setMeta(meta);
+		}
+	}
+
+	/**
+	 * Commit the transaction, on failure the network is cleared.
+	 */
+	protected void commit() {
+		try {
+			this.entityManager.getTransaction().begin();
+			this.entityManager.getTransaction().commit();
+			committed();
+		} catch (RuntimeException failed) {
+			this.bot.log(this, failed);
+			if (this.entityManager.getTransaction().isActive()) {
+				this.entityManager.getTransaction().rollback();
+			}
+			// If commit fails, clear short-term memory to avoid
+			// repeated failures.
+			clear();
+			throw failed;
+		}
+	}
+	
+	/**
+	 * Reset the size, and invalidate the boot image snapshot if properties were changed, after a successful commit.
+	 */
+	protected void committed() {
+		resetSize();
+		if (this.isPropertyChanged) {
+			this.isPropertyChanged = false;
+			BootImage.invalidate(this.bot.memory().getMemoryName());
+		}
+	}
 	
 	public void resetSize() {
 		this.size = -1;		
@@ -204,6 +400,10 @@ public class DatabaseNetwork extends AbstractNetwork {
 	public synchronized void clear() {
 		this.entityManager.clear();
 		this.verticiesByData.clear();
+		this.templateVerticiesByData.clear();
+		this.isPropertyChanged = false;
+		this.newDataVertices.clear();
+		this.compiled = null;
 		resetSize();
 		this.entityManager.unwrap(UnitOfWork.class).setProperty("network", this);
 	}
@@ -220,6 +420,7 @@ public class DatabaseNetwork extends AbstractNetwork {
 		this.entityManager.persist(vertex);
 		if (vertex.hasData()) {
 			this.verticiesByData.put(vertex.getData(), vertex);
+			this.newDataVertices.add(vertex);
 		}
 		//newObjects.add(vertex);
 	}
@@ -236,6 +437,7 @@ public class DatabaseNetwork extends AbstractNetwork {
 			property = new Property(propertyName, value, startup);
 			this.entityManager.persist(property);
 		}
+		this.isPropertyChanged = true;
 		super.saveProperty(propertyName, value, startup);
 	}
 
@@ -247,6 +449,7 @@ public class DatabaseNetwork extends AbstractNetwork {
 		if (property != null) {
 			this.entityManager.remove(property);
 		}
+		this.isPropertyChanged = true;
 		super.removeProperty(propertyName);
 	}
 	
@@ -283,9 +486,17 @@ public class DatabaseNetwork extends AbstractNetwork {
 		this.entityManager.remove(managed);
 		if (vertex.hasData()) {
 			this.verticiesByData.remove(vertex.getData());
+			VertexCache cache = VertexCache.getCache(this.bot.memory());
+			Object key = VertexCache.getKey(vertex.getData());
+			if ((cache != null) && (key != null)) {
+				cache.remove(key);
+			}
 			if (vertex.getData() instanceof Data) {
 				this.entityManager.remove(findData((Data)vertex.getData()));				
 			}
+			if ((vertex.getData() instanceof BinaryData) && (vertex.getId() != null) && (this.bot.memory() instanceof BasicMemory)) {
+				((BasicMemory)this.bot.memory()).getByteCodeCache().invalidate(vertex.getId());
+			}
 		}
 	}
 	
@@ -564,20 +775,281 @@ public class DatabaseNetwork extends AbstractNetwork {
 		if (vertex != null) {
 			return vertex;
 		}
+		if (this.template != null) {
+			vertex = this.templateVerticiesByData.get(data);
+			if (vertex != null) {
+				return vertex;
+			}
+		}
+		// Missing data was also not found in the template.
+		if ((this.missingData != null) && this.missingData.contains(data)) {
+			return null;
+		}
+		// Check the shared cache for the id, the vertex can then be found from the server cache.
+		VertexCache cache = VertexCache.getCache(this.bot.memory());
+		Object key = null;
+		if (cache != null) {
+			key = VertexCache.getKey(data);
+		}
+		if (key != null) {
+			Long id = cache.get(key, ((DatabaseMemory)this.bot.memory()).getVertexCacheStats());
+			if (id != null) {
+				vertex = this.entityManager.find(BasicVertex.class, id);
+				if ((vertex != null) && data.equals(vertex.getData())) {
+					if (trackAccessCount()) {
+						vertex.incrementAccessCount();
+					}
+					this.verticiesByData.put(vertex.getData(), vertex);
+					return vertex;
+				}
+				// Deleted or changed.
+				cache.remove(key);
+			}
+		}
 		Query query = this.entityManager.createNamedQuery("findVertexByData");
 		setHints(query);
 		query.setParameter("data", BasicVertex.convertDataValue(data));
 		query.setParameter("type", BasicVertex.convertDataType(data));
+		this.dataQueryCount++;
 		try {
 			vertex = (Vertex)query.getSingleResult();
 			if (trackAccessCount()) {
 				vertex.incrementAccessCount();
 			}
 			this.verticiesByData.put(vertex.getData(), vertex);
+			if (key != null) {
+				cache.put(key, vertex.getId());
+			}
 			return vertex;
 		} catch (NoResultException notFound) {
+			return findTemplateData(data);
+		}
+	}
+	
+	/**
+	 * Return the vertex with the data from the template network, or null.
+	 * The template vertex is referenced, not copied into the database, until it is modified.
+	 */
+	protected Vertex findTemplateData(Object data) {
+		if (this.template == null) {
 			return null;
 		}
+		Vertex vertex = this.template.findByData(data);
+		if (vertex != null) {
+			this.templateVerticiesByData.put(data, vertex);
+		}
+		return vertex;
+	}
+	
+	/**
+	 * Copy the template vertex and its relationships into the database so it can be modified.
+	 * The relationships' data vertices are copied without their own relationships if they are not already in the database.
+	 */
+	protected Vertex importTemplateVertex(Vertex vertex) {
+		Network template = this.template;
+		// Disable the template while merging to only copy one level.
+		this.template = null;
+		try {
+			Map<Vertex, Vertex> identitySet = new IdentityHashMap<Vertex, Vertex>();
+			importMerge(vertex, identitySet);
+			for (Vertex source : identitySet.keySet()) {
+				if (source.hasData()) {
+					this.templateVerticiesByData.remove(source.getData());
+				}
+			}
+			return identitySet.get(vertex);
+		} finally {
+			this.template = template;
+		}
+	}
+	
+	/**
+	 * Return if the vertex is from the template network, and must be copied into the database to be modified.
+	 */
+	protected boolean isTemplateVertex(Vertex vertex) {
+		return (this.template != null) && (vertex != null) && (vertex.getNetwork() == this.template) && !isReadOnly();
+	}
+	
+	/**
+	 * Create the vertex with the data, a template vertex is copied into the database as it may be modified.
+	 */
+	@Override
+	public synchronized Vertex createVertex(Object data) {
+		if ((this.template != null) && (data != null) && !(data instanceof Class)) {
+			Vertex vertex = findByData(data);
+			if (isTemplateVertex(vertex)) {
+				importTemplateVertex(vertex);
+			}
+		}
+		return super.createVertex(data);
+	}
+	
+	/**
+	 * Create the vertex from the source, a template vertex is copied into the database as it may be modified.
+	 * The template's ids are not database ids, so it is not found by id.
+	 */
+	@Override
+	public synchronized Vertex createVertex(Vertex source) {
+		if (isTemplateVertex(source)) {
+			Vertex vertex = this.verticiesByData.get(source.getData());
+			if (vertex != null) {
+				return vertex;
+			}
+			return importTemplateVertex(source);
+		}
+		Vertex vertex = super.createVertex(source);
+		if (isTemplateVertex(vertex)) {
+			vertex = importTemplateVertex(vertex);
+		}
+		return vertex;
+	}
+	
+	/**
+	 * Return the vertices with the given data values, keyed by data.
+	 * The values not already in the network or the shared cache are found with one IN query for each data type.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized Map<Object, Vertex> findAllByData(Collection<?> data) {
+		Map<Object, Vertex> vertices = new HashMap<Object, Vertex>();
+		VertexCache cache = VertexCache.getCache(this.bot.memory());
+		// Data values to query keyed by data type then value.
+		Map<String, Map<String, Object>> values = new HashMap<String, Map<String, Object>>();
+		for (Object value : data) {
+			if (value == null || (value instanceof Data)) {
+				continue;
+			}
+			Vertex vertex = this.verticiesByData.get(value);
+			if (vertex == null && this.template != null) {
+				vertex = this.templateVerticiesByData.get(value);
+			}
+			if (vertex == null && cache != null) {
+				Long id = cache.get(VertexCache.getKey(value), ((DatabaseMemory)this.bot.memory()).getVertexCacheStats());
+				if (id != null) {
+					vertex = this.entityManager.find(BasicVertex.class, id);
+					if ((vertex != null) && value.equals(vertex.getData())) {
+						this.verticiesByData.put(vertex.getData(), vertex);
+					} else {
+						cache.remove(VertexCache.getKey(value));
+						vertex = null;
+					}
+				}
+			}
+			if (vertex != null) {
+				vertices.put(value, vertex);
+				continue;
+			}
+			String type = BasicVertex.convertDataType(value);
+			Map<String, Object> typeValues = values.get(type);
+			if (typeValues == null) {
+				typeValues = new HashMap<String, Object>();
+				values.put(type, typeValues);
+			}
+			typeValues.put(BasicVertex.convertDataValue(value), value);
+		}
+		for (Map.Entry<String, Map<String, Object>> entry : values.entrySet()) {
+			List<String> dataValues = new ArrayList<String>(entry.getValue().keySet());
+			for (int index = 0; index < dataValues.size(); index = index + MAX_IN_SIZE) {
+				Query query = this.entityManager.createNamedQuery("findAllVerticesByData");
+				setHints(query);
+				query.setParameter("data", dataValues.subList(index, Math.min(dataValues.size(), index + MAX_IN_SIZE)));
+				query.setParameter("type", entry.getKey());
+				this.dataQueryCount++;
+				for (Vertex vertex : (List<Vertex>)query.getResultList()) {
+					Object value = entry.getValue().get(BasicVertex.convertDataValue(vertex.getData()));
+					if (value == null || vertices.containsKey(value)) {
+						continue;
+					}
+					if (trackAccessCount()) {
+						vertex.incrementAccessCount();
+					}
+					this.verticiesByData.put(vertex.getData(), vertex);
+					vertices.put(value, vertex);
+					if (cache != null) {
+						cache.put(VertexCache.getKey(value), vertex.getId());
+					}
+				}
+			}
+		}
+		if (this.template != null) {
+			// Resolve the data not in the database from the template, so it is not recorded as missing.
+			for (Map<String, Object> typeValues : values.values()) {
+				for (Object value : typeValues.values()) {
+					if (!vertices.containsKey(value)) {
+						Vertex vertex = findTemplateData(value);
+						if (vertex != null) {
+							vertices.put(value, vertex);
+						}
+					}
+				}
+			}
+		}
+		return vertices;
+	}
+	
+	/**
+	 * Return all of the words with the same case folded text, including the text.
+	 * The variants are found with one query on the indexed normalized data, instead of a query for each spelling.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Vertex> findAllByNormalizedData(String text) {
+		List<Vertex> vertices = new ArrayList<Vertex>();
+		if (text == null || text.length() > MAX_TEXT) {
+			return vertices;
+		}
+		String lower = text.toLowerCase();
+		String caps = Utils.capitalize(text);
+		String upper = text.toUpperCase();
+		Set<Vertex> found = new LinkedHashSet<Vertex>();
+		// New vertices may not be committed yet.
+		boolean resolved = true;
+		String[] variants = new String[] {text, lower, caps, upper};
+		for (String variant : variants) {
+			Vertex vertex = this.verticiesByData.get(variant);
+			if (vertex == null && this.template != null) {
+				vertex = this.templateVerticiesByData.get(variant);
+			}
+			if (vertex != null) {
+				found.add(vertex);
+			} else if ((this.missingData == null) || !this.missingData.contains(variant)) {
+				resolved = false;
+			}
+		}
+		if (resolved) {
+			// The common variants were already found, or found to not exist while parsing.
+			vertices.addAll(found);
+			return vertices;
+		}
+		String normalized = BasicVertex.normalize(text);
+		Query query = this.entityManager.createNamedQuery("findAllVerticesByNormalizedData");
+		setHints(query);
+		query.setParameter("data", normalized);
+		this.dataQueryCount++;
+		for (Vertex vertex : (List<Vertex>)query.getResultList()) {
+			Vertex existing = this.verticiesByData.get(vertex.getData());
+			if (existing != null) {
+				found.add(existing);
+				continue;
+			}
+			if (trackAccessCount()) {
+				vertex.incrementAccessCount();
+			}
+			this.verticiesByData.put(vertex.getData(), vertex);
+			found.add(vertex);
+		}
+		if (this.template != null) {
+			// The template is not indexed by normalized data, so check the common variants not in the database.
+			for (String variant : variants) {
+				if (!this.verticiesByData.containsKey(variant) && !this.templateVerticiesByData.containsKey(variant)
+						&& ((this.missingData == null) || !this.missingData.contains(variant))) {
+					Vertex vertex = findTemplateData(variant);
+					if (vertex != null) {
+						found.add(vertex);
+					}
+				}
+			}
+		}
+		vertices.addAll(found);
+		return vertices;
 	}
 	
 	/**
@@ -198,7 +198,7 @@ public class DatabaseReadOnlyNetwork extends DatabaseNetwork {
 			}
 			return vertex;
 		} catch (NoResultException notFound) {
-			return null;
+			return findTemplateData(data);
 		}
 	}
 	
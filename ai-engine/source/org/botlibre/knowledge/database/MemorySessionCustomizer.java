@@ -17,19 +17,69 @@
  ******************************************************************************/
 package org.botlibre.knowledge.database;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicRelationship;
 import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.thought.forgetfulness.Forgetfulness;
+import org.botlibre.util.Tracer;
 import org.eclipse.persistence.config.SessionCustomizer;
 import org.eclipse.persistence.descriptors.DescriptorEvent;
 import org.eclipse.persistence.descriptors.DescriptorEventAdapter;
+import org.eclipse.persistence.internal.sessions.AbstractRecord;
 import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.internal.sessions.ObjectChangeSet;
 import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
 
 /**
  * Need to set the network of all vertices when loaded from database.
+ * Also maintains the question and pattern indexes, and the vertex reference counts, from relationship and vertex inserts, updates and deletes,
+ * and counts the queries of the current trace.
  */
 public class MemorySessionCustomizer implements SessionCustomizer {
+	/** Reference count changes of the thread's current transaction, sorted by vertex id. */
+	protected static ThreadLocal<Map<Long, Integer>> referenceDeltas = new ThreadLocal<Map<Long, Integer>>() {
+		@Override
+		protected Map<Long, Integer> initialValue() {
+			return new TreeMap<Long, Integer>();
+		}
+	};
+	
 	public void customize(Session session) {
+		session.getEventManager().addListener(new SessionEventAdapter() {
+			@Override
+			public void preCommitTransaction(SessionEvent event) {
+				if (Forgetfulness.REFERENCE_COUNTS) {
+					writeReferenceDeltas(event.getSession());
+				}
+			}
+			@Override
+			public void postRollbackTransaction(SessionEvent event) {
+				referenceDeltas.remove();
+			}
+			@Override
+			public void postExecuteQuery(SessionEvent event) {
+				// Count the query and its rows in the thread's trace.
+				if (Tracer.current() != null) {
+					Object result = event.getResult();
+					int rows = 0;
+					if (result instanceof Collection) {
+						rows = ((Collection<?>)result).size();
+					} else if (result != null) {
+						rows = 1;
+					}
+					Tracer.addQuery(rows);
+				}
+			}
+		});
 		session.getDescriptor(BasicVertex.class).getEventManager().addListener(new DescriptorEventAdapter() {
 			@Override
 			public void postClone(DescriptorEvent event) {
@@ -55,6 +105,19 @@ public class MemorySessionCustomizer implements SessionCustomizer {
 				}
 			}
 			@Override
+			public void preDelete(DescriptorEvent event) {
+				if (Forgetfulness.REFERENCE_COUNTS) {
+					removeVertexReferences(event, (BasicVertex)event.getSource());
+				}
+			}
+			@Override
+			public void postDelete(DescriptorEvent event) {
+				PatternIndex patternIndex = findPatternIndex(event);
+				if (patternIndex != null) {
+					patternIndex.vertexRemoved((BasicVertex)event.getSource());
+				}
+			}
+			@Override
 			public void postMerge(DescriptorEvent event) {
 				AbstractSession session = event.getSession();
 				while (session != null && !session.isServerSession()) {
@@ -69,6 +132,169 @@ public class MemorySessionCustomizer implements SessionCustomizer {
 				}
 			}
 		});
-		
+		session.getDescriptor(BasicRelationship.class).getEventManager().addListener(new DescriptorEventAdapter() {
+			@Override
+			public void postInsert(DescriptorEvent event) {
+				QuestionIndex index = findQuestionIndex(event);
+				if (index != null) {
+					index.relationshipAdded((BasicRelationship)event.getSource());
+				}
+				PatternIndex patternIndex = findPatternIndex(event);
+				if (patternIndex != null) {
+					patternIndex.relationshipAdded((BasicRelationship)event.getSource());
+				}
+				if (Forgetfulness.REFERENCE_COUNTS) {
+					addReferences(event, (BasicRelationship)event.getSource());
+				}
+			}
+			@Override
+			public void postUpdate(DescriptorEvent event) {
+				// Only a change of correctness can change if the relationship is indexed.
+				ObjectChangeSet changeSet = event.getChangeSet();
+				if (changeSet != null && !changeSet.hasChangeFor("correctness")) {
+					return;
+				}
+				QuestionIndex index = findQuestionIndex(event);
+				if (index != null) {
+					index.relationshipUpdated((BasicRelationship)event.getSource());
+				}
+			}
+			@Override
+			public void preDelete(DescriptorEvent event) {
+				if (Forgetfulness.REFERENCE_COUNTS) {
+					removeReferences(event, (BasicRelationship)event.getSource());
+				}
+			}
+			@Override
+			public void postDelete(DescriptorEvent event) {
+				QuestionIndex index = findQuestionIndex(event);
+				if (index != null) {
+					index.relationshipRemoved((BasicRelationship)event.getSource());
+				}
+				PatternIndex patternIndex = findPatternIndex(event);
+				if (patternIndex != null) {
+					patternIndex.relationshipRemoved((BasicRelationship)event.getSource());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Record an increment of the reference count of the relationship's target, type, and meta, for the commit's transaction.
+	 * Primitives are never forgotten, so are not counted, this also avoids contention on the common type vertices.
+	 */
+	protected void addReferences(DescriptorEvent event, BasicRelationship relationship) {
+		List<Long> ids = new ArrayList<Long>(3);
+		addReference(ids, relationship.getTarget());
+		addReference(ids, relationship.getType());
+		addReference(ids, relationship.getMeta());
+		for (Long id : ids) {
+			addReferenceDelta(id, 1);
+		}
+	}
+	
+	protected void addReference(List<Long> ids, Vertex vertex) {
+		if ((vertex == null) || (vertex.getId() == null) || vertex.isPrimitive() || ids.contains(vertex.getId())) {
+			return;
+		}
+		ids.add(vertex.getId());
+	}
+	
+	/**
+	 * Record a decrement of the reference count of the relationship's target, type, and meta, for the commit's transaction.
+	 * The ids are selected from the row, so the lazy target, type, and meta are not loaded during the commit.
+	 */
+	protected void removeReferences(DescriptorEvent event, BasicRelationship relationship) {
+		if (relationship.getId() == null) {
+			return;
+		}
+		removeReferences(event, "ID = " + relationship.getId());
+	}
+	
+	/**
+	 * Record a decrement of the reference counts for the relationships the database deletes with the vertex.
+	 * The relationship foreign keys cascade on delete, so these rows are deleted without any relationship events.
+	 */
+	protected void removeVertexReferences(DescriptorEvent event, BasicVertex vertex) {
+		if (vertex.getId() == null) {
+			return;
+		}
+		long id = vertex.getId();
+		removeReferences(event, "SOURCE_ID = " + id + " OR TARGET_ID = " + id + " OR TYPE_ID = " + id);
+	}
+	
+	/**
+	 * Record a decrement of the reference count of the target, type, and meta of each relationship row matching the condition.
+	 */
+	@SuppressWarnings("unchecked")
+	protected void removeReferences(DescriptorEvent event, String condition) {
+		List<AbstractRecord> rows = event.getSession().executeSQL(
+				"SELECT TARGET_ID, TYPE_ID, META_ID FROM RELATIONSHIP WHERE " + condition);
+		for (AbstractRecord row : rows) {
+			List<Long> ids = new ArrayList<Long>(3);
+			for (Object value : row.getValues()) {
+				if (value instanceof Number && !ids.contains(((Number)value).longValue())) {
+					ids.add(((Number)value).longValue());
+				}
+			}
+			for (Long id : ids) {
+				addReferenceDelta(id, -1);
+			}
+		}
+	}
+	
+	/**
+	 * Add the change to the vertex's reference count, to be written when the transaction commits.
+	 */
+	protected void addReferenceDelta(Long id, int delta) {
+		Map<Long, Integer> deltas = referenceDeltas.get();
+		Integer count = deltas.get(id);
+		deltas.put(id, count == null ? delta : count + delta);
+	}
+	
+	/**
+	 * Write the reference count changes of the transaction, one update for each vertex, in id order.
+	 * The commit then only updates each vertex row once, and concurrent commits lock the rows in the same order,
+	 * so cannot deadlock each other.
+	 */
+	protected void writeReferenceDeltas(Session session) {
+		Map<Long, Integer> deltas = referenceDeltas.get();
+		if (deltas.isEmpty()) {
+			return;
+		}
+		referenceDeltas.remove();
+		for (Map.Entry<Long, Integer> entry : deltas.entrySet()) {
+			int delta = entry.getValue();
+			if (delta > 0) {
+				session.executeNonSelectingSQL("UPDATE VERTEX SET REFERENCECOUNT = REFERENCECOUNT + " + delta
+						+ " WHERE ID = " + entry.getKey());
+			} else if (delta < 0) {
+				session.executeNonSelectingSQL("UPDATE VERTEX SET REFERENCECOUNT = CASE WHEN REFERENCECOUNT + " + delta
+						+ " < 0 THEN 0 ELSE REFERENCECOUNT + " + delta + " END WHERE ID = " + entry.getKey()
+						+ " AND ((DATATYPE IS NULL) OR (DATATYPE <> 'Primitive'))");
+			}
+		}
+	}
+	
+	/**
+	 * Return the question index for the network's database, if it has been created.
+	 */
+	protected QuestionIndex findQuestionIndex(DescriptorEvent event) {
+		Network network = (Network)event.getSession().getProperty("network");
+		if (network == null || network.getBot() == null) {
+			return null;
+		}
+		return QuestionIndex.findIndex(network.getBot().memory().getMemoryName());
+	}
+	
+	/**
+	 * Return the pattern index for the network's database, if it has been created.
+	 */
+	protected PatternIndex findPatternIndex(DescriptorEvent event) {
+		Network network = (Network)event.getSession().getProperty("network");
+		if (network == null || network.getBot() == null) {
+			return null;
+		}
+		return PatternIndex.findIndex(network.getBot().memory().getMemoryName());
 	}
 }
\ No newline at end of file
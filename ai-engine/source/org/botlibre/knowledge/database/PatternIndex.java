@@ -0,0 +1,475 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+import javax.persistence.EntityManager;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Memory;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.thought.BasicMind;
+import org.botlibre.thought.language.Language;
+
+/**
+ * Compiled trie of the words of all of the patterns in the database (Graphmaster).
+ * Matching walks the trie once over the input words and returns all of the candidate patterns with the input words that matched their words.
+ * The trie over approximates evaluatePattern, wildcards, arrays and expressions match zero or more words,
+ * and punctuation is ignored, so the candidates must still be confirmed with evaluatePattern.
+ * The index is shared by all bot instances on the same database, built in the background on first access,
+ * new patterns are compiled from the PATTERN relationships created by createPattern once they are committed,
+ * and patterns are removed once their PATTERN relationship or vertex is deleted, or recompiled if their words are deleted.
+ */
+public class PatternIndex {
+	public static ConcurrentMap<String, PatternIndex> indexes = new ConcurrentHashMap<String, PatternIndex>();
+
+	protected String database;
+	protected volatile boolean isReady;
+	protected volatile boolean isBuilding;
+	protected Long patternId;
+	protected Long wordId;
+	protected Long instantiationId;
+	protected Long punctuationId;
+	protected Node root = new Node(0, null, null);
+	protected int nodeCount = 1;
+	/** The trie node of each compiled pattern. */
+	protected Map<Long, Node> patterns = new HashMap<Long, Node>();
+	protected ConcurrentLinkedQueue<Long> pending = new ConcurrentLinkedQueue<Long>();
+	protected ConcurrentLinkedQueue<Long> removed = new ConcurrentLinkedQueue<Long>();
+	protected ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Trie node, each edge is a lowercase word, or any number of words for a wildcard.
+	 */
+	public static class Node {
+		protected int id;
+		protected Node parent;
+		/** The word of the edge from the parent, or null for the parent's wildcard. */
+		protected String edge;
+		protected Map<String, Node> children;
+		protected Node wildcard;
+		protected List<Long> patterns;
+
+		public Node(int id, Node parent, String edge) {
+			this.id = id;
+			this.parent = parent;
+			this.edge = edge;
+		}
+		
+		public boolean isEmpty() {
+			return (this.patterns == null || this.patterns.isEmpty()) && (this.children == null || this.children.isEmpty()) && this.wildcard == null;
+		}
+	}
+
+	/**
+	 * Pattern that may match the input, with the input words that matched its words.
+	 * The star captures are not computed, they are set by evaluatePattern when the match is confirmed.
+	 */
+	public static class PatternMatch {
+		public Long pattern;
+		public List<Vertex> words = new ArrayList<Vertex>();
+	}
+
+	public PatternIndex(String database) {
+		this.database = database;
+	}
+
+	/**
+	 * Return the index for the network's database, or null if the index is not yet built.
+	 * The first access starts building the index in the background.
+	 */
+	public static PatternIndex getIndex(Network network) {
+		Memory memory = network.getBot().memory();
+		if (!(memory instanceof DatabaseMemory)) {
+			return null;
+		}
+		String database = memory.getMemoryName();
+		PatternIndex index = indexes.get(database);
+		if (index == null) {
+			index = new PatternIndex(database);
+			PatternIndex existing = indexes.putIfAbsent(database, index);
+			if (existing != null) {
+				index = existing;
+			}
+		}
+		if (index.isReady()) {
+			index.compilePending(network);
+			return index;
+		}
+		index.buildInBackground((DatabaseMemory)memory);
+		return null;
+	}
+
+	/**
+	 * Return the index for the database if it has been created.
+	 */
+	public static PatternIndex findIndex(String database) {
+		return indexes.get(database);
+	}
+
+	/**
+	 * Remove the database's index, it will be rebuilt on next access.
+	 */
+	public static void removeIndex(String database) {
+		indexes.remove(database);
+	}
+
+	public boolean isReady() {
+		return isReady;
+	}
+
+	public String getDatabase() {
+		return database;
+	}
+
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.patterns.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(Long pattern) {
+		this.lock.readLock().lock();
+		try {
+			return this.patterns.containsKey(pattern);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Build the index from the database in the shared thread pool using its own entity manager.
+	 */
+	public synchronized void buildInBackground(final DatabaseMemory memory) {
+		if (this.isBuilding || this.isReady) {
+			return;
+		}
+		this.isBuilding = true;
+		final Bot bot = memory.getBot();
+		final Network network = memory.getShortTermMemory();
+		this.patternId = network.createVertex(Primitive.PATTERN).getId();
+		this.wordId = network.createVertex(Primitive.WORD).getId();
+		this.instantiationId = network.createVertex(Primitive.INSTANTIATION).getId();
+		this.punctuationId = network.createVertex(Primitive.PUNCTUATION).getId();
+		if (this.patternId == null || this.wordId == null || this.instantiationId == null || this.punctuationId == null) {
+			// Primitives not yet committed, build on next access.
+			this.isBuilding = false;
+			return;
+		}
+		final EntityManager entityManager = memory.getFactory().createEntityManager();
+		BasicMind.threadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					build(entityManager, bot);
+				} catch (Throwable failed) {
+					bot.log(PatternIndex.this, failed);
+				} finally {
+					isBuilding = false;
+					try {
+						entityManager.close();
+					} catch (Exception ignore) {}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Load the words of all patterns from the database with a single query.
+	 * The query also returns if each word is an instance of punctuation, so it is ignored the same as in evaluatePattern.
+	 */
+	@SuppressWarnings("unchecked")
+	public void build(EntityManager entityManager, Bot bot) {
+		long start = System.currentTimeMillis();
+		bot.log(this, "Building pattern index", Level.INFO, this.database);
+		List<Object[]> rows = entityManager.createNativeQuery(
+				"SELECT r.SOURCE_ID, v.DATAVALUE, v.DATATYPE, (SELECT COUNT(*) FROM RELATIONSHIP i WHERE i.SOURCE_ID = v.ID AND i.TYPE_ID = " + this.instantiationId
+				+ " AND i.TARGET_ID = " + this.punctuationId + " AND i.CORRECTNESS >= 0)"
+				+ " FROM RELATIONSHIP r, VERTEX v WHERE v.ID = r.TARGET_ID AND r.TYPE_ID = " + this.wordId
+				+ " AND r.SOURCE_ID IN (SELECT p.TARGET_ID FROM RELATIONSHIP p WHERE p.TYPE_ID = " + this.patternId + ")"
+				+ " ORDER BY r.SOURCE_ID, r.SOURCE_INDEX").getResultList();
+		Long current = null;
+		List<String> elements = new ArrayList<String>();
+		for (Object[] row : rows) {
+			Long id = ((Number)row[0]).longValue();
+			if (current != null && !current.equals(id)) {
+				add(current, elements);
+				elements = new ArrayList<String>();
+			}
+			current = id;
+			elements.add(compileElement((String)row[1], (String)row[2], ((Number)row[3]).intValue() > 0));
+		}
+		if (current != null) {
+			add(current, elements);
+		}
+		this.isReady = true;
+		bot.log(this, "Pattern index built (patterns, nodes, time)", Level.INFO, size(), this.nodeCount, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Return the trie edge for the pattern element, or null for a wildcard.
+	 * Punctuation is ignored, and anything other than a word matches as a wildcard.
+	 */
+	public static String compileElement(String value, String type, boolean isPunctuation) {
+		if (value == null || !"String".equals(type)) {
+			return null;
+		}
+		if (isPunctuation || isPunctuation(value)) {
+			return "";
+		}
+		return normalize(value);
+	}
+
+	/**
+	 * Return if the word is a single punctuation character, words of more than one character are only punctuation if an instance of punctuation.
+	 * This must match Language.isPunctuation(Vertex).
+	 */
+	public static boolean isPunctuation(String value) {
+		return value.length() == 1 && !Character.isLetterOrDigit(value.charAt(0));
+	}
+
+	/**
+	 * Return the trie edge for the word, independent of the default locale.
+	 */
+	public static String normalize(String value) {
+		return value.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Compile the pattern's words into the trie.
+	 */
+	public void add(Long pattern, List<String> elements) {
+		this.lock.writeLock().lock();
+		try {
+			if (this.patterns.containsKey(pattern)) {
+				return;
+			}
+			Node node = this.root;
+			for (String element : elements) {
+				if (element == null) {
+					if (node.wildcard == null) {
+						node.wildcard = new Node(this.nodeCount++, node, null);
+					}
+					node = node.wildcard;
+				} else if (!element.isEmpty()) {
+					if (node.children == null) {
+						node.children = new HashMap<String, Node>(4);
+					}
+					Node child = node.children.get(element);
+					if (child == null) {
+						child = new Node(this.nodeCount++, node, element);
+						node.children.put(element, child);
+					}
+					node = child;
+				}
+			}
+			if (node.patterns == null) {
+				node.patterns = new ArrayList<Long>(1);
+			}
+			node.patterns.add(pattern);
+			this.patterns.put(pattern, node);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the pattern from the trie, and prune any nodes left empty.
+	 */
+	public void remove(Long pattern) {
+		this.lock.writeLock().lock();
+		try {
+			Node node = this.patterns.remove(pattern);
+			if (node == null) {
+				return;
+			}
+			node.patterns.remove(pattern);
+			while (node.parent != null && node.isEmpty()) {
+				if (node.edge == null) {
+					node.parent.wildcard = null;
+				} else {
+					node.parent.children.remove(node.edge);
+				}
+				node = node.parent;
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Record the new pattern relationship, the pattern is compiled on the next match.
+	 */
+	public void relationshipAdded(Relationship relationship) {
+		Vertex type = relationship.getType();
+		Vertex target = relationship.getTarget();
+		if (this.patternId == null || type == null || target == null || target.getId() == null) {
+			return;
+		}
+		if (this.patternId.equals(type.getId())) {
+			this.pending.add(target.getId());
+		}
+	}
+
+	/**
+	 * Record the deleted pattern or word relationship, the pattern is removed or recompiled on the next match.
+	 */
+	public void relationshipRemoved(Relationship relationship) {
+		Vertex type = relationship.getType();
+		if (this.patternId == null || type == null || type.getId() == null) {
+			return;
+		}
+		if (this.patternId.equals(type.getId())) {
+			Vertex target = relationship.getTarget();
+			if (target != null && target.getId() != null && contains(target.getId())) {
+				this.removed.add(target.getId());
+			}
+		} else if (type.getId().equals(this.wordId)) {
+			Vertex source = relationship.getSource();
+			if (source != null && source.getId() != null && contains(source.getId())) {
+				// The pattern's words changed, so recompile it.
+				this.removed.add(source.getId());
+				this.pending.add(source.getId());
+			}
+		}
+	}
+
+	/**
+	 * Record the deleted vertex, if it is a pattern it is removed on the next match.
+	 */
+	public void vertexRemoved(Vertex vertex) {
+		if (vertex.getId() != null && contains(vertex.getId())) {
+			this.removed.add(vertex.getId());
+		}
+	}
+
+	/**
+	 * Remove any patterns deleted, and compile any patterns created, since the last match.
+	 */
+	public void compilePending(Network network) {
+		Long id = this.removed.poll();
+		while (id != null) {
+			remove(id);
+			id = this.removed.poll();
+		}
+		id = this.pending.poll();
+		while (id != null) {
+			if (!contains(id)) {
+				Vertex pattern = network.findById(id);
+				if (pattern != null) {
+					List<Vertex> words = pattern.orderedRelations(Primitive.WORD);
+					if (words != null) {
+						List<String> elements = new ArrayList<String>(words.size());
+						for (Vertex word : words) {
+							elements.add(compileElement(word.getDataValue(), word.getDataType(), word.instanceOf(Primitive.PUNCTUATION)));
+						}
+						add(id, elements);
+					}
+				}
+			}
+			id = this.pending.poll();
+		}
+	}
+
+	/**
+	 * Return all of the patterns that may match the words, in a single walk of the trie.
+	 * Each trie node is only visited once for each input position.
+	 */
+	public Map<Long, PatternMatch> match(List<Vertex> words) {
+		List<Vertex> input = new ArrayList<Vertex>(words.size());
+		for (int index = 0; index < words.size(); index++) {
+			Vertex word = words.get(index);
+			String value = word.getDataValue();
+			if ("<".equals(value)) {
+				// Ignore HTML tags.
+				int tagIndex = index + 1;
+				while (tagIndex < words.size() && !">".equals(words.get(tagIndex).getDataValue())) {
+					tagIndex++;
+				}
+				if (tagIndex < words.size()) {
+					index = tagIndex;
+					continue;
+				}
+			}
+			if (value != null && !Language.isPunctuation(word)) {
+				input.add(word);
+			}
+		}
+		Map<Long, PatternMatch> matches = new HashMap<Long, PatternMatch>();
+		this.lock.readLock().lock();
+		try {
+			match(this.root, input, 0, new ArrayList<Vertex>(), new HashSet<Long>(), matches);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		return matches;
+	}
+
+	protected void match(Node node, List<Vertex> input, int position, List<Vertex> matched, Set<Long> visited, Map<Long, PatternMatch> matches) {
+		if (!visited.add(((long)node.id * (input.size() + 1)) + position)) {
+			return;
+		}
+		if (position == input.size() && node.patterns != null) {
+			for (Long pattern : node.patterns) {
+				if (!matches.containsKey(pattern)) {
+					PatternMatch match = new PatternMatch();
+					match.pattern = pattern;
+					match.words.addAll(matched);
+					matches.put(pattern, match);
+				}
+			}
+		}
+		if (node.wildcard != null) {
+			// Wildcard consumes zero or more words.
+			for (int end = position; end <= input.size(); end++) {
+				match(node.wildcard, input, end, matched, visited, matches);
+			}
+		}
+		if (position < input.size() && node.children != null) {
+			Vertex word = input.get(position);
+			Node child = node.children.get(normalize(word.getDataValue()));
+			if (child != null) {
+				matched.add(word);
+				match(child, input, position + 1, matched, visited, matches);
+				matched.remove(matched.size() - 1);
+			}
+		}
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.database + ")";
+	}
+}
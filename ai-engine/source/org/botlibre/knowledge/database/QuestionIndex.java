@@ -0,0 +1,398 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+import javax.persistence.EntityManager;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Memory;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.thought.BasicMind;
+
+/**
+ * Inverted index of word id to the questions the word is used in.
+ * The index mirrors the QUESTION, KEYQUESTION and SENTENCE relationships of the database that are not inverse (negative correctness),
+ * and allows response matching to merge posting lists instead of traversing the word vertices.
+ * The index is shared by all bot instances on the same database, built in the background on first access,
+ * and maintained from the relationship insert/update/delete events in the MemorySessionCustomizer.
+ * The events during the build are buffered and applied once the build's query is loaded.
+ * The index is not persisted, the RELATIONSHIP table is the durable store, and the index is rebuilt from it
+ * with a single query once per process, so it can never be out of date with the database.
+ */
+public class QuestionIndex {
+	/** Posting lists larger than this are only used to score candidates found from smaller lists. */
+	public static int MAX_POSTINGS = 100;
+
+	public static ConcurrentMap<String, QuestionIndex> indexes = new ConcurrentHashMap<String, QuestionIndex>();
+
+	protected String database;
+	protected volatile boolean isReady;
+	protected volatile boolean isBuilding;
+	protected Long questionId;
+	protected Long keyQuestionId;
+	protected Long sentenceId;
+	protected Map<Long, Postings> questions = new ConcurrentHashMap<Long, Postings>();
+	protected Map<Long, Postings> keyQuestions = new ConcurrentHashMap<Long, Postings>();
+	protected Map<Long, Postings> sentences = new ConcurrentHashMap<Long, Postings>();
+	protected Map<Long, Integer> wordValues = new ConcurrentHashMap<Long, Integer>();
+	/** Changes from the relationship events during the build, applied in order after the build's query. */
+	protected List<Change> changes = new ArrayList<Change>();
+
+	/**
+	 * Question relationship added to or removed from the index.
+	 */
+	public static class Change {
+		protected long type;
+		protected long word;
+		protected long question;
+		protected int wordCount;
+		protected boolean isAdd;
+
+		public Change(long type, long word, long question, int wordCount, boolean isAdd) {
+			this.type = type;
+			this.word = word;
+			this.question = question;
+			this.wordCount = wordCount;
+			this.isAdd = isAdd;
+		}
+	}
+
+	/**
+	 * Sorted list of question ids and their word counts for a single word.
+	 */
+	public static class Postings {
+		protected long[] ids = new long[4];
+		protected int[] wordCounts = new int[4];
+		protected int size;
+
+		public synchronized void add(long id, int wordCount) {
+			int index = Arrays.binarySearch(this.ids, 0, this.size, id);
+			if (index >= 0) {
+				this.wordCounts[index] = wordCount;
+				return;
+			}
+			index = -(index + 1);
+			if (this.size == this.ids.length) {
+				this.ids = Arrays.copyOf(this.ids, this.size * 2);
+				this.wordCounts = Arrays.copyOf(this.wordCounts, this.size * 2);
+			}
+			if (index < this.size) {
+				System.arraycopy(this.ids, index, this.ids, index + 1, this.size - index);
+				System.arraycopy(this.wordCounts, index, this.wordCounts, index + 1, this.size - index);
+			}
+			this.ids[index] = id;
+			this.wordCounts[index] = wordCount;
+			this.size++;
+		}
+
+		public synchronized void remove(long id) {
+			int index = Arrays.binarySearch(this.ids, 0, this.size, id);
+			if (index < 0) {
+				return;
+			}
+			System.arraycopy(this.ids, index + 1, this.ids, index, this.size - index - 1);
+			System.arraycopy(this.wordCounts, index + 1, this.wordCounts, index, this.size - index - 1);
+			this.size--;
+		}
+
+		public synchronized int size() {
+			return this.size;
+		}
+
+		/**
+		 * Return a consistent copy of the question ids.
+		 */
+		public synchronized long[] getIds() {
+			return Arrays.copyOf(this.ids, this.size);
+		}
+
+		/**
+		 * Return the word count of the question, or -1 if not indexed.
+		 */
+		public synchronized int getWordCount(long id) {
+			int index = Arrays.binarySearch(this.ids, 0, this.size, id);
+			if (index < 0) {
+				return -1;
+			}
+			return this.wordCounts[index];
+		}
+	}
+
+	public QuestionIndex(String database) {
+		this.database = database;
+	}
+
+	/**
+	 * Return the index for the network's database, or null if the index is not yet built.
+	 * The first access starts building the index in the background.
+	 */
+	public static QuestionIndex getIndex(Network network) {
+		Memory memory = network.getBot().memory();
+		if (!(memory instanceof DatabaseMemory)) {
+			return null;
+		}
+		String database = memory.getMemoryName();
+		QuestionIndex index = indexes.get(database);
+		if (index == null) {
+			index = new QuestionIndex(database);
+			QuestionIndex existing = indexes.putIfAbsent(database, index);
+			if (existing != null) {
+				index = existing;
+			}
+		}
+		if (index.isReady()) {
+			return index;
+		}
+		index.buildInBackground((DatabaseMemory)memory);
+		return null;
+	}
+
+	/**
+	 * Return the index for the database if it has been created.
+	 */
+	public static QuestionIndex findIndex(String database) {
+		return indexes.get(database);
+	}
+
+	/**
+	 * Remove the database's index, it will be rebuilt on next access.
+	 */
+	public static void removeIndex(String database) {
+		indexes.remove(database);
+	}
+
+	public boolean isReady() {
+		return isReady;
+	}
+
+	public String getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Build the index from the database in the shared thread pool using its own entity manager.
+	 */
+	public synchronized void buildInBackground(final DatabaseMemory memory) {
+		if (this.isBuilding || this.isReady) {
+			return;
+		}
+		this.isBuilding = true;
+		final Bot bot = memory.getBot();
+		final Network network = memory.getShortTermMemory();
+		this.questionId = network.createVertex(Primitive.QUESTION).getId();
+		this.keyQuestionId = network.createVertex(Primitive.KEYQUESTION).getId();
+		this.sentenceId = network.createVertex(Primitive.SENTENCE).getId();
+		if (this.questionId == null || this.keyQuestionId == null || this.sentenceId == null) {
+			// Primitives not yet committed, build on next access.
+			this.isBuilding = false;
+			return;
+		}
+		final EntityManager entityManager = memory.getFactory().createEntityManager();
+		BasicMind.threadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					build(entityManager, bot);
+				} catch (Throwable failed) {
+					bot.log(QuestionIndex.this, failed);
+				} finally {
+					synchronized (changes) {
+						changes.clear();
+						isBuilding = false;
+					}
+					try {
+						entityManager.close();
+					} catch (Exception ignore) {}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Load all question relationships from the database with a single query.
+	 * Relationships committed during the query may or may not be in its result,
+	 * so the changes from their events are applied after it, in the order of the events.
+	 */
+	@SuppressWarnings("unchecked")
+	public void build(EntityManager entityManager, Bot bot) {
+		long start = System.currentTimeMillis();
+		bot.log(this, "Building question index", Level.INFO, this.database);
+		List<Object[]> rows = entityManager.createNativeQuery(
+				"SELECT r.TYPE_ID, r.SOURCE_ID, r.TARGET_ID, v.WORDCOUNT FROM RELATIONSHIP r, VERTEX v WHERE v.ID = r.TARGET_ID AND r.TYPE_ID IN ("
+						+ this.questionId + ", " + this.keyQuestionId + ", " + this.sentenceId + ") AND r.CORRECTNESS >= 0").getResultList();
+		for (Object[] row : rows) {
+			long type = ((Number)row[0]).longValue();
+			int wordCount = row[3] == null ? 0 : ((Number)row[3]).intValue();
+			add(getPostingsMap(type), ((Number)row[1]).longValue(), ((Number)row[2]).longValue(), wordCount);
+		}
+		synchronized (this.changes) {
+			for (Change change : this.changes) {
+				apply(change);
+			}
+			this.changes.clear();
+			this.isReady = true;
+		}
+		bot.log(this, "Question index built (relationships, words, time)", Level.INFO,
+				rows.size(), this.questions.size() + this.keyQuestions.size() + this.sentences.size(), System.currentTimeMillis() - start);
+	}
+
+	protected Map<Long, Postings> getPostingsMap(long type) {
+		if (this.questionId != null && this.questionId == type) {
+			return this.questions;
+		} else if (this.keyQuestionId != null && this.keyQuestionId == type) {
+			return this.keyQuestions;
+		} else if (this.sentenceId != null && this.sentenceId == type) {
+			return this.sentences;
+		}
+		return null;
+	}
+
+	protected void add(Map<Long, Postings> map, long word, long question, int wordCount) {
+		if (map == null) {
+			return;
+		}
+		Postings postings = map.get(word);
+		if (postings == null) {
+			synchronized (map) {
+				postings = map.get(word);
+				if (postings == null) {
+					postings = new Postings();
+					map.put(word, postings);
+				}
+			}
+		}
+		postings.add(question, wordCount);
+	}
+
+	/**
+	 * Index the new relationship if it is a question relationship that is not inverse.
+	 */
+	public void relationshipAdded(Relationship relationship) {
+		record(relationship, !relationship.isInverse());
+	}
+
+	/**
+	 * Index or remove the relationship if its correctness changed to or from inverse.
+	 */
+	public void relationshipUpdated(Relationship relationship) {
+		record(relationship, !relationship.isInverse());
+	}
+
+	/**
+	 * Remove the relationship from the index if it is a question relationship.
+	 */
+	public void relationshipRemoved(Relationship relationship) {
+		record(relationship, false);
+	}
+
+	/**
+	 * Add or remove the question relationship, or buffer the change if the index is being built.
+	 */
+	protected void record(Relationship relationship, boolean isAdd) {
+		Vertex type = relationship.getType();
+		Vertex source = relationship.getSource();
+		Vertex target = relationship.getTarget();
+		if (type == null || type.getId() == null || source == null || source.getId() == null || target == null || target.getId() == null) {
+			return;
+		}
+		// The word's value depends on its classification relationships.
+		this.wordValues.remove(source.getId());
+		if (getPostingsMap(type.getId()) == null) {
+			return;
+		}
+		Change change = new Change(type.getId(), source.getId(), target.getId(), target.getWordCount(), isAdd);
+		if (!this.isReady) {
+			synchronized (this.changes) {
+				if (!this.isReady) {
+					// Changes before the build starts are in its query.
+					if (this.isBuilding) {
+						this.changes.add(change);
+					}
+					return;
+				}
+			}
+		}
+		apply(change);
+	}
+
+	protected void apply(Change change) {
+		Map<Long, Postings> map = getPostingsMap(change.type);
+		if (change.isAdd) {
+			add(map, change.word, change.question, change.wordCount);
+		} else if (map != null) {
+			Postings postings = map.get(change.word);
+			if (postings != null) {
+				postings.remove(change.question);
+			}
+		}
+	}
+
+	/**
+	 * Return the posting list for the word and relationship type, or null.
+	 */
+	public Postings getPostings(Vertex word, Primitive type) {
+		if (word == null || word.getId() == null) {
+			return null;
+		}
+		Map<Long, Postings> map = null;
+		if (type.equals(Primitive.QUESTION)) {
+			map = this.questions;
+		} else if (type.equals(Primitive.KEYQUESTION)) {
+			map = this.keyQuestions;
+		} else if (type.equals(Primitive.SENTENCE)) {
+			map = this.sentences;
+		}
+		if (map == null) {
+			return null;
+		}
+		return map.get(word.getId());
+	}
+
+	/**
+	 * Return the cached word value, or null.
+	 */
+	public Integer getWordValue(Vertex word) {
+		if (word.getId() == null) {
+			return null;
+		}
+		return this.wordValues.get(word.getId());
+	}
+
+	/**
+	 * Cache the computed word value.
+	 */
+	public void setWordValue(Vertex word, int value) {
+		if (word.getId() != null) {
+			this.wordValues.put(word.getId(), value);
+		}
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.database + ")";
+	}
+}
@@ -0,0 +1,473 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.botlibre.api.knowledge.Data;
+import org.botlibre.api.knowledge.Memory;
+import org.botlibre.knowledge.BasicVertex;
+
+/**
+ * Cache of vertex data to vertex id, for the bot instances on the same database.
+ * Allows findByData to find the vertex by id from the server session cache, instead of querying the database.
+ * The entries of all databases are kept in one shared store, keyed by their database,
+ * so the memory used is bounded by MAX_BYTES however many databases are in use.
+ * The store's size is bounded by the estimated bytes of the entries and its frequency sketch, not the count.
+ * Uses W-TinyLFU admission, new entries enter a small LRU window,
+ * and an entry evicted from the window only replaces the main LRU's victim if it has been used more often,
+ * so a scan of one time lookups does not flush the frequently used words, or another database's words.
+ * The ids are only a hint, the found vertex's data is checked, so deleted or changed vertices are just a miss.
+ */
+public class VertexCache {
+	/** Maximum estimated bytes of the store shared by all databases. */
+	public static long MAX_BYTES = 16 * 1024 * 1024;
+	/** Percentage of the bytes used by the admission window. */
+	public static int WINDOW_PERCENT = 1;
+	/** Estimated bytes of an entry, excluding the key's data. */
+	public static int ENTRY_BYTES = 80;
+	public static boolean ENABLED = true;
+
+	public static ConcurrentMap<String, VertexCache> caches = new ConcurrentHashMap<String, VertexCache>();
+	
+	protected static Store store;
+
+	protected String database;
+	
+	/**
+	 * Key of an entry in the shared store, the data key qualified by its database.
+	 */
+	public static class DatabaseKey {
+		protected String database;
+		protected Object key;
+		
+		public DatabaseKey(String database, Object key) {
+			this.database = database;
+			this.key = key;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (this.database.hashCode() * 31) + this.key.hashCode();
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof DatabaseKey)) {
+				return false;
+			}
+			return this.database.equals(((DatabaseKey)object).database) && this.key.equals(((DatabaseKey)object).key);
+		}
+		
+		public String toString() {
+			return this.database + ":" + this.key;
+		}
+	}
+
+	/**
+	 * Hit and miss counts for a bot.
+	 */
+	public static class Stats {
+		protected AtomicLong hits = new AtomicLong();
+		protected AtomicLong misses = new AtomicLong();
+
+		public long getHits() {
+			return hits.get();
+		}
+
+		public long getMisses() {
+			return misses.get();
+		}
+
+		/**
+		 * Return the percentage of lookups found in the cache.
+		 */
+		public float getHitRate() {
+			long hits = this.hits.get();
+			long total = hits + this.misses.get();
+			if (total == 0) {
+				return 0;
+			}
+			return (hits * 100f) / total;
+		}
+
+		public void reset() {
+			this.hits.set(0);
+			this.misses.set(0);
+		}
+
+		public String toString() {
+			return "hits: " + getHits() + " misses: " + getMisses() + " hit rate: " + getHitRate() + "%";
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters used to estimate how often a key has been looked up.
+	 * The counters are halved once the sample size is reached, so old popularity ages out.
+	 */
+	public static class FrequencySketch {
+		protected long[] table;
+		protected int mask;
+		protected int sampleSize;
+		protected int samples;
+
+		public FrequencySketch(int capacity) {
+			int size = 64;
+			while (size < capacity) {
+				size = size * 2;
+			}
+			this.table = new long[size];
+			this.mask = size - 1;
+			this.sampleSize = size * 10;
+		}
+
+		protected int indexOf(int hash, int row) {
+			long hashCode = (hash + (row * 0x9E3779B97F4A7C15L)) * 0xBF58476D1CE4E5B9L;
+			return (int)(hashCode >>> 32) & this.mask;
+		}
+
+		public void increment(Object key) {
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for (int row = 0; row < 4; row++) {
+				int index = indexOf(hash, row);
+				// Each long holds 16 counters, each row uses a different counter of the long.
+				int offset = ((hash >>> (row * 8)) & 3) + (row * 4);
+				int shift = offset * 4;
+				if (((this.table[index] >>> shift) & 0xFL) != 0xFL) {
+					this.table[index] = this.table[index] + (1L << shift);
+					added = true;
+				}
+			}
+			if (added && (++this.samples >= this.sampleSize)) {
+				reset();
+			}
+		}
+
+		public int frequency(Object key) {
+			int hash = spread(key.hashCode());
+			int frequency = Integer.MAX_VALUE;
+			for (int row = 0; row < 4; row++) {
+				int index = indexOf(hash, row);
+				int offset = ((hash >>> (row * 8)) & 3) + (row * 4);
+				int count = (int)((this.table[index] >>> (offset * 4)) & 0xFL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		/**
+		 * Halve all of the counters.
+		 */
+		protected void reset() {
+			for (int index = 0; index < this.table.length; index++) {
+				this.table[index] = (this.table[index] >>> 1) & 0x7777777777777777L;
+			}
+			this.samples = this.samples / 2;
+		}
+
+		protected static int spread(int hashCode) {
+			hashCode = hashCode * 0x9E3779B9;
+			return hashCode ^ (hashCode >>> 16);
+		}
+	}
+
+	/**
+	 * The bounded W-TinyLFU store of the entries of all databases.
+	 */
+	public static class Store {
+		protected long maxBytes;
+		protected long windowBytes;
+		protected long sketchBytes;
+		protected long mainBytes;
+		protected long bytes;
+		protected long evictions;
+		protected long rejections;
+		protected LinkedHashMap<DatabaseKey, Long> window = new LinkedHashMap<DatabaseKey, Long>(16, 0.75f, true);
+		protected LinkedHashMap<DatabaseKey, Long> main = new LinkedHashMap<DatabaseKey, Long>(16, 0.75f, true);
+		protected FrequencySketch sketch;
+
+		public Store(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.windowBytes = Math.max(ENTRY_BYTES * 10, (maxBytes * WINDOW_PERCENT) / 100);
+			// A long of 16 counters for every 4 entries that fit, the table is counted in the bytes.
+			this.sketch = new FrequencySketch((int)Math.min(Integer.MAX_VALUE / 2, maxBytes / ENTRY_BYTES / 4));
+			this.sketchBytes = this.sketch.table.length * 8L;
+		}
+
+		public synchronized Long get(DatabaseKey key, Stats stats) {
+			this.sketch.increment(key);
+			Long id = this.window.get(key);
+			if (id == null) {
+				id = this.main.get(key);
+			}
+			if (stats != null) {
+				if (id == null) {
+					stats.misses.incrementAndGet();
+				} else {
+					stats.hits.incrementAndGet();
+				}
+			}
+			return id;
+		}
+
+		public synchronized void put(DatabaseKey key, Long id) {
+			if (this.main.containsKey(key)) {
+				this.main.put(key, id);
+				return;
+			}
+			if (this.window.put(key, id) == null) {
+				this.bytes = this.bytes + sizeOf(key);
+			}
+			evict();
+		}
+
+		public synchronized void remove(DatabaseKey key) {
+			if (this.window.remove(key) != null) {
+				this.bytes = this.bytes - sizeOf(key);
+			} else if (this.main.remove(key) != null) {
+				this.bytes = this.bytes - sizeOf(key);
+				this.mainBytes = this.mainBytes - sizeOf(key);
+			}
+		}
+
+		/**
+		 * Remove all of the database's entries.
+		 */
+		public synchronized void removeAll(String database) {
+			for (Iterator<DatabaseKey> iterator = this.window.keySet().iterator(); iterator.hasNext(); ) {
+				DatabaseKey key = iterator.next();
+				if (key.database.equals(database)) {
+					iterator.remove();
+					this.bytes = this.bytes - sizeOf(key);
+				}
+			}
+			for (Iterator<DatabaseKey> iterator = this.main.keySet().iterator(); iterator.hasNext(); ) {
+				DatabaseKey key = iterator.next();
+				if (key.database.equals(database)) {
+					iterator.remove();
+					this.bytes = this.bytes - sizeOf(key);
+					this.mainBytes = this.mainBytes - sizeOf(key);
+				}
+			}
+		}
+
+		/**
+		 * Move the entries overflowing the window to main, if they are used more than the main's victim.
+		 */
+		protected void evict() {
+			long mainMaxBytes = this.maxBytes - this.windowBytes - this.sketchBytes;
+			long windowSize = this.bytes - this.mainBytes;
+			while (windowSize > this.windowBytes && !this.window.isEmpty()) {
+				Iterator<Map.Entry<DatabaseKey, Long>> iterator = this.window.entrySet().iterator();
+				Map.Entry<DatabaseKey, Long> candidate = iterator.next();
+				iterator.remove();
+				long candidateSize = sizeOf(candidate.getKey());
+				windowSize = windowSize - candidateSize;
+				int frequency = this.sketch.frequency(candidate.getKey());
+				boolean admit = true;
+				while ((this.mainBytes + candidateSize) > mainMaxBytes && !this.main.isEmpty()) {
+					Iterator<Map.Entry<DatabaseKey, Long>> victims = this.main.entrySet().iterator();
+					Map.Entry<DatabaseKey, Long> victim = victims.next();
+					if (this.sketch.frequency(victim.getKey()) >= frequency) {
+						admit = false;
+						break;
+					}
+					victims.remove();
+					long victimSize = sizeOf(victim.getKey());
+					this.mainBytes = this.mainBytes - victimSize;
+					this.bytes = this.bytes - victimSize;
+					this.evictions++;
+				}
+				if (admit) {
+					this.main.put(candidate.getKey(), candidate.getValue());
+					this.mainBytes = this.mainBytes + candidateSize;
+				} else {
+					this.bytes = this.bytes - candidateSize;
+					this.rejections++;
+				}
+			}
+		}
+
+		public synchronized void clear() {
+			this.window.clear();
+			this.main.clear();
+			this.bytes = 0;
+			this.mainBytes = 0;
+		}
+
+		public synchronized int size() {
+			return this.window.size() + this.main.size();
+		}
+
+		/**
+		 * Return the estimated bytes of all entries and the sketch.
+		 */
+		public synchronized long getBytes() {
+			return this.bytes + this.sketchBytes;
+		}
+
+		public synchronized long getMaxBytes() {
+			return this.maxBytes;
+		}
+
+		public synchronized long getEvictions() {
+			return this.evictions;
+		}
+
+		public synchronized long getRejections() {
+			return this.rejections;
+		}
+	}
+
+	public VertexCache(String database) {
+		this.database = database;
+	}
+
+	/**
+	 * Return the store shared by all databases.
+	 */
+	public static synchronized Store getStore() {
+		if (store == null) {
+			store = new Store(MAX_BYTES);
+		}
+		return store;
+	}
+
+	/**
+	 * Return the cache for the memory's database, or null if not a database memory or disabled.
+	 */
+	public static VertexCache getCache(Memory memory) {
+		if (!ENABLED || !(memory instanceof DatabaseMemory)) {
+			return null;
+		}
+		String database = memory.getMemoryName();
+		if (database == null) {
+			return null;
+		}
+		VertexCache cache = caches.get(database);
+		if (cache == null) {
+			caches.putIfAbsent(database, new VertexCache(database));
+			cache = caches.get(database);
+		}
+		return cache;
+	}
+
+	/**
+	 * Remove the cache and its entries when the database is deleted.
+	 */
+	public static void removeCache(String database) {
+		if (caches.remove(database) != null) {
+			getStore().removeAll(database);
+		}
+	}
+
+	/**
+	 * Return the cache key for the data, the same data type and value as the findVertexByData query.
+	 * Returns null for lob data, which is not cached.
+	 */
+	public static Object getKey(Object data) {
+		if (data == null || data instanceof Data) {
+			return null;
+		}
+		if (data instanceof String) {
+			return data;
+		}
+		return BasicVertex.convertDataType(data) + ":" + BasicVertex.convertDataValue(data);
+	}
+
+	protected static long sizeOf(DatabaseKey key) {
+		if (key.key instanceof String) {
+			return ENTRY_BYTES + 40 + (((String)key.key).length() * 2);
+		}
+		return ENTRY_BYTES;
+	}
+
+	/**
+	 * Return the vertex id for the data key, or null.
+	 */
+	public Long get(Object key, Stats stats) {
+		return getStore().get(new DatabaseKey(this.database, key), stats);
+	}
+
+	/**
+	 * Add the vertex id for the data key to the window.
+	 */
+	public void put(Object key, Long id) {
+		getStore().put(new DatabaseKey(this.database, key), id);
+	}
+
+	/**
+	 * Remove the data key, its vertex was deleted.
+	 */
+	public void remove(Object key) {
+		getStore().remove(new DatabaseKey(this.database, key));
+	}
+
+	/**
+	 * Remove the database's entries.
+	 */
+	public void clear() {
+		getStore().removeAll(this.database);
+	}
+
+	public String getDatabase() {
+		return database;
+	}
+
+	/**
+	 * Return the number of entries of all databases.
+	 */
+	public int size() {
+		return getStore().size();
+	}
+
+	/**
+	 * Return the estimated bytes of all databases.
+	 */
+	public long getBytes() {
+		return getStore().getBytes();
+	}
+
+	public long getMaxBytes() {
+		return getStore().getMaxBytes();
+	}
+
+	/**
+	 * Return the number of entries evicted from the main cache.
+	 */
+	public long getEvictions() {
+		return getStore().getEvictions();
+	}
+
+	/**
+	 * Return the number of new entries not admitted to the main cache, because they were used less than its victim.
+	 */
+	public long getRejections() {
+		return getStore().getRejections();
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.database + ", " + size() + ", " + getBytes() + " bytes, " + getEvictions() + " evictions, " + getRejections() + " rejections)";
+	}
+}
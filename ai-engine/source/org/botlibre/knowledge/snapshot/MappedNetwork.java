@@ -0,0 +1,409 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.snapshot;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+
+import org.botlibre.api.knowledge.Data;
+import org.botlibre.api.knowledge.MemoryStorageException;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.AbstractNetwork;
+import org.botlibre.knowledge.BasicRelationship;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.Primitive;
+
+/**
+ * Read-only network backed by a memory mapped network snapshot.
+ * Used as the shared template of many bots, the snapshot is mapped once and shared by all of the networks,
+ * by default a network does not cache the vertices it materializes, as they are cheap to materialize and are compared by id,
+ * but a network can be given a bounded cache of them.
+ * Vertices are found by data using the snapshot's off heap hash index, and by id using the id ordered vertex table.
+ */
+
+public class MappedNetwork extends AbstractNetwork {
+	/** Default maximum number of materialized vertices kept by each network, none by default so a bot does not use any heap for the template. */
+	public static int CACHE_SIZE = 0;
+
+	protected MappedSnapshot snapshot;
+	protected Map<Integer, Vertex> vertices;
+	protected int cacheSize = CACHE_SIZE;
+
+	/**
+	 * Return a network on the shared snapshot of the file.
+	 */
+	public static MappedNetwork open(File file) {
+		return new MappedNetwork(MappedSnapshot.getSnapshot(file));
+	}
+
+	@SuppressWarnings("serial")
+	public MappedNetwork(MappedSnapshot snapshot) {
+		super(false);
+		this.snapshot = snapshot;
+		this.vertices = new LinkedHashMap<Integer, Vertex>(256, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, Vertex> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	public MappedSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	public synchronized int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Set the maximum number of materialized vertices kept by this network.
+	 */
+	public synchronized void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		if (this.vertices.size() > cacheSize) {
+			this.vertices.clear();
+		}
+	}
+
+	public boolean isReadOnly() {
+		return true;
+	}
+
+	protected void throwReadOnly() {
+		MemoryStorageException exception = new MemoryStorageException("Network is read-only.");
+		exception.printStackTrace();
+		throw exception;
+	}
+
+	/**
+	 * Return the vertex at the position in the vertex table, materializing it if not cached.
+	 */
+	public synchronized Vertex getVertex(int position) {
+		if (position < 0) {
+			return null;
+		}
+		if (this.cacheSize <= 0) {
+			return new MappedVertex(this, position);
+		}
+		Vertex vertex = this.vertices.get(position);
+		if (vertex == null) {
+			vertex = new MappedVertex(this, position);
+			this.vertices.put(position, vertex);
+		}
+		return vertex;
+	}
+
+	/**
+	 * Return the relationship at the position in the relationship table.
+	 */
+	public synchronized Relationship getRelationship(Vertex source, long position) {
+		BasicRelationship relationship = new BasicRelationship(source,
+				getVertex(this.snapshot.getRelationshipType(position)), getVertex(this.snapshot.getRelationshipTarget(position)));
+		relationship.setIndex(this.snapshot.getRelationshipIndex(position));
+		relationship.setCorrectness(this.snapshot.getRelationshipCorrectness(position));
+		relationship.setMeta(getVertex(this.snapshot.getRelationshipMeta(position)));
+		relationship.setCreationDate(NetworkSnapshot.date(this.snapshot.getRelationshipCreationDate(position)));
+		relationship.setAccessDate(NetworkSnapshot.date(this.snapshot.getRelationshipAccessDate(position)));
+		relationship.setAccessCount(this.snapshot.getRelationshipAccessCount(position));
+		relationship.setPinned(this.snapshot.isRelationshipPinned(position));
+		return relationship;
+	}
+
+	protected void addRelationship(Relationship relationship) {
+		throwReadOnly();
+	}
+
+	public void resume() {
+		throwReadOnly();
+	}
+
+	public void save() {
+		throwReadOnly();
+	}
+
+	public synchronized void addVertex(Vertex vertex) {
+		throwReadOnly();
+	}
+
+	/**
+	 * Find the exiting vertex, or create a temporary one for primitives.
+	 */
+	@SuppressWarnings("rawtypes")
+	public synchronized Vertex createVertex(Object data) {
+		if ((data instanceof String) && ((String)data).length() > MAX_TEXT) {
+			data = ((String)data).substring(0, MAX_TEXT);
+		}
+		if (data instanceof Class) {
+			data = new Primitive(((Class)data).getName());
+		}
+		Vertex vertex = findByData(data);
+		if (vertex != null) {
+			return vertex;
+		}
+		if (data instanceof Primitive) {
+			vertex = new BasicVertex();
+			vertex.setData(data);
+			vertex.setNetwork(this);
+			return vertex;
+		}
+		throwReadOnly();
+		return null;
+	}
+
+	public void saveProperty(String propertyName, String value, boolean startup) {
+		throwReadOnly();
+	}
+
+	public void removeProperty(String propertyName) {
+		throwReadOnly();
+	}
+
+	public void removeVertex(Vertex vertex) {
+		throwReadOnly();
+	}
+
+	public void removeVertexAndReferences(Vertex vertex) {
+		throwReadOnly();
+	}
+
+	public void removeRelationship(Relationship relationship) {
+		throwReadOnly();
+	}
+
+	public int executeNativeQuery(String sql) {
+		throwReadOnly();
+		return 0;
+	}
+
+	public int executeQuery(String jpql) {
+		throwReadOnly();
+		return 0;
+	}
+
+	public synchronized void merge(Network network) {
+		throwReadOnly();
+	}
+
+	/**
+	 * Clear the materialized vertices.
+	 */
+	public synchronized void clear() {
+		this.vertices.clear();
+	}
+
+	public Network getParent() {
+		return null;
+	}
+
+	public void setParent(Network parent) {
+	}
+
+	public int size() {
+		return this.snapshot.size();
+	}
+
+	public int countAll() {
+		return this.snapshot.size();
+	}
+
+	public int countAllLike(String filter) {
+		return findAllLike(filter, Integer.MAX_VALUE, 0).size();
+	}
+
+	/**
+	 * Return the first page of vertices.
+	 */
+	public List<Vertex> findAll() {
+		return findAll(1000, 0);
+	}
+
+	/**
+	 * Return the page of vertices, in id order.
+	 */
+	public List<Vertex> findAll(int pageSize, int page) {
+		List<Vertex> result = new ArrayList<Vertex>();
+		int start = pageSize * page;
+		int end = (int)Math.min(this.snapshot.size(), (long)start + pageSize);
+		for (int position = start; position < end; position++) {
+			result.add(getVertex(position));
+		}
+		return result;
+	}
+
+	public List<Vertex> findAllLike(String filter) {
+		return findAllLike(filter, 1000, 0);
+	}
+
+	/**
+	 * Return the page of vertices whose data matches the filter.
+	 * This scans the snapshot.
+	 */
+	public List<Vertex> findAllLike(String filter, int pageSize, int page) {
+		Pattern pattern = Pattern.compile(filter.replace("*", ".*"));
+		List<Vertex> result = new ArrayList<Vertex>();
+		int skip = pageSize * page;
+		for (int position = 0; (position < this.snapshot.size()) && (result.size() < pageSize); position++) {
+			Vertex vertex = getVertex(position);
+			if (vertex.hasData() && !(vertex.getData() instanceof Data) && pattern.matcher(vertex.getDataValue()).matches()) {
+				if (skip > 0) {
+					skip--;
+				} else {
+					result.add(vertex);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return all vertices matching the query.
+	 * Currently unable to process in memory.
+	 */
+	public List<Vertex> findAllQuery(String query) {
+		return new ArrayList<Vertex>();
+	}
+
+	/**
+	 * Return all vertices matching the query.
+	 * Currently unable to process in memory.
+	 */
+	@SuppressWarnings("rawtypes")
+	public List<Vertex> findAllQuery(String query, Map parameters, int pageSize, int page) {
+		return new ArrayList<Vertex>();
+	}
+
+	/**
+	 * Return all vertices matching the query.
+	 * Currently unable to process in memory.
+	 */
+	public List<Vertex> findAllQuery(String query, int max) {
+		return new ArrayList<Vertex>();
+	}
+
+	@SuppressWarnings("rawtypes")
+	public List findByNativeQuery(String sql, Class type, int max) {
+		return new ArrayList<Vertex>();
+	}
+
+	public CriteriaBuilder getCriteriaBuilder() {
+		return null;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public List search(CriteriaQuery criteria, int page, int max) {
+		return new ArrayList<Vertex>();
+	}
+
+	public List<Vertex> findAllInstances(Vertex type, Vertex relationship, Calendar start) {
+		return new ArrayList<Vertex>();
+	}
+
+	/**
+	 * Return the relationships to the vertex, or of the vertex type.
+	 * This scans the relationship table.
+	 */
+	public synchronized List<Relationship> findAllRelationshipsTo(Vertex vertex) {
+		return findAllRelationshipsTo(vertex, null);
+	}
+
+	/**
+	 * Return the relationships of the type to the vertex.
+	 * This scans the relationship table.
+	 */
+	public synchronized List<Relationship> findAllRelationshipsTo(Vertex vertex, Vertex type) {
+		List<Relationship> relationships = new ArrayList<Relationship>();
+		if (!(vertex instanceof MappedVertex) || (vertex.getNetwork() != this)) {
+			return relationships;
+		}
+		int position = ((MappedVertex)vertex).getPosition();
+		int typePosition = -1;
+		if (type != null) {
+			if (!(type instanceof MappedVertex) || (type.getNetwork() != this)) {
+				return relationships;
+			}
+			typePosition = ((MappedVertex)type).getPosition();
+		}
+		for (long relationship = 0; relationship < this.snapshot.getRelationshipCount(); relationship++) {
+			int target = this.snapshot.getRelationshipTarget(relationship);
+			int relationshipType = this.snapshot.getRelationshipType(relationship);
+			boolean found = (type == null) ? ((target == position) || (relationshipType == position))
+					: ((target == position) && (relationshipType == typePosition));
+			if (found) {
+				relationships.add(getRelationship(getVertex(this.snapshot.getRelationshipSource(relationship)), relationship));
+			}
+		}
+		return relationships;
+	}
+
+	/**
+	 * Return the vertex with the data, using the snapshot's data index.
+	 */
+	public Vertex findByData(Object data) {
+		if (data == null) {
+			return null;
+		}
+		return getVertex(this.snapshot.findPosition(data));
+	}
+
+	/**
+	 * Return the lob data, the mapped vertices' data is already loaded.
+	 */
+	public Data findData(Data data) {
+		return data;
+	}
+
+	/**
+	 * Return the vertex with the name.
+	 * This scans the snapshot.
+	 */
+	public synchronized Vertex findByName(String name) {
+		if (name == null) {
+			return null;
+		}
+		for (int position = 0; position < this.snapshot.size(); position++) {
+			if (name.equals(this.snapshot.getName(position))) {
+				return getVertex(position);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the vertex with the id, using the id ordered vertex table.
+	 */
+	public Vertex findById(Number id) {
+		if (id == null) {
+			return null;
+		}
+		return getVertex(this.snapshot.findPosition(id.longValue()));
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.snapshot + ")";
+	}
+}
@@ -0,0 +1,403 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.botlibre.BotException;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.BinaryData;
+import org.botlibre.knowledge.TextData;
+import org.botlibre.knowledge.snapshot.NetworkSnapshot.Section;
+
+/**
+ * A network snapshot file memory mapped read only.
+ * The vertex and relationship tables and the string pool are read in place from the mapping,
+ * so they are paged in by the operating system as they are used, and are not on the heap.
+ * A mapped snapshot can be shared by all of the bots that use it as their template,
+ * the shared snapshots also have an off heap hash index of the vertices' data.
+ */
+
+public class MappedSnapshot {
+	/** Shared snapshots keyed by canonical file path. */
+	protected static Map<String, MappedSnapshot> snapshots = new ConcurrentHashMap<String, MappedSnapshot>();
+
+	protected File file;
+	protected RandomAccessFile randomAccessFile;
+	protected FileChannel channel;
+	protected int count;
+	protected long relationshipCount;
+	protected String[] types;
+	protected Map<String, Integer> typeIndexes = new HashMap<String, Integer>();
+	protected Section vertices;
+	protected Section relationships;
+	protected Section pool;
+	protected long blobOffset;
+	/** Open addressing hash table of vertex position + 1, keyed by data type and value. */
+	protected ByteBuffer dataIndex;
+	protected int mask;
+
+	/**
+	 * Return the shared, indexed snapshot for the file, mapping it if it is not already.
+	 */
+	public static MappedSnapshot getSnapshot(File file) {
+		String path = path(file);
+		MappedSnapshot snapshot = snapshots.get(path);
+		if (snapshot == null) {
+			synchronized (snapshots) {
+				snapshot = snapshots.get(path);
+				if (snapshot == null) {
+					try {
+						snapshot = new MappedSnapshot(file);
+					} catch (IOException exception) {
+						throw new BotException("IO error while mapping a network snapshot.", exception);
+					}
+					snapshot.buildDataIndex();
+					snapshots.put(path, snapshot);
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Remove the shared snapshot, when the file is replaced or deleted.
+	 * The mapping is released once it is no longer referenced.
+	 */
+	public static void removeSnapshot(File file) {
+		MappedSnapshot snapshot = snapshots.remove(path(file));
+		if (snapshot != null) {
+			snapshot.close();
+		}
+	}
+
+	protected static String path(File file) {
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException exception) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	public MappedSnapshot(File file) throws IOException {
+		this.file = file;
+		this.randomAccessFile = new RandomAccessFile(file, "r");
+		this.channel = this.randomAccessFile.getChannel();
+		ByteBuffer header = read(0, NetworkSnapshot.HEADER_SIZE);
+		if (header.getInt() != NetworkSnapshot.MAGIC) {
+			close();
+			throw new BotException("Invalid network snapshot file: " + file);
+		}
+		int version = header.getInt();
+		if (version > NetworkSnapshot.VERSION) {
+			close();
+			throw new BotException("Unsupported network snapshot version: " + version);
+		}
+		int headerSize = header.getInt();
+		this.count = header.getInt();
+		this.relationshipCount = header.getLong();
+		long poolSize = header.getLong();
+		header.getLong();
+		this.types = new String[header.getInt()];
+		DataInputStream typeIn = new DataInputStream(new ByteArrayInputStream(
+				read(NetworkSnapshot.HEADER_SIZE, headerSize - NetworkSnapshot.HEADER_SIZE).array()));
+		for (int index = 0; index < this.types.length; index++) {
+			this.types[index] = typeIn.readUTF();
+			this.typeIndexes.put(this.types[index], index);
+		}
+		long relationshipOffset = headerSize + (this.count * (long)NetworkSnapshot.VERTEX_SIZE);
+		long poolOffset = relationshipOffset + (this.relationshipCount * NetworkSnapshot.RELATIONSHIP_SIZE);
+		this.vertices = new Section(this.channel, headerSize, this.count * (long)NetworkSnapshot.VERTEX_SIZE, NetworkSnapshot.VERTEX_SIZE);
+		this.relationships = new Section(this.channel, relationshipOffset, this.relationshipCount * NetworkSnapshot.RELATIONSHIP_SIZE, NetworkSnapshot.RELATIONSHIP_SIZE);
+		this.pool = new Section(this.channel, poolOffset, poolSize, 1);
+		this.blobOffset = poolOffset + poolSize;
+	}
+
+	/**
+	 * Read the bytes at the file position.
+	 */
+	public ByteBuffer read(long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer, position + buffer.position()) == -1) {
+				throw new BotException("Truncated network snapshot file: " + this.file);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the number of vertices.
+	 */
+	public int size() {
+		return count;
+	}
+
+	public long getRelationshipCount() {
+		return relationshipCount;
+	}
+
+	protected long vertexRecord(int position) {
+		return position * (long)NetworkSnapshot.VERTEX_SIZE;
+	}
+
+	protected long relationshipRecord(long position) {
+		return position * NetworkSnapshot.RELATIONSHIP_SIZE;
+	}
+
+	public long getId(int position) {
+		return this.vertices.getLong(vertexRecord(position));
+	}
+
+	public int getRelationshipCount(int position) {
+		return this.vertices.getInt(vertexRecord(position) + 52);
+	}
+
+	public long getFirstRelationship(int position) {
+		return this.vertices.getLong(vertexRecord(position) + 64);
+	}
+
+	public int getRelationshipSource(long relationship) {
+		return this.relationships.getInt(relationshipRecord(relationship));
+	}
+
+	public int getRelationshipType(long relationship) {
+		return this.relationships.getInt(relationshipRecord(relationship) + 4);
+	}
+
+	public int getRelationshipTarget(long relationship) {
+		return this.relationships.getInt(relationshipRecord(relationship) + 8);
+	}
+
+	public int getRelationshipMeta(long relationship) {
+		return this.relationships.getInt(relationshipRecord(relationship) + 12);
+	}
+
+	public int getRelationshipIndex(long relationship) {
+		return this.relationships.getInt(relationshipRecord(relationship) + 16);
+	}
+
+	public float getRelationshipCorrectness(long relationship) {
+		return this.relationships.getFloat(relationshipRecord(relationship) + 20);
+	}
+
+	public long getRelationshipCreationDate(long relationship) {
+		return this.relationships.getLong(relationshipRecord(relationship) + 24);
+	}
+
+	public long getRelationshipAccessDate(long relationship) {
+		return this.relationships.getLong(relationshipRecord(relationship) + 32);
+	}
+
+	public int getRelationshipAccessCount(long relationship) {
+		return this.relationships.getInt(relationshipRecord(relationship) + 40);
+	}
+
+	public boolean isRelationshipPinned(long relationship) {
+		return (this.relationships.getInt(relationshipRecord(relationship) + 44) & NetworkSnapshot.PINNED) != 0;
+	}
+
+	/**
+	 * Return the vertex's name, or null.
+	 */
+	public String getName(int position) {
+		long record = vertexRecord(position);
+		int nameLength = this.vertices.getInt(record + 48);
+		if (nameLength == -1) {
+			return null;
+		}
+		return this.pool.getString(this.vertices.getLong(record + 56), nameLength);
+	}
+
+	/**
+	 * Set the vertex's id, dates, access count, pin, name and data from its record.
+	 */
+	public void loadVertex(int position, BasicVertex vertex, boolean keepIds) throws IOException {
+		long record = vertexRecord(position);
+		long id = this.vertices.getLong(record);
+		if (keepIds && (id != -1)) {
+			vertex.setId(id);
+		}
+		vertex.setCreationDate(NetworkSnapshot.date(this.vertices.getLong(record + 8)));
+		vertex.setAccessDate(NetworkSnapshot.date(this.vertices.getLong(record + 16)));
+		vertex.setAccessCount(this.vertices.getInt(record + 24));
+		int flags = this.vertices.getInt(record + 28);
+		int type = this.vertices.getInt(record + 32);
+		int dataLength = this.vertices.getInt(record + 36);
+		long dataOffset = this.vertices.getLong(record + 40);
+		vertex.setPinned((flags & NetworkSnapshot.PINNED) != 0);
+		vertex.setName(getName(position));
+		if (type == -1) {
+			return;
+		}
+		if ((flags & NetworkSnapshot.BLOB) == 0) {
+			vertex.loadData(this.types[type], this.pool.getString(dataOffset, dataLength));
+			return;
+		}
+		ByteBuffer blob = read(this.blobOffset + dataOffset, 8 + dataLength);
+		long dataId = blob.getLong();
+		byte[] bytes = new byte[dataLength];
+		blob.get(bytes);
+		if (this.types[type].equals("Text")) {
+			TextData text = new TextData();
+			text.setText(new String(bytes, NetworkSnapshot.UTF8));
+			if (keepIds) {
+				text.setId(dataId);
+			}
+			vertex.setData(text);
+		} else {
+			BinaryData binary = new BinaryData();
+			binary.setBytes(bytes);
+			if (keepIds) {
+				binary.setId(dataId);
+			}
+			vertex.setData(binary);
+		}
+		vertex.setType(this.types[type]);
+	}
+
+	/**
+	 * Return the position of the vertex with the id, or -1.
+	 * The vertex table is ordered by id, with the vertices without an id last.
+	 */
+	public int findPosition(long id) {
+		int low = 0;
+		int high = this.count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long value = getId(middle);
+			if (value == -1) {
+				value = Long.MAX_VALUE;
+			}
+			if (value < id) {
+				low = middle + 1;
+			} else if (value > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the position of the vertex with the data, or -1.
+	 * Lob data is not indexed.
+	 */
+	public int findPosition(Object data) {
+		if (this.dataIndex == null || data == null) {
+			return -1;
+		}
+		Integer type = this.typeIndexes.get(BasicVertex.convertDataType(data));
+		if (type == null) {
+			return -1;
+		}
+		byte[] bytes = BasicVertex.convertDataValue(data).getBytes(NetworkSnapshot.UTF8);
+		int hash = type;
+		for (int index = 0; index < bytes.length; index++) {
+			hash = (hash * 31) + bytes[index];
+		}
+		int slot = spread(hash) & this.mask;
+		while (true) {
+			int entry = this.dataIndex.getInt(slot * 4);
+			if (entry == 0) {
+				return -1;
+			}
+			int position = entry - 1;
+			if (dataEquals(position, type, bytes)) {
+				return position;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	protected boolean dataEquals(int position, int type, byte[] bytes) {
+		long record = vertexRecord(position);
+		if ((this.vertices.getInt(record + 32) != type) || (this.vertices.getInt(record + 36) != bytes.length)) {
+			return false;
+		}
+		long offset = this.vertices.getLong(record + 40);
+		for (int index = 0; index < bytes.length; index++) {
+			if (this.pool.getByte(offset + index) != bytes[index]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected static int spread(int hash) {
+		hash = hash * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Build the data hash index in a direct buffer, sized to at most half full.
+	 */
+	public void buildDataIndex() {
+		int capacity = 16;
+		while (capacity < (this.count * 2L) && capacity < (1 << 28)) {
+			capacity = capacity * 2;
+		}
+		ByteBuffer index = ByteBuffer.allocateDirect(capacity * 4);
+		int mask = capacity - 1;
+		for (int position = 0; position < this.count; position++) {
+			long record = vertexRecord(position);
+			int type = this.vertices.getInt(record + 32);
+			if ((type == -1) || ((this.vertices.getInt(record + 28) & NetworkSnapshot.BLOB) != 0)) {
+				continue;
+			}
+			int length = this.vertices.getInt(record + 36);
+			long offset = this.vertices.getLong(record + 40);
+			int hash = type;
+			for (int byteIndex = 0; byteIndex < length; byteIndex++) {
+				hash = (hash * 31) + this.pool.getByte(offset + byteIndex);
+			}
+			int slot = spread(hash) & mask;
+			while (index.getInt(slot * 4) != 0) {
+				slot = (slot + 1) & mask;
+			}
+			index.putInt(slot * 4, position + 1);
+		}
+		this.mask = mask;
+		this.dataIndex = index;
+	}
+
+	public void close() {
+		try {
+			this.randomAccessFile.close();
+		} catch (IOException ignore) {}
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.file + ", " + this.count + " vertices, " + this.relationshipCount + " relationships)";
+	}
+}
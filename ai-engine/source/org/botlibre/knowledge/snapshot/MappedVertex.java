@@ -0,0 +1,97 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.snapshot;
+
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.botlibre.BotException;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.knowledge.BasicVertex;
+
+/**
+ * Read-only vertex of a mapped network.
+ * The vertex is read from its record when materialized,
+ * its relationships are read from the relationship table the first time they are accessed.
+ */
+
+public class MappedVertex extends BasicVertex {
+	private static final long serialVersionUID = 1L;
+
+	protected int position;
+
+	/**
+	 * Lazy collection of the vertex's relationships, read from the mapped relationship table.
+	 */
+	protected static class MappedRelationships extends AbstractCollection<Relationship> {
+		protected MappedNetwork network;
+		protected MappedVertex source;
+
+		public MappedRelationships(MappedNetwork network, MappedVertex source) {
+			this.network = network;
+			this.source = source;
+		}
+
+		public int size() {
+			return this.network.getSnapshot().getRelationshipCount(this.source.position);
+		}
+
+		public Iterator<Relationship> iterator() {
+			final long first = this.network.getSnapshot().getFirstRelationship(this.source.position);
+			final int size = size();
+			return new Iterator<Relationship>() {
+				int index = 0;
+
+				public boolean hasNext() {
+					return this.index < size;
+				}
+
+				public Relationship next() {
+					if (this.index >= size) {
+						throw new NoSuchElementException();
+					}
+					return network.getRelationship(source, first + this.index++);
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	public MappedVertex(MappedNetwork network, int position) {
+		this.position = position;
+		try {
+			network.getSnapshot().loadVertex(position, this, true);
+		} catch (IOException exception) {
+			throw new BotException("IO error while reading a network snapshot.", exception);
+		}
+		this.network = network;
+		setAllRelationships(new MappedRelationships(network, this));
+	}
+
+	/**
+	 * Return the vertex's position in the snapshot's vertex table.
+	 */
+	public int getPosition() {
+		return position;
+	}
+}
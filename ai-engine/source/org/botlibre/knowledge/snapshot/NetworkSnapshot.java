@@ -0,0 +1,652 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.botlibre.BotException;
+import org.botlibre.api.knowledge.Data;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicNetwork;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.BinaryData;
+import org.botlibre.knowledge.TextData;
+
+/**
+ * Utility class that exports a network to a compact binary snapshot, and bulk loads a snapshot into a network.
+ * The snapshot is a header, the vertex table, the relationship table, the UTF-8 string pool, and the lob blobs.
+ * The tables are fixed size big-endian records, so the sections can be memory mapped and read in place.
+ * A vertex record refers to its data and name in the pool and to its relationships by position,
+ * a relationship record refers to its source, type, target and meta by vertex position.
+ */
+
+public class NetworkSnapshot {
+	/** "BOTS" */
+	public static final int MAGIC = 0x424F5453;
+	public static final int VERSION = 1;
+	/** Size of the fixed part of the header, followed by the data type names, padded to 8 bytes. */
+	public static final int HEADER_SIZE = 44;
+	public static final int VERTEX_SIZE = 72;
+	public static final int RELATIONSHIP_SIZE = 48;
+	public static final int PINNED = 1;
+	public static final int BLOB = 2;
+
+	/** Number of vertices read per query when writing a network that is not a basic network. */
+	public static int PAGE_SIZE = 1000;
+
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static NetworkSnapshot instance;
+
+	public static NetworkSnapshot instance() {
+		if (instance == null) {
+			instance = new NetworkSnapshot();
+		}
+		return instance;
+	}
+
+	/**
+	 * Write the network to the snapshot file.
+	 */
+	public void write(Network network, File file) {
+		OutputStream stream = null;
+		try {
+			stream = new FileOutputStream(file);
+			write(network, stream, false);
+		} catch (IOException exception) {
+			throw new BotException("IO error while writing a network snapshot.", exception);
+		} finally {
+			try {
+				if (stream != null) {
+					stream.close();
+				}
+			} catch (Exception ignore) {}
+		}
+	}
+
+	/**
+	 * Write the network to the stream.
+	 * A basic network is written from memory, other networks are read in pages ordered by id,
+	 * and cleared after each page if clear is set, so the network does not need to fit in the heap.
+	 * The tables are staged in temporary files, as the header needs the section sizes.
+	 */
+	public void write(Network network, OutputStream stream, boolean clear) throws IOException {
+		SnapshotWriter writer = new SnapshotWriter(network, clear);
+		try {
+			writer.index();
+			writer.writeSections();
+			writer.writeTo(stream);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Load the snapshot file into a new basic network.
+	 */
+	public Network load(File file) {
+		BasicNetwork network = new BasicNetwork();
+		load(file, network, 0);
+		return network;
+	}
+
+	/**
+	 * Load the snapshot file into the network, merging if the network is not empty.
+	 */
+	public void load(File file, Network network, int pageSize) {
+		load(file, network, pageSize, network.size() != 0);
+	}
+
+	/**
+	 * Load the snapshot file into the network.
+	 * If not merging, the vertices are added without checking for existing data,
+	 * and a basic network keeps the snapshot ids.
+	 * Otherwise vertices with data are merged into the network's existing vertex.
+	 * If the page size is greater than 0 the network is saved and cleared after each page,
+	 * so a database can load a snapshot larger than the heap.
+	 */
+	public void load(File file, Network network, int pageSize, boolean merge) {
+		SnapshotReader reader = null;
+		try {
+			reader = new SnapshotReader(file, network, pageSize, merge);
+			reader.loadVertices();
+			reader.loadRelationships();
+		} catch (IOException exception) {
+			throw new BotException("IO error while loading a network snapshot.", exception);
+		} finally {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+
+	protected static long time(Date date) {
+		if (date == null) {
+			return -1;
+		}
+		return date.getTime();
+	}
+
+	protected static Date date(long time) {
+		if (time == -1) {
+			return null;
+		}
+		return new Date(time);
+	}
+
+	/**
+	 * Writes the vertex table, relationship table, pool and blobs to temporary files, then the snapshot.
+	 */
+	protected static class SnapshotWriter {
+		protected Network network;
+		protected boolean clear;
+		protected List<Vertex> vertices;
+		protected Map<Vertex, Integer> indexes;
+		protected long[] ids = new long[16];
+		protected int count;
+		protected Map<String, Integer> types = new HashMap<String, Integer>();
+		protected List<String> typeNames = new ArrayList<String>();
+		protected File[] files = new File[4];
+		protected DataOutputStream vertexOut;
+		protected DataOutputStream relationshipOut;
+		protected DataOutputStream poolOut;
+		protected DataOutputStream blobOut;
+		protected long relationshipCount;
+		protected long poolSize;
+		protected long blobSize;
+
+		public SnapshotWriter(Network network, boolean clear) throws IOException {
+			this.network = network;
+			this.clear = clear;
+			for (int index = 0; index < this.files.length; index++) {
+				this.files[index] = File.createTempFile("snapshot", ".tmp");
+			}
+			this.vertexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.files[0]), 65536));
+			this.relationshipOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.files[1]), 65536));
+			this.poolOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.files[2]), 65536));
+			this.blobOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.files[3]), 65536));
+		}
+
+		@SuppressWarnings("unchecked")
+		protected List<Vertex> findPage(int page) {
+			return this.network.findAllQuery("Select v from Vertex v order by v.id", new HashMap<Object, Object>(), PAGE_SIZE, page);
+		}
+
+		/**
+		 * Assign each vertex its position in the vertex table.
+		 * The vertices of a basic network are kept in an identity map, as new vertices may not have an id,
+		 * otherwise only the sorted ids are kept.
+		 */
+		public void index() {
+			if (this.network instanceof BasicNetwork) {
+				this.vertices = this.network.findAll();
+				Collections.sort(this.vertices, new Comparator<Vertex>() {
+					public int compare(Vertex first, Vertex second) {
+						if (first.getId() == null) {
+							return second.getId() == null ? 0 : 1;
+						} else if (second.getId() == null) {
+							return -1;
+						}
+						return first.getId().compareTo(second.getId());
+					}
+				});
+				this.indexes = new IdentityHashMap<Vertex, Integer>(this.vertices.size());
+				for (Vertex vertex : this.vertices) {
+					this.indexes.put(vertex, this.count++);
+				}
+				return;
+			}
+			int page = 0;
+			List<Vertex> result = findPage(page);
+			while (!result.isEmpty()) {
+				for (Vertex vertex : result) {
+					if (this.count == this.ids.length) {
+						this.ids = Arrays.copyOf(this.ids, this.ids.length * 2);
+					}
+					this.ids[this.count++] = vertex.getId();
+				}
+				page++;
+				if (this.clear) {
+					this.network.clear();
+				}
+				result = findPage(page);
+			}
+			Arrays.sort(this.ids, 0, this.count);
+		}
+
+		/**
+		 * Return the vertex's position in the vertex table, or -1 if it is not in the network.
+		 */
+		public int indexOf(Vertex vertex) {
+			if (vertex == null) {
+				return -1;
+			}
+			if (this.indexes != null) {
+				Integer index = this.indexes.get(vertex);
+				return index == null ? -1 : index;
+			}
+			if (vertex.getId() == null) {
+				return -1;
+			}
+			int index = Arrays.binarySearch(this.ids, 0, this.count, vertex.getId());
+			return index < 0 ? -1 : index;
+		}
+
+		public int typeIndex(String type) {
+			Integer index = this.types.get(type);
+			if (index == null) {
+				index = this.typeNames.size();
+				this.types.put(type, index);
+				this.typeNames.add(type);
+			}
+			return index;
+		}
+
+		/**
+		 * Write each vertex's record, relationships, data and name, in the same order as they were indexed.
+		 */
+		public void writeSections() throws IOException {
+			if (this.vertices != null) {
+				for (int index = 0; index < this.vertices.size(); index++) {
+					writeVertex(this.vertices.get(index), index);
+				}
+			} else {
+				int index = 0;
+				int page = 0;
+				List<Vertex> result = findPage(page);
+				while (!result.isEmpty() && (index < this.count)) {
+					for (Vertex vertex : result) {
+						if (index >= this.count || vertex.getId() != this.ids[index]) {
+							// The vertex was added or removed since the index was built.
+							continue;
+						}
+						writeVertex(vertex, index++);
+					}
+					page++;
+					if (this.clear) {
+						this.network.clear();
+					}
+					result = findPage(page);
+				}
+				while (index < this.count) {
+					// Write an empty record for any removed vertex, to keep the positions.
+					BasicVertex removed = new BasicVertex();
+					removed.setId(this.ids[index]);
+					writeVertex(removed, index++);
+				}
+			}
+			this.vertexOut.close();
+			this.relationshipOut.close();
+			this.poolOut.close();
+			this.blobOut.close();
+		}
+
+		public void writeVertex(Vertex vertex, int index) throws IOException {
+			long firstRelationship = this.relationshipCount;
+			int relationships = 0;
+			if (vertex.getNetwork() != null) {
+				Iterator<Relationship> iterator = vertex.allRelationships();
+				while (iterator.hasNext()) {
+					Relationship relationship = iterator.next();
+					int type = indexOf(relationship.getType());
+					int target = indexOf(relationship.getTarget());
+					if ((type == -1) || (target == -1)) {
+						continue;
+					}
+					this.relationshipOut.writeInt(index);
+					this.relationshipOut.writeInt(type);
+					this.relationshipOut.writeInt(target);
+					this.relationshipOut.writeInt(indexOf(relationship.getMeta()));
+					this.relationshipOut.writeInt(relationship.getIndex());
+					this.relationshipOut.writeFloat(relationship.getCorrectness());
+					this.relationshipOut.writeLong(time(relationship.getCreationDate()));
+					this.relationshipOut.writeLong(time(relationship.getAccessDate()));
+					this.relationshipOut.writeInt(relationship.getAccessCount());
+					this.relationshipOut.writeInt(relationship.isPinned() ? PINNED : 0);
+					relationships++;
+				}
+			}
+			this.relationshipCount = this.relationshipCount + relationships;
+			int flags = vertex.isPinned() ? PINNED : 0;
+			int type = -1;
+			int dataLength = 0;
+			long dataOffset = 0;
+			Object data = vertex.getData();
+			if (data instanceof Data) {
+				flags = flags | BLOB;
+				type = typeIndex(vertex.getDataType());
+				Data lob = this.network.findData((Data)data);
+				byte[] bytes = null;
+				if (lob instanceof BinaryData) {
+					bytes = ((BinaryData)lob).getBytes();
+				} else if ((lob instanceof TextData) && (((TextData)lob).getText() != null)) {
+					bytes = ((TextData)lob).getText().getBytes(UTF8);
+				}
+				if (bytes == null) {
+					bytes = new byte[0];
+				}
+				dataOffset = this.blobSize;
+				dataLength = bytes.length;
+				this.blobOut.writeLong(((Data)data).getId());
+				this.blobOut.write(bytes);
+				this.blobSize = this.blobSize + 8 + bytes.length;
+			} else if (data != null) {
+				type = typeIndex(vertex.getDataType());
+				byte[] bytes = vertex.getDataValue().getBytes(UTF8);
+				dataOffset = this.poolSize;
+				dataLength = bytes.length;
+				this.poolOut.write(bytes);
+				this.poolSize = this.poolSize + bytes.length;
+			}
+			int nameLength = -1;
+			long nameOffset = 0;
+			if (vertex.getName() != null) {
+				byte[] bytes = vertex.getName().getBytes(UTF8);
+				nameOffset = this.poolSize;
+				nameLength = bytes.length;
+				this.poolOut.write(bytes);
+				this.poolSize = this.poolSize + bytes.length;
+			}
+			this.vertexOut.writeLong(vertex.getId() == null ? -1 : vertex.getId());
+			this.vertexOut.writeLong(time(vertex.getCreationDate()));
+			this.vertexOut.writeLong(time(vertex.getAccessDate()));
+			this.vertexOut.writeInt(vertex.getAccessCount());
+			this.vertexOut.writeInt(flags);
+			this.vertexOut.writeInt(type);
+			this.vertexOut.writeInt(dataLength);
+			this.vertexOut.writeLong(dataOffset);
+			this.vertexOut.writeInt(nameLength);
+			this.vertexOut.writeInt(relationships);
+			this.vertexOut.writeLong(nameOffset);
+			this.vertexOut.writeLong(firstRelationship);
+		}
+
+		/**
+		 * Write the header and append the sections.
+		 */
+		public void writeTo(OutputStream stream) throws IOException {
+			ByteArrayOutputStream typeBytes = new ByteArrayOutputStream();
+			DataOutputStream typeOut = new DataOutputStream(typeBytes);
+			for (String type : this.typeNames) {
+				typeOut.writeUTF(type);
+			}
+			while (((HEADER_SIZE + typeBytes.size()) % 8) != 0) {
+				typeOut.write(0);
+			}
+			typeOut.flush();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(HEADER_SIZE + typeBytes.size());
+			out.writeInt(this.count);
+			out.writeLong(this.relationshipCount);
+			out.writeLong(this.poolSize);
+			out.writeLong(this.blobSize);
+			out.writeInt(this.typeNames.size());
+			typeBytes.writeTo(out);
+			byte[] buffer = new byte[65536];
+			for (File file : this.files) {
+				InputStream in = new BufferedInputStream(new FileInputStream(file));
+				try {
+					int read = in.read(buffer);
+					while (read != -1) {
+						out.write(buffer, 0, read);
+						read = in.read(buffer);
+					}
+				} finally {
+					in.close();
+				}
+			}
+			out.flush();
+		}
+
+		public void close() {
+			try {
+				this.vertexOut.close();
+				this.relationshipOut.close();
+				this.poolOut.close();
+				this.blobOut.close();
+			} catch (IOException ignore) {}
+			for (File file : this.files) {
+				if (file != null) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A section of the snapshot file mapped read only.
+	 * Sections over 2GB are mapped in chunks of whole records.
+	 */
+	protected static class Section {
+		protected MappedByteBuffer[] chunks;
+		protected long chunkSize;
+
+		public Section(FileChannel channel, long offset, long size, int recordSize) throws IOException {
+			this.chunkSize = (Integer.MAX_VALUE / recordSize) * (long)recordSize;
+			int count = (int)((size + this.chunkSize - 1) / this.chunkSize);
+			this.chunks = new MappedByteBuffer[count];
+			for (int index = 0; index < count; index++) {
+				long start = index * this.chunkSize;
+				this.chunks[index] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(this.chunkSize, size - start));
+			}
+		}
+
+		public long getLong(long position) {
+			return this.chunks[(int)(position / this.chunkSize)].getLong((int)(position % this.chunkSize));
+		}
+
+		public int getInt(long position) {
+			return this.chunks[(int)(position / this.chunkSize)].getInt((int)(position % this.chunkSize));
+		}
+
+		public byte getByte(long position) {
+			return this.chunks[(int)(position / this.chunkSize)].get((int)(position % this.chunkSize));
+		}
+
+		public float getFloat(long position) {
+			return this.chunks[(int)(position / this.chunkSize)].getFloat((int)(position % this.chunkSize));
+		}
+
+		public String getString(long position, int length) {
+			byte[] bytes = new byte[length];
+			int read = 0;
+			while (read < length) {
+				ByteBuffer chunk = this.chunks[(int)((position + read) / this.chunkSize)].duplicate();
+				chunk.position((int)((position + read) % this.chunkSize));
+				int size = Math.min(length - read, chunk.remaining());
+				chunk.get(bytes, read, size);
+				read = read + size;
+			}
+			return new String(bytes, UTF8);
+		}
+	}
+
+	/**
+	 * Loads the vertices, then the relationships, from the mapped tables.
+	 */
+	protected static class SnapshotReader {
+		protected MappedSnapshot snapshot;
+		protected Network network;
+		protected int pageSize;
+		protected boolean merge;
+		protected boolean keepIds;
+		protected int count;
+		protected Vertex[] loaded;
+		protected long[] ids;
+		protected Map<Long, Vertex> cache = new HashMap<Long, Vertex>();
+
+		public SnapshotReader(File file, Network network, int pageSize, boolean merge) throws IOException {
+			this.snapshot = new MappedSnapshot(file);
+			this.network = network;
+			this.pageSize = pageSize;
+			this.merge = merge;
+			this.keepIds = !merge && (network instanceof BasicNetwork);
+			this.count = this.snapshot.size();
+			if (this.pageSize > 0) {
+				this.ids = new long[this.count];
+			} else {
+				this.loaded = new Vertex[this.count];
+			}
+			if (network.getBot() != null) {
+				network.getBot().log(this, "Loading snapshot", Level.INFO, file, this.count, this.snapshot.getRelationshipCount());
+			}
+		}
+
+		public void loadVertices() throws IOException {
+			List<Vertex> page = new ArrayList<Vertex>();
+			int pageStart = 0;
+			for (int index = 0; index < this.count; index++) {
+				Vertex vertex = loadVertex(index);
+				if (this.loaded != null) {
+					this.loaded[index] = vertex;
+					continue;
+				}
+				page.add(vertex);
+				if (page.size() >= this.pageSize) {
+					savePage(page, pageStart);
+					pageStart = index + 1;
+				}
+			}
+			if (this.loaded == null) {
+				savePage(page, pageStart);
+			}
+		}
+
+		/**
+		 * Commit the page of vertices and record their generated ids.
+		 */
+		protected void savePage(List<Vertex> page, int pageStart) {
+			this.network.save();
+			for (int index = 0; index < page.size(); index++) {
+				Long id = page.get(index).getId();
+				this.ids[pageStart + index] = id == null ? -1 : id;
+			}
+			page.clear();
+			this.network.clear();
+		}
+
+		protected Vertex loadVertex(int index) throws IOException {
+			BasicVertex vertex = new BasicVertex();
+			this.snapshot.loadVertex(index, vertex, this.keepIds);
+			if (this.merge && vertex.hasData() && !(vertex.getData() instanceof Data)) {
+				Vertex existing = this.network.findByData(vertex.getData());
+				if (existing != null) {
+					if (vertex.isPinned()) {
+						existing.setPinned(true);
+					}
+					return existing;
+				}
+			}
+			this.network.addVertex(vertex);
+			return vertex;
+		}
+
+		/**
+		 * Return the loaded vertex at the position, finding it by id if the network is paged.
+		 */
+		protected Vertex resolve(int index) {
+			if (index == -1) {
+				return null;
+			}
+			if (this.loaded != null) {
+				return this.loaded[index];
+			}
+			Long id = this.ids[index];
+			Vertex vertex = this.cache.get(id);
+			if (vertex == null) {
+				vertex = this.network.findById(id);
+				this.cache.put(id, vertex);
+			}
+			return vertex;
+		}
+
+		public void loadRelationships() {
+			int sources = 0;
+			for (int index = 0; index < this.count; index++) {
+				int relationshipCount = this.snapshot.getRelationshipCount(index);
+				if (relationshipCount == 0) {
+					continue;
+				}
+				Vertex source = resolve(index);
+				if (source == null) {
+					continue;
+				}
+				long first = this.snapshot.getFirstRelationship(index);
+				for (long position = first; position < (first + relationshipCount); position++) {
+					Vertex type = resolve(this.snapshot.getRelationshipType(position));
+					Vertex target = resolve(this.snapshot.getRelationshipTarget(position));
+					if ((type == null) || (target == null)) {
+						continue;
+					}
+					Relationship relationship = source.addRelationship(type, target, this.snapshot.getRelationshipIndex(position));
+					relationship.setCorrectness(this.snapshot.getRelationshipCorrectness(position));
+					Vertex meta = resolve(this.snapshot.getRelationshipMeta(position));
+					if (meta != null) {
+						relationship.setMeta(meta);
+					}
+					relationship.setCreationDate(date(this.snapshot.getRelationshipCreationDate(position)));
+					relationship.setAccessDate(date(this.snapshot.getRelationshipAccessDate(position)));
+					relationship.setAccessCount(this.snapshot.getRelationshipAccessCount(position));
+					relationship.setPinned(this.snapshot.isRelationshipPinned(position));
+				}
+				if ((this.loaded == null) && (++sources % this.pageSize == 0)) {
+					this.network.save();
+					this.network.clear();
+					this.cache.clear();
+				}
+			}
+			if (this.loaded == null) {
+				this.network.save();
+				this.network.clear();
+				this.cache.clear();
+			}
+		}
+
+		public void close() {
+			this.snapshot.close();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.knowledge.snapshot;
+
+import java.io.File;
+
+import org.botlibre.api.knowledge.MemoryStorageException;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.knowledge.BasicMemory;
+import org.botlibre.knowledge.BasicNetwork;
+
+/**
+ * Defines a set of networks that make up a knowledge base.
+ * Defines long term, short term and flash networks.
+ * Basic implementation using a binary network snapshot file for persistence.
+ */
+
+public class SnapshotMemory extends BasicMemory {
+
+	public static String knowledgeBaseFileName = "memory.snapshot";
+
+	/**
+	 * Write the long-term memory to the snapshot file.
+	 */
+	public void save() throws MemoryStorageException {
+		super.save();
+		File file = new File(knowledgeBaseFileName);
+		File temp = new File(knowledgeBaseFileName + ".tmp");
+		try {
+			NetworkSnapshot.instance().write(getLongTermMemory(), temp);
+		} catch (Exception exception) {
+			throw new MemoryStorageException(exception);
+		}
+		if (file.exists()) { // Make backup.
+			File backup = new File(knowledgeBaseFileName + ".bak");
+			backup.delete();
+			file.renameTo(backup);
+		}
+		temp.renameTo(file);
+	}
+
+	/**
+	 * Reload the long-term memory from the snapshot file.
+	 */
+	public void restore() throws MemoryStorageException {
+		File file = new File(knowledgeBaseFileName);
+		Network longTermMemory = new BasicNetwork();
+		longTermMemory.setBot(getBot());
+		if (file.exists()) {
+			try {
+				NetworkSnapshot.instance().load(file, longTermMemory, 0, false);
+			} catch (Exception exception) {
+				throw new MemoryStorageException(exception);
+			}
+		}
+		setLongTermMemory(longTermMemory);
+	}
+
+}
@@ -663,24 +663,22 @@ public class Self4Decompiler extends SelfDecompiler {
 		if (data.getCache() != null) {
 			return (Vertex)data.getCache();
 		}
-		BinaryData bytes = data;
-		if (!function.isTemporary()) {
-			bytes = (BinaryData)network.findData(data);
-			if (bytes == null) {
-				bytes = data;
-			}
-		}
-		ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
-		DataInputStream dataStream = new DataInputStream(byteStream);
+		Vertex cache = findDecompiled(function, data, network);
+		if (cache == null) {
+			BinaryData bytes = findByteCode(function, data, network);
+			ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
+			DataInputStream dataStream = new DataInputStream(byteStream);
 
-		Vertex cache = network.createTemporyVertex();
-		cache.setName(function.getName());
-		cache.addRelationship(Primitive.INSTANTIATION, Primitive.FUNCTION);
-		cache.addRelationship(Primitive.OPERATOR, new Primitive(function.getName()));
-		parseArgumentsByteCode(cache, dataStream, network.createVertex(Primitive.DO), network);
+			cache = network.createTemporyVertex();
+			cache.setName(function.getName());
+			cache.addRelationship(Primitive.INSTANTIATION, Primitive.FUNCTION);
+			cache.addRelationship(Primitive.OPERATOR, new Primitive(function.getName()));
+			parseArgumentsByteCode(cache, dataStream, network.createVertex(Primitive.DO), network);
+			cacheDecompiled(function, data, bytes, cache, network);
+			bytes.setCache(cache);
+		}
 		
 		data.setCache(cache);
-		bytes.setCache(cache);
 		return cache;
 	}
 	
@@ -692,27 +690,25 @@ public class Self4Decompiler extends SelfDecompiler {
 		if (data.getCache() != null) {
 			return (Vertex)data.getCache();
 		}
-		BinaryData bytes = data;
-		if (!expression.isTemporary()) {
-			bytes = (BinaryData)network.findData(data);
-			if (bytes == null) {
-				bytes = data;
-			}
-		}
-		ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
-		DataInputStream dataStream = new DataInputStream(byteStream);
-		
-		Object[] result = new Object[3];
-		result[0] = dataStream.readLong();
-		parseArgumentByteCode(result, dataStream, null, network);
-		Vertex cache = (Vertex)result[2];
+		Vertex cache = findDecompiled(expression, data, network);
 		if (cache == null) {
-			return expression;
+			BinaryData bytes = findByteCode(expression, data, network);
+			ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
+			DataInputStream dataStream = new DataInputStream(byteStream);
+			
+			Object[] result = new Object[3];
+			result[0] = dataStream.readLong();
+			parseArgumentByteCode(result, dataStream, null, network);
+			cache = (Vertex)result[2];
+			if (cache == null) {
+				return expression;
+			}
+			cacheDecompiled(expression, data, bytes, cache, network);
+			bytes.setCache(cache);
 		}
 		
 		cache.setName(expression.getName());
 		data.setCache(cache);
-		bytes.setCache(cache);
 		return cache;
 	}
 	
@@ -732,22 +728,21 @@ public class Self4Decompiler extends SelfDecompiler {
 		if (data.getCache() != null) {
 			return (Vertex)data.getCache();
 		}
-		BinaryData bytes = data;
-		if (!state.isTemporary()) {
-			bytes = (BinaryData)network.findData(data);
-			if (bytes == null) {
-				bytes = data;
+		Vertex cache = findDecompiled(state, data, network);
+		if (cache == null) {
+			BinaryData bytes = findByteCode(state, data, network);
+			ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
+			DataInputStream dataStream = new DataInputStream(byteStream);
+			long id = dataStream.readLong();
+			Vertex vertex = network.findById(id);
+			if (vertex != null && !vertex.is(Primitive.SELF4)) {
+				// Parse old state machine.
+				return new SelfDecompiler().parseStateByteCode(state, data, network);
 			}
+			cache = parseStateByteCode(dataStream, network);
+			cacheDecompiled(state, data, bytes, cache, network);
+			bytes.setCache(cache);
 		}
-		ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
-		DataInputStream dataStream = new DataInputStream(byteStream);
-		long id = dataStream.readLong();
-		Vertex vertex = network.findById(id);
-		if (vertex != null && !vertex.is(Primitive.SELF4)) {
-			// Parse old state machine.
-			return new SelfDecompiler().parseStateByteCode(state, data, network);
-		}
-		Vertex cache = parseStateByteCode(dataStream, network);
 		// Add any dynamically added cases.
 		Collection<Relationship> cases = state.getRelationships(Primitive.DO);
 		if (cases != null) {
@@ -757,7 +752,6 @@ public class Self4Decompiler extends SelfDecompiler {
 		}
 		cache.setName(state.getName());
 		data.setCache(cache);
-		bytes.setCache(cache);
 		return cache;
 	}
 
@@ -0,0 +1,200 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.self;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.botlibre.api.knowledge.Vertex;
+
+/**
+ * The binding of a CALL function of a class, name, and number of arguments.
+ * The function is resolved once, to a registered function or a method handle,
+ * and records the number of calls and the time spent in them.
+ */
+
+public class SelfCallSite {
+	/** Number of arguments of a function that takes any number of arguments. */
+	public static final int VARARGS = -1;
+	
+	/** The generic type the method handles are adapted to, (target, arguments) -> result. */
+	protected static final MethodType GENERIC = MethodType.methodType(Object.class, Object.class, Object[].class);
+	
+	protected Class<?> type;
+	protected String name;
+	protected int arity;
+	protected SelfFunction function;
+	protected MethodHandle handle;
+	/** If the method takes the arguments as a Vertex[]. */
+	protected boolean varargs;
+	
+	protected AtomicLong calls = new AtomicLong();
+	protected AtomicLong time = new AtomicLong();
+	protected AtomicLong errors = new AtomicLong();
+	
+	public SelfCallSite(Class<?> type, String name, int arity, SelfFunction function) {
+		this.type = type;
+		this.name = name;
+		this.arity = arity;
+		this.function = function;
+	}
+	
+	/**
+	 * Resolve the public method of the class that takes the source and the arguments as vertices,
+	 * or the source and a Vertex[] of the arguments.
+	 * A method that returns void or a value that is not a vertex returns null, which the caller maps to #null.
+	 * Return a call site that is missing if neither method exists.
+	 */
+	public static SelfCallSite resolve(Class<?> type, String name, int arity) {
+		SelfCallSite site = new SelfCallSite(type, name, arity, null);
+		Class<?>[] argumentTypes = new Class<?>[arity + 1];
+		for (int index = 0; index < argumentTypes.length; index++) {
+			argumentTypes[index] = Vertex.class;
+		}
+		Method method = null;
+		try {
+			method = type.getMethod(name, argumentTypes);
+		} catch (NoSuchMethodException missing) {
+			try {
+				method = type.getMethod(name, Vertex.class, Vertex[].class);
+				site.varargs = true;
+			} catch (NoSuchMethodException reallyMissing) {
+				return site;
+			}
+		}
+		try {
+			MethodHandle handle = null;
+			try {
+				handle = MethodHandles.publicLookup().unreflect(method);
+			} catch (IllegalAccessException notPublic) {
+				// Public method of a class that is not public.
+				method.setAccessible(true);
+				handle = MethodHandles.lookup().unreflect(method);
+			}
+			if (!Vertex.class.isAssignableFrom(method.getReturnType())) {
+				// Discard the result, the generic type converts void to null.
+				handle = handle.asType(handle.type().changeReturnType(void.class));
+			}
+			site.handle = handle.asSpreader(Object[].class, method.getParameterTypes().length).asType(GENERIC);
+		} catch (Exception inaccessible) {
+			return new SelfCallSite(type, name, arity, null);
+		}
+		return site;
+	}
+	
+	/**
+	 * Return if the class does not define the function.
+	 */
+	public boolean isMissing() {
+		return (this.function == null) && (this.handle == null);
+	}
+	
+	/**
+	 * Call the function on the target.
+	 * Exceptions thrown by the function are thrown as is.
+	 */
+	public Vertex invoke(Object target, Vertex source, Vertex[] arguments) throws Exception {
+		long start = System.nanoTime();
+		try {
+			if (this.function != null) {
+				return this.function.call(target, source, arguments);
+			}
+			Object[] values = null;
+			if (this.varargs) {
+				values = new Object[] { source, arguments };
+			} else {
+				values = new Object[arguments.length + 1];
+				values[0] = source;
+				System.arraycopy(arguments, 0, values, 1, arguments.length);
+			}
+			Object result = this.handle.invokeExact(target, values);
+			return (Vertex)result;
+		} catch (Exception exception) {
+			this.errors.incrementAndGet();
+			throw exception;
+		} catch (Error error) {
+			this.errors.incrementAndGet();
+			throw error;
+		} catch (Throwable throwable) {
+			this.errors.incrementAndGet();
+			throw new SelfExecutionException(throwable.toString());
+		} finally {
+			this.calls.incrementAndGet();
+			this.time.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	public Class<?> getType() {
+		return type;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the number of arguments, or VARARGS.
+	 */
+	public int getArity() {
+		return arity;
+	}
+
+	public SelfFunction getFunction() {
+		return function;
+	}
+
+	public long getCalls() {
+		return this.calls.get();
+	}
+
+	/**
+	 * Return the total time spent in the function in nanoseconds.
+	 */
+	public long getTime() {
+		return this.time.get();
+	}
+
+	/**
+	 * Return the average time of a call in nanoseconds.
+	 */
+	public long getAverageTime() {
+		long calls = this.calls.get();
+		if (calls == 0) {
+			return 0;
+		}
+		return this.time.get() / calls;
+	}
+
+	public long getErrors() {
+		return this.errors.get();
+	}
+	
+	public void resetStats() {
+		this.calls.set(0);
+		this.time.set(0);
+		this.errors.set(0);
+	}
+	
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.type.getSimpleName() + "." + this.name + "/" + this.arity
+				+ ", calls: " + this.calls.get() + ", average: " + getAverageTime() + "ns)";
+	}
+}
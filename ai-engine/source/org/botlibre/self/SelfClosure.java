@@ -0,0 +1,68 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.self;
+
+import java.util.Map;
+
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.self.SelfClosureCompiler.Frame;
+import org.botlibre.self.SelfClosureCompiler.Node;
+
+/**
+ * Self expression or function compiled to a tree of closures.
+ * The operators are resolved when compiled, and the variables are resolved to slots in the frame.
+ * The closure is immutable and can be evaluated concurrently, all evaluation state is in the frame.
+ */
+public class SelfClosure {
+	protected Vertex expression;
+	protected Node root;
+	protected Vertex[] slots;
+
+	public SelfClosure(Vertex expression, Node root, Vertex[] slots) {
+		this.expression = expression;
+		this.root = root;
+		this.slots = slots;
+	}
+
+	/**
+	 * Evaluate the expression and return the result, the same as SelfInterpreter.evaluateExpression().
+	 */
+	public Vertex evaluate(Map<Vertex, Vertex> variables, Network network, long startTime, long maxTime, int stack) {
+		return this.root.evaluate(new Frame(this.slots, variables, network, startTime, maxTime), stack);
+	}
+
+	/**
+	 * Evaluate the function and return the result, the same as SelfInterpreter.evaluateFunction().
+	 */
+	public Vertex evaluateFunction(Map<Vertex, Vertex> variables, Network network, long startTime, long maxTime, int stack) {
+		return this.root.apply(new Frame(this.slots, variables, network, startTime, maxTime), stack);
+	}
+
+	public Vertex getExpression() {
+		return expression;
+	}
+
+	public int getSlotCount() {
+		return this.slots.length;
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.expression + ")";
+	}
+}
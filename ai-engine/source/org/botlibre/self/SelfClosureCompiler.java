@@ -0,0 +1,884 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.self;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.AbstractNetwork;
+import org.botlibre.knowledge.BinaryData;
+import org.botlibre.knowledge.Primitive;
+import org.botlibre.thought.language.Language;
+
+/**
+ * Compiles decompiled Self expressions and functions into a tree of closures.
+ * Only the common control flow, variable, comparison, logic and arithmetic operators are compiled,
+ * any other operator is evaluated by the SelfInterpreter.
+ * The closures have the same semantics as the interpreter, including the stack and time limits,
+ * but check the time every CHECK_INTERVAL nodes, and cache the variable values in slots.
+ * Only decompiled byte-code is compiled, the closures are cached in the network the byte-code was decompiled into.
+ */
+public class SelfClosureCompiler {
+	/** Number of nodes evaluated between checks of the max time. */
+	public static int CHECK_INTERVAL = 32;
+	/** Max number of closures cached per network. */
+	public static int MAX_CLOSURES = 10000;
+
+	protected static SelfClosureCompiler compiler;
+
+	public static SelfClosureCompiler getCompiler() {
+		if (compiler == null) {
+			compiler = new SelfClosureCompiler();
+		}
+		return compiler;
+	}
+
+	public static void setCompiler(SelfClosureCompiler compiler) {
+		SelfClosureCompiler.compiler = compiler;
+	}
+
+	/**
+	 * Evaluation state of a closure, the variables, network, time limits, variable slots and primitives.
+	 * The slots cache the variable values, and write through to the variables,
+	 * the cache is invalidated whenever the variables may have been changed outside of the closure.
+	 */
+	public static class Frame {
+		protected Vertex[] slots;
+		protected Vertex[] values;
+		protected boolean[] loaded;
+		protected Map<Vertex, Vertex> variables;
+		protected Network network;
+		protected long startTime;
+		protected long maxTime;
+		protected int ticks;
+		protected Vertex nullPrimitive;
+		protected Vertex truePrimitive;
+		protected Vertex falsePrimitive;
+		protected Vertex unknownPrimitive;
+		protected Vertex returnPrimitive;
+
+		public Frame(Vertex[] slots, Map<Vertex, Vertex> variables, Network network, long startTime, long maxTime) {
+			this.slots = slots;
+			this.values = new Vertex[slots.length];
+			this.loaded = new boolean[slots.length];
+			this.variables = variables;
+			this.network = network;
+			this.startTime = startTime;
+			this.maxTime = maxTime;
+		}
+
+		public Vertex getVariable(int slot) {
+			if (this.loaded[slot]) {
+				return this.values[slot];
+			}
+			Vertex variable = this.slots[slot];
+			Vertex value = this.variables.get(variable);
+			if (value == null && variable.hasName()) {
+				value = this.variables.get(variable.getName());
+			}
+			this.values[slot] = value;
+			this.loaded[slot] = true;
+			return value;
+		}
+
+		public void setVariable(int slot, Vertex value) {
+			this.variables.put(this.slots[slot], value);
+			this.values[slot] = value;
+			this.loaded[slot] = true;
+		}
+
+		/**
+		 * The variables may have been changed by the interpreter, or a match.
+		 */
+		public void invalidate() {
+			Arrays.fill(this.loaded, false);
+		}
+
+		public void checkTime(Vertex expression) {
+			if (--this.ticks <= 0) {
+				this.ticks = CHECK_INTERVAL;
+				if ((System.currentTimeMillis() - this.startTime) > this.maxTime) {
+					throw new SelfExecutionException(expression, "Max time exceeded: " + this.maxTime);
+				}
+			}
+		}
+
+		public boolean isReturn() {
+			return this.variables.containsKey(getReturn());
+		}
+
+		/**
+		 * Convert the result the same as the interpreter, import it into the network and evaluate formulas.
+		 */
+		public Vertex finish(Vertex result) {
+			if (result == null) {
+				return getNull();
+			}
+			if (result == this.nullPrimitive || result == this.truePrimitive || result == this.falsePrimitive || result == this.unknownPrimitive) {
+				return result;
+			}
+			if (result.getNetwork() != this.network) {
+				result = this.network.createVertex(result);
+			}
+			// Check for formula and transpose
+			if (result.instanceOf(Primitive.FORMULA)) {
+				Language language = this.network.getBot().mind().getThought(Language.class);
+				Vertex newResult = language.evaluateFormula(result, this.variables, this.network);
+				invalidate();
+				if (newResult == null) {
+					language.log("Formula cannot be evaluated", Level.FINE, result);
+					result = getNull();
+				} else {
+					result = language.getWord(newResult, this.network);
+				}
+			}
+			return result;
+		}
+
+		public Vertex getNull() {
+			if (this.nullPrimitive == null) {
+				this.nullPrimitive = this.network.createVertex(Primitive.NULL);
+			}
+			return this.nullPrimitive;
+		}
+
+		public Vertex getTrue() {
+			if (this.truePrimitive == null) {
+				this.truePrimitive = this.network.createVertex(Primitive.TRUE);
+			}
+			return this.truePrimitive;
+		}
+
+		public Vertex getFalse() {
+			if (this.falsePrimitive == null) {
+				this.falsePrimitive = this.network.createVertex(Primitive.FALSE);
+			}
+			return this.falsePrimitive;
+		}
+
+		public Vertex getUnknown() {
+			if (this.unknownPrimitive == null) {
+				this.unknownPrimitive = this.network.createVertex(Primitive.UNKNOWN);
+			}
+			return this.unknownPrimitive;
+		}
+
+		public Vertex getReturn() {
+			if (this.returnPrimitive == null) {
+				this.returnPrimitive = this.network.createVertex(Primitive.RETURN);
+			}
+			return this.returnPrimitive;
+		}
+
+		public Vertex getBoolean(boolean value) {
+			if (value) {
+				return getTrue();
+			}
+			return getFalse();
+		}
+	}
+
+	/**
+	 * Compiled expression node.
+	 * Evaluating a node checks the stack and time, applies the node, and converts the result the same as the interpreter.
+	 */
+	public static abstract class Node {
+		protected Vertex expression;
+
+		public Node(Vertex expression) {
+			this.expression = expression;
+		}
+
+		public Vertex evaluate(Frame frame, int stack) {
+			if (stack > SelfInterpreter.MAX_STACK) {
+				throw new SelfExecutionException(this.expression, "Stack overflow: " + stack);
+			}
+			frame.checkTime(this.expression);
+			Vertex result = null;
+			try {
+				result = apply(frame, stack + 1);
+			} catch (SelfExecutionException exception) {
+				throw exception;
+			} catch (Exception exception) {
+				frame.network.getBot().log(this, exception);
+				throw new SelfExecutionException(this.expression, exception);
+			}
+			return frame.finish(result);
+		}
+
+		public abstract Vertex apply(Frame frame, int stack);
+
+		public String toString() {
+			return getClass().getSimpleName() + "(" + this.expression + ")";
+		}
+	}
+
+	/**
+	 * Expression evaluated by the interpreter.
+	 */
+	public static class InterpretedNode extends Node {
+		public InterpretedNode(Vertex expression) {
+			super(expression);
+		}
+
+		public Vertex evaluate(Frame frame, int stack) {
+			Vertex result = SelfInterpreter.getInterpreter().evaluateExpression(this.expression, frame.variables, frame.network, frame.startTime, frame.maxTime, stack);
+			frame.invalidate();
+			return result;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			return evaluate(frame, stack);
+		}
+	}
+
+	/**
+	 * Constant data, or an expression with no operator.
+	 */
+	public static class ConstantNode extends Node {
+		protected boolean isNull;
+
+		public ConstantNode(Vertex expression, boolean isNull) {
+			super(expression);
+			this.isNull = isNull;
+		}
+
+		public Vertex evaluate(Frame frame, int stack) {
+			if (this.isNull) {
+				if (stack > SelfInterpreter.MAX_STACK) {
+					throw new SelfExecutionException(this.expression, "Stack overflow: " + stack);
+				}
+				frame.checkTime(this.expression);
+				return frame.getNull();
+			}
+			return super.evaluate(frame, stack);
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			return this.expression;
+		}
+	}
+
+	public static class VariableNode extends Node {
+		protected int slot;
+
+		public VariableNode(Vertex expression, int slot) {
+			super(expression);
+			this.slot = slot;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			return frame.getVariable(this.slot);
+		}
+	}
+
+	/**
+	 * x = y
+	 */
+	public static class AssignNode extends Node {
+		protected int slot;
+		protected Node value;
+
+		public AssignNode(Vertex expression, int slot, Node value) {
+			super(expression);
+			this.slot = slot;
+			this.value = value;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex result = this.value.evaluate(frame, stack);
+			if (result != null) {
+				frame.setVariable(this.slot, result);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * x++, x--
+	 */
+	public static class IncrementNode extends Node {
+		protected VariableNode variable;
+		protected int delta;
+
+		public IncrementNode(Vertex expression, VariableNode variable, int delta) {
+			super(expression);
+			this.variable = variable;
+			this.delta = delta;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex value = this.variable.evaluate(frame, stack);
+			if (value != null && value.getData() instanceof Number) {
+				value = frame.network.createVertex(((Number)value.getData()).intValue() + this.delta);
+				frame.setVariable(this.variable.slot, value);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * return x
+	 */
+	public static class ReturnNode extends Node {
+		protected Node value;
+
+		public ReturnNode(Vertex expression, Node value) {
+			super(expression);
+			this.value = value;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex result = null;
+			if (this.value == null) {
+				result = frame.getNull();
+			} else {
+				result = this.value.evaluate(frame, stack);
+			}
+			frame.variables.put(frame.getReturn(), result);
+			return result;
+		}
+	}
+
+	/**
+	 * break, continue
+	 */
+	public static class JumpNode extends Node {
+		protected Vertex operator;
+
+		public JumpNode(Vertex expression, Vertex operator) {
+			super(expression);
+			this.operator = operator;
+		}
+
+		public Vertex evaluate(Frame frame, int stack) {
+			if (stack > SelfInterpreter.MAX_STACK) {
+				throw new SelfExecutionException(this.expression, "Stack overflow: " + stack);
+			}
+			frame.checkTime(this.expression);
+			return this.operator;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			return this.operator;
+		}
+	}
+
+	/**
+	 * if (x) { y; } else if (z) { q; } else { r; }
+	 */
+	public static class IfNode extends Node {
+		protected Node condition;
+		protected Node[] thens;
+		protected Node[] elseifs;
+		protected Node[] elses;
+
+		public IfNode(Vertex expression, Node condition, Node[] thens, Node[] elseifs, Node[] elses) {
+			super(expression);
+			this.condition = condition;
+			this.thens = thens;
+			this.elseifs = elseifs;
+			this.elses = elses;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex value = this.condition.evaluate(frame, stack);
+			Vertex result = frame.getNull();
+			if (value.is(Primitive.TRUE)) {
+				if (this.thens != null) {
+					for (Node then : this.thens) {
+						result = then.evaluate(frame, stack);
+						if (frame.isReturn()) {
+							return result;
+						}
+					}
+				}
+			} else {
+				boolean match = false;
+				if (this.elseifs != null) {
+					for (Node elseif : this.elseifs) {
+						result = elseif.evaluate(frame, stack);
+						if (frame.isReturn()) {
+							return result;
+						}
+						if (!result.is(Primitive.NULL)) {
+							match = true;
+							break;
+						}
+					}
+				}
+				if (!match && this.elses != null) {
+					for (Node elseExpression : this.elses) {
+						result = elseExpression.evaluate(frame, stack);
+						if (frame.isReturn()) {
+							return result;
+						}
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * while (x) { y; }
+	 */
+	public static class WhileNode extends Node {
+		protected Node condition;
+		protected Node[] operations;
+
+		public WhileNode(Vertex expression, Node condition, Node[] operations) {
+			super(expression);
+			this.condition = condition;
+			this.operations = operations;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			int depth = 0;
+			boolean condition = true;
+			Vertex result = frame.getNull();
+			while (condition && depth < Language.MAX_STACK)  {
+				condition = this.condition.evaluate(frame, stack).is(Primitive.TRUE);
+				if (condition) {
+					for (Node operation : this.operations) {
+						result = operation.evaluate(frame, stack);
+						if (frame.isReturn()) {
+							return result;
+						} else if (result.is(Primitive.BREAK)) {
+							return result;
+						} else if (result.is(Primitive.CONTINUE)) {
+							break;
+						}
+					}
+				}
+				depth++;
+			}
+			if (depth >= Language.MAX_STACK) {
+				frame.network.getBot().log(this, "Max stack exceeded on while loop", Level.WARNING, Language.MAX_STACK);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * do { x; y; }, think { x; y; }
+	 */
+	public static class DoNode extends Node {
+		protected Node[] operations;
+		protected boolean isThink;
+
+		public DoNode(Vertex expression, Node[] operations, boolean isThink) {
+			super(expression);
+			this.operations = operations;
+			this.isThink = isThink;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex result = frame.getNull();
+			if (this.operations == null) {
+				return result;
+			}
+			Vertex returnPrimitive = frame.getReturn();
+			for (Node operation : this.operations) {
+				result = operation.evaluate(frame, stack);
+				if (frame.variables.containsKey(returnPrimitive)) {
+					frame.variables.remove(returnPrimitive);
+					return result;
+				} else if (result.is(Primitive.BREAK)) {
+					return result;
+				}
+			}
+			if (this.isThink) {
+				return returnPrimitive;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * function { x; y; }
+	 */
+	public static class FunctionNode extends Node {
+		protected Node[] operations;
+
+		public FunctionNode(Vertex expression, Node[] operations) {
+			super(expression);
+			this.operations = operations;
+		}
+
+		public Vertex evaluate(Frame frame, int stack) {
+			if (stack > SelfInterpreter.MAX_STACK) {
+				throw new SelfExecutionException(this.expression, "Stack overflow: " + stack);
+			}
+			frame.checkTime(this.expression);
+			return frame.finish(apply(frame, stack + 1));
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex result = null;
+			if (this.operations != null) {
+				Vertex returnPrimitive = frame.getReturn();
+				for (Node operation : this.operations) {
+					result = operation.evaluate(frame, stack);
+					if (frame.variables.containsKey(returnPrimitive)) {
+						frame.variables.remove(returnPrimitive);
+						return result;
+					}
+				}
+			}
+			if (result == null) {
+				result = this.expression;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * x == y, x != y
+	 */
+	public static class EqualsNode extends Node {
+		protected Node left;
+		protected Node right;
+		protected boolean isNot;
+
+		public EqualsNode(Vertex expression, Node left, Node right, boolean isNot) {
+			super(expression);
+			this.left = left;
+			this.right = right;
+			this.isNot = isNot;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex left = this.left.evaluate(frame, stack);
+			Vertex right = this.right.evaluate(frame, stack);
+			Boolean matches = left.matches(right, frame.variables);
+			frame.invalidate();
+			if (matches == null) {
+				matches = false;
+			}
+			return frame.getBoolean(matches != this.isNot);
+		}
+	}
+
+	/**
+	 * x < y, x <= y, x >= y, x > y
+	 */
+	public static class CompareNode extends Node {
+		protected Node left;
+		protected Node right;
+		protected Primitive operator;
+
+		public CompareNode(Vertex expression, Node left, Node right, Primitive operator) {
+			super(expression);
+			this.left = left;
+			this.right = right;
+			this.operator = operator;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex left = this.left.evaluate(frame, stack);
+			Vertex right = this.right.evaluate(frame, stack);
+			int compare = 0;
+			if ((left.getData() instanceof Number) && (right.getData() instanceof Number)) {
+				double leftValue = ((Number)left.getData()).doubleValue();
+				double rightValue = ((Number)right.getData()).doubleValue();
+				if (Double.isNaN(leftValue) || Double.isNaN(rightValue)) {
+					return frame.getFalse();
+				}
+				compare = leftValue < rightValue ? -1 : (leftValue > rightValue ? 1 : 0);
+			} else if ((left.getData() instanceof String) && (right.getData() instanceof String)) {
+				compare = ((String)left.getData()).compareTo((String)right.getData());
+			} else if ((left.getData() instanceof java.util.Date) && (right.getData() instanceof java.util.Date)) {
+				compare = ((java.util.Date)left.getData()).compareTo((java.util.Date)right.getData());
+			} else {
+				if (this.operator.equals(Primitive.LESSTHANEQUAL) || this.operator.equals(Primitive.GREATERTHANEQUAL)) {
+					Boolean matches = left.matches(right, frame.variables);
+					frame.invalidate();
+					if (matches == Boolean.TRUE) {
+						return frame.getTrue();
+					}
+				}
+				return frame.getUnknown();
+			}
+			if (this.operator.equals(Primitive.LESSTHAN)) {
+				return frame.getBoolean(compare < 0);
+			} else if (this.operator.equals(Primitive.LESSTHANEQUAL)) {
+				return frame.getBoolean(compare <= 0);
+			} else if (this.operator.equals(Primitive.GREATERTHANEQUAL)) {
+				return frame.getBoolean(compare >= 0);
+			}
+			return frame.getBoolean(compare > 0);
+		}
+	}
+
+	/**
+	 * x + y, x - y, x * y, x / y
+	 */
+	public static class MathNode extends Node {
+		protected Node left;
+		protected Node right;
+		protected Primitive operator;
+
+		public MathNode(Vertex expression, Node left, Node right, Primitive operator) {
+			super(expression);
+			this.left = left;
+			this.right = right;
+			this.operator = operator;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex left = this.left.evaluate(frame, stack);
+			Vertex right = this.right.evaluate(frame, stack);
+			if ((left.getData() instanceof Number) && (right.getData() instanceof Number)) {
+				if (this.operator.equals(Primitive.PLUS)) {
+					return org.botlibre.tool.Math.instance.plus(this.expression, left, right);
+				} else if (this.operator.equals(Primitive.MINUS)) {
+					return org.botlibre.tool.Math.instance.minus(this.expression, left, right);
+				} else if (this.operator.equals(Primitive.MULTIPLY)) {
+					return org.botlibre.tool.Math.instance.multiply(this.expression, left, right);
+				}
+				return org.botlibre.tool.Math.instance.divide(this.expression, left, right);
+			}
+			if (this.operator.equals(Primitive.PLUS) && (left.getData() instanceof String)) {
+				return frame.network.createVertex(((String)left.getData()) + right.printString());
+			}
+			frame.network.getBot().log(this, "Invalid numbers for operation", Level.WARNING, this.expression, left, right);
+			return frame.getNull();
+		}
+	}
+
+	/**
+	 * !x
+	 */
+	public static class NotNode extends Node {
+		protected Node argument;
+
+		public NotNode(Vertex expression, Node argument) {
+			super(expression);
+			this.argument = argument;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex result = this.argument.evaluate(frame, stack);
+			if (result.is(Primitive.TRUE)) {
+				result = frame.getFalse();
+			} else if (result.is(Primitive.FALSE)) {
+				result = frame.getTrue();
+			} else if (result.is(Primitive.UNKNOWN)) {
+				result = frame.getUnknown();
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * x || y, x && y
+	 */
+	public static class LogicNode extends Node {
+		protected Node first;
+		protected Node second;
+		protected boolean isAnd;
+
+		public LogicNode(Vertex expression, Node first, Node second, boolean isAnd) {
+			super(expression);
+			this.first = first;
+			this.second = second;
+			this.isAnd = isAnd;
+		}
+
+		public Vertex apply(Frame frame, int stack) {
+			Vertex first = this.first.evaluate(frame, stack);
+			if (this.isAnd) {
+				if (!first.is(Primitive.TRUE)) {
+					return frame.getFalse();
+				}
+				if (this.second == null) {
+					return frame.getTrue();
+				}
+				return frame.getBoolean(this.second.evaluate(frame, stack).is(Primitive.TRUE));
+			}
+			if (first.is(Primitive.TRUE)) {
+				return first;
+			}
+			if (this.second == null) {
+				return frame.getFalse();
+			}
+			Vertex second = this.second.evaluate(frame, stack);
+			if (second.is(Primitive.TRUE)) {
+				return second;
+			}
+			return frame.getFalse();
+		}
+	}
+
+	/**
+	 * Variable slots of the closure being compiled.
+	 */
+	protected static class Slots {
+		protected Map<Vertex, Integer> indexes = new HashMap<Vertex, Integer>();
+		protected List<Vertex> variables = new ArrayList<Vertex>();
+
+		public int getSlot(Vertex variable) {
+			Integer index = this.indexes.get(variable);
+			if (index == null) {
+				index = this.variables.size();
+				this.indexes.put(variable, index);
+				this.variables.add(variable);
+			}
+			return index;
+		}
+
+		public Vertex[] toArray() {
+			return this.variables.toArray(new Vertex[this.variables.size()]);
+		}
+	}
+
+	public SelfClosureCompiler() {
+	}
+
+	/**
+	 * Return the compiled closure for the decompiled expression or function, or null if it cannot be compiled.
+	 * Only temporary expressions are compiled, the byte-code is decompiled into each message's network,
+	 * so the closure is compiled on first access and cached in the expression's network, and discarded with it.
+	 */
+	public SelfClosure getClosure(Vertex expression, Network network) {
+		if (!expression.isTemporary() || network.getBot() == null || !(expression.getNetwork() instanceof AbstractNetwork)) {
+			return null;
+		}
+		// The interpreter logs each expression when debugging.
+		if (network.getBot().isDebugFiner()) {
+			return null;
+		}
+		AbstractNetwork owner = (AbstractNetwork)expression.getNetwork();
+		Object compiled = owner.getCompiled(expression);
+		if (compiled == null) {
+			compiled = compile(expression);
+			if (compiled == null) {
+				compiled = Boolean.FALSE;
+			}
+			owner.putCompiled(expression, compiled);
+		}
+		if (compiled instanceof SelfClosure) {
+			return (SelfClosure)compiled;
+		}
+		return null;
+	}
+
+	/**
+	 * Compile the expression or function, or return null if its operator is not compiled.
+	 */
+	public SelfClosure compile(Vertex expression) {
+		Slots slots = new Slots();
+		Node root = null;
+		if (expression.instanceOf(Primitive.FUNCTION)) {
+			if (expression.getData() instanceof BinaryData) {
+				return null;
+			}
+			root = new FunctionNode(expression, compileAll(expression.orderedRelations(Primitive.DO), slots));
+		} else if (expression.instanceOf(Primitive.EXPRESSION)) {
+			root = compileNode(expression, slots);
+		}
+		if (root == null || root instanceof InterpretedNode) {
+			return null;
+		}
+		return new SelfClosure(expression, root, slots.toArray());
+	}
+
+	public Node[] compileAll(List<Vertex> expressions, Slots slots) {
+		if (expressions == null) {
+			return null;
+		}
+		Node[] nodes = new Node[expressions.size()];
+		for (int index = 0; index < nodes.length; index++) {
+			nodes[index] = compileNode(expressions.get(index), slots);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Compile the expression, the same as SelfInterpreter.evaluateExpression().
+	 */
+	public Node compileNode(Vertex expression, Slots slots) {
+		if (expression.isVariable()) {
+			return new VariableNode(expression, slots.getSlot(expression));
+		}
+		if (expression.instanceOf(Primitive.FUNCTION) || expression.instanceOf(Primitive.EQUATION)) {
+			return new InterpretedNode(expression);
+		}
+		if (!expression.instanceOf(Primitive.EXPRESSION)) {
+			return new ConstantNode(expression, false);
+		}
+		if (expression.getData() instanceof BinaryData) {
+			return new InterpretedNode(expression);
+		}
+		Vertex operator = expression.getRelationship(Primitive.OPERATOR);
+		if (operator == null) {
+			return new ConstantNode(expression, true);
+		}
+		if (!(operator.getData() instanceof Primitive)) {
+			return new InterpretedNode(expression);
+		}
+		Primitive primitive = (Primitive)operator.getData();
+		List<Vertex> arguments = expression.orderedRelations(Primitive.ARGUMENT);
+		if (arguments == null) {
+			arguments = new ArrayList<Vertex>(0);
+		}
+		int size = arguments.size();
+		if (primitive.equals(Primitive.ASSIGN) && size >= 2 && arguments.get(0).isVariable()) {
+			return new AssignNode(expression, slots.getSlot(arguments.get(0)), compileNode(arguments.get(1), slots));
+		} else if ((primitive.equals(Primitive.INCREMENT) || primitive.equals(Primitive.DECREMENT)) && size >= 1 && arguments.get(0).isVariable()) {
+			Vertex variable = arguments.get(0);
+			return new IncrementNode(expression, new VariableNode(variable, slots.getSlot(variable)), primitive.equals(Primitive.INCREMENT) ? 1 : -1);
+		} else if (primitive.equals(Primitive.IF) && size == 1) {
+			return new IfNode(expression, compileNode(arguments.get(0), slots),
+					compileAll(expression.orderedRelations(Primitive.THEN), slots),
+					compileAll(expression.orderedRelations(Primitive.ELSEIF), slots),
+					compileAll(expression.orderedRelations(Primitive.ELSE), slots));
+		} else if (primitive.equals(Primitive.WHILE) && size == 1 && expression.hasRelationship(Primitive.DO)) {
+			return new WhileNode(expression, compileNode(arguments.get(0), slots), compileAll(expression.orderedRelations(Primitive.DO), slots));
+		} else if (primitive.equals(Primitive.DO)) {
+			return new DoNode(expression, compileAll(expression.orderedRelations(Primitive.DO), slots), false);
+		} else if (primitive.equals(Primitive.THINK) && expression.hasRelationship(Primitive.DO)) {
+			return new DoNode(expression, compileAll(expression.orderedRelations(Primitive.DO), slots), true);
+		} else if (primitive.equals(Primitive.RETURN)) {
+			return new ReturnNode(expression, size == 0 ? null : compileNode(arguments.get(0), slots));
+		} else if (primitive.equals(Primitive.BREAK) || primitive.equals(Primitive.CONTINUE)) {
+			return new JumpNode(expression, operator);
+		} else if ((primitive.equals(Primitive.EQUALS) || primitive.equals(Primitive.NOTEQUALS)) && size == 2) {
+			return new EqualsNode(expression, compileNode(arguments.get(0), slots), compileNode(arguments.get(1), slots), primitive.equals(Primitive.NOTEQUALS));
+		} else if ((primitive.equals(Primitive.LESSTHAN) || primitive.equals(Primitive.LESSTHANEQUAL)
+					|| primitive.equals(Primitive.GREATERTHANEQUAL) || primitive.equals(Primitive.GREATERTHAN)) && size == 2) {
+			return new CompareNode(expression, compileNode(arguments.get(0), slots), compileNode(arguments.get(1), slots), primitive);
+		} else if ((primitive.equals(Primitive.PLUS) || primitive.equals(Primitive.MINUS)
+					|| primitive.equals(Primitive.MULTIPLY) || primitive.equals(Primitive.DIVIDE)) && size == 2) {
+			return new MathNode(expression, compileNode(arguments.get(0), slots), compileNode(arguments.get(1), slots), primitive);
+		} else if (primitive.equals(Primitive.NOT) && size == 1) {
+			return new NotNode(expression, compileNode(arguments.get(0), slots));
+		} else if ((primitive.equals(Primitive.OR) || primitive.equals(Primitive.AND)) && size >= 1) {
+			return new LogicNode(expression, compileNode(arguments.get(0), slots),
+					size == 1 ? null : compileNode(arguments.get(1), slots), primitive.equals(Primitive.AND));
+		}
+		return new InterpretedNode(expression);
+	}
+}
@@ -35,7 +35,10 @@ import org.botlibre.api.knowledge.Network;
 import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.knowledge.AbstractNetwork;
+import org.botlibre.knowledge.BasicMemory;
 import org.botlibre.knowledge.BinaryData;
+import org.botlibre.knowledge.ByteCodeCache;
+import org.botlibre.knowledge.DecompiledByteCode;
 import org.botlibre.knowledge.Primitive;
 import org.botlibre.util.Utils;
 
@@ -638,6 +641,61 @@ public class SelfDecompiler {
 		}
 	}
 	
+	/**
+	 * Return the byte-code of the vertex.
+	 */
+	public BinaryData findByteCode(Vertex vertex, BinaryData data, Network network) {
+		if (vertex.isTemporary()) {
+			return data;
+		}
+		BinaryData bytes = (BinaryData)network.findData(data);
+		if (bytes == null) {
+			return data;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Return the memory's cache of decompiled byte-code, or null if the vertex's byte-code is not cached.
+	 * Only stored byte-code is cached, as the cache is keyed on the vertex id and the BinaryData id.
+	 */
+	public ByteCodeCache getByteCodeCache(Vertex vertex, BinaryData data, Network network) {
+		if (vertex.isTemporary() || (vertex.getId() == null) || (data.getId() == 0)
+				|| (network.getBot() == null) || !(network.getBot().memory() instanceof BasicMemory)) {
+			return null;
+		}
+		return ((BasicMemory)network.getBot().memory()).getByteCodeCache();
+	}
+	
+	/**
+	 * Build the vertex's cached decompiled tree in the network, or return null if it is not cached.
+	 */
+	public Vertex findDecompiled(Vertex vertex, BinaryData data, Network network) {
+		ByteCodeCache cache = getByteCodeCache(vertex, data, network);
+		if (cache == null) {
+			return null;
+		}
+		DecompiledByteCode tree = cache.get(vertex.getId(), data.getId());
+		if (tree == null) {
+			return null;
+		}
+		return tree.create(network);
+	}
+	
+	/**
+	 * Cache the tree decompiled from the vertex's byte-code, so the next message does not parse it again.
+	 */
+	public void cacheDecompiled(Vertex vertex, BinaryData data, BinaryData bytes, Vertex decompiled, Network network) {
+		ByteCodeCache cache = getByteCodeCache(vertex, data, network);
+		if ((cache == null) || (bytes.getBytes() == null)) {
+			return;
+		}
+		DecompiledByteCode tree = DecompiledByteCode.record(decompiled, data.getId(), bytes.getBytes().length);
+		if (tree != null) {
+			cache.put(vertex.getId(), tree);
+		}
+	}
+	
 	/**
 	 * Parse the expression from bytecode.
 	 */
@@ -659,19 +717,17 @@ public class SelfDecompiler {
 		if (data.getCache() != null) {
 			return (Vertex)data.getCache();
 		}
-		BinaryData bytes = data;
-		if (!equation.isTemporary()) {
-			bytes = (BinaryData)network.findData(data);
-			if (bytes == null) {
-				bytes = data;
-			}
+		Vertex cache = findDecompiled(equation, data, network);
+		if (cache == null) {
+			BinaryData bytes = findByteCode(equation, data, network);
+			ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
+			DataInputStream dataStream = new DataInputStream(byteStream);
+			cache = parseOperatorByteCode(dataStream, network);
+			cacheDecompiled(equation, data, bytes, cache, network);
+			bytes.setCache(cache);
 		}
-		ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
-		DataInputStream dataStream = new DataInputStream(byteStream);
-		Vertex cache = parseOperatorByteCode(dataStream, network);
 		cache.setName(equation.getName());
 		data.setCache(cache);
-		bytes.setCache(cache);
 		return cache;
 	}
 	
@@ -682,16 +738,15 @@ public class SelfDecompiler {
 		if (data.getCache() != null) {
 			return (Vertex)data.getCache();
 		}
-		BinaryData bytes = data;
-		if (!state.isTemporary()) {
-			bytes = (BinaryData)network.findData(data);
-			if (bytes == null) {
-				bytes = data;
-			}
+		Vertex cache = findDecompiled(state, data, network);
+		if (cache == null) {
+			BinaryData bytes = findByteCode(state, data, network);
+			ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
+			DataInputStream dataStream = new DataInputStream(byteStream);
+			cache = parseStateByteCode(dataStream, network);
+			cacheDecompiled(state, data, bytes, cache, network);
+			bytes.setCache(cache);
 		}
-		ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes.getBytes());
-		DataInputStream dataStream = new DataInputStream(byteStream);
-		Vertex cache = parseStateByteCode(dataStream, network);
 		// Add any dynamically added cases.
 		Collection<Relationship> cases = state.getRelationships(Primitive.DO);
 		if (cases != null) {
@@ -701,7 +756,6 @@ public class SelfDecompiler {
 		}
 		cache.setName(state.getName());
 		data.setCache(cache);
-		bytes.setCache(cache);
 		return cache;
 	}
 
@@ -0,0 +1,34 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.self;
+
+import org.botlibre.api.knowledge.Vertex;
+
+/**
+ * Defines a function that can be called from Self without reflection.
+ * A sense, thought, or tool can register its functions with the interpreter,
+ * i.e. Calculator.add(x, y) can be registered as a function of Calculator named "add" of 2 arguments.
+ */
+
+public interface SelfFunction {
+	
+	/**
+	 * Call the function on the sense, thought, or tool, with the source vertex and the evaluated arguments.
+	 */
+	Vertex call(Object target, Vertex source, Vertex[] arguments) throws Exception;
+}
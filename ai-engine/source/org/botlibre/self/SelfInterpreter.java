@@ -19,14 +19,15 @@ package org.botlibre.self;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 
 import org.botlibre.aiml.AIMLParser;
@@ -37,6 +38,8 @@ import org.botlibre.knowledge.BinaryData;
 import org.botlibre.knowledge.Primitive;
 import org.botlibre.sense.service.RemoteService;
 import org.botlibre.thought.language.Language;
+import org.botlibre.util.Trace.Span;
+import org.botlibre.util.Tracer;
 import org.botlibre.util.Utils;
 
 /**
@@ -46,6 +49,8 @@ import org.botlibre.util.Utils;
 public class SelfInterpreter {
 	public static long TIMEOUT = 10000;
 	public static int MAX_STACK = 500;
+	/** Allow decompiled byte-code to be compiled to closures. */
+	public static boolean COMPILE = true;
 	protected static SelfInterpreter interpreter;
 
 	public static SelfInterpreter getInterpreter() {
@@ -59,10 +64,122 @@ public class SelfInterpreter {
 		SelfInterpreter.interpreter = interpreter;
 	}
 	
+	/** The bound CALL functions, by class and function name, indexed by the number of arguments + 1, and 0 for a function of any number of arguments. */
+	protected Map<Class<?>, Map<String, SelfCallSite[]>> callSites = new ConcurrentHashMap<Class<?>, Map<String, SelfCallSite[]>>();
+	
+	/**
+	 * Register the function of the sense, thought, or tool class, so it is called without reflection.
+	 * The arity is the number of arguments excluding the source, or SelfCallSite.VARARGS for any number of arguments.
+	 */
+	public void registerFunction(Class<?> type, String name, int arity, SelfFunction function) {
+		addCallSite(new SelfCallSite(type, name, arity, function), arity == SelfCallSite.VARARGS);
+	}
+	
+	/**
+	 * Return the function of the class, resolved and cached on the first call.
+	 */
+	public SelfCallSite getCallSite(Class<?> type, String name, int arity) {
+		Map<String, SelfCallSite[]> functions = this.callSites.get(type);
+		SelfCallSite[] sites = null;
+		if (functions != null) {
+			sites = functions.get(name);
+			if ((sites != null) && ((arity + 1) < sites.length) && (sites[arity + 1] != null)) {
+				return sites[arity + 1];
+			}
+		}
+		SelfCallSite site = null;
+		if ((sites != null) && (sites[0] != null)) {
+			// Registered function of any number of arguments.
+			site = sites[0];
+		} else {
+			site = SelfCallSite.resolve(type, name, arity);
+		}
+		addCallSite(site, false);
+		return site;
+	}
+	
+	/**
+	 * Add the call site to the cache, copying the array so it can be read without locking.
+	 */
+	protected void addCallSite(SelfCallSite site, boolean replace) {
+		synchronized (this.callSites) {
+			Map<String, SelfCallSite[]> functions = this.callSites.get(site.getType());
+			if (functions == null) {
+				functions = new ConcurrentHashMap<String, SelfCallSite[]>();
+				this.callSites.put(site.getType(), functions);
+			}
+			SelfCallSite[] sites = functions.get(site.getName());
+			int index = site.getArity() + 1;
+			if ((sites == null) || replace) {
+				sites = new SelfCallSite[Math.max(index + 1, 4)];
+			} else {
+				sites = Arrays.copyOf(sites, Math.max(index + 1, sites.length));
+			}
+			sites[index] = site;
+			functions.put(site.getName(), sites);
+		}
+	}
+	
+	/**
+	 * Return all of the bound functions, with their number of calls and time.
+	 */
+	public List<SelfCallSite> getCallSites() {
+		List<SelfCallSite> sites = new ArrayList<SelfCallSite>();
+		for (Map<String, SelfCallSite[]> functions : this.callSites.values()) {
+			for (SelfCallSite[] values : functions.values()) {
+				for (SelfCallSite site : values) {
+					if ((site != null) && !sites.contains(site)) {
+						sites.add(site);
+					}
+				}
+			}
+		}
+		return sites;
+	}
+	
+	/**
+	 * Clear the bound functions, the registered functions are kept.
+	 */
+	public void clearCallSites() {
+		synchronized (this.callSites) {
+			for (Map<String, SelfCallSite[]> functions : this.callSites.values()) {
+				for (Map.Entry<String, SelfCallSite[]> entry : functions.entrySet()) {
+					SelfCallSite[] sites = entry.getValue();
+					SelfCallSite[] registered = new SelfCallSite[sites.length];
+					boolean found = false;
+					for (int index = 0; index < sites.length; index++) {
+						if ((sites[index] != null) && (sites[index].getFunction() != null)) {
+							registered[index] = sites[index];
+							found = true;
+						}
+					}
+					if (found) {
+						entry.setValue(registered);
+					} else {
+						functions.remove(entry.getKey());
+					}
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Evaluate the function and return the result.
 	 */
 	public Vertex evaluateFunction(Vertex function, Map<Vertex, Vertex> variables, Network network, long startTime, long maxTime, int stack) {
+		// Only the top level call is traced, not each nested expression.
+		Span span = (stack == 0) ? Tracer.start("Self") : null;
+		try {
+			return internalEvaluateFunction(function, variables, network, startTime, maxTime, stack);
+		} finally {
+			Tracer.stop(span);
+		}
+	}
+	
+	/**
+	 * Implements evaluateFunction, which traces the call.
+	 */
+	protected Vertex internalEvaluateFunction(Vertex function, Map<Vertex, Vertex> variables, Network network, long startTime, long maxTime, int stack) {
 		try {
 			// Check for byte-code.
 			if (function.getData() instanceof BinaryData) {
@@ -73,6 +190,12 @@ public class SelfInterpreter {
 			network.getBot().log(this, exception);
 			throw new SelfExecutionException(function, exception);
 		}
+		if (COMPILE) {
+			SelfClosure closure = SelfClosureCompiler.getCompiler().getClosure(function, network);
+			if (closure != null) {
+				return closure.evaluateFunction(variables, network, startTime, maxTime, stack);
+			}
+		}
 		// function { x; y; z; }
 		// Apply each expression in the function.
 		Vertex result = null;
@@ -96,8 +219,27 @@ public class SelfInterpreter {
 	/**
 	 * Evaluate the expression and return the result.
 	 */
-	@SuppressWarnings("unchecked")
 	public Vertex evaluateExpression(Vertex expression, Map<Vertex, Vertex> variables, Network network, long startTime, long maxTime, int stack) {
+		// Only the top level call is traced, not each nested expression.
+		Span span = (stack == 0) ? Tracer.start("Self") : null;
+		try {
+			return internalEvaluateExpression(expression, variables, network, startTime, maxTime, stack);
+		} finally {
+			Tracer.stop(span);
+		}
+	}
+	
+	/**
+	 * Implements evaluateExpression, which traces the call.
+	 */
+	@SuppressWarnings("unchecked")
+	protected Vertex internalEvaluateExpression(Vertex expression, Map<Vertex, Vertex> variables, Network network, long startTime, long maxTime, int stack) {
+		if (COMPILE && expression.isTemporary()) {
+			SelfClosure closure = SelfClosureCompiler.getCompiler().getClosure(expression, network);
+			if (closure != null) {
+				return closure.evaluate(variables, network, startTime, maxTime, stack);
+			}
+		}
 		if (stack > MAX_STACK) {
 			throw new SelfExecutionException(expression, "Stack overflow: " + stack);			
 		}
@@ -1344,34 +1486,15 @@ public class SelfInterpreter {
 			return network.createVertex(Primitive.NULL);
 		}
 		String functionName = ((Primitive)function.getData()).getIdentity();
-		Object[] methodArguments = new Object[arguments.size() + 1];
-		Class[] argumentTypes = new Class[arguments.size() + 1];
-		methodArguments[0] = source;
-		argumentTypes[0] = Vertex.class;
 		Vertex[] values = new Vertex[arguments.size()];
 		for (int index = 0; index < arguments.size(); index++) {
-			Vertex argument = evaluateExpression(arguments.get(index).getTarget(), variables, network, startTime, maxTime, stack);
-			values[index] = argument;
-			methodArguments[index + 1] = argument;
-			argumentTypes[index + 1] = Vertex.class;
+			values[index] = evaluateExpression(arguments.get(index).getTarget(), variables, network, startTime, maxTime, stack);
 		}
-		Method method = null;
-		try {
-			method = sourceObject.getClass().getMethod(functionName, argumentTypes);
-		} catch (Exception missing) {
-			methodArguments = new Object[2];
-			argumentTypes = new Class[2];
-			methodArguments[0] = source;
-			methodArguments[1] = values;
-			argumentTypes[0] = Vertex.class;
-			argumentTypes[1] = Vertex[].class;
-			try {
-				method = sourceObject.getClass().getMethod(functionName, argumentTypes);
-			} catch (Exception reallyMissing) {
-				throw new SelfExecutionException(expression, "Missing function: " + functionName + " on: " + source);
-			}
+		SelfCallSite site = getCallSite(sourceObject.getClass(), functionName, values.length);
+		if (site.isMissing()) {
+			throw new SelfExecutionException(expression, "Missing function: " + functionName + " on: " + source);
 		}
-		Vertex result = (Vertex)method.invoke(sourceObject, methodArguments);
+		Vertex result = site.invoke(sourceObject, source, values);
 		if (result == null) {
 			result = network.createVertex(Primitive.NULL);
 		} else {
@@ -124,6 +124,34 @@ public class BasicTool implements Tool {
 		getBot().log(this, message, level, arguments);
 	}
 	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object argument) {
+		getBot().log(this, message, level, argument);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second) {
+		getBot().log(this, message, level, first, second);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second, Object third) {
+		getBot().log(this, message, level, first, second, third);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second, Object third, Object fourth) {
+		getBot().log(this, message, level, first, second, third, fourth);
+	}
+	
 	/**
 	 * Log the message if the debug level is greater or equal to the level.
 	 */
@@ -0,0 +1,497 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.sense.text;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.botlibre.Bot;
+import org.botlibre.BotException;
+import org.botlibre.api.knowledge.Network;
+import org.botlibre.sense.BasicSense;
+import org.botlibre.thought.language.Language;
+import org.botlibre.thought.language.Language.LearningMode;
+
+/**
+ * Imports a chat log, response list, or CSV list of any size.
+ * The file is read incrementally, and split into entries at blank lines (or each line for CSV),
+ * which are independent conversations or question groups.
+ * The entries are batched and processed by worker threads, each batch in its own isolated network and committed together.
+ * The line of the last committed batch is written to the checkpoint file, followed by the end line of each failed entry,
+ * so a failed import can be resumed, and only the failed entries before the line are imported again.
+ * Chat logs processed with comprehension require the bot to think about each input, so are processed in order on the caller's thread.
+ */
+public class ChatLogImporter {
+	public static int THREADS = 4;
+	/** Number of entries committed together. */
+	public static int BATCH_SIZE = 100;
+	/** Milliseconds between progress log messages. */
+	public static long PROGRESS_INTERVAL = 10000;
+
+	protected TextEntry sense;
+	protected Bot bot;
+	protected String format;
+	protected boolean comprehension;
+	protected boolean pin;
+	protected int threads = THREADS;
+	protected int batchSize = BATCH_SIZE;
+	protected File checkpoint;
+
+	protected AtomicLong lines = new AtomicLong();
+	protected AtomicLong entries = new AtomicLong();
+	protected AtomicLong committed = new AtomicLong();
+	protected AtomicLong batches = new AtomicLong();
+	protected AtomicLong failures = new AtomicLong();
+	protected long startTime;
+	protected long lastProgress;
+	protected volatile boolean wasAdmin;
+	/** Entries that failed in their batch keyed by their end line, retried in order once all batches are done. */
+	protected Map<Long, String> deferred = new TreeMap<Long, String>();
+	/** End lines of the entries that failed in the previous import, read from the checkpoint. */
+	protected Set<Long> retry = new HashSet<Long>();
+	/** Line of the last committed batch with all prior batches committed. */
+	protected long checkpointLine;
+
+	/** Next batch sequence number. */
+	protected long nextBatch;
+	/** All batches before this sequence number are committed. */
+	protected long committedBatch;
+	/** End line of the committed batches after a gap, keyed by sequence number. */
+	protected Map<Long, Long> pendingBatches = new HashMap<Long, Long>();
+
+	public ChatLogImporter(TextEntry sense, String format, boolean comprehension, boolean pin) {
+		if (!"Response List".equalsIgnoreCase(format) && !"Chat Log".equalsIgnoreCase(format) && !"CSV List".equalsIgnoreCase(format)) {
+			throw new BotException("Invalid chat log format '" + format + "'");
+		}
+		this.sense = sense;
+		this.bot = sense.getBot();
+		this.format = format;
+		this.comprehension = comprehension && "Chat Log".equalsIgnoreCase(format);
+		this.pin = pin;
+	}
+
+	/**
+	 * Import the log from the stream, the stream is closed.
+	 */
+	public void importLog(InputStream stream, String encoding) {
+		if (encoding == null || encoding.trim().isEmpty()) {
+			encoding = "UTF-8";
+		}
+		try {
+			importLog(new InputStreamReader(stream, encoding));
+		} catch (IOException exception) {
+			throw new BotException("IO Error", exception);
+		}
+	}
+
+	/**
+	 * Import the log from the reader, the reader is closed.
+	 * If the checkpoint file exists, the lines it records as committed are skipped, other than the entries that failed.
+	 */
+	public void importLog(Reader reader) throws IOException {
+		long skip = readCheckpoint();
+		this.checkpointLine = skip;
+		if (skip > 0) {
+			this.bot.log(this, "Resuming import from checkpoint", Level.INFO, skip, this.retry.size());
+		}
+		this.bot.log(this, "Importing chat log", Level.INFO, this.format, this.threads, this.batchSize);
+		this.startTime = System.currentTimeMillis();
+		this.lastProgress = this.startTime;
+		ThreadPoolExecutor executor = null;
+		if (!this.comprehension) {
+			// The bounded queue blocks the reader when the workers fall behind, so the file is never all in memory.
+			executor = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(this.threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		BufferedReader lineReader = new BufferedReader(reader);
+		boolean isCSV = "CSV List".equalsIgnoreCase(this.format);
+		try {
+			StringWriter entry = new StringWriter();
+			Map<Long, String> batch = new LinkedHashMap<Long, String>();
+			long lineNumber = 0;
+			boolean first = true;
+			String line = lineReader.readLine();
+			while (line != null) {
+				lineNumber++;
+				if (lineNumber > skip) {
+					this.lines.incrementAndGet();
+					if (first && line.indexOf("<?xml") != -1) {
+						throw new BotException("Chat log format must be text, not XML");
+					}
+					first = false;
+				}
+				if (lineNumber > skip || !this.retry.isEmpty()) {
+					if (!line.trim().isEmpty()) {
+						entry.write(line);
+						entry.write('\n');
+					}
+					if ((line.trim().isEmpty() || isCSV) && entry.getBuffer().length() > 0) {
+						if (lineNumber > skip) {
+							batch = addEntry(entry.toString(), batch, lineNumber, executor);
+						} else if (this.retry.remove(lineNumber)) {
+							// The entry failed in the previous import, so is retried with the failed entries.
+							this.entries.incrementAndGet();
+							addDeferred(lineNumber, entry.toString());
+						}
+						entry = new StringWriter();
+					}
+				}
+				line = lineReader.readLine();
+			}
+			if (entry.getBuffer().length() > 0) {
+				if (lineNumber > skip) {
+					batch = addEntry(entry.toString(), batch, lineNumber, executor);
+				} else if (this.retry.remove(lineNumber)) {
+					this.entries.incrementAndGet();
+					addDeferred(lineNumber, entry.toString());
+				}
+			}
+			if (!batch.isEmpty()) {
+				submitBatch(batch, lineNumber, executor);
+			}
+			if (executor != null) {
+				executor.shutdown();
+				while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+					logProgress(true);
+				}
+				executor = null;
+			}
+			retryDeferred();
+		} catch (InterruptedException exception) {
+			throw new BotException("Import interrupted", exception);
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+			lineReader.close();
+		}
+		logProgress(true);
+		if (this.failures.get() == 0 && this.checkpoint != null) {
+			this.checkpoint.delete();
+		}
+		if ("Chat Log".equalsIgnoreCase(this.format) && !this.comprehension && !this.wasAdmin) {
+			Language language = this.bot.mind().getThought(Language.class);
+			if (language.getLearningMode() == LearningMode.Administrators) {
+				throw new BotException("Expected 'admin:' speaker in chat text when learning mode is administrators only");
+			}
+		}
+	}
+
+	/**
+	 * Add the entry to the batch, and submit the batch once full.
+	 * Return the batch to add the next entry to.
+	 */
+	protected Map<Long, String> addEntry(String entry, Map<Long, String> batch, long lineNumber, ThreadPoolExecutor executor) {
+		this.entries.incrementAndGet();
+		if (this.comprehension) {
+			// The bot must think about each input in order.
+			this.sense.processChatLog(entry, true, this.pin);
+			this.committed.incrementAndGet();
+			synchronized (this) {
+				this.checkpointLine = lineNumber;
+				writeCheckpoint();
+			}
+			logProgress(false);
+			return batch;
+		}
+		batch.put(lineNumber, entry);
+		if (batch.size() >= this.batchSize) {
+			submitBatch(batch, lineNumber, executor);
+			return new LinkedHashMap<Long, String>();
+		}
+		return batch;
+	}
+
+	protected void submitBatch(final Map<Long, String> batch, final long endLine, ThreadPoolExecutor executor) {
+		final long sequence;
+		synchronized (this) {
+			sequence = this.nextBatch++;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				processBatch(batch, sequence, endLine);
+			}
+		});
+	}
+
+	/**
+	 * Process the entries in one network and commit them together.
+	 * If the batch fails, each entry is processed in its own network, and the failed entries are deferred.
+	 * The batches are processed concurrently, so isolated networks are used to merge any data vertices created by both.
+	 */
+	protected void processBatch(Map<Long, String> batch, long sequence, long endLine) {
+		Network network = this.bot.memory().newIsolatedMemory();
+		try {
+			for (String entry : batch.values()) {
+				processEntry(entry, network);
+			}
+			network.save();
+			this.committed.addAndGet(batch.size());
+			this.batches.incrementAndGet();
+			batchCommitted(sequence, endLine);
+		} catch (Exception failed) {
+			network.clear();
+			this.bot.log(this, "Import batch failed, processing entries individually", Level.WARNING, sequence, failed);
+			for (Map.Entry<Long, String> entry : batch.entrySet()) {
+				network = this.bot.memory().newIsolatedMemory();
+				try {
+					processEntry(entry.getValue(), network);
+					network.save();
+					this.committed.incrementAndGet();
+				} catch (Exception entryFailed) {
+					network.clear();
+					addDeferred(entry.getKey(), entry.getValue());
+				}
+			}
+			this.batches.incrementAndGet();
+			// The deferred entries are recorded in the checkpoint, so the checkpoint can move past the batch.
+			batchCommitted(sequence, endLine);
+		}
+		logProgress(false);
+	}
+
+	/**
+	 * Record the failed entry to be retried, it remains in the checkpoint until it is committed.
+	 */
+	protected synchronized void addDeferred(long endLine, String entry) {
+		this.deferred.put(endLine, entry);
+	}
+
+	protected void processEntry(String entry, Network network) {
+		if ("Chat Log".equalsIgnoreCase(this.format)) {
+			if (this.sense.processChatLog(entry, false, this.pin, network)) {
+				this.wasAdmin = true;
+			}
+		} else if ("Response List".equalsIgnoreCase(this.format)) {
+			this.sense.processResponseLog(entry, this.pin, network);
+		} else {
+			this.sense.processCSVLog(entry, this.pin, network);
+		}
+	}
+
+	/**
+	 * Retry the failed entries in order, as an entry may have referenced a label from a batch that was not yet committed.
+	 * Entries that still fail remain in the checkpoint.
+	 */
+	protected void retryDeferred() {
+		if (this.deferred.isEmpty()) {
+			return;
+		}
+		this.bot.log(this, "Retrying failed entries", Level.INFO, this.deferred.size());
+		Map<Long, String> entries = null;
+		synchronized (this) {
+			entries = new TreeMap<Long, String>(this.deferred);
+		}
+		for (Map.Entry<Long, String> entry : entries.entrySet()) {
+			boolean done = false;
+			for (int attempt = 0; !done && attempt < BasicSense.RETRY; attempt++) {
+				Network network = this.bot.memory().newMemory();
+				try {
+					processEntry(entry.getValue(), network);
+					network.save();
+					this.committed.incrementAndGet();
+					done = true;
+				} catch (Exception failed) {
+					network.clear();
+					if (attempt == BasicSense.RETRY - 1) {
+						this.failures.incrementAndGet();
+						this.bot.log(this, "Import entry failed", Level.WARNING, entry.getValue());
+						this.bot.log(this, failed);
+					}
+				}
+			}
+			if (done) {
+				synchronized (this) {
+					this.deferred.remove(entry.getKey());
+					writeCheckpoint();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record the batch as committed, and write the checkpoint up to the last batch with all prior batches committed.
+	 */
+	protected synchronized void batchCommitted(long sequence, long endLine) {
+		this.pendingBatches.put(sequence, endLine);
+		Long line = null;
+		while (this.pendingBatches.containsKey(this.committedBatch)) {
+			line = this.pendingBatches.remove(this.committedBatch);
+			this.committedBatch++;
+		}
+		if (line != null) {
+			this.checkpointLine = line;
+		}
+		if (line != null || !this.deferred.isEmpty()) {
+			writeCheckpoint();
+		}
+	}
+
+	/**
+	 * Write the line of the last committed batch, and the end line of each failed entry not yet committed.
+	 */
+	protected synchronized void writeCheckpoint() {
+		if (this.checkpoint == null) {
+			return;
+		}
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(this.checkpoint);
+			writer.write(String.valueOf(this.checkpointLine));
+			for (Long line : this.deferred.keySet()) {
+				writer.write('\n');
+				writer.write(String.valueOf(line));
+			}
+		} catch (IOException exception) {
+			this.bot.log(this, exception);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ignore) {}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of lines committed by the previous import, or 0.
+	 * The end lines of the entries that failed are recorded to be retried.
+	 */
+	protected long readCheckpoint() {
+		if (this.checkpoint == null || !this.checkpoint.exists()) {
+			return 0;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(this.checkpoint));
+			String line = reader.readLine();
+			if (line == null || line.trim().isEmpty()) {
+				return 0;
+			}
+			long skip = Long.valueOf(line.trim());
+			line = reader.readLine();
+			while (line != null) {
+				if (!line.trim().isEmpty()) {
+					this.retry.add(Long.valueOf(line.trim()));
+				}
+				line = reader.readLine();
+			}
+			return skip;
+		} catch (Exception exception) {
+			this.bot.log(this, "Invalid checkpoint file", Level.WARNING, this.checkpoint);
+			return 0;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException ignore) {}
+			}
+		}
+	}
+
+	protected void logProgress(boolean force) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (!force && (now - this.lastProgress) < PROGRESS_INTERVAL) {
+				return;
+			}
+			this.lastProgress = now;
+		}
+		this.bot.log(this, "Import progress (lines, entries, committed, failures, entries/s)", Level.INFO,
+				this.lines.get(), this.entries.get(), this.committed.get(), this.failures.get(), getThroughput());
+	}
+
+	/**
+	 * Return the committed entries per second.
+	 */
+	public long getThroughput() {
+		long time = Math.max(1, System.currentTimeMillis() - this.startTime);
+		return (this.committed.get() * 1000) / time;
+	}
+
+	public long getLines() {
+		return lines.get();
+	}
+
+	public long getEntries() {
+		return entries.get();
+	}
+
+	public long getCommitted() {
+		return committed.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	public File getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * Set the file to record the committed lines to, to allow a failed import to be resumed.
+	 */
+	public void setCheckpoint(File checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(" + this.format + ", " + getEntries() + " entries, " + getFailures() + " failures)";
+	}
+}
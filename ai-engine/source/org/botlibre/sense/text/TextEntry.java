@@ -22,20 +22,27 @@ import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.Writer;
 import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.logging.Level;
 
 import org.botlibre.BotException;
 import org.botlibre.api.knowledge.Network;
+import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.emotion.EmotionalState;
 import org.botlibre.knowledge.Primitive;
 import org.botlibre.self.SelfCompiler;
 import org.botlibre.self.SelfParseException;
 import org.botlibre.sense.BasicSense;
+import org.botlibre.thought.consciousness.Consciousness;
 import org.botlibre.thought.language.Language;
 import org.botlibre.thought.language.Language.LanguageState;
 import org.botlibre.thought.language.Language.LearningMode;
 import org.botlibre.util.TextStream;
+import org.botlibre.util.Trace;
+import org.botlibre.util.Trace.Span;
+import org.botlibre.util.Tracer;
 import org.botlibre.util.Utils;
 
 /**
@@ -133,6 +140,22 @@ public class TextEntry extends BasicSense {
 	 * Process the text sentence.
 	 */
 	public void inputSentence(TextInput text, Network network) {
+		Trace trace = this.bot.getTracer().begin("Input");
+		try {
+			Vertex input = internalInputSentence(text, network);
+			// The trace continues when the mind processes the input.
+			this.bot.getTracer().suspend(trace, input);
+			trace = null;
+			this.bot.memory().addActiveMemory(input);
+		} finally {
+			this.bot.getTracer().end(trace);
+		}
+	}
+	
+	/**
+	 * Create the input for the text sentence, and return it to be added to the active memory.
+	 */
+	protected Vertex internalInputSentence(TextInput text, Network network) {
 		Vertex input = null;
 		boolean newConversation = text.getText() == null;
 		if (newConversation) {
@@ -201,8 +224,101 @@ public class TextEntry extends BasicSense {
 			input.addRelationship(Primitive.CONVERSATION, conversation);
 		}
 		
+		getBot().memory().save(network);
+		return input;
+	}
+
+	/**
+	 * Process the text for the conversation on the caller's thread, and return the output, or null if there is no response.
+	 * The input is processed in its own network and is not added to the active memory,
+	 * so many conversations can be processed concurrently without waiting on the mind.
+	 * A null or invalid conversation id starts a new conversation, the output's conversation relationship is the new conversation.
+	 * A null text is used to get the greeting.
+	 */
+	public Vertex chat(Long conversationId, String text) {
+		Trace trace = this.bot.getTracer().begin("Chat");
+		try {
+			return internalChat(conversationId, text);
+		} finally {
+			this.bot.getTracer().end(trace);
+		}
+	}
+
+	/**
+	 * Implements chat, which traces the call.
+	 */
+	protected Vertex internalChat(Long conversationId, String text) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Language language = this.bot.mind().getThought(Language.class);
+		if (language == null || language.isStopped() || !language.isEnabled()) {
+			return null;
+		}
+		Network network = this.bot.memory().newIsolatedMemory();
+		Vertex conversation = null;
+		if (conversationId != null) {
+			conversation = network.findById(conversationId);
+			if ((conversation != null) && !conversation.instanceOf(Primitive.CONVERSATION)) {
+				// The id is from the client, so start a new conversation instead of adding to another vertex.
+				this.bot.log(this, "Invalid conversation id", Level.WARNING, conversationId);
+				conversation = null;
+			}
+		}
+		Vertex speaker = null;
+		if (conversation != null) {
+			Collection<Relationship> speakers = conversation.getRelationships(Primitive.SPEAKER);
+			if (speakers != null) {
+				for (Relationship relationship : speakers) {
+					if (!relationship.getTarget().is(Primitive.SELF)) {
+						speaker = relationship.getTarget();
+					}
+				}
+			}
+		}
+		if (speaker == null) {
+			speaker = network.createSpeaker(DEFAULT_SPEAKER);
+			speaker.addRelationship(Primitive.ASSOCIATED, Primitive.ANONYMOUS);
+		}
+		Vertex input = null;
+		boolean newConversation = text == null;
+		if (newConversation) {
+			// Null input is used to get greeting.
+			input = network.createInstance(Primitive.INPUT);
+			input.addRelationship(Primitive.SENSE, getPrimitive());
+			input.addRelationship(Primitive.INSTANTIATION, Primitive.CHAT);
+			input.addRelationship(Primitive.INPUT, Primitive.NULL);
+		} else {
+			input = createInputSentence(text.trim(), network);
+			input.addRelationship(Primitive.INSTANTIATION, Primitive.CHAT);
+		}
+		input.addRelationship(Primitive.TARGET, Primitive.SELF);
+		input.addRelationship(Primitive.SPEAKER, speaker);
+		speaker.addRelationship(Primitive.INPUT, input);
+		if (conversation == null) {
+			conversation = network.createInstance(Primitive.CONVERSATION);
+			conversation.addRelationship(Primitive.TYPE, Primitive.CHAT);
+			conversation.addRelationship(Primitive.SPEAKER, speaker);
+			conversation.addRelationship(Primitive.SPEAKER, Primitive.SELF);
+		}
+		if (!newConversation) {
+			Language.addToConversation(input, conversation);
+		} else {
+			input.addRelationship(Primitive.CONVERSATION, conversation);
+		}
+		network.save();
+		log("Chat", Level.INFO, text, speaker, conversation);
+		Consciousness consciousness = this.bot.mind().getThought(Consciousness.class);
+		if (consciousness != null && !consciousness.isStopped()) {
+			Span span = Tracer.start("Consciousness");
+			consciousness.think(Collections.singletonList(input), network);
+			Tracer.stop(span);
+		}
+		Span span = Tracer.start("Language");
+		Vertex output = language.processInput(input, network);
+		Tracer.stop(span);
 		network.save();
-		this.bot.memory().addActiveMemory(input);
+		return output;
 	}
 
 	/**
@@ -315,6 +431,24 @@ public class TextEntry extends BasicSense {
 		}
 	}
 	
+	/**
+	 * Import the log file without a size limit.
+	 * The file is streamed, and its conversations are processed in parallel batches.
+	 * If a checkpoint file is given, a failed import resumes after the last committed batch.
+	 */
+	public ChatLogImporter importChatFile(File file, String format, String encoding, boolean processUnderstanding, boolean pin, File checkpoint) {
+		try {
+			ChatLogImporter importer = new ChatLogImporter(this, format, processUnderstanding, pin);
+			importer.setCheckpoint(checkpoint);
+			importer.importLog(new FileInputStream(file), encoding);
+			return importer;
+		} catch (BotException exception) {
+			throw exception;
+		} catch (Exception exception) {
+			throw new BotException(exception);
+		}
+	}
+	
 	/**
 	 * Process the log file for a chat conversation.
 	 * Input each message, in a listening only mode.
@@ -342,6 +476,15 @@ public class TextEntry extends BasicSense {
 	 * Input each message, in a listening only mode.
 	 */
 	public void processChatLog(String log, boolean comprehension, boolean pin) {
+		processChatLog(log, comprehension, pin, null);
+	}
+	
+	/**
+	 * Process the log file for a chat conversation.
+	 * If a batch network is given, all of the lines are added to it, and it is not saved, the caller commits the batch.
+	 * Return if an admin or self speaker was processed.
+	 */
+	public boolean processChatLog(String log, boolean comprehension, boolean pin, Network batch) {
 		log("Loading chat log", Level.INFO, log.length());
 		TextStream stream = new TextStream(log);
 		Vertex lastSpeaker = null;
@@ -374,7 +517,7 @@ public class TextEntry extends BasicSense {
 				// Skip blank lines.
 				while (line.length() == 0) {
 					if (stream.atEnd()) {
-						return;
+						return wasAdmin;
 					}
 					cr = true;
 					marker = stream.getPosition();
@@ -383,7 +526,10 @@ public class TextEntry extends BasicSense {
 				Vertex input = null;
 				log("Processing chat log", Level.INFO, count, line);
 				for (int index = 0; index < RETRY; index++) {
-					Network network = this.bot.memory().newMemory();
+					Network network = batch;
+					if (network == null) {
+						network = this.bot.memory().newMemory();
+					}
 					try {
 						if (comprehension) {
 							// CR means new conversation.
@@ -429,7 +575,9 @@ public class TextEntry extends BasicSense {
 								throw new SelfParseException("Invalid '<emotion>' in chat text", stream);								
 							}
 						}
-						setEmotionalState(state);
+						if (batch == null) {
+							setEmotionalState(state);
+						}
 						String message = lineStream.upToEnd().trim();
 						if (speakerName.equalsIgnoreCase("default")) {
 							Vertex language = network.createVertex(Language.class);
@@ -494,7 +642,9 @@ public class TextEntry extends BasicSense {
 							previous = question;
 							question = sentence;
 						}
-						network.save();
+						if (batch == null) {
+							network.save();
+						}
 						break;
 					} catch (SelfParseException failed) {
 						failed.printStackTrace();
@@ -502,6 +652,13 @@ public class TextEntry extends BasicSense {
 						network.clear();
 						throw failed;
 					} catch (Exception failed) {
+						if (batch != null) {
+							// The caller retries the batch.
+							if (failed instanceof RuntimeException) {
+								throw (RuntimeException)failed;
+							}
+							throw new BotException(failed);
+						}
 						failed.printStackTrace();
 						log(failed);
 						network.clear();
@@ -509,7 +666,7 @@ public class TextEntry extends BasicSense {
 				}
 				if (comprehension) {
 					if (input == null) {
-						return;
+						return wasAdmin;
 					}
 					this.bot.memory().addActiveMemory(input);
 					int abort = 0;
@@ -527,12 +684,15 @@ public class TextEntry extends BasicSense {
 					}
 				}
 			}
-			if (languageThought.getLearningMode() == LearningMode.Administrators && !wasAdmin) {
+			if (batch == null && languageThought.getLearningMode() == LearningMode.Administrators && !wasAdmin) {
 				throw new SelfParseException("Expected 'admin:' speaker in chat text when learning mode is administrators only", stream);
 			}
+			return wasAdmin;
 		} finally {
-			setLanguageState(oldState);
-			languageThought.setLearningMode(oldMode);
+			if (comprehension) {
+				setLanguageState(oldState);
+				languageThought.setLearningMode(oldMode);
+			}
 		}
 	}
 		
@@ -541,9 +701,20 @@ public class TextEntry extends BasicSense {
 	 * Input each message, in a listening only mode.
 	 */
 	public void processResponseLog(String log, boolean pin) {
+		processResponseLog(log, pin, null);
+	}
+	
+	/**
+	 * Process the log file for a list of question/answers.
+	 * If a batch network is given, all of the lines are added to it, and it is not saved, the caller commits the batch.
+	 */
+	public void processResponseLog(String log, boolean pin, Network batch) {
 		log("Loading response log", Level.INFO, log.length());
 		TextStream stream = new TextStream(log);
-		Network network = this.bot.memory().newMemory();
+		Network network = batch;
+		if (network == null) {
+			network = this.bot.memory().newMemory();
+		}
 		Vertex question = null;
 		Vertex answer = null;
 		boolean first = true;
@@ -564,7 +735,7 @@ public class TextEntry extends BasicSense {
 				answer = null;
 				line = stream.nextLine().trim();
 				originalLine = line;
-				if (!line.isEmpty()) {
+				if (!line.isEmpty() && batch == null) {
 					network = this.bot.memory().newMemory();
 				}
 			}
@@ -765,9 +936,13 @@ public class TextEntry extends BasicSense {
 					question.associateAll(Primitive.SYNONYM, sentence, Primitive.RESPONSE);
 				}
 			}
+			if (batch == null) {
+				network.save();
+			}
+		}
+		if (batch == null) {
 			network.save();
 		}
-		network.save();
 	}
 
 	/**
@@ -775,9 +950,20 @@ public class TextEntry extends BasicSense {
 	 * Input each message, in a listening only mode.
 	 */
 	public void processCSVLog(String log, boolean pin) {
+		processCSVLog(log, pin, null);
+	}
+	
+	/**
+	 * Process the log file for a list a of question/answers.
+	 * If a batch network is given, all of the lines are added to it, and it is not saved, the caller commits the batch.
+	 */
+	public void processCSVLog(String log, boolean pin, Network batch) {
 		log("Loading csv log", Level.INFO, log.length());
 		TextStream stream = new TextStream(log);
-		Network network = this.bot.memory().newMemory();
+		Network network = batch;
+		if (network == null) {
+			network = this.bot.memory().newMemory();
+		}
 		Vertex question = null;
 		Vertex answer = null;
 		boolean first = true;
@@ -795,7 +981,7 @@ public class TextEntry extends BasicSense {
 				question = null;
 				answer = null;
 				line = stream.nextLine().trim();
-				if (!line.isEmpty()) {
+				if (!line.isEmpty() && batch == null) {
 					network = this.bot.memory().newMemory();
 				}
 			}
@@ -897,8 +1083,12 @@ public class TextEntry extends BasicSense {
 					}
 				}
 			}
+			if (batch == null) {
+				network.save();
+			}
+		}
+		if (batch == null) {
 			network.save();
 		}
-		network.save();
 	}
 }
\ No newline at end of file
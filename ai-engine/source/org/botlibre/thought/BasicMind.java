@@ -29,6 +29,9 @@ import org.botlibre.api.knowledge.MemoryEventListener;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.api.thought.Mind;
 import org.botlibre.api.thought.Thought;
+import org.botlibre.util.Trace;
+import org.botlibre.util.Trace.Span;
+import org.botlibre.util.Tracer;
 
 /**
  * Controls and manages the thought processing.
@@ -66,11 +69,10 @@ public class BasicMind implements Mind {
 	 */
 	protected Map<String, Thought> thoughtsBySimpleName;
 	
-	protected Thread consciousThread;
-	protected volatile boolean consciousRunRequired;
-	
-	protected Thread subconsciousThread;
-	protected volatile boolean subconsciousRunRequired;
+	/**
+	 * Schedules the conscious and subconscious thoughts when new active memory is added.
+	 */
+	protected MindScheduler scheduler;
 	
 	protected MemoryEventListener listener;
 		
@@ -79,6 +81,7 @@ public class BasicMind implements Mind {
 		this.thoughtsBySimpleName = new LinkedHashMap<String, Thought>();
 		this.state = MentalState.UNCONSCIOUS;
 		this.lastActiveTime = System.currentTimeMillis();
+		this.scheduler = new MindScheduler(this);
 	}
 	
 	/**
@@ -153,6 +156,41 @@ public class BasicMind implements Mind {
 		this.bot.log(this, message, level, arguments);
 	}
 	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level) {
+		this.bot.log(this, message, level);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object argument) {
+		this.bot.log(this, message, level, argument);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second) {
+		this.bot.log(this, message, level, first, second);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second, Object third) {
+		this.bot.log(this, message, level, first, second, third);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second, Object third, Object fourth) {
+		this.bot.log(this, message, level, first, second, third, fourth);
+	}
+	
 	/**
 	 * Log the exception.
 	 */
@@ -178,10 +216,15 @@ public class BasicMind implements Mind {
 	
 	/**
 	 * Initialize any configurable settings from the properties.
+	 * The "trace" property enables tracing the processing of each input.
 	 */
 	@Override
 	public void initialize(Map<String, Object> properties) {
-		return;
+		if (properties.containsKey("trace")) {
+			boolean trace = Boolean.valueOf((String)properties.get("trace"));
+			this.bot.getTracer().setEnabled(trace);
+			this.bot.log(this, "Init property:", Level.FINEST, "trace", trace);
+		}
 	}
 
 	@Override
@@ -202,13 +245,13 @@ public class BasicMind implements Mind {
 				}
 			}
 			for (int count = 0; count < 10; count++) {
-				if (this.consciousThread == null) {
+				if (!this.scheduler.isConsciousRunning()) {
 					break;
 				}
 				Thread.sleep(100);
 			}
 			for (int count = 0; count < 50; count++) {
-				if (this.subconsciousThread == null) {
+				if (!this.scheduler.isSubconsciousRunning()) {
 					break;
 				}
 				Thread.sleep(100);
@@ -217,7 +260,7 @@ public class BasicMind implements Mind {
 				thought.stop();
 			}
 			for (int count = 0; count < 50; count++) {
-				if (this.subconsciousThread == null) {
+				if (!this.scheduler.isSubconsciousRunning()) {
 					break;
 				}
 				Thread.sleep(100);
@@ -236,9 +279,8 @@ public class BasicMind implements Mind {
 	}
 	
 	/**
-	 * Spawn a thread to run the thoughts.
-	 * Currently only uses a single thread,
-	 * but should probably have a least one thread per thought, or more.
+	 * Register a listener to schedule the thoughts when new active memory is added.
+	 * The thoughts are run by the scheduler's shared thread pools.
 	 */
 	@Override
 	public void awake() {
@@ -258,54 +300,7 @@ public class BasicMind implements Mind {
 					return;
 				}
 				try {
-					consciousRunRequired = true;
-					subconsciousRunRequired = true;
-					if (consciousThread == null) {
-						threadPool.execute(new Runnable() {
-							public void run() {
-								consciousThread = Thread.currentThread();
-								try {
-									while (consciousRunRequired) {
-										consciousRunRequired = false;
-										processConsciousThoughts();
-									}
-								} finally {
-									consciousThread = null;
-								}
-							}
-						});
-					}
-					if (subconsciousThread == null) {
-						threadPool.execute(new Runnable() {
-							public void run() {
-								subconsciousThread = Thread.currentThread();
-								try {
-									while (subconsciousRunRequired) {
-										subconsciousRunRequired = false;
-										for (Thought thought : getThoughts().values()) {
-											if (!thought.isConscious()) {
-												if (!isConscious()) {
-													break;
-												}
-												if (thought.isStopped()) {
-													continue;
-												}
-												// Don't run when busy.
-												if (thought.isCritical() || state.ordinal() < MentalState.ALERT.ordinal()) {
-													thought.think();
-												}
-												try {
-													Thread.sleep(1);
-												} catch (Exception interupted) {}
-											}
-										}
-									}
-								} finally {
-									subconsciousThread = null;
-								}
-							}
-						});
-					}
+					scheduler.activeMemoryAdded(bot.memory());
 				} catch (Exception failed) {
 					bot.log(this, failed);
 				}
@@ -323,66 +318,44 @@ public class BasicMind implements Mind {
 		// Ensure no senses add to the network while processing.
 		try {
 			synchronized (memory) {
-				try {
-					memory.wait(10);
-				} catch (InterruptedException exception) {}
 				if (!isConscious()) {
 					return;
 				}
 				if (!memory.getActiveMemory().isEmpty()) {
-					incrementState(MentalState.ACTIVE);
-					// Save reset vertices in memory to allow picking up new relationships.
-					memory.save();
-					// Process emotion
-					this.bot.mood().evaluate();
-					// Process each conscious thought serially.
-					// (sub-conscious are processed concurrently), but conscious has a single shared memory.					
-					for (Thought thought : this.thoughts.values()) {
-						try {
-							if (thought.isConscious()) {
-								thought.think();
-							}
-						} catch (Exception failed) {
-							this.bot.log(this, failed);
-						}
-					}
-					// Clear active.
-					memory.getActiveMemory().clear();
-					memory.save();
-					setLastActiveTime(System.currentTimeMillis());
+					// Continue the trace of the input from the sense.
+					Trace trace = this.bot.getTracer().resume(memory.getActiveMemory(), "Conscious");
 					try {
-						memory.wait(10);
-					} catch (InterruptedException exception) {}
-					// If another event has occurred during the processing of the current events, then increase the stress level.
-					int size = memory.getActiveMemory().size();
-					if (size > 0) {
-						incrementState(MentalState.ALERT);
-						try {
-							memory.wait(1);
-						} catch (InterruptedException exception) {}
-						if (memory.getActiveMemory().size() > size) {
-							log("Sensory overload", Bot.WARNING, size);
-							incrementState(MentalState.PANIC);
-						}
-					}
-				}
-				try {
-					memory.wait(10);
-				} catch (InterruptedException exception) {}
-				// If no event has occurred decrease the stress level.
-				if (memory.getActiveMemory().isEmpty()) {
-					int state = this.state.ordinal();
-					if (state >= MentalState.PANIC.ordinal()) {
-						decrementState(MentalState.ALERT);
-					} else if (state >= MentalState.ALERT.ordinal()) {
-						decrementState(MentalState.ACTIVE);
-					} else if (state >= MentalState.BORED.ordinal()) {
-						long unactiveTime = getUnactiveTime();
-						if (unactiveTime > UNACTIVE_TO_ASLEEP) {
-							decrementState(MentalState.ASLEEP);
-						} else if (unactiveTime > UNACTIVE_TO_BORED) {
-							decrementState(MentalState.BORED);
+						incrementState(MentalState.ACTIVE);
+						// Save reset vertices in memory to allow picking up new relationships.
+						memory.save();
+						// Process emotion
+						Span span = Tracer.start("Mood");
+						this.bot.mood().evaluate();
+						Tracer.stop(span);
+						// Process each conscious thought serially.
+						// (sub-conscious are processed concurrently), but conscious has a single shared memory.					
+						for (Thought thought : this.thoughts.values()) {
+							try {
+								if (thought.isConscious()) {
+									span = Tracer.start(thought.getClass().getSimpleName());
+									try {
+										thought.think();
+									} finally {
+										Tracer.stop(span);
+									}
+								}
+							} catch (Exception failed) {
+								this.bot.log(this, failed);
+							}
 						}
+						// Clear active.
+						memory.getActiveMemory().clear();
+						memory.save();
+						setLastActiveTime(System.currentTimeMillis());
+						// Release any senses waiting for the active memory to be processed.
+						memory.notifyAll();
+					} finally {
+						this.bot.getTracer().end(trace);
 					}
 				}
 			}
@@ -396,6 +369,37 @@ public class BasicMind implements Mind {
 			memory.freeMemory();
 		}
 	}
+	
+	/**
+	 * Update the stress level after processing the active memory.
+	 * If another event has occurred during the processing, then increase the stress level, otherwise decrease it.
+	 */
+	public void updateState(boolean isBusy) {
+		if (!isConscious()) {
+			return;
+		}
+		if (isBusy) {
+			incrementState(MentalState.ALERT);
+			return;
+		}
+		int state = this.state.ordinal();
+		if (state >= MentalState.PANIC.ordinal()) {
+			decrementState(MentalState.ALERT);
+		} else if (state >= MentalState.ALERT.ordinal()) {
+			decrementState(MentalState.ACTIVE);
+		} else if (state >= MentalState.BORED.ordinal()) {
+			long unactiveTime = getUnactiveTime();
+			if (unactiveTime > UNACTIVE_TO_ASLEEP) {
+				decrementState(MentalState.ASLEEP);
+			} else if (unactiveTime > UNACTIVE_TO_BORED) {
+				decrementState(MentalState.BORED);
+			}
+		}
+	}
+
+	public MindScheduler getScheduler() {
+		return scheduler;
+	}
 
 	@Override
 	public Map<String, Thought> getThoughts() {
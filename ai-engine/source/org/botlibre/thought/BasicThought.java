@@ -104,6 +104,41 @@ public class BasicThought implements Thought {
 		this.bot.log(this, message, level, arguments);
 	}
 	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level) {
+		this.bot.log(this, message, level);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object argument) {
+		this.bot.log(this, message, level, argument);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second) {
+		this.bot.log(this, message, level, first, second);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second, Object third) {
+		this.bot.log(this, message, level, first, second, third);
+	}
+	
+	/**
+	 * Log the message if the debug level is greater or equal to the level.
+	 */
+	public void log(String message, Level level, Object first, Object second, Object third, Object fourth) {
+		this.bot.log(this, message, level, first, second, third, fourth);
+	}
+	
 	/**
 	 * Log the exception.
 	 */
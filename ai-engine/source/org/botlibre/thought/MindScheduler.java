@@ -0,0 +1,371 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.thought;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.botlibre.Bot;
+import org.botlibre.api.knowledge.Memory;
+import org.botlibre.api.thought.Mind.MentalState;
+import org.botlibre.api.thought.Thought;
+
+/**
+ * Event driven scheduler for a mind's thoughts.
+ * New active memory schedules a run of the conscious and subconscious thoughts,
+ * each bot has at most one queued or running task per lane, so its work queue is bounded,
+ * and the tasks of all bots are run by two shared worker pools, the conscious lane, and the smaller subconscious lane,
+ * so the subconscious thoughts can never take the workers the conscious thoughts need.
+ * The thoughts block on the database, so the pools have several threads per core,
+ * and a task processes one pass of its bot's thoughts then requeues behind the other bots,
+ * so a busy or slow bot cannot hold the workers while the other bots wait.
+ * The lane queues are bounded, once the conscious queue is full the sense's thread runs its bot's thoughts itself,
+ * and once the subconscious queue is full the run is skipped until the bot's next event.
+ * Senses that add active memory faster than it can be processed are blocked until it is processed (backpressure).
+ * Records the latency of each lane by mental state.
+ */
+public class MindScheduler {
+	/** Threads per core, the thoughts spend most of their time blocked on database queries and commits. */
+	public static int BLOCKING_FACTOR = 8;
+	public static int POOL_SIZE = Math.max(4, Runtime.getRuntime().availableProcessors() * BLOCKING_FACTOR);
+	public static int SUBCONSCIOUS_POOL_SIZE = Math.max(1, POOL_SIZE / 4);
+	/** Maximum tasks queued in each lane. */
+	public static int QUEUE_SIZE = 1000;
+	/** Maximum active memory before a sense is blocked until it is processed. */
+	public static int MAX_ACTIVE_MEMORY = 100;
+	/** Maximum time a sense is blocked before the input is accepted and the mind panics. */
+	public static long MAX_BACKPRESSURE_WAIT = 10000;
+
+	protected static ThreadPoolExecutor consciousPool;
+	protected static ThreadPoolExecutor subconsciousPool;
+
+	protected BasicMind mind;
+	protected AtomicBoolean consciousScheduled = new AtomicBoolean();
+	protected AtomicBoolean subconsciousScheduled = new AtomicBoolean();
+	protected volatile boolean consciousRunRequired;
+	protected volatile boolean subconsciousRunRequired;
+	protected volatile Thread consciousThread;
+	protected volatile Thread subconsciousThread;
+	/** Time the oldest unprocessed active memory was added, or 0. */
+	protected AtomicLong pendingSince = new AtomicLong();
+	protected AtomicLong backpressureWaits = new AtomicLong();
+	protected LatencyStats consciousStats = new LatencyStats();
+	protected LatencyStats subconsciousStats = new LatencyStats();
+
+	/**
+	 * Count, total, and max latency for each mental state.
+	 */
+	public static class LatencyStats {
+		protected long[] counts = new long[MentalState.values().length];
+		protected long[] totals = new long[MentalState.values().length];
+		protected long[] max = new long[MentalState.values().length];
+
+		public synchronized void record(MentalState state, long time) {
+			int index = state.ordinal();
+			this.counts[index]++;
+			this.totals[index] = this.totals[index] + time;
+			if (time > this.max[index]) {
+				this.max[index] = time;
+			}
+		}
+
+		public synchronized long getCount(MentalState state) {
+			return this.counts[state.ordinal()];
+		}
+
+		public synchronized long getMax(MentalState state) {
+			return this.max[state.ordinal()];
+		}
+
+		public synchronized long getAverage(MentalState state) {
+			int index = state.ordinal();
+			if (this.counts[index] == 0) {
+				return 0;
+			}
+			return this.totals[index] / this.counts[index];
+		}
+
+		public synchronized void reset() {
+			for (int index = 0; index < this.counts.length; index++) {
+				this.counts[index] = 0;
+				this.totals[index] = 0;
+				this.max[index] = 0;
+			}
+		}
+
+		public synchronized String toString() {
+			StringBuilder writer = new StringBuilder();
+			for (MentalState state : MentalState.values()) {
+				int index = state.ordinal();
+				if (this.counts[index] > 0) {
+					if (writer.length() > 0) {
+						writer.append(", ");
+					}
+					writer.append(state.name());
+					writer.append(": ");
+					writer.append(this.counts[index]);
+					writer.append(" avg ");
+					writer.append(this.totals[index] / this.counts[index]);
+					writer.append("ms max ");
+					writer.append(this.max[index]);
+					writer.append("ms");
+				}
+			}
+			return writer.toString();
+		}
+	}
+
+	public MindScheduler(BasicMind mind) {
+		this.mind = mind;
+	}
+
+	public static synchronized ThreadPoolExecutor getConsciousPool() {
+		if (consciousPool == null) {
+			consciousPool = createPool("conscious", POOL_SIZE);
+		}
+		return consciousPool;
+	}
+
+	public static synchronized ThreadPoolExecutor getSubconsciousPool() {
+		if (subconsciousPool == null) {
+			subconsciousPool = createPool("subconscious", SUBCONSCIOUS_POOL_SIZE);
+		}
+		return subconsciousPool;
+	}
+
+	/**
+	 * Create a lane's pool, a task submitted to a full queue is rejected.
+	 */
+	protected static ThreadPoolExecutor createPool(final String name, int size) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+				new ThreadFactory() {
+					protected AtomicInteger count = new AtomicInteger();
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * New active memory was added, schedule the thoughts to process it.
+	 * If the active memory is full, block the sense until it is processed.
+	 * Called from the memory event, so the memory's lock is held.
+	 */
+	public void activeMemoryAdded(Memory memory) {
+		this.pendingSince.compareAndSet(0, System.currentTimeMillis());
+		scheduleConscious();
+		scheduleSubconscious();
+		awaitCapacity(memory);
+	}
+
+	/**
+	 * Queue the conscious thoughts, if the queue is full the caller runs them,
+	 * so the sense is slowed to the rate its input can be processed.
+	 */
+	public void scheduleConscious() {
+		this.consciousRunRequired = true;
+		if (this.consciousScheduled.compareAndSet(false, true)) {
+			if (!submitConscious()) {
+				runConscious();
+			}
+		}
+	}
+
+	/**
+	 * Queue the conscious task, return false if the queue is full.
+	 */
+	protected boolean submitConscious() {
+		try {
+			getConsciousPool().execute(new Runnable() {
+				public void run() {
+					runConscious();
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException full) {
+			return false;
+		}
+	}
+
+	public void scheduleSubconscious() {
+		this.subconsciousRunRequired = true;
+		if (this.subconsciousScheduled.compareAndSet(false, true)) {
+			try {
+				getSubconsciousPool().execute(new Runnable() {
+					public void run() {
+						runSubconscious();
+					}
+				});
+			} catch (RejectedExecutionException full) {
+				// The run is still required, and is scheduled on the next event.
+				this.subconsciousScheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Process the conscious thoughts, and requeue if new active memory was added.
+	 * If the queue is full, the thread continues processing the bot.
+	 */
+	protected void runConscious() {
+		boolean done = false;
+		while (!done) {
+			this.consciousThread = Thread.currentThread();
+			try {
+				if (this.consciousRunRequired) {
+					this.consciousRunRequired = false;
+					long since = this.pendingSince.getAndSet(0);
+					MentalState state = this.mind.getState();
+					this.mind.processConsciousThoughts();
+					// If another event has occurred during the processing of the current events, then increase the stress level.
+					this.mind.updateState(this.consciousRunRequired);
+					if (since != 0) {
+						this.consciousStats.record(state, System.currentTimeMillis() - since);
+					}
+				}
+			} catch (Throwable failed) {
+				this.mind.log(failed);
+			} finally {
+				this.consciousThread = null;
+				this.consciousScheduled.set(false);
+			}
+			done = !this.consciousRunRequired || !this.mind.isConscious()
+					|| !this.consciousScheduled.compareAndSet(false, true) || submitConscious();
+		}
+	}
+
+	/**
+	 * Process the subconscious thoughts, and requeue if new active memory was added.
+	 */
+	protected void runSubconscious() {
+		this.subconsciousThread = Thread.currentThread();
+		try {
+			if (this.subconsciousRunRequired) {
+				this.subconsciousRunRequired = false;
+				for (Thought thought : this.mind.getThoughts().values()) {
+					if (!thought.isConscious()) {
+						if (!this.mind.isConscious()) {
+							break;
+						}
+						if (thought.isStopped()) {
+							continue;
+						}
+						// Don't run when busy.
+						MentalState state = this.mind.getState();
+						if (thought.isCritical() || state.ordinal() < MentalState.ALERT.ordinal()) {
+							long start = System.currentTimeMillis();
+							try {
+								thought.think();
+							} catch (Exception failed) {
+								this.mind.log(failed);
+							}
+							this.subconsciousStats.record(state, System.currentTimeMillis() - start);
+						}
+					}
+				}
+			}
+		} catch (Throwable failed) {
+			this.mind.log(failed);
+		} finally {
+			this.subconsciousThread = null;
+			this.subconsciousScheduled.set(false);
+			if (this.subconsciousRunRequired && this.mind.isConscious()) {
+				scheduleSubconscious();
+			}
+		}
+	}
+
+	/**
+	 * Block the sense until the active memory has been processed.
+	 * The wait releases the memory's lock, the conscious thoughts notify once the active memory is cleared.
+	 * Thoughts adding active memory while processing are never blocked.
+	 */
+	protected void awaitCapacity(Memory memory) {
+		int size = memory.getActiveMemory().size();
+		if (size <= MAX_ACTIVE_MEMORY || Thread.currentThread() == this.consciousThread || Thread.currentThread() == this.subconsciousThread) {
+			return;
+		}
+		this.backpressureWaits.incrementAndGet();
+		this.mind.incrementState(MentalState.ALERT);
+		long start = System.currentTimeMillis();
+		long remaining = MAX_BACKPRESSURE_WAIT;
+		synchronized (memory) {
+			try {
+				while (remaining > 0 && memory.getActiveMemory().size() > MAX_ACTIVE_MEMORY && this.mind.isConscious()) {
+					memory.wait(remaining);
+					remaining = MAX_BACKPRESSURE_WAIT - (System.currentTimeMillis() - start);
+				}
+			} catch (InterruptedException exception) {
+				Thread.currentThread().interrupt();
+			}
+			if (memory.getActiveMemory().size() > MAX_ACTIVE_MEMORY) {
+				this.mind.log("Sensory overload", Bot.WARNING, memory.getActiveMemory().size());
+				this.mind.incrementState(MentalState.PANIC);
+			}
+		}
+	}
+
+	public boolean isConsciousRunning() {
+		return this.consciousScheduled.get();
+	}
+
+	public boolean isSubconsciousRunning() {
+		return this.subconsciousScheduled.get();
+	}
+
+	/**
+	 * Return the number of times a sense was blocked waiting for the active memory to be processed.
+	 */
+	public long getBackpressureWaits() {
+		return this.backpressureWaits.get();
+	}
+
+	/**
+	 * Return the latency from active memory being added, to the conscious thoughts processing it.
+	 */
+	public LatencyStats getConsciousStats() {
+		return consciousStats;
+	}
+
+	/**
+	 * Return the time to process each subconscious thought.
+	 */
+	public LatencyStats getSubconsciousStats() {
+		return subconsciousStats;
+	}
+
+	public void resetStats() {
+		this.consciousStats.reset();
+		this.subconsciousStats.reset();
+		this.backpressureWaits.set(0);
+	}
+
+	public String toString() {
+		return getClass().getSimpleName() + "(conscious: " + this.consciousStats + " subconscious: " + this.subconsciousStats + ")";
+	}
+}
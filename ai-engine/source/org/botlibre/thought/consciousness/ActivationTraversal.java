@@ -0,0 +1,246 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.thought.consciousness;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import org.botlibre.api.knowledge.Relationship;
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.knowledge.BasicVertex;
+import org.botlibre.knowledge.columnar.LongIntMap;
+
+/**
+ * Breadth first spread of activation from a set of vertices, within a limit of vertices and a cost budget.
+ * Visited vertices are tracked by id in a primitive map valued by the traversal's generation,
+ * so the buffers are reused by each traversal without clearing them.
+ * The number of relationships of expanded vertices is remembered, so hubs are skipped without loading their relationships.
+ * A traversal is not thread safe, Consciousness reuses one traversal, and creates another for concurrent calls.
+ */
+
+public class ActivationTraversal {
+	/** The current and next level of the traversal. */
+	protected Vertex[] frontier;
+	protected Vertex[] nextFrontier;
+	protected int frontierSize;
+	protected int nextFrontierSize;
+	/** Visited vertex ids, valued by the generation that visited them. */
+	protected LongIntMap visited;
+	protected int generation;
+	/** Number of relationships of vertices whose relationships were loaded. */
+	protected LongIntMap degrees;
+
+	protected int limit;
+	protected int visitedCount;
+	protected int scanned;
+	protected int hubsSkipped;
+
+	public ActivationTraversal() {
+		this.frontier = new Vertex[Consciousness.TRAVERSAL_LIMIT];
+		this.nextFrontier = new Vertex[Consciousness.TRAVERSAL_LIMIT];
+		this.visited = new LongIntMap(Consciousness.TRAVERSAL_LIMIT * 4);
+		this.degrees = new LongIntMap(1024);
+	}
+
+	/**
+	 * Start a new traversal of up to the limit of vertices.
+	 */
+	public void begin(int limit) {
+		this.limit = limit;
+		this.generation++;
+		if ((this.generation == Integer.MAX_VALUE) || (this.visited.size() > (limit * 100))) {
+			this.visited = new LongIntMap(limit * 4);
+			this.generation = 1;
+		}
+		if (this.degrees.size() > Consciousness.DEGREE_CACHE_SIZE) {
+			this.degrees = new LongIntMap(1024);
+		}
+		if (this.frontier.length < limit) {
+			this.frontier = new Vertex[limit];
+			this.nextFrontier = new Vertex[limit];
+		}
+		this.frontierSize = 0;
+		this.nextFrontierSize = 0;
+		this.visitedCount = 0;
+		this.scanned = 0;
+		this.hubsSkipped = 0;
+	}
+
+	/**
+	 * Release the vertices, so the traversal does not hold the network's vertices.
+	 */
+	public void end() {
+		Arrays.fill(this.frontier, 0, this.frontierSize, null);
+		Arrays.fill(this.nextFrontier, 0, this.nextFrontierSize, null);
+		this.frontierSize = 0;
+		this.nextFrontierSize = 0;
+	}
+
+	/**
+	 * Make the next level the current level.
+	 */
+	public void nextLevel() {
+		Vertex[] frontier = this.frontier;
+		Arrays.fill(frontier, 0, this.frontierSize, null);
+		this.frontier = this.nextFrontier;
+		this.frontierSize = this.nextFrontierSize;
+		this.nextFrontier = frontier;
+		this.nextFrontierSize = 0;
+	}
+
+	public int getFrontierSize() {
+		return frontierSize;
+	}
+
+	public Vertex getFrontier(int index) {
+		return this.frontier[index];
+	}
+
+	public int getVisitedCount() {
+		return visitedCount;
+	}
+
+	/**
+	 * Return the number of vertices visited plus relationships scanned.
+	 */
+	public int getCost() {
+		return this.visitedCount + this.scanned;
+	}
+
+	public int getScanned() {
+		return scanned;
+	}
+
+	public int getHubsSkipped() {
+		return hubsSkipped;
+	}
+
+	/**
+	 * Return if the limit of vertices has been visited.
+	 */
+	public boolean isFull() {
+		return this.visitedCount >= this.limit;
+	}
+
+	/**
+	 * Return the key of the vertex, its id, or its identity for a vertex without an id.
+	 */
+	protected long key(Vertex vertex) {
+		if (vertex.getId() != null) {
+			return vertex.getId();
+		}
+		return -1L - System.identityHashCode(vertex);
+	}
+
+	/**
+	 * Add the vertex to the next level, if it has not been added by this traversal.
+	 * Return false if the limit has been reached.
+	 */
+	public boolean add(Vertex vertex) {
+		if ((this.visitedCount + this.nextFrontierSize) >= this.limit) {
+			return false;
+		}
+		if (vertex == null) {
+			return true;
+		}
+		long key = key(vertex);
+		if (this.visited.get(key) == this.generation) {
+			return true;
+		}
+		this.visited.put(key, this.generation);
+		this.nextFrontier[this.nextFrontierSize++] = vertex;
+		return true;
+	}
+
+	/**
+	 * Return the vertex's known number of relationships without loading them, or -1.
+	 * The number of references to the vertex is used as an estimate for a vertex that has not been expanded.
+	 */
+	protected int getDegree(Vertex vertex) {
+		if (vertex.hasRelationships()) {
+			return -1;
+		}
+		int degree = -1;
+		if (vertex.getId() != null) {
+			degree = this.degrees.get(vertex.getId());
+		}
+		if ((degree == -1) && (vertex instanceof BasicVertex)) {
+			int references = ((BasicVertex)vertex).getReferenceCount();
+			if (references > 0) {
+				degree = references;
+			}
+		}
+		return degree;
+	}
+
+	/**
+	 * Visit the vertex, and add the types and targets of its relationships to the next level.
+	 * The rare relationships are added first, then the common relationships until the limit.
+	 * A hub's relationships are not loaded or added.
+	 */
+	public void visit(Vertex vertex) {
+		this.visitedCount++;
+		if (getDegree(vertex) > Consciousness.MAX_DEGREE) {
+			this.hubsSkipped++;
+			return;
+		}
+		Map<Vertex, Map<Relationship, Relationship>> relationships = vertex.getRelationships();
+		int total = 0;
+		boolean full = false;
+		boolean common = false;
+		for (Map<Relationship, Relationship> values : relationships.values()) {
+			total = total + values.size();
+			if (full) {
+				continue;
+			}
+			// Only traverse rare relationships.
+			if (values.size() > Consciousness.IGNORE_RELATIONS_MAX) {
+				common = true;
+				continue;
+			}
+			this.scanned = this.scanned + values.size();
+			full = !addAll(values.values());
+		}
+		if (common && !full) {
+			for (Map<Relationship, Relationship> values : relationships.values()) {
+				if (values.size() > Consciousness.IGNORE_RELATIONS_MAX) {
+					this.scanned = this.scanned + values.size();
+					if (!addAll(values.values())) {
+						break;
+					}
+				}
+			}
+		}
+		if (vertex.getId() != null) {
+			this.degrees.put(vertex.getId(), total);
+		}
+	}
+
+	/**
+	 * Add the types and targets of the relationships to the next level, return false if the limit has been reached.
+	 */
+	protected boolean addAll(Collection<Relationship> relationships) {
+		for (Relationship relationship : relationships) {
+			if (!add(relationship.getType()) || !add(relationship.getTarget())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -17,16 +17,14 @@
  ******************************************************************************/
 package org.botlibre.thought.consciousness;
 
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
 import org.botlibre.api.knowledge.Network;
-import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.api.thought.Mind.MentalState;
 import org.botlibre.knowledge.Primitive;
@@ -34,15 +32,35 @@ import org.botlibre.thought.BasicThought;
 
 /**
  * Consciousness monitors active memory and decides what to do.
+ * Spreads activation breadth first from the active vertices with an ActivationTraversal reused by each call,
+ * within a cost budget of vertices visited and relationships scanned.
  */
 public class Consciousness extends BasicThought {
 	public static int IGNORE_RELATIONS_MAX = 50;
 	public static int TRAVERSAL_LIMIT = 100;
 	public static int MAX_PROCESS_TIME = 100;
+	/** Max number of vertices visited plus relationships scanned by a call, scaled by the mental state like the processing time. */
+	public static int MAX_COST = 5000;
+	/** Vertices with more relationships are visited but not expanded, if their relationships are not already loaded. */
+	public static int MAX_DEGREE = 1000;
+	/** Number of vertices visited between checks of the processing time. */
+	public static int TIME_CHECK_INTERVAL = 16;
+	/** Number of vertex degrees remembered to skip hubs without loading them. */
+	public static int DEGREE_CACHE_SIZE = 10000;
 			
 	/** Defines the flow of time. */
 	protected Long lastContext;
 	
+	/** The traversal buffers, reused by each call, null while in use. */
+	protected AtomicReference<ActivationTraversal> traversal = new AtomicReference<ActivationTraversal>(new ActivationTraversal());
+	
+	protected AtomicLong calls = new AtomicLong();
+	protected AtomicLong verticesVisited = new AtomicLong();
+	protected AtomicLong relationshipsScanned = new AtomicLong();
+	protected AtomicLong hubsSkipped = new AtomicLong();
+	protected AtomicLong limitsReached = new AtomicLong();
+	protected AtomicLong timeSpent = new AtomicLong();
+	
 	/**
 	 * Create a new consciousness.
 	 */
@@ -135,10 +153,15 @@ public class Consciousness extends BasicThought {
 	 */
 	@Override
 	public void think() {
-		Network network = getShortTermMemory();
+		think(this.bot.memory().getActiveMemory(), getShortTermMemory());
+	}
+	
+	/**
+	 * Increase the consciousness level of the active vertices, and associate them with a new context in the network.
+	 */
+	public void think(List<Vertex> activeMemory, Network network) {
 		if (!isEnabled()) {
 			// Still need to record context processing.
-			List<Vertex> activeMemory = this.bot.memory().getActiveMemory();
 			Iterator<Vertex> vertices = activeMemory.iterator();
 			
 			// Create a context for this point in time, associate everything with it.
@@ -157,7 +180,6 @@ public class Consciousness extends BasicThought {
 		// First age short term memory.
 		age(network);
 		
-		List<Vertex> activeMemory = this.bot.memory().getActiveMemory();
 		Iterator<Vertex> vertices = activeMemory.iterator();
 		
 		// Create a context for this point in time, associate everything with it.
@@ -179,39 +201,107 @@ public class Consciousness extends BasicThought {
 		}
 		setLastContext(context);
 
-		vertices = activeMemory.iterator();
-		// Process active vertices n levels deep.
-		Set<Vertex> recursiveSet = new HashSet<Vertex>();
-		// Use a breath first search, and abort at 1000 vertices.
-		Set<Vertex> breadthSet = new HashSet<Vertex>();
-		while (vertices.hasNext()) {
-			// Must register into the current memory context.
-			breadthSet.add(network.createVertex(vertices.next()));
+		// Process active vertices n levels deep, breadth first.
+		ActivationTraversal traversal = this.traversal.getAndSet(null);
+		if (traversal == null) {
+			// Another call is using the traversal.
+			traversal = new ActivationTraversal();
 		}
-		int levels = getTraversalLevel();
-		while ((levels > 0) && (recursiveSet.size() < TRAVERSAL_LIMIT)) {
-			Set<Vertex> nextLevelBreadthSet = new HashSet<Vertex>();
-			Iterator<Vertex> iterator = breadthSet.iterator();
-			boolean maxTime = false;
-			while (iterator.hasNext() && (recursiveSet.size() < TRAVERSAL_LIMIT)) {
-				think(iterator.next(), levels, recursiveSet, nextLevelBreadthSet);
-				long currentTime = System.currentTimeMillis();
-				if ((currentTime - startTime) > processTime) {
-					maxTime = true;
-					log("Process time limit reached", Level.INFO, processTime, recursiveSet.size());					
-					break;
+		try {
+			traversal.begin(TRAVERSAL_LIMIT);
+			vertices = activeMemory.iterator();
+			while (vertices.hasNext()) {
+				// Must register into the current memory context.
+				traversal.add(network.createVertex(vertices.next()));
+			}
+			traversal.nextLevel();
+			int levels = getTraversalLevel();
+			int maxCost = (int)((long)MAX_COST * processTime / MAX_PROCESS_TIME);
+			boolean limit = false;
+			while ((levels > 0) && (traversal.getFrontierSize() > 0) && !limit) {
+				for (int index = 0; index < traversal.getFrontierSize(); index++) {
+					think(traversal.getFrontier(index), levels, traversal);
+					if (traversal.isFull()) {
+						log("Traversal limit reached", Level.FINE, traversal.getVisitedCount());
+						limit = true;
+					} else if (traversal.getCost() >= maxCost) {
+						log("Traversal cost limit reached", Level.INFO, maxCost, traversal.getVisitedCount());
+						limit = true;
+					} else if (((traversal.getVisitedCount() % TIME_CHECK_INTERVAL) == 0) && ((System.currentTimeMillis() - startTime) > processTime)) {
+						log("Process time limit reached", Level.INFO, processTime, traversal.getVisitedCount());
+						limit = true;
+					}
+					if (limit) {
+						break;
+					}
 				}
+				traversal.nextLevel();
+				levels--;
 			}
-			if (maxTime) {
-				break;
+			this.calls.incrementAndGet();
+			this.verticesVisited.addAndGet(traversal.getVisitedCount());
+			this.relationshipsScanned.addAndGet(traversal.getScanned());
+			this.hubsSkipped.addAndGet(traversal.getHubsSkipped());
+			if (limit) {
+				this.limitsReached.incrementAndGet();
 			}
-			breadthSet = nextLevelBreadthSet;
-			levels--;
-		}
-		if (recursiveSet.size() >= TRAVERSAL_LIMIT) {
-			log("Traversal limit reached", Level.FINE, recursiveSet.size());
+			this.timeSpent.addAndGet(System.currentTimeMillis() - startTime);
+		} finally {
+			traversal.end();
+			this.traversal.set(traversal);
 		}
 	}
+	
+	/**
+	 * Return the number of calls.
+	 */
+	public long getCalls() {
+		return this.calls.get();
+	}
+	
+	/**
+	 * Return the total number of vertices visited.
+	 */
+	public long getVerticesVisited() {
+		return this.verticesVisited.get();
+	}
+	
+	/**
+	 * Return the total number of relationships scanned.
+	 */
+	public long getRelationshipsScanned() {
+		return this.relationshipsScanned.get();
+	}
+	
+	/**
+	 * Return the number of hubs visited without loading their relationships.
+	 */
+	public long getHubsSkipped() {
+		return this.hubsSkipped.get();
+	}
+	
+	/**
+	 * Return the number of calls stopped by the traversal, cost, or time limit.
+	 */
+	public long getLimitsReached() {
+		return this.limitsReached.get();
+	}
+	
+	/**
+	 * Return the total time spent traversing.
+	 */
+	public long getTimeSpent() {
+		return this.timeSpent.get();
+	}
+	
+	public void resetStats() {
+		this.calls.set(0);
+		this.verticesVisited.set(0);
+		this.relationshipsScanned.set(0);
+		this.hubsSkipped.set(0);
+		this.limitsReached.set(0);
+		this.timeSpent.set(0);
+	}
 
 	@Override
 	public void awake() {
@@ -250,34 +340,14 @@ public class Consciousness extends BasicThought {
 	 * Analyse vertex and traverse its relationships.
 	 * Swap the active vertex if interesting.
 	 */
-	public void think(Vertex vertex, int levels, Set<Vertex> recursiveSet, Set<Vertex> breadtheSet) {
-		if (vertex == null || recursiveSet.contains(vertex)) {
+	public void think(Vertex vertex, int levels, ActivationTraversal traversal) {
+		if (vertex == null) {
 			return;
 		}
-		recursiveSet.add(vertex);
-		int size = recursiveSet.size();
 		vertex.incrementConsciousnessLevel(levels);
-		log("Increment:" + levels, Level.FINEST, vertex);
-		for (Entry<Vertex, Map<Relationship, Relationship>> entry : vertex.getRelationships().entrySet()) {
-			if ((size + breadtheSet.size()) >= TRAVERSAL_LIMIT) {
-				break;
-			}
-			// Only traverse rare relationships.
-			if (entry.getValue().size() > IGNORE_RELATIONS_MAX) {
-				continue;
-			}
-			for (Relationship relationship : entry.getValue().values()) {
-				breadtheSet.add(relationship.getType());
-				breadtheSet.add(relationship.getTarget());
-			}
-		}
-		for (Iterator<Relationship> relationships = vertex.allRelationships(); relationships.hasNext();) {
-			if ((size + breadtheSet.size()) >= TRAVERSAL_LIMIT) {
-				break;
-			}
-			Relationship relationship = relationships.next();
-			breadtheSet.add(relationship.getType());
-			breadtheSet.add(relationship.getTarget());
+		if (this.bot.isLoggable(Level.FINEST)) {
+			log("Increment:" + levels, Level.FINEST, vertex);
 		}
+		traversal.visit(vertex);
 	}
 }
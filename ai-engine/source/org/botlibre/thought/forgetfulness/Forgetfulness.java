@@ -22,24 +22,37 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import org.botlibre.api.knowledge.Network;
 import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.api.thought.Mind.MentalState;
 import org.botlibre.knowledge.BasicVertex;
 import org.botlibre.knowledge.Primitive;
+import org.botlibre.knowledge.database.DatabaseMemory;
+import org.botlibre.thought.BasicMind;
 import org.botlibre.thought.BasicThought;
+import org.botlibre.thought.MindScheduler;
 import org.botlibre.util.Utils;
 import org.eclipse.persistence.internal.helper.IdentityHashSet;
 
 /**
  * Forgetfulness is a sub-conscious thought that cleans up the memory to remove unused vertices and reduce relationship size.
+ * Unreferenced and least referenced vertices are found from the reference count the database maintains for each vertex,
+ * and forgotten in throttled batches in the background, within a time budget.
  */
 public class Forgetfulness extends BasicThought {
 	public static int PAGE = 5000;
@@ -49,11 +62,77 @@ public class Forgetfulness extends BasicThought {
 	public static int MAX_SIZE = 100000;
 	public static int MAX_RELATIONSHIPS = 150;
 	public static long TIME_TO_LIVE = (10 * Utils.MINUTE);
+	/** Find vertices by their maintained reference count, instead of joining all of the relationships. */
+	public static boolean REFERENCE_COUNTS = true;
+	/** Max time of a forget run, or 0 for no limit, the next run continues with the remaining vertices. */
+	public static long BUDGET = (5 * Utils.MINUTE);
+	/** Time to pause between batches, to throttle the load on the database. */
+	public static long PAUSE = 1000;
+	/** Run forget in the background, instead of blocking the other sub-conscious thoughts. */
+	public static boolean BACKGROUND = true;
+	/** Number of workers pruning the relationships of vertices in parallel. */
+	public static int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	/** Number of vertices whose relationships are pruned in each commit. */
+	public static int PRUNE_BATCH = 100;
+	/** Time to wait between checks while the conscious thoughts are running. */
+	public static int YIELD_TIME = 50;
+	
+	/**
+	 * Orders relationships from the first to be forgotten, unpinned, least correct, least accessed, then least recently accessed.
+	 */
+	public static Comparator<Relationship> RELATIONSHIP_RANK = new Comparator<Relationship>() {
+		public int compare(Relationship one, Relationship two) {
+			if (one.isPinned() && !two.isPinned()) {
+				return 1;
+			}
+			if (!one.isPinned() && two.isPinned()) {
+				return -1;
+			}
+			if (one.getCorrectness() == two.getCorrectness()) {
+				if (one.getAccessCount() == two.getAccessCount()) {
+					if (one.getAccessDate() == null && two.getAccessDate() == null) {
+						return 0;
+					} else if (two.getAccessDate() == null) {
+						return 1;
+					} else if (one.getAccessDate() == null) {
+						return -1;
+					} else if (one.getAccessDate().getTime() > two.getAccessDate().getTime()) {
+						return 1;
+					} else if (one.getAccessDate().getTime() == two.getAccessDate().getTime()) {
+						return 0;
+					}
+					return -1;
+				} else {
+					if (one.getAccessCount() > two.getAccessCount()) {
+						return 1;
+					}
+					return -1;
+				}
+			} else {
+				if (one.getCorrectness() > two.getCorrectness()) {
+					return 1;
+				}
+				return -1;
+			}
+		}
+	};
 	
 	/** Min number of days to keep conversation and context data for. */
 	public long expiry = EXPIRY;
 	public int maxSize = MAX_SIZE;
 	public int maxRelationships = MAX_RELATIONSHIPS;
+	public long budget = BUDGET;
+	public long pause = PAUSE;
+	public int workers = WORKERS;
+	
+	/** Time the current run must end by, or 0. */
+	protected volatile long deadline;
+	protected AtomicBoolean running = new AtomicBoolean();
+	protected AtomicLong runs = new AtomicLong();
+	protected AtomicLong scanned = new AtomicLong();
+	protected AtomicLong forgotten = new AtomicLong();
+	protected AtomicLong repaired = new AtomicLong();
+	protected volatile long lastRunTime;
 	
 	public enum ForgetType { Unreferenced, UnreferencedData, OldConversations, LeastReferenced, UnreferencedPinned, Grammar, FixResponses, FixRelationships }
 	
@@ -95,7 +174,11 @@ public class Forgetfulness extends BasicThought {
 						forgetfulness.setRelationship(Primitive.COUNT, memory.createVertex(0));						
 					}
 					memory.save();
-					forget(memory, false);
+					if (BACKGROUND) {
+						forgetInBackground(memory);
+					} else {
+						forget(memory, false);
+					}
 				}
 			}
 		} catch (Exception failure) {
@@ -103,6 +186,95 @@ public class Forgetfulness extends BasicThought {
 		}
 	}
 	
+	/**
+	 * Run forget on the shared thread pool, unless a background run is already in progress.
+	 */
+	public boolean forgetInBackground(final Network memory) {
+		if (!this.running.compareAndSet(false, true)) {
+			log("Forget already running", Level.FINE);
+			return false;
+		}
+		BasicMind.threadPool.execute(new Runnable() {
+			public void run() {
+				try {
+					forget(memory, false);
+				} catch (Exception failure) {
+					log(failure);
+				} finally {
+					running.set(false);
+				}
+			}
+		});
+		return true;
+	}
+	
+	/**
+	 * Return if the current run has used its time budget.
+	 */
+	protected boolean isOverBudget() {
+		return (this.deadline != 0) && (System.currentTimeMillis() > this.deadline);
+	}
+	
+	/**
+	 * Pause between batches to throttle the load on the database.
+	 */
+	protected void pause() {
+		if (this.pause <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(this.pause);
+		} catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+			this.isStopped = true;
+		}
+	}
+	
+	/**
+	 * Remove the vertices that are still referenced, and repair their reference counts.
+	 * The counts can drift if a relationship's meta was set after it was inserted, or the relationships were modified with SQL.
+	 * Uses the relationship indexes on the candidates only.
+	 */
+	@SuppressWarnings("unchecked")
+	protected List<Vertex> verifyUnreferenced(List<Vertex> candidates, Network memory) {
+		if (candidates.isEmpty()) {
+			return candidates;
+		}
+		StringBuilder ids = new StringBuilder();
+		for (Vertex vertex : candidates) {
+			if (ids.length() > 0) {
+				ids.append(", ");
+			}
+			ids.append(vertex.getId());
+		}
+		List<Vertex> referenced = memory.findByNativeQuery(
+				"SELECT v.* FROM VERTEX v WHERE v.ID IN (" + ids + ") AND (EXISTS (SELECT 1 FROM RELATIONSHIP r WHERE r.TARGET_ID = v.ID) "
+					+ "OR EXISTS (SELECT 1 FROM RELATIONSHIP r WHERE r.TYPE_ID = v.ID) OR EXISTS (SELECT 1 FROM RELATIONSHIP r WHERE r.META_ID = v.ID))",
+				BasicVertex.class, candidates.size());
+		if (referenced.isEmpty()) {
+			return candidates;
+		}
+		log("Repairing vertex reference counts", Level.INFO, referenced.size());
+		this.repaired.addAndGet(referenced.size());
+		ids = new StringBuilder();
+		Set<Long> referencedIds = new HashSet<Long>();
+		for (Vertex vertex : referenced) {
+			if (ids.length() > 0) {
+				ids.append(", ");
+			}
+			ids.append(vertex.getId());
+			referencedIds.add(vertex.getId());
+		}
+		memory.executeNativeQuery(DatabaseMemory.RECOUNT_REFERENCES + " where id in (" + ids + ")");
+		List<Vertex> unreferenced = new ArrayList<Vertex>(candidates.size());
+		for (Vertex vertex : candidates) {
+			if (!referencedIds.contains(vertex.getId())) {
+				unreferenced.add(vertex);
+			}
+		}
+		return unreferenced;
+	}
+	
 	public int forget(ForgetType type, int numberToDelete, Network memory) throws Exception {
 		return forget(type, numberToDelete, TIME_TO_LIVE, memory);
 	}
@@ -120,9 +292,23 @@ public class Forgetfulness extends BasicThought {
 			if (this.isStopped) {
 				break;
 			}
+			if (isOverBudget()) {
+				log("Forget budget used, continuing next run", Level.INFO, type, this.budget);
+				break;
+			}
 			long batchStart = System.currentTimeMillis();
 			List<Vertex> unreferenced = new ArrayList<Vertex>();
-			if (type == ForgetType.Unreferenced) {
+			int candidates = 0;
+			if (type == ForgetType.Unreferenced && REFERENCE_COUNTS) {
+				log("Searching for unreferenced vertices with no data", Level.INFO);
+				unreferenced = memory.findByNativeQuery(
+						"SELECT v.* FROM VERTEX v WHERE v.REFERENCECOUNT = 0 AND v.PINNED = false AND v.DATAVALUE IS NULL LIMIT " + PAGE,
+						BasicVertex.class, PAGE);
+				candidates = unreferenced.size();
+				unreferenced = verifyUnreferenced(unreferenced, memory);
+				log("Unreferenced verticies with no data query time", Level.INFO, System.currentTimeMillis() - batchStart);
+				log("Removing unreferenced vertices with no data", Level.WARNING, unreferenced.size());
+			} else if (type == ForgetType.Unreferenced) {
 				log("Searching for unreferenced vertices with no data", Level.INFO);
 				unreferenced = memory.findByNativeQuery(
 						"SELECT v.* FROM VERTEX v LEFT OUTER JOIN RELATIONSHIP r ON (((r.TARGET_ID = v.ID) OR (r.TYPE_ID = v.ID)) OR (r.META_ID = v.ID)) WHERE r.ID IS NULL and ((v.PINNED = false) AND (v.DATAVALUE IS NULL)) LIMIT " + PAGE,
@@ -132,6 +318,15 @@ public class Forgetfulness extends BasicThought {
 				//		"SELECT v.ID FROM VERTEX v LEFT OUTER JOIN RELATIONSHIP r ON (((r.TARGET_ID = v.ID) OR (r.TYPE_ID = v.ID)) OR (r.META_ID = v.ID)) WHERE r.ID IS NULL and ((v.PINNED = false) AND (v.DATAVALUE IS NULL)))");
 				log("Unreferenced verticies with no data query time", Level.INFO, System.currentTimeMillis() - batchStart);
 				log("Removing unreferenced vertices with no data", Level.WARNING, unreferenced.size());
+			} else if (type == ForgetType.UnreferencedData && REFERENCE_COUNTS) {
+				log("Searching for unreferenced vertices", Level.INFO);
+				unreferenced = memory.findByNativeQuery(
+						"SELECT v.* FROM VERTEX v WHERE v.REFERENCECOUNT = 0 AND v.PINNED = false AND v.DATATYPE <> 'Primitive' LIMIT " + PAGE,
+						BasicVertex.class, PAGE);
+				candidates = unreferenced.size();
+				unreferenced = verifyUnreferenced(unreferenced, memory);
+				log("Unreferenced vertices query time", Level.INFO, System.currentTimeMillis() - batchStart);
+				log("Removing unreferenced vertices", Level.WARNING, unreferenced.size());
 			} else if (type == ForgetType.UnreferencedData) {
 				log("Searching for unreferenced vertices", Level.INFO);
 				unreferenced = memory.findByNativeQuery(
@@ -181,6 +376,14 @@ public class Forgetfulness extends BasicThought {
 					}
 					log("Removing old conversation vertices", Level.WARNING, unreferenced.size());
 				}
+			} else if (type == ForgetType.LeastReferenced && REFERENCE_COUNTS) {
+				log("Searching for vertices with fewest references", Level.INFO, numberToDelete);
+				unreferenced = memory.findByNativeQuery(
+						"SELECT v.* FROM VERTEX v WHERE v.REFERENCECOUNT > 0 AND v.PINNED = false "
+								+ "AND ((v.DATATYPE IS NULL) OR ((v.DATATYPE <> 'Primitive') AND (v.DATATYPE <> 'Meta'))) "
+								+ "ORDER BY v.REFERENCECOUNT, v.ACCESSCOUNT, v.ACCESSDATE LIMIT " + PAGE, BasicVertex.class, PAGE);
+				log("Fewest references query time", Level.INFO, System.currentTimeMillis() - batchStart);
+				log("Found vertices with fewest references", Level.INFO, unreferenced.size());
 			} else if (type == ForgetType.LeastReferenced) {
 				log("Searching for vertices with fewest references", Level.INFO, numberToDelete);
 				//List<Object[]> byReferences  = memory.findAllQuery("Select count(v2) c, v from Vertex v, Vertex v2 join v2.allRelationships r2 "
@@ -192,6 +395,15 @@ public class Forgetfulness extends BasicThought {
 								+ "GROUP BY v.ID ORDER BY COUNT(r.SOURCE_ID), v.ACCESSCOUNT, v.ACCESSDATE LIMIT " + PAGE, BasicVertex.class, PAGE);
 				log("Fewest references query time", Level.INFO, System.currentTimeMillis() - batchStart);
 				log("Found vertices with fewest references", Level.INFO, unreferenced.size());
+			} else if (type == ForgetType.UnreferencedPinned && REFERENCE_COUNTS) {
+				log("Searching for unreferenced pinned vertices", Level.INFO);
+				unreferenced = memory.findByNativeQuery(
+						"SELECT v.* FROM VERTEX v WHERE v.REFERENCECOUNT = 0 AND v.PINNED = true AND (v.DATAVALUE IS NULL OR v.DATATYPE <> 'Primitive') LIMIT " + PAGE,
+						BasicVertex.class, PAGE);
+				candidates = unreferenced.size();
+				unreferenced = verifyUnreferenced(unreferenced, memory);
+				log("Unreferenced pinned verticies query time", Level.INFO, System.currentTimeMillis() - batchStart);
+				log("Removing unreferenced pinned vertices", Level.WARNING, unreferenced.size());
 			} else if (type == ForgetType.UnreferencedPinned) {
 				log("Searching for unreferenced pinned vertices", Level.INFO);
 				unreferenced = memory.findByNativeQuery(
@@ -236,7 +448,9 @@ public class Forgetfulness extends BasicThought {
 				log("All relationships query time", Level.INFO, System.currentTimeMillis() - batchStart);
 				log("Fixing relationships data", Level.WARNING, unreferenced.size());
 			}
-			found = unreferenced.size() > 0;
+			// A page of repaired candidates may be followed by unreferenced vertices.
+			found = (unreferenced.size() > 0) || (candidates > 0);
+			this.scanned.addAndGet(unreferenced.size());
 			int failures = 0;
 			for (Vertex vertex : unreferenced) {
 				if (vertex == null) {
@@ -283,9 +497,11 @@ public class Forgetfulness extends BasicThought {
 						}
 					} else if (type == ForgetType.OldConversations) {
 						memory.removeVertex(vertex);
+						this.forgotten.incrementAndGet();
 						//memory.removeVertexAndReferences(vertex);
 					} else {
 						memory.removeVertex(vertex);
+						this.forgotten.incrementAndGet();
 					}					
 				} catch (Exception failure) {
 					errors++;
@@ -300,7 +516,7 @@ public class Forgetfulness extends BasicThought {
 					break;
 				}
 			}
-			if (failures == unreferenced.size()) {
+			if (!unreferenced.isEmpty() && (failures == unreferenced.size())) {
 				found = false;
 			}
 			if (this.isStopped) {
@@ -321,6 +537,9 @@ public class Forgetfulness extends BasicThought {
 			if (type == ForgetType.FixRelationships || type == ForgetType.FixResponses) {
 				break;
 			}
+			if (found && (numberToDelete > 0)) {
+				pause();
+			}
 		}
 		log("Processing total time", Level.INFO, System.currentTimeMillis() - start);
 		return numberToDelete;
@@ -334,10 +553,30 @@ public class Forgetfulness extends BasicThought {
 		forget(memory, force, TIME_TO_LIVE);
 	}
 	
+	/**
+	 * Forget relationships and vertices until the memory is under its max size, or the run's time budget is used.
+	 */
 	public void forget(Network memory, boolean force, long timeToLive) throws Exception {
 		if (this.isStopped) {
 			return;
 		}
+		long start = System.currentTimeMillis();
+		long forgotten = this.forgotten.get();
+		if (this.budget > 0) {
+			this.deadline = start + this.budget;
+		}
+		try {
+			forgetVertices(memory, force, timeToLive);
+		} finally {
+			this.deadline = 0;
+			this.runs.incrementAndGet();
+			this.lastRunTime = System.currentTimeMillis() - start;
+			log("Forget run (time, forgotten, total scanned, total forgotten, total repaired)", Level.INFO,
+					this.lastRunTime, this.forgotten.get() - forgotten, this.scanned.get(), this.forgotten.get(), this.repaired.get());
+		}
+	}
+	
+	protected void forgetVertices(Network memory, boolean force, long timeToLive) throws Exception {
 		forgetRelationships(memory);
 		if (this.isStopped) {
 			return;
@@ -382,13 +621,17 @@ public class Forgetfulness extends BasicThought {
 		}
 	}
 
+	/**
+	 * Prune the relationships of the vertices that exceed the max relationships of a type.
+	 * The vertices are partitioned across the workers, each pruning its vertices in its own network, and committing in small batches.
+	 */
 	@SuppressWarnings("unchecked")
 	public void forgetRelationships(Network memory) throws Exception {
 		if (this.isStopped) {
 			return;
 		}
 		long start = System.currentTimeMillis();
-		List<Vertex> tooManyReferences = memory.findAllQuery("Select v from Vertex v where v.dirty = true");
+		List<Number> ids = memory.findAllQuery("Select v.id from Vertex v where v.dirty = true");
 		//List<Vertex> tooManyReferences = memory.findAllQuery("Select v from Relationship r join r.source v group by r.type, v having count(r) > " + MAX_RELATIONSHIPS);
 		//List<Vertex> tooManyReferences = memory.findByNativeQuery(
 		//		"SELECT t0.* FROM VERTEX t0, RELATIONSHIP t1 WHERE (t0.ID = t1.SOURCE_ID) AND (t1.PINNED = false) GROUP BY t0.ID, t1.TYPE_ID HAVING (COUNT(t1.TYPE_ID) > " + this.maxRelationships + ") LIMIT " + PAGE,
@@ -397,109 +640,182 @@ public class Forgetfulness extends BasicThought {
 		if ((System.currentTimeMillis() - start) > 5000) {
 			log("Max relationships check query time", Level.WARNING, System.currentTimeMillis() - start);
 		}
-		int errors = 0;
-		if (tooManyReferences.size() > 0) {
-			log("Veticies exceeding max number of relationships detected", Level.INFO, this.maxRelationships, tooManyReferences.size());
-			for (Vertex vertex : tooManyReferences) {
-				if (this.isStopped) {
-					break;
+		if (ids.isEmpty()) {
+			return;
+		}
+		log("Veticies exceeding max number of relationships detected", Level.INFO, this.maxRelationships, ids.size());
+		final AtomicLong pruned = new AtomicLong();
+		int workers = Math.max(1, Math.min(this.workers, (ids.size() + PRUNE_BATCH - 1) / PRUNE_BATCH));
+		if (workers == 1) {
+			pruneRelationships(ids, memory, pruned);
+		} else {
+			List<Future<?>> futures = new ArrayList<Future<?>>(workers);
+			for (int worker = 0; worker < workers; worker++) {
+				final List<Number> partition = new ArrayList<Number>((ids.size() / workers) + 1);
+				for (int index = worker; index < ids.size(); index = index + workers) {
+					partition.add(ids.get(index));
 				}
-				log("Vertex has too many relationships", Level.FINER, vertex);
-				// Check for corruption.
-				if (vertex.getAllRelationships().size() != vertex.totalRelationships()) {
-					log("Vertex has corrupt relationships", Level.FINER, vertex, vertex.getAllRelationships().size(), vertex.totalRelationships());
-					Set<Relationship> valid = new IdentityHashSet();
-					for (Iterator<Relationship> iterator = vertex.allRelationships(); iterator.hasNext(); ) {
-						valid.add(iterator.next());
-					}
-					for (Relationship relationship : new ArrayList<Relationship>(vertex.getAllRelationships())) {
-						if (!valid.contains(relationship)) {
-							log("Removing corrupt relationship", Level.FINER, relationship);
-							vertex.internalRemoveRelationship(relationship);
-						}
+				futures.add(BasicMind.threadPool.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						pruneRelationships(partition, bot.memory().newIsolatedMemory(), pruned);
+						return null;
 					}
-				}
-				// Check hashcodes
-				for (Relationship relationship : new ArrayList<Relationship>(vertex.getAllRelationships())) {
-					if (relationship.checkHashCode()) {
-						log("Fixing relationship hashcode", Level.FINER, relationship);
+				}));
+			}
+			Exception failure = null;
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException exception) {
+					if (exception.getCause() instanceof Exception) {
+						failure = (Exception)exception.getCause();
+					} else {
+						failure = exception;
 					}
 				}
-				// Remove all references.
-				for (Entry<Vertex, Map<Relationship, Relationship>> entry : vertex.getRelationships().entrySet()) {
-					log("Relationship size", Level.FINER, entry.getKey(), entry.getValue().size());
-					if (entry.getValue().size() > this.maxRelationships) {
-						int numberToDelete = entry.getValue().size() - this.maxRelationships;
-						log("Removing vertex relationships exceeding max size for type", Level.FINER, vertex, entry.getKey(), numberToDelete);
-						List<Relationship> sorted = new ArrayList<Relationship>(entry.getValue().values());
-						Collections.sort(sorted, new Comparator<Relationship>() {
-							public int compare(Relationship one, Relationship two) {
-								if (one.isPinned() && !two.isPinned()) {
-									return 1;
-								}
-								if (!one.isPinned() && two.isPinned()) {
-									return -1;
-								}
-								if (one.getCorrectness() == two.getCorrectness()) {
-									if (one.getAccessCount() == two.getAccessCount()) {
-										if (one.getAccessDate() == null && two.getAccessDate() == null) {
-											return 0;
-										} else if (two.getAccessDate() == null) {
-											return 1;
-										} else if (one.getAccessDate() == null) {
-											return -1;
-										} else if (one.getAccessDate().getTime() > two.getAccessDate().getTime()) {
-											return 1;
-										} else if (one.getAccessDate().getTime() == two.getAccessDate().getTime()) {
-											return 0;
-										}
-										return -1;
-									} else {
-										if (one.getAccessCount() > two.getAccessCount()) {
-											return 1;
-										}
-										return -1;
-									}
-								} else {
-									if (one.getCorrectness() > two.getCorrectness()) {
-										return 1;
-									}
-									return -1;
-								}
-							}
-						});
-						for (int index = 0; index < numberToDelete; index++) {
-							if (this.isStopped) {
-								break;
-							}
-							Relationship toBeDeleted = sorted.get(index);
-							if (!toBeDeleted.isPinned()) {
-								log("Removing relationship with least correctness", Level.FINER, toBeDeleted);
-								toBeDeleted.getSource().internalRemoveRelationship(toBeDeleted);
-							}
-						}
-						// Fix indexes.
-						// TODO: Remove for now, seems to bottleneck db.
-						//vertex.fixRelationships(entry.getKey());
-					}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+		log("Max relationships total time (vertices, relationships)", Level.INFO, System.currentTimeMillis() - start, ids.size(), pruned.get());
+	}
+
+	/**
+	 * Prune the relationships of the vertices, committing every PRUNE_BATCH vertices.
+	 * Waits while the conscious thoughts are running between batches, and stops once the run's budget is used.
+	 */
+	protected void pruneRelationships(List<Number> ids, Network memory, AtomicLong pruned) throws Exception {
+		int errors = 0;
+		int count = 0;
+		for (Number id : ids) {
+			if (this.isStopped || isOverBudget()) {
+				break;
+			}
+			Vertex vertex = memory.findById(id);
+			if (vertex != null) {
+				pruned.addAndGet(pruneRelationships(vertex));
+			}
+			count++;
+			if (count % PRUNE_BATCH == 0) {
+				errors = commitBatch(memory, errors);
+				yieldToConscious();
+			}
+		}
+		if (count % PRUNE_BATCH != 0) {
+			commitBatch(memory, errors);
+		}
+	}
+
+	/**
+	 * Commit the batch, and return the number of errors, failing after 5 errors.
+	 */
+	protected int commitBatch(Network memory, int errors) throws Exception {
+		try {
+			memory.save();
+		} catch (Exception failure) {
+			errors++;
+			if (errors > 5) {
+				throw failure;
+			}
+			log(failure);
+		} finally {
+			memory.clear();
+		}
+		return errors;
+	}
+
+	/**
+	 * Wait while the conscious thoughts are running, or the mind is busy, up to the pause time.
+	 */
+	protected void yieldToConscious() {
+		if (!(this.bot.mind() instanceof BasicMind)) {
+			return;
+		}
+		MindScheduler scheduler = ((BasicMind)this.bot.mind()).getScheduler();
+		long start = System.currentTimeMillis();
+		while ((scheduler.isConsciousRunning() || (this.bot.mind().getState().ordinal() >= MentalState.ALERT.ordinal()))
+					&& ((System.currentTimeMillis() - start) < Math.max(this.pause, YIELD_TIME)) && !this.isStopped) {
+			Utils.sleep(YIELD_TIME);
+		}
+	}
+
+	/**
+	 * Remove the least correct, least accessed, oldest relationships of each type exceeding the max relationships,
+	 * and return the number removed.
+	 * Only the relationships to remove are selected, with a bounded heap, instead of sorting all of the relationships.
+	 */
+	@SuppressWarnings("unchecked")
+	public int pruneRelationships(Vertex vertex) {
+		log("Vertex has too many relationships", Level.FINER, vertex);
+		// Check for corruption.
+		if (vertex.getAllRelationships().size() != vertex.totalRelationships()) {
+			log("Vertex has corrupt relationships", Level.FINER, vertex, vertex.getAllRelationships().size(), vertex.totalRelationships());
+			Set<Relationship> valid = new IdentityHashSet();
+			for (Iterator<Relationship> iterator = vertex.allRelationships(); iterator.hasNext(); ) {
+				valid.add(iterator.next());
+			}
+			for (Relationship relationship : new ArrayList<Relationship>(vertex.getAllRelationships())) {
+				if (!valid.contains(relationship)) {
+					log("Removing corrupt relationship", Level.FINER, relationship);
+					vertex.internalRemoveRelationship(relationship);
 				}
-				vertex.setIsDirty(false);
 			}
+		}
+		// Check hashcodes
+		for (Relationship relationship : new ArrayList<Relationship>(vertex.getAllRelationships())) {
+			if (relationship.checkHashCode()) {
+				log("Fixing relationship hashcode", Level.FINER, relationship);
+			}
+		}
+		int removed = 0;
+		List<Relationship> toBeDeleted = new ArrayList<Relationship>();
+		for (Entry<Vertex, Map<Relationship, Relationship>> entry : vertex.getRelationships().entrySet()) {
+			log("Relationship size", Level.FINER, entry.getKey(), entry.getValue().size());
+			if (entry.getValue().size() > this.maxRelationships) {
+				int numberToDelete = entry.getValue().size() - this.maxRelationships;
+				log("Removing vertex relationships exceeding max size for type", Level.FINER, vertex, entry.getKey(), numberToDelete);
+				toBeDeleted.addAll(selectLeast(entry.getValue().values(), numberToDelete));
+				// Fix indexes.
+				// TODO: Remove for now, seems to bottleneck db.
+				//vertex.fixRelationships(entry.getKey());
+			}
+		}
+		for (Relationship relationship : toBeDeleted) {
 			if (this.isStopped) {
-				return;
+				break;
 			}
-			try {
-				memory.save();
-				memory.clear();
-			} catch (Exception failure) {
-				errors++;
-				if (errors > 5) {
-					throw failure;
-				}
-				log(failure);
+			if (!relationship.isPinned()) {
+				log("Removing relationship with least correctness", Level.FINER, relationship);
+				relationship.getSource().internalRemoveRelationship(relationship);
+				removed++;
+			}
+		}
+		vertex.setIsDirty(false);
+		return removed;
+	}
+
+	/**
+	 * Return the count least relationships by the relationship rank, in any order.
+	 * Keeps a heap of the count least relationships, with the greatest on top, so is O(n log count).
+	 */
+	public static List<Relationship> selectLeast(Collection<Relationship> relationships, int count) {
+		if (count <= 0) {
+			return new ArrayList<Relationship>();
+		}
+		if (count >= relationships.size()) {
+			return new ArrayList<Relationship>(relationships);
+		}
+		PriorityQueue<Relationship> least = new PriorityQueue<Relationship>(count, Collections.reverseOrder(RELATIONSHIP_RANK));
+		for (Relationship relationship : relationships) {
+			if (least.size() < count) {
+				least.add(relationship);
+			} else if (RELATIONSHIP_RANK.compare(relationship, least.peek()) < 0) {
+				least.poll();
+				least.add(relationship);
 			}
-			log("Max relationships total time", Level.INFO, System.currentTimeMillis() - start);
 		}
+		return new ArrayList<Relationship>(least);
 	}
 	
 	/**
@@ -543,4 +859,78 @@ public class Forgetfulness extends BasicThought {
 	public void setMaxRelationships(int maxRelationships) {
 		this.maxRelationships = maxRelationships;
 	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	public long getPause() {
+		return pause;
+	}
+
+	public void setPause(long pause) {
+		this.pause = pause;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * Return if a background forget run is in progress.
+	 */
+	public boolean isRunning() {
+		return this.running.get();
+	}
+
+	/**
+	 * Return the number of forget runs.
+	 */
+	public long getRuns() {
+		return this.runs.get();
+	}
+
+	/**
+	 * Return the number of vertices processed by all runs.
+	 */
+	public long getScanned() {
+		return this.scanned.get();
+	}
+
+	/**
+	 * Return the number of vertices removed by all runs.
+	 */
+	public long getForgotten() {
+		return this.forgotten.get();
+	}
+
+	/**
+	 * Return the number of vertices whose reference count was repaired.
+	 */
+	public long getRepaired() {
+		return this.repaired.get();
+	}
+
+	/**
+	 * Return the time of the last forget run.
+	 */
+	public long getLastRunTime() {
+		return lastRunTime;
+	}
+
+	public void resetStats() {
+		this.runs.set(0);
+		this.scanned.set(0);
+		this.forgotten.set(0);
+		this.repaired.set(0);
+		this.lastRunTime = 0;
+	}
 }
@@ -10,9 +10,12 @@ import java.net.URL;
 import java.sql.Time;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -27,8 +30,11 @@ import org.botlibre.api.knowledge.Relationship;
 import org.botlibre.api.knowledge.Vertex;
 import org.botlibre.api.sense.Sense;
 import org.botlibre.emotion.EmotionalState;
+import org.botlibre.knowledge.AbstractNetwork;
 import org.botlibre.knowledge.Primitive;
 import org.botlibre.knowledge.TextData;
+import org.botlibre.knowledge.database.PatternIndex;
+import org.botlibre.knowledge.database.QuestionIndex;
 import org.botlibre.self.SelfCompiler;
 import org.botlibre.self.SelfDecompiler;
 import org.botlibre.self.SelfExecutionException;
@@ -37,6 +43,8 @@ import org.botlibre.self.SelfParseException;
 import org.botlibre.sense.context.Context;
 import org.botlibre.sense.http.Http;
 import org.botlibre.thought.BasicThought;
+import org.botlibre.util.Trace.Span;
+import org.botlibre.util.Tracer;
 import org.botlibre.util.Utils;
 
 /**
@@ -49,13 +57,20 @@ public class Language extends BasicThought {
 	public static int COVERSATIONAL_RESPONSE_DELAY = 1000;
 	public static int MAX_STATE_PROCESS = 10000;
 	public static int MAX_RESPONSE_PROCESS = 2000;
+	public static int MAX_INDEX_MATCHES = 200;
 	public static int MAX_FILE_SIZE = 10000000;  // 10 meg
+	/** Stream AIML files, instead of loading the file into memory, larger files are always streamed. */
+	public static boolean STREAM_AIML = false;
 	public static int MAX_DEPTH = 100;
 	public static int MAX_STACK = 500;
+	/** Max number of conversations whose last response state is kept to correct the response. */
+	public static int MAX_LAST_RESPONSES = 1000;
 	public static boolean PROCESS_HTTP = true;
 
 	protected boolean enableEmote = true;
 	protected boolean enableResponseMatch = true;
+	protected boolean useQuestionIndex = true;
+	protected boolean usePatternIndex = true;
 	protected boolean checkExactMatchFirst = true;
 	protected boolean fixFormulaCase = true;
 	protected boolean learnGrammar = true;
@@ -67,22 +82,24 @@ public class Language extends BasicThought {
 
 	protected int maxStateProcess = MAX_STATE_PROCESS;
 	protected int maxResponseMatchProcess = MAX_RESPONSE_PROCESS;
+	protected int maxIndexMatches = MAX_INDEX_MATCHES;
 	protected String language = null;
-	protected int recursiveInputDepth;
-	protected int recursiveFormulaDepth;
-	protected long startTime;
-	protected boolean abort;
+	/** Store the state of processing the current input, for each thread processing an input. */
+	protected ThreadLocal<ProcessingState> processingState = new ThreadLocal<ProcessingState>() {
+		@Override
+		protected ProcessingState initialValue() {
+			return new ProcessingState();
+		}
+	};
+	/** Store the state machine, state and quotient ids of the last response of each recent conversation. */
+	protected Map<Long, Long[]> lastResponses = new LinkedHashMap<Long, Long[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long[]> eldest) {
+			return size() > MAX_LAST_RESPONSES;
+		}
+	};
 
-	/** Store the state machine used for the last response (if any). */
-	protected Long lastStateMachineId;
-	/** Store the state used for the last response (if any). */
-	protected Long lastStateId;
-	/** Store the quotient used for the last response (if any). */
-	protected Long lastQuotientId;
-	/** Store the meta relationship for last response (if any). */
-	protected Long lastResponseMetaId;
-	/** Store if a mimic was used. */
-	protected boolean wasMimic;
 	/** Store the learning mode. */
 	protected LearningMode learningMode = LearningMode.Everyone;
 	/** Store the correction mode. */
@@ -501,11 +518,38 @@ public class Language extends BasicThought {
 		}
 	}
 	
+	/**
+	 * State of processing an input, recursion depth, time limits, and the response match.
+	 */
+	public static class ProcessingState {
+		protected int recursiveInputDepth;
+		protected int recursiveFormulaDepth;
+		protected long startTime;
+		protected boolean abort;
+		/** Store the meta relationship for last response (if any). */
+		protected Long lastResponseMetaId;
+		/** Store the state machine used for the last response (if any), restored from the conversation. */
+		protected Long lastStateMachineId;
+		/** Store the state used for the last response (if any). */
+		protected Long lastStateId;
+		/** Store the quotient used for the last response (if any). */
+		protected Long lastQuotientId;
+		/** Store if a mimic was used. */
+		protected boolean wasMimic;
+	}
+	
 	/**
 	 * Create a new thought.
 	 */
 	public Language() {
 	}
+	
+	/**
+	 * Return the processing state of the current thread.
+	 */
+	public ProcessingState processing() {
+		return this.processingState.get();
+	}
 
 	@Override
 	public void awake() {
@@ -549,6 +593,18 @@ public class Language extends BasicThought {
 		if (property != null) {
 			setEnableResponseMatch(Boolean.valueOf(property));
 		}
+		property = this.bot.memory().getProperty("Language.useQuestionIndex");
+		if (property != null) {
+			setUseQuestionIndex(Boolean.valueOf(property));
+		}
+		property = this.bot.memory().getProperty("Language.usePatternIndex");
+		if (property != null) {
+			setUsePatternIndex(Boolean.valueOf(property));
+		}
+		property = this.bot.memory().getProperty("Language.maxIndexMatches");
+		if (property != null) {
+			setMaxIndexMatches(Integer.valueOf(property));
+		}
 		property = this.bot.memory().getProperty("Language.learnGrammar");
 		if (property != null) {
 			setLearnGrammar(Boolean.valueOf(property));
@@ -734,6 +790,30 @@ public class Language extends BasicThought {
 		this.maxResponseMatchProcess = maxResponseMatchProcess;
 	}
 
+	public boolean getUseQuestionIndex() {
+		return useQuestionIndex;
+	}
+
+	public void setUseQuestionIndex(boolean useQuestionIndex) {
+		this.useQuestionIndex = useQuestionIndex;
+	}
+
+	public boolean getUsePatternIndex() {
+		return usePatternIndex;
+	}
+
+	public void setUsePatternIndex(boolean usePatternIndex) {
+		this.usePatternIndex = usePatternIndex;
+	}
+
+	public int getMaxIndexMatches() {
+		return maxIndexMatches;
+	}
+
+	public void setMaxIndexMatches(int maxIndexMatches) {
+		this.maxIndexMatches = maxIndexMatches;
+	}
+
 	public boolean getFixFormulaCase() {
 		return fixFormulaCase;
 	}
@@ -764,6 +844,9 @@ public class Language extends BasicThought {
 		memory.saveProperty("Language.conversationMatchPercentage", String.valueOf(getConversationMatchPercentage()), true);
 		memory.saveProperty("Language.enableResponseMatch", String.valueOf(getEnableResponseMatch()), true);
 		memory.saveProperty("Language.checkExactMatchFirst", String.valueOf(getCheckExactMatchFirst()), true);
+		memory.saveProperty("Language.useQuestionIndex", String.valueOf(getUseQuestionIndex()), true);
+		memory.saveProperty("Language.usePatternIndex", String.valueOf(getUsePatternIndex()), true);
+		memory.saveProperty("Language.maxIndexMatches", String.valueOf(getMaxIndexMatches()), true);
 		memory.saveProperty("Language.learnGrammar", String.valueOf(getLearnGrammar()), true);
 		memory.saveProperty("Language.synthesizeResponse", String.valueOf(getSynthesizeResponse()), true);
 		memory.saveProperty("Language.fixFormulaCase", String.valueOf(getFixFormulaCase()), true);
@@ -850,253 +933,278 @@ public class Language extends BasicThought {
 		for (int i = 0; i < activeMemory.size(); i++) {
 			Vertex vertex = network.createVertex(activeMemory.get(i));
 			log("Processing", Level.FINER, vertex);
-			try {
-				if (vertex.instanceOf(Primitive.INPUT)) {
-					Vertex input = vertex;
-					List<Vertex> sentences = new ArrayList<Vertex>();
-					List<Vertex> responses = new ArrayList<Vertex>();
-					Vertex inputValue = input.getRelationship(Primitive.INPUT);
-					if (inputValue != null) {
-						for (Vertex sentence : input.orderedRelations(Primitive.INPUT)) {
-							if (sentence.instanceOf(Primitive.SENTENCE)) {
-								// Check if the input is a paragraph.
-								Vertex paragraph = network.createParagraph(sentence);
-								if (paragraph.instanceOf(Primitive.PARAGRAPH)) {
-									sentences.addAll(paragraph.orderedRelations(Primitive.SENTENCE));
-								} else {
-									sentences.add(paragraph);
-								}
-							} else if (sentence.instanceOf(Primitive.PARAGRAPH)) {
-								sentences.addAll(sentence.orderedRelations(Primitive.SENTENCE));
-							}
+			if (vertex.instanceOf(Primitive.INPUT)) {
+				Vertex output = processInput(vertex, network);
+				if (output == null) {
+					return;
+				}
+				getBot().memory().save();
+				// Allow the sense to output the response.
+				getBot().awareness().output(output);
+			}
+		}
+	}
+	
+	/**
+	 * Process the input and return the output, or null if there is no response.
+	 * The network is not saved, and the output is not sent to the senses.
+	 * The processing state is per thread, so conversations can be processed concurrently in their own networks.
+	 */
+	public Vertex processInput(Vertex input, Network network) {
+		Vertex conversationVertex = input.mostConscious(Primitive.CONVERSATION);
+		Long conversationId = null;
+		if (conversationVertex != null) {
+			conversationId = conversationVertex.getId();
+		}
+		restoreLastResponse(conversationId);
+		try {
+			List<Vertex> sentences = new ArrayList<Vertex>();
+			List<Vertex> responses = new ArrayList<Vertex>();
+			Vertex inputValue = input.getRelationship(Primitive.INPUT);
+			if (inputValue != null) {
+				for (Vertex sentence : input.orderedRelations(Primitive.INPUT)) {
+					if (sentence.instanceOf(Primitive.SENTENCE)) {
+						// Check if the input is a paragraph.
+						Vertex paragraph = network.createParagraph(sentence);
+						if (paragraph.instanceOf(Primitive.PARAGRAPH)) {
+							sentences.addAll(paragraph.orderedRelations(Primitive.SENTENCE));
+						} else {
+							sentences.add(paragraph);
 						}
+					} else if (sentence.instanceOf(Primitive.PARAGRAPH)) {
+						sentences.addAll(sentence.orderedRelations(Primitive.SENTENCE));
 					}
-					List<Relationship> targets = vertex.orderedRelationships(Primitive.TARGET);
-					Vertex target = null;
-					if (targets != null && (targets.size() == 1)) {
-						target = targets.get(0).getTarget();
+				}
+			}
+			List<Relationship> targets = input.orderedRelationships(Primitive.TARGET);
+			Vertex target = null;
+			if (targets != null && (targets.size() == 1)) {
+				target = targets.get(0).getTarget();
+			}
+			Vertex speaker = input.mostConscious(Primitive.SPEAKER);
+			Vertex self = network.createVertex(Primitive.SELF);
+			Vertex inputSense = input.mostConscious(Primitive.SENSE);
+			Vertex conversation = input.mostConscious(Primitive.CONVERSATION);
+			boolean correction = input.hasRelationship(Primitive.ASSOCIATED, Primitive.CORRECTION);
+			boolean offended = input.hasRelationship(Primitive.ASSOCIATED, Primitive.OFFENDED);
+			boolean newConversation = (inputValue != null) && (inputValue.is(Primitive.NULL));
+			LanguageState state = LanguageState.Answering;
+			Sense sense = null;
+			if (inputSense != null) {
+				sense = getBot().awareness().getSense(((Primitive)inputSense.getData()).getIdentity());
+				if (sense != null) {
+					state = sense.getLanguageState();
+				}
+			}
+			// Create output.
+			Vertex output = network.createInstance(Primitive.INPUT);
+			try {
+				Vertex response = null;
+				int index = 0;
+				Map<Vertex, Vertex> variables = new HashMap<Vertex, Vertex>();
+				SelfCompiler.addGlobalVariables(input, null, network, variables);
+				if (newConversation) {
+					// If Correcting then this is a response to that previous question.
+					response = processGreeting(input, conversation, network, state, variables);
+					if (response != null) {
+						this.bot.mood().evaluateResponse(response, null);
+						this.bot.avatar().evaluateResponse(output, response, null);
+						responses.add(response);
 					}
-					Vertex speaker = input.mostConscious(Primitive.SPEAKER);
-					Vertex self = network.createVertex(Primitive.SELF);
-					Vertex inputSense = input.mostConscious(Primitive.SENSE);
-					Vertex conversation = input.mostConscious(Primitive.CONVERSATION);
-					boolean correction = input.hasRelationship(Primitive.ASSOCIATED, Primitive.CORRECTION);
-					boolean offended = input.hasRelationship(Primitive.ASSOCIATED, Primitive.OFFENDED);
-					boolean newConversation = (inputValue != null) && (inputValue.is(Primitive.NULL));
-					LanguageState state = LanguageState.Answering;
-					Sense sense = null;
-					if (inputSense != null) {
-						sense = getBot().awareness().getSense(((Primitive)inputSense.getData()).getIdentity());
-						if (sense != null) {
-							state = sense.getLanguageState();
+				} else {
+					for (Vertex sentence : sentences) {
+						checkQuestion(sentence, network);
+						if (PROCESS_HTTP) {
+							// TODO make this occur in discovery
+							//processHttp(sentence, network);
 						}
-					}
-					// Create output.
-					Vertex output = network.createInstance(Primitive.INPUT);
-					try {
-						Vertex response = null;
-						int index = 0;
-						Map<Vertex, Vertex> variables = new HashMap<Vertex, Vertex>();
-						SelfCompiler.addGlobalVariables(input, null, network, variables);
-						if (newConversation) {
+						log("Processing sentence", Level.FINE, sentence, speaker, targets);
+						if (offended) {
+							// If offensive then remove the last sentence.
+							processOffensive(input, speaker, target, conversation, network);
+						}
+						if (correction) {
 							// If Correcting then this is a response to that previous question.
-							response = processGreeting(input, conversation, network, state, variables);
-							if (response != null) {
-								this.bot.mood().evaluateResponse(response, null);
-								this.bot.avatar().evaluateResponse(output, response, null);
-								responses.add(response);
-							}
-						} else {
-							for (Vertex sentence : sentences) {
-								checkQuestion(sentence, network);
-								if (PROCESS_HTTP) {
-									// TODO make this occur in discovery
-									//processHttp(sentence, network);
-								}
-								log("Processing sentence", Level.FINE, sentence, speaker, targets);
-								if (offended) {
-									// If offensive then remove the last sentence.
-									processOffensive(input, speaker, target, conversation, network);
-								}
-								if (correction) {
-									// If Correcting then this is a response to that previous question.
-									response = processCorrection(input, sentence, speaker, target, conversation, network);
-								} else if (state == LanguageState.Associate) {
-									// Associate the context selection with the sentence.
-									response = processAssociation(sentence, network);
-								} else if ((state == LanguageState.Listening) || (state == LanguageState.ListeningOnly)) {
-									processListening(input, sentence, speaker, conversation, targets, network, state);
-									// If target is self, then give an answer.
-									if ((state == LanguageState.Listening) && (target == self)) {
-										response = processConversational(input, sentence, conversation, variables, network, state);
-									} else {
-										// Associate response, process understanding, but don't respond.
-										processUnderstanding(input, sentence, this.conversationMatchPercentage, variables, network);
-										return;
-									}
-								} else if (state == LanguageState.Discussion) {
-									processListening(input, sentence, speaker, conversation, targets, network, state);
-									// If target is self, then give an answer.
-									if (target == self) {
-										response = processConversational(input, sentence, conversation, variables, network, state);							
-									} else if ((targets == null) || targets.isEmpty() || (targets.size() > 1)) {
-										// Process anything to a group, or to no one as a discussion.
-										response = processDiscussion(input, sentence, conversation, variables, network);
-									} else {
-										processUnderstanding(input, sentence, this.conversationMatchPercentage, variables, network);
-										log("Discussion response to other", Level.FINE, targets);
-									}
-								} else if (state == LanguageState.Conversational) {
-									processListening(input, sentence, speaker, conversation, targets, network, state);
-									response = processConversational(input, sentence, conversation, variables, network, state);
-								} else if (state == LanguageState.Answering) {
-									processListening(input, sentence, speaker, conversation, targets, network, state);
-									response = processConversational(input, sentence, conversation, variables, network, state);
-								}
-								// Check for label
-								if ((response != null) && response.instanceOf(Primitive.LABEL)) {
-									response = response.mostConscious(Primitive.RESPONSE);
-								}
-								// Check for formula and transpose
-								if ((response != null) && response.instanceOf(Primitive.FORMULA)) {
-									log("Response is template formula", Level.FINE, response);
-									Vertex result = evaluateFormula(response, variables, network);
-									if (result == null) {
-										log("Template formula cannot be evaluated", Level.FINE, response);
-										response = null;
-									} else {
-										response = getWord(result, network);
-									}
-								}
-								if ((response != null) && !(response.getData() instanceof String)) {
-									response = getWord(response, network);								
-								}
-								if (response == null || (!(response.getData() instanceof String) && !response.instanceOf(Primitive.PARAGRAPH))) {
-									// Answering must respond.
-									if (state == LanguageState.Answering) {
-										response = sentence;
-									} else {
-										continue;
-									}
-								}
-								log("Response", Level.INFO, response, speaker, conversation);
-								index++;
-								if ((sentences.size() == 1) || sentence.instanceOf(Primitive.QUESTION) || (index == sentences.size())) {
-			
-									if (!response.hasRelationship(Primitive.ASSOCIATED, Primitive.OFFENSIVE)) {
-										Vertex meta = null;
-										if (this.lastResponseMetaId != null) {
-											meta = network.findById(this.lastResponseMetaId);
-											this.lastResponseMetaId = null;
-										}
-										this.bot.mood().evaluateResponse(response, meta);
-										this.bot.avatar().evaluateResponse(output, response, meta);
-										responses.add(response);
-									} else {
-										response = checkDuplicateOrOffensiveResponse(response, sentence, conversation, input, variables, network, true, false);
-										if (!response.hasRelationship(Primitive.ASSOCIATED, Primitive.OFFENSIVE)) {
-											Vertex meta = null;										
-											if (this.lastResponseMetaId != null) {
-												meta = network.findById(this.lastResponseMetaId);
-												this.lastResponseMetaId = null;
-											}
-											this.bot.mood().evaluateResponse(response, meta);
-											this.bot.avatar().evaluateResponse(output, response, meta);
-											responses.add(response);
-										}
-									}
-								}
+							response = processCorrection(input, sentence, speaker, target, conversation, network);
+						} else if (state == LanguageState.Associate) {
+							// Associate the context selection with the sentence.
+							response = processAssociation(sentence, network);
+						} else if ((state == LanguageState.Listening) || (state == LanguageState.ListeningOnly)) {
+							processListening(input, sentence, speaker, conversation, targets, network, state);
+							// If target is self, then give an answer.
+							if ((state == LanguageState.Listening) && (target == self)) {
+								response = processConversational(input, sentence, conversation, variables, network, state);
+							} else {
+								// Associate response, process understanding, but don't respond.
+								processUnderstanding(input, sentence, this.conversationMatchPercentage, variables, network);
+								return null;
 							}
-						}
-						if (responses.isEmpty()) {
-							if (sense != null) {
-								sense.notifyExceptionListeners(new BotException("No response"));
+						} else if (state == LanguageState.Discussion) {
+							processListening(input, sentence, speaker, conversation, targets, network, state);
+							// If target is self, then give an answer.
+							if (target == self) {
+								response = processConversational(input, sentence, conversation, variables, network, state);							
+							} else if ((targets == null) || targets.isEmpty() || (targets.size() > 1)) {
+								// Process anything to a group, or to no one as a discussion.
+								response = processDiscussion(input, sentence, conversation, variables, network);
+							} else {
+								processUnderstanding(input, sentence, this.conversationMatchPercentage, variables, network);
+								log("Discussion response to other", Level.FINE, targets);
 							}
-							return;
-						}
-						if (inputSense != null) {
-							// Associate input sense with output.
-							output.addRelationship(Primitive.SENSE, inputSense);
+						} else if (state == LanguageState.Conversational) {
+							processListening(input, sentence, speaker, conversation, targets, network, state);
+							response = processConversational(input, sentence, conversation, variables, network, state);
+						} else if (state == LanguageState.Answering) {
+							processListening(input, sentence, speaker, conversation, targets, network, state);
+							response = processConversational(input, sentence, conversation, variables, network, state);
 						}
-						if (speaker != null) {
-							output.addRelationship(Primitive.TARGET, speaker);
+						// Check for label
+						if ((response != null) && response.instanceOf(Primitive.LABEL)) {
+							response = response.mostConscious(Primitive.RESPONSE);
 						}
-						Vertex topic = input.mostConscious(Primitive.TOPIC);
-						if (topic != null) {
-							output.addRelationship(Primitive.TOPIC, topic);
-						}
-						if (input.hasRelationship(Primitive.ASSOCIATED, Primitive.WHISPER)) {
-							output.addRelationship(Primitive.ASSOCIATED, Primitive.WHISPER);
-						}
-						if (!newConversation) {
-							output.addRelationship(Primitive.QUESTION, input);
-							input.addRelationship(Primitive.RESPONSE, output);
+						// Check for formula and transpose
+						if ((response != null) && response.instanceOf(Primitive.FORMULA)) {
+							log("Response is template formula", Level.FINE, response);
+							Vertex result = evaluateFormula(response, variables, network);
+							if (result == null) {
+								log("Template formula cannot be evaluated", Level.FINE, response);
+								response = null;
+							} else {
+								response = getWord(result, network);
+							}
 						}
-						output.addRelationship(Primitive.SPEAKER, self);
-						//self.addRelationship(Primitive.INPUT, output);
-						if (responses.get(0).getData() != null) {
-							output.setName(responses.get(0).getData().toString());
+						if ((response != null) && !(response.getData() instanceof String)) {
+							response = getWord(response, network);								
 						}
-						if (responses.size() == 1) {
-							if (this.wasMimic) {
-								output.addRelationship(Primitive.MIMIC, input);
-							}
-							response = responses.get(0);
-							output.addRelationship(Primitive.INPUT, response);
-							Collection<Relationship> actions = response.getRelationships(Primitive.ACTION);
-							if (actions != null) {
-								for (Relationship relationship : actions) {
-									output.addWeakRelationship(Primitive.ACTION, relationship.getTarget(), relationship.getCorrectness());
-								}
-							}
-							Collection<Relationship> poses = response.getRelationships(Primitive.POSE);
-							if (poses != null) {
-								for (Relationship relationship : poses) {
-									output.addWeakRelationship(Primitive.POSE, relationship.getTarget(), relationship.getCorrectness());
-								}
+						if (response == null || (!(response.getData() instanceof String) && !response.instanceOf(Primitive.PARAGRAPH))) {
+							// Answering must respond.
+							if (state == LanguageState.Answering) {
+								response = sentence;
+							} else {
+								continue;
 							}
-						} else {
-							Vertex paragraph = network.createInstance(Primitive.PARAGRAPH);
-							index = 0;
-							for (Vertex each : responses) {
-								paragraph.addRelationship(Primitive.SENTENCE, each, index);
-								index++;
-								Collection<Relationship> actions = each.getRelationships(Primitive.ACTION);
-								if (actions != null) {
-									for (Relationship relationship : actions) {
-										output.addWeakRelationship(Primitive.ACTION, relationship.getTarget(), relationship.getCorrectness());
-									}
+						}
+						log("Response", Level.INFO, response, speaker, conversation);
+						index++;
+						if ((sentences.size() == 1) || sentence.instanceOf(Primitive.QUESTION) || (index == sentences.size())) {
+	
+							if (!response.hasRelationship(Primitive.ASSOCIATED, Primitive.OFFENSIVE)) {
+								Vertex meta = null;
+								if (processing().lastResponseMetaId != null) {
+									meta = network.findById(processing().lastResponseMetaId);
+									processing().lastResponseMetaId = null;
 								}
-								Collection<Relationship> poses = response.getRelationships(Primitive.POSE);
-								if (poses != null) {
-									for (Relationship relationship : poses) {
-										output.addWeakRelationship(Primitive.POSE, relationship.getTarget(), relationship.getCorrectness());
+								this.bot.mood().evaluateResponse(response, meta);
+								this.bot.avatar().evaluateResponse(output, response, meta);
+								responses.add(response);
+							} else {
+								response = checkDuplicateOrOffensiveResponse(response, sentence, conversation, input, variables, network, true, false);
+								if (!response.hasRelationship(Primitive.ASSOCIATED, Primitive.OFFENSIVE)) {
+									Vertex meta = null;										
+									if (processing().lastResponseMetaId != null) {
+										meta = network.findById(processing().lastResponseMetaId);
+										processing().lastResponseMetaId = null;
 									}
+									this.bot.mood().evaluateResponse(response, meta);
+									this.bot.avatar().evaluateResponse(output, response, meta);
+									responses.add(response);
 								}
 							}
-							output.addRelationship(Primitive.INPUT, paragraph);	
 						}
-						if (conversation != null) {
-							Language.addToConversation(output, conversation);
+					}
+				}
+				if (responses.isEmpty()) {
+					if (sense != null) {
+						sense.notifyExceptionListeners(new BotException("No response"));
+					}
+					return null;
+				}
+				if (inputSense != null) {
+					// Associate input sense with output.
+					output.addRelationship(Primitive.SENSE, inputSense);
+				}
+				if (speaker != null) {
+					output.addRelationship(Primitive.TARGET, speaker);
+				}
+				Vertex topic = input.mostConscious(Primitive.TOPIC);
+				if (topic != null) {
+					output.addRelationship(Primitive.TOPIC, topic);
+				}
+				if (input.hasRelationship(Primitive.ASSOCIATED, Primitive.WHISPER)) {
+					output.addRelationship(Primitive.ASSOCIATED, Primitive.WHISPER);
+				}
+				if (!newConversation) {
+					output.addRelationship(Primitive.QUESTION, input);
+					input.addRelationship(Primitive.RESPONSE, output);
+				}
+				output.addRelationship(Primitive.SPEAKER, self);
+				//self.addRelationship(Primitive.INPUT, output);
+				if (responses.get(0).getData() != null) {
+					output.setName(responses.get(0).getData().toString());
+				}
+				if (responses.size() == 1) {
+					if (processing().wasMimic) {
+						output.addRelationship(Primitive.MIMIC, input);
+					}
+					response = responses.get(0);
+					output.addRelationship(Primitive.INPUT, response);
+					Collection<Relationship> actions = response.getRelationships(Primitive.ACTION);
+					if (actions != null) {
+						for (Relationship relationship : actions) {
+							output.addWeakRelationship(Primitive.ACTION, relationship.getTarget(), relationship.getCorrectness());
+						}
+					}
+					Collection<Relationship> poses = response.getRelationships(Primitive.POSE);
+					if (poses != null) {
+						for (Relationship relationship : poses) {
+							output.addWeakRelationship(Primitive.POSE, relationship.getTarget(), relationship.getCorrectness());
+						}
+					}
+				} else {
+					Vertex paragraph = network.createInstance(Primitive.PARAGRAPH);
+					index = 0;
+					for (Vertex each : responses) {
+						paragraph.addRelationship(Primitive.SENTENCE, each, index);
+						index++;
+						Collection<Relationship> actions = each.getRelationships(Primitive.ACTION);
+						if (actions != null) {
+							for (Relationship relationship : actions) {
+								output.addWeakRelationship(Primitive.ACTION, relationship.getTarget(), relationship.getCorrectness());
+							}
 						}
-						this.wasMimic = false;
-						// Record response time.
-						output.setCreationDate(new Date());
-						getBot().memory().save();
-						// Allow the sense to output the response.
-						getBot().awareness().output(output);
-					} catch (RuntimeException exception) {
-						if (sense != null) {
-							sense.notifyExceptionListeners(exception);						
+						Collection<Relationship> poses = response.getRelationships(Primitive.POSE);
+						if (poses != null) {
+							for (Relationship relationship : poses) {
+								output.addWeakRelationship(Primitive.POSE, relationship.getTarget(), relationship.getCorrectness());
+							}
 						}
-						throw exception;
 					}
+					output.addRelationship(Primitive.INPUT, paragraph);	
 				}
-			} finally {
-				this.recursiveInputDepth = 0;
-				this.recursiveFormulaDepth = 0;
-				this.startTime = 0;
-				this.abort = false;
+				if (conversation != null) {
+					Language.addToConversation(output, conversation);
+				}
+				processing().wasMimic = false;
+				// Record response time.
+				output.setCreationDate(new Date());
+				return output;
+			} catch (RuntimeException exception) {
+				if (sense != null) {
+					sense.notifyExceptionListeners(exception);						
+				}
+				throw exception;
+			}
+		} finally {
+			ProcessingState processing = processing();
+			processing.recursiveInputDepth = 0;
+			processing.recursiveFormulaDepth = 0;
+			processing.startTime = 0;
+			processing.abort = false;
+			recordLastResponse(conversationId);
+			// Record the database lookups for the message, from the input's creation.
+			if (network instanceof AbstractNetwork) {
+				log("Data queries", Level.FINE, ((AbstractNetwork)network).getDataQueryCount());
+				((AbstractNetwork)network).resetDataQueryCount();
 			}
 		}
 	}
@@ -1105,12 +1213,12 @@ public class Language extends BasicThought {
 	 * Process the input and return the response.
 	 */
 	public Vertex input(Vertex input, Vertex sentence, Map<Vertex, Vertex> variables, Network network) {
-		log("REDIRECT", Level.FINE, sentence, this.recursiveInputDepth);
-		if (this.recursiveInputDepth > MAX_DEPTH) {
-			log("Input", Level.WARNING, "Max recursive depth exceeded", this.recursiveInputDepth, sentence);
+		log("REDIRECT", Level.FINE, sentence, processing().recursiveInputDepth);
+		if (processing().recursiveInputDepth > MAX_DEPTH) {
+			log("Input", Level.WARNING, "Max recursive depth exceeded", processing().recursiveInputDepth, sentence);
 			return null;
 		}
-		this.recursiveInputDepth++;
+		processing().recursiveInputDepth++;
 		// Check for formula and transpose
 		if (sentence.instanceOf(Primitive.FORMULA)) {
 			Vertex result = evaluateFormula(sentence, variables, network);
@@ -1139,7 +1247,7 @@ public class Language extends BasicThought {
 				response = getWord(result, network);
 			}
 		}
-		this.wasMimic = false;
+		processing().wasMimic = false;
 		return response;
 	}
 	
@@ -1195,12 +1303,12 @@ public class Language extends BasicThought {
 						return null;
 					}
 					while (quotient.instanceOf(Primitive.FORMULA)) {
-						this.recursiveFormulaDepth++;
-						if (this.recursiveFormulaDepth > MAX_DEPTH) {
+						processing().recursiveFormulaDepth++;
+						if (processing().recursiveFormulaDepth > MAX_DEPTH) {
 							throw new SelfExecutionException(word, "Max recursive template formula execution");
 						}
 						quotient = evaluateFormulaTemplate(quotient, variables, startTime, network);
-						this.recursiveFormulaDepth--;
+						processing().recursiveFormulaDepth--;
 						if (quotient == null) {
 							return null;
 						}
@@ -1829,9 +1937,13 @@ public class Language extends BasicThought {
 				log("Sentence was already responded to", Level.FINE, sentence, lastSentence);
 				return null;
 			}
+			Span span = Tracer.start("responseDelay");
 			try {
 				getBot().memory().wait(COVERSATIONAL_RESPONSE_DELAY);
-			} catch (InterruptedException ignore) {}
+			} catch (InterruptedException ignore) {
+			} finally {
+				Tracer.stop(span);
+			}
 			if (getBot().memory().getActiveMemory().size() > 1) {
 				log("New active memory", Level.FINE, getBot().memory().getActiveMemory().size());
 				// Use a new memory to access new input.
@@ -2120,25 +2232,25 @@ public class Language extends BasicThought {
 			}
 			if (bestWithTopicPrevious != null) {
 				if (bestWithTopicPrevious.hasMeta()) {
-					this.lastResponseMetaId = bestWithTopicPrevious.getMeta().getId();
+					processing().lastResponseMetaId = bestWithTopicPrevious.getMeta().getId();
 				}
 				return bestWithTopicPrevious;
 			}
 			if (bestWithTopic != null) {
 				if (bestWithTopic.hasMeta()) {
-					this.lastResponseMetaId = bestWithTopic.getMeta().getId();
+					processing().lastResponseMetaId = bestWithTopic.getMeta().getId();
 				}
 				return bestWithTopic;
 			}
 			if (bestWithPrevious != null) {
 				if (bestWithPrevious.hasMeta()) {
-					this.lastResponseMetaId = bestWithPrevious.getMeta().getId();
+					processing().lastResponseMetaId = bestWithPrevious.getMeta().getId();
 				}
 				return bestWithPrevious;
 			}
 			if (best != null) {
 				if (best.hasMeta()) {
-					this.lastResponseMetaId = best.getMeta().getId();
+					processing().lastResponseMetaId = best.getMeta().getId();
 				}
 				return best;
 			}
@@ -2246,13 +2358,13 @@ public class Language extends BasicThought {
 							response = synthesizeResponse(input, sentence, conversation, false, variables, network);
 						}
 						if (response == null) {
-							this.wasMimic = true;
+							processing().wasMimic = true;
 							// Mimic.
 							log("Conversation mimic", Level.FINE, sentence);
 							response = sentence;
 						}
 					} else {
-						this.wasMimic = true;
+						processing().wasMimic = true;
 						response = getDefaultResponse(defaultResponses, input, sentence, conversation, variables, network);
 					}
 				}
@@ -3155,6 +3267,41 @@ public class Language extends BasicThought {
 		}
 	}
 
+	/**
+	 * Return the inverted case and upper case variants of the word.
+	 * Both are found together from the word's normalized data, instead of a lookup for each.
+	 * If no vertices match the normalized data, such as before the normalized data is migrated, each is looked up by its data.
+	 */
+	public static Vertex[] findCaseVariants(Vertex word, Network network) {
+		Vertex[] variants = new Vertex[2];
+		if (!(word.getData() instanceof String)) {
+			return variants;
+		}
+		String text = (String)word.getData();
+		String inverted = null;
+		if (Utils.isCaps(text) || Utils.isCapitalized(text)) {
+			inverted = text.toLowerCase();
+		} else {
+			inverted = Utils.capitalize(text);
+		}
+		String upper = text.toUpperCase();
+		List<Vertex> normalized = network.findAllByNormalizedData(text);
+		if (normalized.isEmpty()) {
+			variants[0] = network.findByData(inverted);
+			variants[1] = network.findByData(upper);
+			return variants;
+		}
+		for (Vertex variant : normalized) {
+			if (inverted.equals(variant.getData())) {
+				variants[0] = variant;
+			}
+			if (upper.equals(variant.getData())) {
+				variants[1] = variant;
+			}
+		}
+		return variants;
+	}
+
 	/**
 	 * Add all of the questions for all of the words to the matching map.
 	 */
@@ -3163,8 +3310,9 @@ public class Language extends BasicThought {
 		List<Vertex> deferred = new ArrayList<Vertex>();
 		for (Relationship wordRelation : wordRelations) {
 			Vertex word = wordRelation.getTarget();
-			Vertex lowercase = invertWordCase(word, network);
-			Vertex uppercase = network.findByData(((String)word.getData()).toUpperCase());
+			Vertex[] variants = findCaseVariants(word, network);
+			Vertex lowercase = variants[0];
+			Vertex uppercase = variants[1];
 			if (keywords && (!word.instanceOf(Primitive.KEYWORD)
 							&& (lowercase == null || !lowercase.instanceOf(Primitive.KEYWORD))
 							&& (uppercase == null || !uppercase.instanceOf(Primitive.KEYWORD)))) {
@@ -3214,11 +3362,12 @@ public class Language extends BasicThought {
 				break;
 			}
 			int value = computeWordValue(word);
-			Vertex lowercase = invertWordCase(word, network);
+			Vertex[] variants = findCaseVariants(word, network);
+			Vertex lowercase = variants[0];
 			if ((lowercase != null) && (lowercase != word)) {
 				value = Math.max(value, computeWordValue(lowercase));
 			}
-			Vertex uppercase = network.findByData(((String)word.getData()).toUpperCase());
+			Vertex uppercase = variants[1];
 			if ((uppercase != null) && (uppercase != word)) {
 				value = Math.max(value, computeWordValue(uppercase));
 			}
@@ -3230,13 +3379,181 @@ public class Language extends BasicThought {
 		}
 	}
 	
+	/**
+	 * Score the questions for the words from the question index posting lists.
+	 * Computes the same values as addQuestionMatches, but only the top scoring questions are loaded from the database.
+	 */
+	public void addIndexedQuestionMatches(Vertex sentence, Network network, QuestionIndex index, List<Relationship> wordRelations,
+				Map<Vertex, Integer> matches, Map<Vertex, Integer> keyWordsMatches) {
+		// Each word and its case variants, and the word's value.
+		List<Vertex[]> variants = new ArrayList<Vertex[]>(wordRelations.size());
+		List<Integer> values = new ArrayList<Integer>(wordRelations.size());
+		List<Boolean> isKeyword = new ArrayList<Boolean>(wordRelations.size());
+		for (Relationship wordRelation : wordRelations) {
+			Vertex word = wordRelation.getTarget();
+			Vertex[] caseVariants = findCaseVariants(word, network);
+			Vertex lowercase = caseVariants[0];
+			Vertex uppercase = caseVariants[1];
+			if (lowercase == word) {
+				lowercase = null;
+			}
+			if (uppercase == word) {
+				uppercase = null;
+			}
+			int value = computeIndexedWordValue(word, index);
+			if (lowercase != null) {
+				value = Math.max(value, computeIndexedWordValue(lowercase, index));
+			}
+			if (uppercase != null) {
+				value = Math.max(value, computeIndexedWordValue(uppercase, index));
+			}
+			variants.add(new Vertex[] { word, lowercase, uppercase });
+			values.add(value);
+			isKeyword.add(word.instanceOf(Primitive.KEYWORD)
+					|| (lowercase != null && lowercase.instanceOf(Primitive.KEYWORD))
+					|| (uppercase != null && uppercase.instanceOf(Primitive.KEYWORD)));
+		}
+		Map<Long, Integer> scores = new HashMap<Long, Integer>();
+		Map<Long, Integer> wordCounts = new HashMap<Long, Integer>();
+		// Record the original words already counted for each question.
+		Map<Long, Set<Integer>> processed = new HashMap<Long, Set<Integer>>();
+		Long sentenceId = sentence.getId();
+		// Record all keyword matches.
+		mergePostings(index, Primitive.KEYQUESTION, variants, values, isKeyword, true, 4, sentenceId, scores, wordCounts, processed);
+		mergePostings(index, Primitive.QUESTION, variants, values, isKeyword, true, 0, sentenceId, scores, wordCounts, processed);
+		Set<Long> keyWordIds = new HashSet<Long>(scores.keySet());
+		mergePostings(index, Primitive.QUESTION, variants, values, isKeyword, false, 0, sentenceId, scores, wordCounts, processed);
+		if (this.learnGrammar) {
+			mergePostings(index, Primitive.SENTENCE, variants, values, isKeyword, false, 0, sentenceId, scores, wordCounts, processed);
+		}
+		if (scores.isEmpty()) {
+			return;
+		}
+		// Select the top k questions with responses, preferring questions with a similar number of words.
+		final int wordCount = wordRelations.size();
+		final Map<Long, Integer> finalScores = scores;
+		final Map<Long, Integer> finalWordCounts = wordCounts;
+		List<Long> candidates = new ArrayList<Long>(scores.keySet());
+		Collections.sort(candidates, new Comparator<Long>() {
+			public int compare(Long first, Long second) {
+				int value = finalScores.get(second).compareTo(finalScores.get(first));
+				if (value != 0) {
+					return value;
+				}
+				return Math.abs(wordCount - finalWordCounts.get(first)) - Math.abs(wordCount - finalWordCounts.get(second));
+			}
+		});
+		int loaded = 0;
+		int found = 0;
+		for (Long id : candidates) {
+			if (found >= this.maxIndexMatches) {
+				break;
+			}
+			loaded++;
+			Vertex question = network.findById(id);
+			// Only match questions with responses, the index may also contain questions that have been forgotten.
+			if (question == null || !question.hasAnyResponseRelationship()) {
+				continue;
+			}
+			found++;
+			Integer value = scores.get(id);
+			matches.put(question, value);
+			if (keyWordIds.contains(id)) {
+				keyWordsMatches.put(question, value);
+			}
+		}
+		log("Question index matches (candidates, loaded, top)", Level.FINE, candidates.size(), loaded, found);
+	}
+	
+	/**
+	 * Add the word values for each question in the words posting lists.
+	 * Large posting lists are merged last, the same as the deferred words of addQuestionMatches.
+	 */
+	protected void mergePostings(QuestionIndex index, Primitive key, List<Vertex[]> variants, List<Integer> values, List<Boolean> isKeyword,
+				boolean keywords, int bonus, Long sentenceId, Map<Long, Integer> scores, Map<Long, Integer> wordCounts, Map<Long, Set<Integer>> processed) {
+		List<Integer> deferred = new ArrayList<Integer>();
+		for (int position = 0; position < variants.size(); position++) {
+			if (keywords && !isKeyword.get(position)) {
+				continue;
+			}
+			for (Vertex word : variants.get(position)) {
+				QuestionIndex.Postings postings = index.getPostings(word, key);
+				if (postings != null && postings.size() > QuestionIndex.MAX_POSTINGS) {
+					deferred.add(position);
+					break;
+				}
+			}
+			if (deferred.contains(position)) {
+				continue;
+			}
+			mergePostings(index, key, variants.get(position), position, values.get(position) + bonus, sentenceId, scores, wordCounts, processed);
+		}
+		// Process keywords with lots of sentences last.
+		for (Integer position : deferred) {
+			mergePostings(index, key, variants.get(position), position, values.get(position) + bonus, sentenceId, scores, wordCounts, processed);
+		}
+	}
+	
+	protected void mergePostings(QuestionIndex index, Primitive key, Vertex[] variants, int position, int value, Long sentenceId,
+				Map<Long, Integer> scores, Map<Long, Integer> wordCounts, Map<Long, Set<Integer>> processed) {
+		for (Vertex word : variants) {
+			QuestionIndex.Postings postings = index.getPostings(word, key);
+			if (postings == null) {
+				continue;
+			}
+			for (long id : postings.getIds()) {
+				if (sentenceId != null && sentenceId == id) {
+					continue;
+				}
+				Integer count = scores.get(id);
+				Set<Integer> processedWords = processed.get(id);
+				if (processedWords == null) {
+					processedWords = new HashSet<Integer>(4);
+					processed.put(id, processedWords);
+				}
+				if (!processedWords.add(position)) {
+					continue;
+				}
+				if (count == null) {
+					count = 0;
+					wordCounts.put(id, postings.getWordCount(id));
+				}
+				scores.put(id, count + value);
+			}
+		}
+	}
+	
+	/**
+	 * Return the word value, cached in the index.
+	 */
+	public int computeIndexedWordValue(Vertex word, QuestionIndex index) {
+		Integer value = index.getWordValue(word);
+		if (value == null) {
+			value = computeWordValue(word);
+			index.setWordValue(word, value);
+		}
+		return value;
+	}
+	
 	/**
 	 * Find the best match for the sentence.
 	 * Traverse its words to find other sentences they are used in,
 	 * and pick other sentence with the most words in common.
 	 */
-	@SuppressWarnings("unchecked")
 	public Relationship findResponseMatch(Vertex sentence, Vertex previousResponse, Vertex input, Network network, float percentage) {
+		Span span = Tracer.start("findResponseMatch");
+		try {
+			return internalFindResponseMatch(sentence, previousResponse, input, network, percentage);
+		} finally {
+			Tracer.stop(span);
+		}
+	}
+	
+	/**
+	 * Implements findResponseMatch, which traces the call.
+	 */
+	@SuppressWarnings("unchecked")
+	protected Relationship internalFindResponseMatch(Vertex sentence, Vertex previousResponse, Vertex input, Network network, float percentage) {
 		if (!this.enableResponseMatch) {
 			return null;
 		}
@@ -3253,13 +3570,23 @@ public class Language extends BasicThought {
 			log("Increasing processing time to allow debugging", Level.INFO, getBot().getDebugLevel());
 			processTime = processTime * 20;
 		}
-		// Record all keyword matches.
-		addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.KEYQUESTION, true);
-		addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.QUESTION, true);
-		Map<Vertex, Integer> keyWordsMatches = new HashMap<Vertex, Integer>(matches);
-		addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.QUESTION, false);
-		if (this.learnGrammar) {
-			addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.SENTENCE, false);
+		Map<Vertex, Integer> keyWordsMatches = null;
+		QuestionIndex index = null;
+		if (this.useQuestionIndex) {
+			index = QuestionIndex.getIndex(network);
+		}
+		if (index != null) {
+			keyWordsMatches = new HashMap<Vertex, Integer>();
+			addIndexedQuestionMatches(sentence, network, index, wordRelations, matches, keyWordsMatches);
+		} else {
+			// Record all keyword matches.
+			addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.KEYQUESTION, true);
+			addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.QUESTION, true);
+			keyWordsMatches = new HashMap<Vertex, Integer>(matches);
+			addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.QUESTION, false);
+			if (this.learnGrammar) {
+				addQuestionMatches(sentence, network, startTime, processTime, wordRelations, matches, processed, Primitive.SENTENCE, false);
+			}
 		}
 		
 		// Find the best match.
@@ -3345,13 +3672,13 @@ public class Language extends BasicThought {
 			log("Question best match (score, max score, required score, question)", Level.FINE, matchValue, max, required, bestMatch.getKey());
 			if (matchValue < required) {
 				log("Question bad match, insufficient score (score, required score, question)", Level.FINE, matchValue, required, bestMatch.getKey());
-				this.lastResponseMetaId = null;
+				processing().lastResponseMetaId = null;
 				return null;
 			}
 			int matchMax = computeMaxSentenceValue(bestMatch.getKey(), bestMatch.getKey(), network);
 			if (matchValue * multiplier < matchMax) {
 				log("Question bad match, too generic (score, multiplier, value, match max, question)", Level.FINE, matchValue, multiplier, matchValue * multiplier, matchMax, bestMatch.getKey());
-				this.lastResponseMetaId = null;
+				processing().lastResponseMetaId = null;
 				return null;			
 			}
 		}
@@ -3395,10 +3722,72 @@ public class Language extends BasicThought {
 		}
 	}
 	
+	/**
+	 * Add the patterns that may match the sentence from the compiled pattern index.
+	 * The index only finds the candidates, the patterns and their values are the same as recordPatternValues,
+	 * a pattern is only a match if one of the sentence words, or its inverted case, has a pattern relationship to it,
+	 * and its value is the value of each of those words.
+	 * Return false if the sentence has a word that is not text, as the patterns are not searched.
+	 */
+	public boolean addIndexedPatternMatches(Vertex sentence, Network network, PatternIndex index, List<Relationship> wordRelations, Map<Vertex, Integer> matches) {
+		List<Vertex> words = new ArrayList<Vertex>(wordRelations.size());
+		List<Vertex> linkedWords = new ArrayList<Vertex>(wordRelations.size() * 2);
+		for (Relationship wordRelation : wordRelations) {
+			Vertex word = wordRelation.getTarget();
+			if (!(word.getData() instanceof String)) {
+				return false;
+			}
+			words.add(word);
+			linkedWords.add(word);
+			Vertex variant = invertWordCase(word, network);
+			if ((variant != null) && (variant != word)) {
+				linkedWords.add(variant);
+			}
+		}
+		Map<Long, PatternIndex.PatternMatch> results = index.match(words);
+		log("Pattern index matches", Level.FINE, results.size());
+		Map<Vertex, Integer> values = new HashMap<Vertex, Integer>();
+		for (PatternIndex.PatternMatch result : results.values()) {
+			Vertex pattern = network.findById(result.pattern);
+			// The index may contain patterns that have been forgotten or no longer have responses.
+			if (pattern == null || pattern == sentence || !pattern.hasAnyResponseRelationship()) {
+				continue;
+			}
+			Integer value = null;
+			for (Vertex word : linkedWords) {
+				if (word.getRelationship(Primitive.PATTERN, pattern) != null) {
+					Integer wordValue = values.get(word);
+					if (wordValue == null) {
+						wordValue = computeWordValue(word);
+						values.put(word, wordValue);
+					}
+					value = (value == null) ? wordValue : value + wordValue;
+				}
+			}
+			// Patterns with only wildcards are not found through their words.
+			if (value != null) {
+				matches.put(pattern, value);
+			}
+		}
+		return true;
+	}
+	
 	/**
 	 * Find the best pattern that matches the sentence.
 	 */
 	public Relationship matchPattern(Vertex sentence, Vertex previousResponse, Vertex input, Map<Vertex, Vertex> variables, Network network, float percentage) {
+		Span span = Tracer.start("matchPattern");
+		try {
+			return internalMatchPattern(sentence, previousResponse, input, variables, network, percentage);
+		} finally {
+			Tracer.stop(span);
+		}
+	}
+	
+	/**
+	 * Implements matchPattern, which traces the call.
+	 */
+	protected Relationship internalMatchPattern(Vertex sentence, Vertex previousResponse, Vertex input, Map<Vertex, Vertex> variables, Network network, float percentage) {
 		List<Relationship> wordRelations = sentence.orderedRelationships(Primitive.WORD);
 		if (wordRelations == null) {
 			return null;
@@ -3406,38 +3795,48 @@ public class Language extends BasicThought {
 		long startTime = System.currentTimeMillis();
 		Map<Vertex, Integer> matches = new HashMap<Vertex, Integer>();
 		long processTime = this.maxResponseMatchProcess;
-		// Record all of the matches.
-		List<Vertex> deferred = new ArrayList<Vertex>();
-		for (Relationship wordRelation : wordRelations) {
-			long currentTime = System.currentTimeMillis();
-			if ((currentTime - startTime) > processTime) {
-				log("Pattern search time limit reached", Level.INFO, processTime, matches.size());					
-				break;
-			}
-			Vertex word = wordRelation.getTarget();
-			recordPatternValues(word, sentence, matches, network, deferred);
-			Vertex lowercase = null;
-			if (!(word.getData() instanceof String)) {
+		PatternIndex index = null;
+		if (this.usePatternIndex) {
+			index = PatternIndex.getIndex(network);
+		}
+		if (index != null) {
+			if (!addIndexedPatternMatches(sentence, network, index, wordRelations, matches)) {
 				return null;
 			}
-			String text = (String)word.getData();
-			if (Utils.isCaps(text) || Utils.isCapitalized(text)) {
-				lowercase = network.findByData(((String)word.getData()).toLowerCase());
-			} else {
-				lowercase = network.findByData(Utils.capitalize((String)word.getData()));					
-			}
-			if ((lowercase != null) && (lowercase != word)) {
-				recordPatternValues(lowercase, sentence, matches, network, deferred);
+		} else {
+			// Record all of the matches.
+			List<Vertex> deferred = new ArrayList<Vertex>();
+			for (Relationship wordRelation : wordRelations) {
+				long currentTime = System.currentTimeMillis();
+				if ((currentTime - startTime) > processTime) {
+					log("Pattern search time limit reached", Level.INFO, processTime, matches.size());					
+					break;
+				}
+				Vertex word = wordRelation.getTarget();
+				recordPatternValues(word, sentence, matches, network, deferred);
+				Vertex lowercase = null;
+				if (!(word.getData() instanceof String)) {
+					return null;
+				}
+				String text = (String)word.getData();
+				if (Utils.isCaps(text) || Utils.isCapitalized(text)) {
+					lowercase = network.findByData(((String)word.getData()).toLowerCase());
+				} else {
+					lowercase = network.findByData(Utils.capitalize((String)word.getData()));					
+				}
+				if ((lowercase != null) && (lowercase != word)) {
+					recordPatternValues(lowercase, sentence, matches, network, deferred);
+				}
 			}
-		}
-		// Process words with lots of sentences last.
-		for (Vertex word : deferred) {
-			long currentTime = System.currentTimeMillis();
-			if ((currentTime - startTime) > processTime) {
-				log("Pattern search time limit reached", Level.INFO, processTime, matches.size());					
-				break;
+			// Process words with lots of sentences last.
+			for (Vertex word : deferred) {
+				long currentTime = System.currentTimeMillis();
+				if ((currentTime - startTime) > processTime) {
+					log("Pattern search time limit reached", Level.INFO, processTime, matches.size());					
+					break;
+				}
+				recordPatternValues(word, sentence, matches, network, null);
 			}
-			recordPatternValues(word, sentence, matches, network, null);
 		}
 		// Find the best match.
 		Map.Entry<Vertex, Integer> bestMatch = null;
@@ -3652,11 +4051,23 @@ public class Language extends BasicThought {
 	 * If the state machine finds a match, it will record the real vertices mapped to the state machine variables.
 	 */
 	public Vertex checkState(Vertex root, Vertex input, Vertex sentence, List<Vertex> states, int index, int recurse, List<Vertex> inputs, Map<Vertex, Vertex> variables, List<Vertex> stateStack, float correctnessRequired, Network network) {
-		if (states == null || this.abort) {
+		Span span = Tracer.start("checkState");
+		try {
+			return internalCheckState(root, input, sentence, states, index, recurse, inputs, variables, stateStack, correctnessRequired, network);
+		} finally {
+			Tracer.stop(span);
+		}
+	}
+	
+	/**
+	 * Implements checkState, which traces the call.
+	 */
+	protected Vertex internalCheckState(Vertex root, Vertex input, Vertex sentence, List<Vertex> states, int index, int recurse, List<Vertex> inputs, Map<Vertex, Vertex> variables, List<Vertex> stateStack, float correctnessRequired, Network network) {
+		if (states == null || processing().abort) {
 			return null;
 		}
-		if (this.startTime == 0) {
-			this.startTime = System.currentTimeMillis();
+		if (processing().startTime == 0) {
+			processing().startTime = System.currentTimeMillis();
 		}
 		long processTime = this.maxStateProcess;
 		if (getBot().isDebugFiner()) {
@@ -3671,17 +4082,17 @@ public class Language extends BasicThought {
 				}
 				// Check each state machine for a match.
 				for (ListIterator<Vertex> iterator = states.listIterator(); iterator.hasNext(); ) {
-					if (this.abort) {
+					if (processing().abort) {
 						return null;
 					}
-					if ((System.currentTimeMillis() - this.startTime) > processTime) {
+					if ((System.currentTimeMillis() - processing().startTime) > processTime) {
 						log("State processing time limit reached", Level.WARNING, processTime, root, state);
-						this.abort = true;
+						processing().abort = true;
 						return null;
 					}
 					if (stateStack.size() > MAX_STACK) {
 						log("State stack overflow", Level.WARNING, MAX_STACK, root, state);
-						this.abort = true;
+						processing().abort = true;
 						return null;
 					}
 					// Record local variables so they can be discarded if there is no match.
@@ -3710,12 +4121,12 @@ public class Language extends BasicThought {
 					Vertex response = null;
 					if (equations != null) {
 						for (Relationship equationRelationship : equations) {
-							if (this.abort) {
+							if (processing().abort) {
 								return null;
 							}
-							if ((System.currentTimeMillis() - this.startTime) > processTime) {
+							if ((System.currentTimeMillis() - processing().startTime) > processTime) {
 								log("State processing time limit reached", Level.WARNING, processTime, root, state);
-								this.abort = true;
+								processing().abort = true;
 								return null;
 							}
 							Vertex equation = equationRelationship.getTarget();
@@ -3741,9 +4152,9 @@ public class Language extends BasicThought {
 									caseVariable = equation.getRelationship(Primitive.CASE);
 									if (caseVariable != null && (!caseVariable.isVariable())) {
 										if ((caseVariable.instanceOf(Primitive.EXPRESSION) || caseVariable.instanceOf(Primitive.EQUATION))) {
-											caseVariable = SelfInterpreter.getInterpreter().evaluateExpression(caseVariable, localVariables, network, this.startTime, processTime, 0);
+											caseVariable = SelfInterpreter.getInterpreter().evaluateExpression(caseVariable, localVariables, network, processing().startTime, processTime, 0);
 										} else if (caseVariable.instanceOf(Primitive.FUNCTION)) {
-											caseVariable = SelfInterpreter.getInterpreter().evaluateFunction(caseVariable, localVariables, network, this.startTime, processTime, 0);
+											caseVariable = SelfInterpreter.getInterpreter().evaluateFunction(caseVariable, localVariables, network, processing().startTime, processTime, 0);
 										}
 									}
 									if (caseVariable != null) {
@@ -3885,7 +4296,7 @@ public class Language extends BasicThought {
 											Vertex variable = arguments.get(1).getTarget();
 											Vertex value = arguments.get(0).getTarget();
 											newInputs = new ArrayList<Vertex>();
-											Vertex variableValue = SelfInterpreter.getInterpreter().evaluateExpression(variable, localVariables, network, this.startTime, processTime, 0);
+											Vertex variableValue = SelfInterpreter.getInterpreter().evaluateExpression(variable, localVariables, network, processing().startTime, processTime, 0);
 											List<Relationship> relationships = variableValue.orderedRelationships(value);
 											if (relationships != null) {
 												for (Relationship result : relationships) {
@@ -3914,7 +4325,7 @@ public class Language extends BasicThought {
 								}
 							} else if (equation.instanceOf(Primitive.DO)) {
 								log("DO", Level.FINER, state, currentInput);
-								SelfInterpreter.getInterpreter().evaluateExpression(equation.getRelationship(Primitive.DO), localVariables, network, this.startTime, processTime, 0);
+								SelfInterpreter.getInterpreter().evaluateExpression(equation.getRelationship(Primitive.DO), localVariables, network, processing().startTime, processTime, 0);
 								localVariables.remove(network.createVertex(Primitive.RETURN));
 							} else if (equation.instanceOf(Primitive.GOTO)) {
 								// May require terminal state.
@@ -3927,7 +4338,7 @@ public class Language extends BasicThought {
 									} else {
 										List<Vertex> newInputs = new ArrayList<Vertex>();
 										for (Vertex argument : arguments) {
-											newInputs.add(SelfInterpreter.getInterpreter().evaluateExpression(argument, localVariables, network, this.startTime, processTime, 0));
+											newInputs.add(SelfInterpreter.getInterpreter().evaluateExpression(argument, localVariables, network, processing().startTime, processTime, 0));
 										}
 										response = checkState(newRoot, input, sentence, gotoStates, 0, recurse, newInputs, localVariables, stateStack, correctnessRequired, network);
 									}
@@ -3937,7 +4348,7 @@ public class Language extends BasicThought {
 								}
 							} else if (equation.instanceOf(Primitive.PUSH)) {
 								Vertex argument = equation.getRelationship(Primitive.ARGUMENT);
-								argument = SelfInterpreter.getInterpreter().evaluateExpression(argument, localVariables, network, this.startTime, processTime, 0);
+								argument = SelfInterpreter.getInterpreter().evaluateExpression(argument, localVariables, network, processing().startTime, processTime, 0);
 								log("PUSH", Level.FINER, state, argument);
 								inputs.add(index, argument);								
 							} else if (equation.instanceOf(Primitive.RETURN)) {
@@ -4022,7 +4433,7 @@ public class Language extends BasicThought {
 			return null;
 		} finally {
 			if (root == null) {
-				log("State processing time", Level.FINE, System.currentTimeMillis() - startTime);
+				log("State processing time", Level.FINE, System.currentTimeMillis() - processing().startTime);
 			}
 		}
 		return null;
@@ -4147,7 +4558,7 @@ public class Language extends BasicThought {
 				processTime = processTime * 10;
 			}
 			log("Evaluating answer", Level.FINE, answer, state);			
-			response = SelfInterpreter.getInterpreter().evaluateExpression(answer, localVariables, network, this.startTime, processTime, 0);
+			response = SelfInterpreter.getInterpreter().evaluateExpression(answer, localVariables, network, processing().startTime, processTime, 0);
 			localVariables.remove(network.createVertex(Primitive.RETURN));
 			log("Answer result", Level.FINE, response);
 			// Check for formula and transpose
@@ -4462,48 +4873,83 @@ public class Language extends BasicThought {
 		return writer.toString();
 	}
 
+	/**
+	 * Restore the last response state of the conversation into the processing state, so the response can be corrected.
+	 * The conversation's next input may be processed by a different thread.
+	 */
+	protected void restoreLastResponse(Long conversationId) {
+		Long[] ids = null;
+		synchronized (this.lastResponses) {
+			ids = this.lastResponses.get(conversationId);
+		}
+		ProcessingState processing = processing();
+		if (ids == null) {
+			processing.lastStateMachineId = null;
+			processing.lastStateId = null;
+			processing.lastQuotientId = null;
+		} else {
+			processing.lastStateMachineId = ids[0];
+			processing.lastStateId = ids[1];
+			processing.lastQuotientId = ids[2];
+		}
+	}
+	
+	/**
+	 * Record the last response state of the processing state for the conversation.
+	 */
+	protected void recordLastResponse(Long conversationId) {
+		ProcessingState processing = processing();
+		Long[] ids = new Long[] { processing.lastStateMachineId, processing.lastStateId, processing.lastQuotientId };
+		synchronized (this.lastResponses) {
+			this.lastResponses.put(conversationId, ids);
+		}
+	}
+
 	public Vertex getLastStateMachine(Network network) {
-		if (this.lastStateMachineId == null) {
+		Long id = processing().lastStateMachineId;
+		if (id == null) {
 			return null;
 		}
-		return network.findById(this.lastStateMachineId);
+		return network.findById(id);
 	}
 
 	public void setLastStateMachine(Vertex lastStateMachine) {
 		if (lastStateMachine == null) {
-			this.lastStateMachineId = null;
+			processing().lastStateMachineId = null;
 		} else {
-			this.lastStateMachineId = lastStateMachine.getId();
+			processing().lastStateMachineId = lastStateMachine.getId();
 		}
 	}
 
 	public Vertex getLastState(Network network) {
-		if (this.lastStateId == null) {
+		Long id = processing().lastStateId;
+		if (id == null) {
 			return null;
 		}
-		return network.findById(this.lastStateId);
+		return network.findById(id);
 	}
 
 	public void setLastState(Vertex lastState) {
 		if (lastState == null) {
-			this.lastStateId = null;
+			processing().lastStateId = null;
 		} else {
-			this.lastStateId = lastState.getId();
+			processing().lastStateId = lastState.getId();
 		}
 	}
 
 	public Vertex getLastQuotient(Network network) {
-		if (this.lastQuotientId == null) {
+		Long id = processing().lastQuotientId;
+		if (id == null) {
 			return null;
 		}
-		return network.findById(this.lastQuotientId);
+		return network.findById(id);
 	}
 
 	public void setLastQuotient(Vertex lastQuotient) {
 		if (lastQuotient == null) {
-			this.lastQuotientId = null;
+			processing().lastQuotientId = null;
 		} else {
-			this.lastQuotientId = lastQuotient.getId();
+			processing().lastQuotientId = lastQuotient.getId();
 		}
 	}
 
@@ -4566,6 +5012,10 @@ public class Language extends BasicThought {
 	 */
 	public void loadAIMLFileAsLog(File file, String encoding, boolean pin) {
 		try {
+			if (STREAM_AIML || file.length() > MAX_FILE_SIZE) {
+				streamAIMLFileAsLog(file, encoding, pin);
+				return;
+			}
 			loadAIMLFileAsLog(new FileInputStream(file), encoding, MAX_FILE_SIZE, pin);
 		} catch (IOException exception) {
 			throw new SelfParseException("Parsing error occurred", exception);
@@ -4577,6 +5027,10 @@ public class Language extends BasicThought {
 	 */
 	public void loadAIMLFile(File file, boolean createStates, boolean indexStatic, String encoding) {
 		try {
+			if (STREAM_AIML || file.length() > MAX_FILE_SIZE) {
+				streamAIMLFile(file, file.getName(), createStates, false, indexStatic, encoding);
+				return;
+			}
 			loadAIMLFile(new FileInputStream(file), file.getName(), createStates, false, indexStatic, encoding, MAX_FILE_SIZE);
 		} catch (IOException exception) {
 			throw new SelfParseException("Parsing error occurred", exception);
@@ -4602,6 +5056,62 @@ public class Language extends BasicThought {
 		log("AIML parsing time", Level.INFO, System.currentTimeMillis() - start);
 	}
 	
+	/**
+	 * Stream, parse, the aiml file as a chat log.
+	 * The file is not loaded into memory, so is not limited in size.
+	 */
+	public void streamAIMLFileAsLog(File file, String encoding, boolean pin) {
+		long start = System.currentTimeMillis();
+		Network network = getBot().memory().newMemory();
+		try {
+			AIMLParser.parser().parseAIML(new FileInputStream(file), encoding, false, false, pin, false, null, network);
+		} catch (IOException exception) {
+			throw new SelfParseException("Parsing error occurred", exception);
+		}
+		network.save();
+		log("AIML parsing time", Level.INFO, System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * Stream, parse, the aiml file as a state machine.
+	 * The file is not loaded into memory, so is not limited in size,
+	 * the source code is only stored if the file is within the max file size.
+	 */
+	public void streamAIMLFile(File file, String name, boolean createStates, boolean mergeState, boolean indexStatic, String encoding) {
+		long start = System.currentTimeMillis();
+		Network network = getBot().memory().newMemory();
+		Vertex stateMachine = null;
+		Vertex language = network.createVertex(getPrimitive());
+		if (mergeState) {
+			stateMachine = language.lastRelationship(Primitive.STATE);
+		} 
+		try {
+			if (stateMachine == null) {
+				stateMachine = network.createInstance(Primitive.STATE);
+				stateMachine.addRelationship(Primitive.LANGUAGE, network.createVertex(Primitive.AIML));
+				stateMachine.setName(name);
+				language.addRelationship(Primitive.STATE, stateMachine);
+				if (file.length() <= MAX_FILE_SIZE) {
+					TextData data = new TextData();
+					data.setText(Utils.loadTextFile(new FileInputStream(file), encoding, MAX_FILE_SIZE));
+					stateMachine.addRelationship(Primitive.SOURCECODE, network.createVertex(data));
+					Vertex sourceCode = stateMachine.getRelationship(Primitive.SOURCECODE);
+					if (sourceCode != null) {
+						sourceCode.setPinned(true);
+					}
+				} else {
+					log("AIML file exceeds max file size, source code not stored", Level.WARNING, name, file.length());
+				}
+			}
+			stateMachine = AIMLParser.parser().parseAIML(new FileInputStream(file), encoding, true, createStates, false, indexStatic, stateMachine, network);
+		} catch (IOException exception) {
+			throw new SelfParseException("Parsing error occurred", exception);
+		}
+		SelfCompiler.getCompiler().pin(stateMachine);
+		network.save();
+		log("AIML parsing time", Level.INFO, System.currentTimeMillis() - start);
+	}
+	
 	/**
 	 * Load, parse, the aiml file as a state machine.
 	 */
@@ -0,0 +1,133 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of positive values, such as times in nanoseconds.
+ * Values are counted in log-linear buckets, each power of 2 is split into 16 buckets,
+ * so percentiles are within about 6% for any value without storing the values.
+ * Recording is lock free, and does not allocate.
+ */
+
+public class Histogram {
+	public static final int SUB_BUCKET_BITS = 4;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	public static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	
+	protected AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	protected AtomicLong count = new AtomicLong();
+	protected AtomicLong total = new AtomicLong();
+	protected AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Return the bucket of the value.
+	 */
+	public static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int)Math.max(0, value);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((shift + 1) * SUB_BUCKETS) + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+	}
+	
+	/**
+	 * Return the highest value counted in the bucket.
+	 */
+	public static long bucketValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket / SUB_BUCKETS) - 1;
+		long base = (long)(SUB_BUCKETS + (bucket % SUB_BUCKETS)) << shift;
+		return base + (1L << shift) - 1;
+	}
+	
+	public void record(long value) {
+		this.counts.incrementAndGet(bucket(value));
+		this.count.incrementAndGet();
+		this.total.addAndGet(value);
+		long max = this.max.get();
+		while ((value > max) && !this.max.compareAndSet(max, value)) {
+			max = this.max.get();
+		}
+	}
+	
+	/**
+	 * Return the value below which the percentage of values fall.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = this.count.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long)Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen = seen + this.counts.get(bucket);
+			if (seen >= target) {
+				return Math.min(bucketValue(bucket), this.max.get());
+			}
+		}
+		return this.max.get();
+	}
+	
+	public long getCount() {
+		return this.count.get();
+	}
+	
+	public long getTotal() {
+		return this.total.get();
+	}
+	
+	public long getMax() {
+		return this.max.get();
+	}
+	
+	public long getMean() {
+		long count = this.count.get();
+		if (count == 0) {
+			return 0;
+		}
+		return this.total.get() / count;
+	}
+	
+	public void reset() {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			this.counts.set(bucket, 0);
+		}
+		this.count.set(0);
+		this.total.set(0);
+		this.max.set(0);
+	}
+	
+	/**
+	 * Print the count and the percentiles, of times in nanoseconds, in milliseconds.
+	 */
+	public String toString() {
+		return "count: " + getCount()
+				+ " mean: " + Tracer.millis(getMean())
+				+ " p50: " + Tracer.millis(getValueAtPercentile(50))
+				+ " p90: " + Tracer.millis(getValueAtPercentile(90))
+				+ " p99: " + Tracer.millis(getValueAtPercentile(99))
+				+ " max: " + Tracer.millis(getMax());
+	}
+}
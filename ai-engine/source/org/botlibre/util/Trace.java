@@ -0,0 +1,226 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.util;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The timings of processing an input, as a tree of stages.
+ * Repeated calls of a stage from the same parent stage are merged into one span, so the tree stays small for recursive and looping stages.
+ * A trace is only used by one thread at a time, it is handed from the sense to the mind by the Tracer.
+ */
+
+public class Trace {
+	protected Tracer tracer;
+	protected String name;
+	protected long startTime;
+	protected long time;
+	protected Span root;
+	protected Span current;
+
+	/**
+	 * The time, calls, and database queries and rows of a stage.
+	 */
+	public static class Span {
+		protected String stage;
+		protected Span parent;
+		protected List<Span> children;
+		protected int calls;
+		protected int depth;
+		protected long start;
+		protected long time;
+		protected int queries;
+		protected int rows;
+		
+		public Span(String stage, Span parent) {
+			this.stage = stage;
+			this.parent = parent;
+		}
+		
+		/**
+		 * Return the child span of the stage, or create it.
+		 */
+		protected Span child(String stage) {
+			if (this.children == null) {
+				this.children = new ArrayList<Span>(4);
+			} else {
+				for (int index = 0; index < this.children.size(); index++) {
+					Span child = this.children.get(index);
+					if (child.stage.equals(stage)) {
+						return child;
+					}
+				}
+			}
+			Span child = new Span(stage, this);
+			this.children.add(child);
+			return child;
+		}
+
+		public String getStage() {
+			return stage;
+		}
+
+		public List<Span> getChildren() {
+			return children;
+		}
+
+		public int getCalls() {
+			return calls;
+		}
+
+		/**
+		 * Return the total time of the calls in nanoseconds.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Return the number of database queries, including queries of nested stages.
+		 */
+		public int getQueries() {
+			return queries;
+		}
+
+		/**
+		 * Return the number of rows fetched, including rows of nested stages.
+		 */
+		public int getRows() {
+			return rows;
+		}
+		
+		protected void print(StringWriter writer, String indent) {
+			writer.write(indent);
+			writer.write(this.stage);
+			writer.write(" ");
+			writer.write(Tracer.millis(this.time));
+			if (this.calls > 1) {
+				writer.write(" calls: " + this.calls);
+			}
+			if (this.queries > 0) {
+				writer.write(" queries: " + this.queries + " rows: " + this.rows);
+			}
+			writer.write("\n");
+			if (this.children != null) {
+				for (Span child : this.children) {
+					child.print(writer, indent + "  ");
+				}
+			}
+		}
+	}
+	
+	public Trace(Tracer tracer, String name) {
+		this.tracer = tracer;
+		this.name = name;
+		this.startTime = System.currentTimeMillis();
+		this.root = new Span(name, null);
+		this.root.calls = 1;
+		this.root.start = System.nanoTime();
+		this.current = this.root;
+	}
+	
+	/**
+	 * Start a call of the stage nested in the current stage.
+	 * A recursive call of the current stage is counted in the current span, and timed by the outermost call.
+	 */
+	public Span start(String stage) {
+		Span span = this.current;
+		if ((span == this.root) || !span.stage.equals(stage)) {
+			span = span.child(stage);
+		}
+		if (span.depth++ == 0) {
+			span.start = System.nanoTime();
+		}
+		span.calls++;
+		this.current = span;
+		return span;
+	}
+	
+	/**
+	 * End the call of the stage, and any nested stages that were not ended.
+	 */
+	public void stop(Span span) {
+		Span current = this.current;
+		while ((current != null) && (current != this.root)) {
+			if ((current == span) && (current.depth > 1)) {
+				current.depth--;
+				return;
+			}
+			current.depth = 0;
+			current.time = current.time + (System.nanoTime() - current.start);
+			this.current = current.parent;
+			if (current == span) {
+				return;
+			}
+			current = this.current;
+		}
+	}
+	
+	/**
+	 * Count a database query and its rows, for the current stage and its parents.
+	 */
+	public void addQuery(int rows) {
+		Span span = this.current;
+		while (span != null) {
+			span.queries++;
+			span.rows = span.rows + rows;
+			span = span.parent;
+		}
+	}
+	
+	/**
+	 * End the trace, and any stages that were not ended.
+	 */
+	protected void end() {
+		stop(null);
+		this.time = System.nanoTime() - this.root.start;
+		this.root.time = this.time;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the time the trace started in milliseconds.
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Return the total time in nanoseconds.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public Span getRoot() {
+		return root;
+	}
+	
+	public String toString() {
+		StringWriter writer = new StringWriter();
+		writer.write("Trace(" + this.name + " " + Utils.printDate(new Date(this.startTime)) + ")\n");
+		this.root.print(writer, "  ");
+		return writer.toString();
+	}
+}
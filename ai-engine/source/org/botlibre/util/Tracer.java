@@ -0,0 +1,289 @@
+/******************************************************************************
+ *
+ *  Copyright 2014 Paphus Solutions Inc.
+ *
+ *  Licensed under the Eclipse Public License, Version 1.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.eclipse.org/legal/epl-v10.html
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+package org.botlibre.util;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.botlibre.api.knowledge.Vertex;
+import org.botlibre.util.Trace.Span;
+
+/**
+ * Traces the processing of each input through the senses, mind, and thoughts.
+ * A trace is opened per input, and records the time, database queries, and rows of each stage.
+ * Each bot records a histogram of the time per input of each stage, and keeps its slowest traces.
+ * The current trace is per thread, an input added to the active memory is handed to the conscious thread by its vertex.
+ * Tracing is disabled by default, it is enabled for a bot by the mind's "trace" property.
+ */
+
+public class Tracer {
+	public static boolean ENABLED = false;
+	/** Number of slowest traces kept. */
+	public static int SLOWEST = 10;
+	/** Max number of traces waiting for the mind to process their input. */
+	public static int MAX_PENDING = 100;
+	
+	protected static ThreadLocal<Trace> current = new ThreadLocal<Trace>();
+	
+	protected static Comparator<Trace> FASTEST_FIRST = new Comparator<Trace>() {
+		public int compare(Trace first, Trace second) {
+			return Long.compare(first.getTime(), second.getTime());
+		}
+	};
+	
+	protected boolean enabled = ENABLED;
+	protected Histogram total = new Histogram();
+	protected ConcurrentMap<String, Histogram> stages = new ConcurrentHashMap<String, Histogram>();
+	protected PriorityQueue<Trace> slowest = new PriorityQueue<Trace>(SLOWEST + 1, FASTEST_FIRST);
+	protected Map<Long, Trace> pending = new LinkedHashMap<Long, Trace>() {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<Long, Trace> eldest) {
+			return size() > MAX_PENDING;
+		}
+	};
+	
+	/**
+	 * Return the trace of the current thread, or null.
+	 */
+	public static Trace current() {
+		return current.get();
+	}
+	
+	/**
+	 * Count a database query and its rows for the current thread's trace.
+	 */
+	public static void addQuery(int rows) {
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.addQuery(rows);
+		}
+	}
+	
+	/**
+	 * Start a call of the stage in the current thread's trace.
+	 * Return null if the thread is not tracing.
+	 */
+	public static Span start(String stage) {
+		Trace trace = current.get();
+		if (trace == null) {
+			return null;
+		}
+		return trace.start(stage);
+	}
+	
+	/**
+	 * End the call of the stage.
+	 */
+	public static void stop(Span span) {
+		if (span == null) {
+			return;
+		}
+		Trace trace = current.get();
+		if (trace != null) {
+			trace.stop(span);
+		}
+	}
+	
+	public static String millis(long nanos) {
+		return String.valueOf(nanos / 1000000) + "." + String.valueOf((nanos / 100000) % 10) + "ms";
+	}
+	
+	/**
+	 * Open a trace on the current thread.
+	 * Return null if disabled, or if the thread is already tracing, then the caller's stages are part of that trace.
+	 */
+	public Trace begin(String name) {
+		if (!this.enabled || (current.get() != null)) {
+			return null;
+		}
+		Trace trace = new Trace(this, name);
+		current.set(trace);
+		return trace;
+	}
+	
+	/**
+	 * End the trace opened by begin, and record its stages.
+	 */
+	public void end(Trace trace) {
+		if (trace == null) {
+			return;
+		}
+		if (current.get() == trace) {
+			current.remove();
+		}
+		trace.end();
+		this.total.record(trace.getTime());
+		Map<String, Long> times = new HashMap<String, Long>();
+		sum(trace.getRoot(), times, new HashSet<String>());
+		for (Map.Entry<String, Long> entry : times.entrySet()) {
+			Histogram histogram = this.stages.get(entry.getKey());
+			if (histogram == null) {
+				this.stages.putIfAbsent(entry.getKey(), new Histogram());
+				histogram = this.stages.get(entry.getKey());
+			}
+			histogram.record(entry.getValue());
+		}
+		synchronized (this.slowest) {
+			this.slowest.add(trace);
+			if (this.slowest.size() > SLOWEST) {
+				this.slowest.poll();
+			}
+		}
+	}
+	
+	/**
+	 * Sum the time of each stage of the trace, a stage may be called from many stages.
+	 * Only the outermost call of a stage is counted, as the time of a stage nested in itself is already included.
+	 */
+	protected void sum(Span span, Map<String, Long> times, Set<String> active) {
+		if (span.getChildren() == null) {
+			return;
+		}
+		for (Span child : span.getChildren()) {
+			boolean isOutermost = active.add(child.getStage());
+			if (isOutermost) {
+				Long time = times.get(child.getStage());
+				times.put(child.getStage(), (time == null) ? child.getTime() : time + child.getTime());
+			}
+			sum(child, times, active);
+			if (isOutermost) {
+				active.remove(child.getStage());
+			}
+		}
+	}
+	
+	/**
+	 * Detach the current thread's trace, to be resumed by the thread that processes the input.
+	 */
+	public void suspend(Trace trace, Vertex input) {
+		if (trace == null) {
+			return;
+		}
+		if (current.get() == trace) {
+			current.remove();
+		}
+		if (input.getId() == null) {
+			end(trace);
+			return;
+		}
+		trace.start("wait");
+		synchronized (this.pending) {
+			this.pending.put(input.getId(), trace);
+		}
+	}
+	
+	/**
+	 * Resume the trace of the first of the inputs that has one on the current thread, or open a new trace.
+	 * The traces of the other inputs are ended, as they are processed together.
+	 */
+	public Trace resume(List<Vertex> inputs, String name) {
+		if (!this.enabled || (current.get() != null)) {
+			return null;
+		}
+		Trace resumed = null;
+		synchronized (this.pending) {
+			if (!this.pending.isEmpty()) {
+				for (Vertex input : inputs) {
+					Trace trace = this.pending.remove(input.getId());
+					if (trace != null) {
+						trace.stop(null);
+						if (resumed == null) {
+							resumed = trace;
+						} else {
+							end(trace);
+						}
+					}
+				}
+			}
+		}
+		if (resumed == null) {
+			return begin(name);
+		}
+		current.set(resumed);
+		return resumed;
+	}
+	
+	/**
+	 * Return the slowest traces, slowest first.
+	 */
+	public List<Trace> getSlowest() {
+		List<Trace> traces = null;
+		synchronized (this.slowest) {
+			traces = new ArrayList<Trace>(this.slowest);
+		}
+		Collections.sort(traces, Collections.reverseOrder(FASTEST_FIRST));
+		return traces;
+	}
+	
+	/**
+	 * Print the histograms of each stage, and the slowest traces.
+	 */
+	public String dump() {
+		StringWriter writer = new StringWriter();
+		writer.write("Total - " + this.total + "\n");
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(this.stages).entrySet()) {
+			writer.write(entry.getKey() + " - " + entry.getValue() + "\n");
+		}
+		for (Trace trace : getSlowest()) {
+			writer.write(trace.toString());
+		}
+		return writer.toString();
+	}
+	
+	public void resetStats() {
+		this.total.reset();
+		this.stages.clear();
+		synchronized (this.slowest) {
+			this.slowest.clear();
+		}
+	}
+
+	/**
+	 * Return the histogram of the total time per input.
+	 */
+	public Histogram getTotal() {
+		return total;
+	}
+
+	/**
+	 * Return the histograms of the time per input of each stage.
+	 */
+	public Map<String, Histogram> getStages() {
+		return stages;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+}